@@ -0,0 +1,132 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.database
+
+import android.util.Log
+import com.kunzisoft.keepass.database.element.binary.AttachmentPool
+import com.kunzisoft.keepass.database.element.binary.BinaryCache
+import com.kunzisoft.keepass.database.element.binary.BinaryData
+import junit.framework.TestCase
+import org.junit.Assert.assertArrayEquals
+import org.junit.Ignore
+import java.security.MessageDigest
+
+class AttachmentPoolTest : TestCase() {
+
+    private val binaryCache = BinaryCache()
+
+    private fun putBinary(attachmentPool: AttachmentPool, content: String, key: Int? = null): Int {
+        val keyBinary = attachmentPool.put(key) { uniqueBinaryId ->
+            binaryCache.getBinaryData(uniqueBinaryId, true)
+        }
+        keyBinary.binary.getOutputDataStream(binaryCache).use { outputStream ->
+            outputStream.write(content.toByteArray())
+        }
+        return keyBinary.keys.first()
+    }
+
+    fun testBinaryReferences() {
+        val attachmentPool = AttachmentPool(binaryCache)
+        val keys = listOf("A", "B", "A", "C", "B", "").map { putBinary(attachmentPool, it) }
+        val binaryReferences = attachmentPool.buildBinaryReferences()
+
+        assertEquals(4, binaryReferences.orderedBinaries.size)
+        assertEquals(listOf(0, 1, 0, 2, 1, 3), keys.map { binaryReferences.getBinaryIndexFromKey(it) })
+        assertNull(binaryReferences.getBinaryIndexFromKey(keys.size))
+        assertNull(binaryReferences.getBinaryIndexFromKey(-1))
+
+        // Same order as the binaries written without the table
+        val orderedBinaries = ArrayList<BinaryData>()
+        attachmentPool.doForEachOrderedBinaryWithoutDuplication { _, binary ->
+            orderedBinaries.add(binary)
+        }
+        assertEquals(orderedBinaries, binaryReferences.orderedBinaries)
+    }
+
+    fun testSparseKeys() {
+        val attachmentPool = AttachmentPool(binaryCache)
+        putBinary(attachmentPool, "A", 1000000)
+        putBinary(attachmentPool, "B", -5)
+        putBinary(attachmentPool, "A", 3)
+        val binaryReferences = attachmentPool.buildBinaryReferences()
+
+        assertEquals(0, binaryReferences.getBinaryIndexFromKey(1000000))
+        assertEquals(1, binaryReferences.getBinaryIndexFromKey(-5))
+        assertEquals(0, binaryReferences.getBinaryIndexFromKey(3))
+        assertNull(binaryReferences.getBinaryIndexFromKey(0))
+    }
+
+    fun testContentIndex() {
+        val attachmentPool = AttachmentPool(binaryCache)
+        val keyA = putBinary(attachmentPool, "A")
+        val keyB = putBinary(attachmentPool, "B")
+        val binaryA = attachmentPool[keyA]!!
+        val binaryB = attachmentPool[keyB]!!
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest("A".toByteArray()),
+                binaryA.binaryDigest())
+        assertFalse(attachmentPool.isBinaryDuplicate(binaryA))
+        assertNull(attachmentPool.findBinaryWithSameContent(binaryA))
+
+        // Index updated when the content is written after the put
+        val keyA2 = putBinary(attachmentPool, "A")
+        assertTrue(attachmentPool.isBinaryDuplicate(binaryA))
+        assertEquals(keyA2, attachmentPool.findBinaryWithSameContent(binaryA)?.keys?.first())
+        assertEquals(keyA, attachmentPool.findBinaryWithSameContent(attachmentPool[keyA2]!!)?.keys?.first())
+
+        // Rewritten content
+        binaryB.getOutputDataStream(binaryCache).use { it.write("A".toByteArray()) }
+        assertEquals(3, listOf(keyA, keyB, keyA2).count {
+            attachmentPool.findBinaryWithSameContent(attachmentPool[it]!!) != null
+        })
+
+        attachmentPool.remove(keyA2)
+        attachmentPool.remove(binaryB)
+        assertFalse(attachmentPool.isBinaryDuplicate(binaryA))
+        assertNull(attachmentPool.findBinaryWithSameContent(binaryA))
+    }
+
+    /**
+     * Table build and a lookup per attachment, as done by a save,
+     * run manually, not named as a test as JUnit 3 ignores the annotation
+     */
+    @Ignore("Benchmark, run manually")
+    fun benchmark() {
+        val attachmentPool = AttachmentPool(binaryCache)
+        val keys = (0 until BENCHMARK_ATTACHMENTS).map {
+            // One attachment of ten is a duplicate
+            putBinary(attachmentPool, "Attachment ${if (it % 10 == 0) 0 else it}")
+        }
+        val startTime = System.nanoTime()
+        val binaryReferences = attachmentPool.buildBinaryReferences()
+        keys.forEach {
+            assertNotNull(binaryReferences.getBinaryIndexFromKey(it))
+        }
+        Log.i(TAG, "$BENCHMARK_ATTACHMENTS attachments, " +
+                "${binaryReferences.orderedBinaries.size} without duplication: " +
+                "${(System.nanoTime() - startTime) / 1000000} ms")
+        assertEquals(BENCHMARK_ATTACHMENTS - BENCHMARK_ATTACHMENTS / 10 + 1,
+                binaryReferences.orderedBinaries.size)
+    }
+
+    companion object {
+        private val TAG = AttachmentPoolTest::class.java.name
+        private const val BENCHMARK_ATTACHMENTS = 20000
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.database
+
+import com.kunzisoft.keepass.database.element.binary.BinaryCache
+import com.kunzisoft.keepass.database.element.binary.BinaryData
+import junit.framework.TestCase
+import org.junit.Assert.assertArrayEquals
+import java.io.File
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+class BinaryCacheTest : TestCase() {
+
+    private val binaryCache = BinaryCache()
+    private lateinit var cacheDirectory: File
+
+    override fun setUp() {
+        cacheDirectory = File.createTempFile("binaryCache", "").apply {
+            delete()
+            mkdir()
+        }
+        binaryCache.memoryBudget = BUDGET
+    }
+
+    override fun tearDown() {
+        binaryCache.clear()
+        cacheDirectory.deleteRecursively()
+    }
+
+    private fun newBinary(id: Int, content: ByteArray): BinaryData {
+        return binaryCache.getBinaryData(id.toString(), true).apply {
+            getOutputDataStream(binaryCache).use { it.write(content) }
+        }
+    }
+
+    private fun BinaryData.content(): ByteArray {
+        return getInputDataStream(binaryCache).use { it.readBytes() }
+    }
+
+    fun testSpillBeyondBudget() {
+        binaryCache.cacheDirectory = cacheDirectory
+        val contents = (0 until 40).map { Random.nextBytes(30_000 + it) }
+        val binaries = contents.mapIndexed { index, content -> newBinary(index, content) }
+        assertTrue(binaryCache.memoryUsage <= BUDGET)
+        assertTrue(cacheDirectory.list()!!.isNotEmpty())
+
+        // Read back in any order, promoted or streamed from the spill files
+        for (i in binaries.indices.reversed() + binaries.indices) {
+            assertArrayEquals(contents[i], binaries[i].content())
+            assertEquals(contents[i].size.toLong(), binaries[i].getSize())
+            assertTrue(binaryCache.memoryUsage <= BUDGET)
+        }
+
+        binaries.forEach { it.clear(binaryCache) }
+        assertEquals(0L, binaryCache.memoryUsage)
+        assertTrue(cacheDirectory.list()!!.isEmpty())
+    }
+
+    fun testLargerThanBudget() {
+        binaryCache.cacheDirectory = cacheDirectory
+        val content = Random.nextBytes(3 * BUDGET.toInt() + 7)
+        val binary = newBinary(0, content)
+        assertArrayEquals(content, binary.content())
+        assertTrue(binaryCache.memoryUsage <= BUDGET)
+        binary.compress(binaryCache)
+        binary.decompress(binaryCache)
+        assertArrayEquals(content, binary.content())
+    }
+
+    fun testWithoutCacheDirectory() {
+        val contents = (0 until 10).map { Random.nextBytes(50_000) }
+        val binaries = contents.mapIndexed { index, content -> newBinary(index, content) }
+        // Nowhere to spill, all kept in memory
+        assertTrue(binaryCache.memoryUsage >= contents.sumBy { it.size })
+        binaries.forEachIndexed { index, binary ->
+            assertArrayEquals(contents[index], binary.content())
+        }
+    }
+
+    fun testReadWhileReplaced() {
+        binaryCache.cacheDirectory = cacheDirectory
+        val first = Random.nextBytes(100_000)
+        val second = Random.nextBytes(20_000)
+        val binary = newBinary(0, first)
+        binary.getInputDataStream(binaryCache).use { inputStream ->
+            binary.getOutputDataStream(binaryCache).use { it.write(second) }
+            // Other binaries must not reuse the memory still read
+            (1..10).forEach { newBinary(it, Random.nextBytes(50_000)) }
+            assertArrayEquals(first, inputStream.readBytes())
+        }
+        assertArrayEquals(second, binary.content())
+    }
+
+    fun testConcurrentSpill() {
+        binaryCache.cacheDirectory = cacheDirectory
+        val executor = Executors.newFixedThreadPool(THREADS)
+        try {
+            // Each thread spills and promotes the binaries of the others while writing its own
+            val tasks = (0 until THREADS).map { thread ->
+                executor.submit {
+                    val contents = (0 until 10).map { Random.nextBytes(40_000 + it) }
+                    val binaries = contents.mapIndexed { index, content ->
+                        newBinary(thread * 100 + index, content)
+                    }
+                    for (i in binaries.indices.reversed() + binaries.indices) {
+                        assertArrayEquals(contents[i], binaries[i].content())
+                    }
+                    binaries.forEach { it.clear(binaryCache) }
+                }
+            }
+            tasks.forEach { it.get(60, TimeUnit.SECONDS) }
+        } finally {
+            executor.shutdownNow()
+        }
+        assertEquals(0L, binaryCache.memoryUsage)
+        assertTrue(cacheDirectory.list()!!.isEmpty())
+    }
+
+    companion object {
+        private const val THREADS = 4
+        private const val BUDGET = 256L * 1024
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.database
+
+import android.net.Uri
+import androidx.test.platform.app.InstrumentationRegistry
+import com.kunzisoft.keepass.database.element.Database
+import com.kunzisoft.keepass.database.element.binary.LoadedKey
+import com.kunzisoft.keepass.database.element.database.CompressionAlgorithm
+import com.kunzisoft.keepass.database.element.database.CompressionLevel
+import com.kunzisoft.keepass.model.MainCredential
+import junit.framework.TestCase
+import java.io.File
+
+class CompressionLevelTest : TestCase() {
+
+    private val context = InstrumentationRegistry.getInstrumentation().targetContext
+    private lateinit var cacheDirectory: File
+    private lateinit var databaseFile: File
+
+    override fun setUp() {
+        cacheDirectory = File(context.cacheDir, "compressionLevel").apply {
+            mkdirs()
+        }
+        databaseFile = File(cacheDirectory, "database.kdbx")
+        databaseFile.writeBytes(DatabaseKDBXSample.save(DatabaseKDBXSample.build(4, 100)))
+    }
+
+    override fun tearDown() {
+        cacheDirectory.deleteRecursively()
+    }
+
+    private fun loadDatabase(): Database {
+        return Database().apply {
+            loadData(Uri.fromFile(databaseFile),
+                    MainCredential(DatabaseKDBXSample.PASSWORD),
+                    false,
+                    context.contentResolver,
+                    cacheDirectory,
+                    { true },
+                    LoadedKey.generateNewCipherKey(),
+                    false,
+                    null)
+        }
+    }
+
+    /**
+     * Load the database, set the [compressionLevel] and save it, return the size of the file
+     */
+    private fun saveWithLevel(compressionLevel: CompressionLevel): Long {
+        val database = loadDatabase()
+        database.compressionAlgorithm = CompressionAlgorithm.GZip
+        database.compressionLevel = compressionLevel
+        database.saveData(context.contentResolver)
+        database.clear()
+        return databaseFile.length()
+    }
+
+    fun testLevelSavedAndReloaded() {
+        val defaultDatabase = loadDatabase()
+        assertEquals(CompressionLevel.Default, defaultDatabase.compressionLevel)
+        val groups = defaultDatabase.rootGroup?.getChildGroups()?.map { it.nodeId }
+        defaultDatabase.clear()
+
+        val fastSize = saveWithLevel(CompressionLevel.Fast)
+        val fastDatabase = loadDatabase()
+        assertEquals(CompressionLevel.Fast, fastDatabase.compressionLevel)
+        assertEquals(CompressionAlgorithm.GZip, fastDatabase.compressionAlgorithm)
+        assertEquals(groups, fastDatabase.rootGroup?.getChildGroups()?.map { it.nodeId })
+        fastDatabase.clear()
+
+        val bestSize = saveWithLevel(CompressionLevel.Best)
+        val bestDatabase = loadDatabase()
+        assertEquals(CompressionLevel.Best, bestDatabase.compressionLevel)
+        assertEquals(groups, bestDatabase.rootGroup?.getChildGroups()?.map { it.nodeId })
+        bestDatabase.clear()
+        assertTrue("Best level larger than the fast one", bestSize < fastSize)
+    }
+}
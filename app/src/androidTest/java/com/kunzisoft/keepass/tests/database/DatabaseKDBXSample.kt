@@ -0,0 +1,184 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.database
+
+import com.kunzisoft.keepass.database.crypto.kdf.KdfFactory
+import com.kunzisoft.keepass.database.element.Attachment
+import com.kunzisoft.keepass.database.element.CustomDataItem
+import com.kunzisoft.keepass.database.element.binary.LoadedKey
+import com.kunzisoft.keepass.database.element.database.DatabaseKDBX
+import com.kunzisoft.keepass.database.element.entry.EntryKDBX
+import com.kunzisoft.keepass.database.element.group.GroupKDBX
+import com.kunzisoft.keepass.database.element.security.ProtectedString
+import com.kunzisoft.keepass.database.file.input.DatabaseInputKDBX
+import com.kunzisoft.keepass.database.file.output.DatabaseOutputKDBX
+import com.kunzisoft.keepass.tasks.ProgressTaskUpdater
+import junit.framework.TestCase.assertEquals
+import org.junit.Assert.assertArrayEquals
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.util.*
+
+/**
+ * KDBX 4 database with groups, entries, protected fields, history and attachments,
+ * saved and reloaded by the database streams
+ */
+object DatabaseKDBXSample {
+
+    const val PASSWORD = "sample password"
+
+    val masterKey: ByteArray by lazy {
+        DatabaseKDBX().apply { retrieveMasterKey(PASSWORD, null) }.masterKey
+    }
+
+    fun build(groups: Int, entriesPerGroup: Int, random: Random = Random(42)): DatabaseKDBX {
+        return DatabaseKDBX("Sample", "Root").apply {
+            kdfParameters = KdfFactory.aesKdf.defaultParameters.also {
+                KdfFactory.aesKdf.setKeyRounds(it, KEY_ROUNDS)
+            }
+            this.masterKey = DatabaseKDBXSample.masterKey.clone()
+            // Header custom data needs KDBX 4 and its seekable inner stream
+            customData.put(CustomDataItem("Sample", "KDBX4"))
+            val root = rootGroup!!
+            for (groupIndex in 0 until groups) {
+                val group = createGroup().apply {
+                    title = "Group $groupIndex"
+                    notes = "Notes of the group $groupIndex"
+                }
+                addGroupTo(group, root)
+                val subGroup = createGroup().apply {
+                    title = "Sub group $groupIndex"
+                }
+                addGroupTo(subGroup, group)
+                for (entryIndex in 0 until entriesPerGroup) {
+                    val entry = buildEntry(this, "$groupIndex.$entryIndex", random)
+                    if (entryIndex % 4 == 0) {
+                        entry.addEntryToHistory(buildEntry(this, "$groupIndex.$entryIndex old", random))
+                    }
+                    addEntryTo(entry, if (entryIndex % 2 == 0) group else subGroup)
+                }
+            }
+        }
+    }
+
+    private fun buildEntry(database: DatabaseKDBX, name: String, random: Random): EntryKDBX {
+        return database.createEntry().apply {
+            title = "Entry $name"
+            username = "user $name"
+            url = "https://example.com/$name?a=1&b=<2>"
+            notes = "Notes of the entry $name\n".repeat(16)
+            putField("Password", ProtectedString(true, "password ${random.nextLong()}"))
+            putField("Secret $name", ProtectedString(true, "secret ${random.nextLong()}"))
+            putField("Custom $name", ProtectedString(false, "value ${random.nextInt()}"))
+            if (random.nextInt(4) == 0) {
+                val binary = database.buildNewAttachment(smallSize = true,
+                        compression = false,
+                        protection = random.nextBoolean())
+                binary.getOutputDataStream(database.binaryCache).use { outputStream ->
+                    outputStream.write(ByteArray(1 + random.nextInt(2048)).apply {
+                        random.nextBytes(this)
+                    })
+                }
+                putAttachment(Attachment("file $name.bin", binary), database.attachmentPool)
+            }
+        }
+    }
+
+    fun save(database: DatabaseKDBX,
+             parallelSerialization: Boolean = false): ByteArray {
+        return ByteArrayOutputStream().apply {
+            DatabaseOutputKDBX(database, this).apply {
+                this.parallelSerialization = parallelSerialization
+            }.output()
+        }.toByteArray()
+    }
+
+    fun load(bytes: ByteArray,
+             cacheDirectory: File,
+             parallelParsing: Boolean = false,
+             progressTaskUpdater: ProgressTaskUpdater? = null): DatabaseKDBX {
+        return DatabaseInputKDBX(cacheDirectory) { true }.apply {
+            this.parallelParsing = parallelParsing
+        }.openDatabase(ByteArrayInputStream(bytes),
+                masterKey.clone(),
+                LoadedKey.generateNewCipherKey(),
+                progressTaskUpdater,
+                false)
+    }
+
+    /**
+     * Check the groups, entries, IDs, fields, history and attachments of the two trees
+     */
+    fun assertSameTree(expected: DatabaseKDBX, actual: DatabaseKDBX) {
+        assertSameGroup(expected, expected.rootGroup!!, actual, actual.rootGroup!!)
+        assertEquals(expected.getGroupIndexes().map { it.nodeId }.toSet(),
+                actual.getGroupIndexes().map { it.nodeId }.toSet())
+        assertEquals(expected.getEntryIndexes().map { it.nodeId }.toSet(),
+                actual.getEntryIndexes().map { it.nodeId }.toSet())
+    }
+
+    private fun assertSameGroup(expectedDatabase: DatabaseKDBX, expected: GroupKDBX,
+                                actualDatabase: DatabaseKDBX, actual: GroupKDBX) {
+        assertEquals(expected.id, actual.id)
+        assertEquals(expected.title, actual.title)
+        assertEquals(expected.notes, actual.notes)
+        val expectedEntries = expected.getChildEntries()
+        val actualEntries = actual.getChildEntries()
+        assertEquals(expectedEntries.size, actualEntries.size)
+        expectedEntries.forEachIndexed { index, entry ->
+            assertSameEntry(expectedDatabase, entry, actualDatabase, actualEntries[index])
+            assertEquals(actual, actualEntries[index].parent)
+        }
+        val expectedGroups = expected.getChildGroups()
+        val actualGroups = actual.getChildGroups()
+        assertEquals(expectedGroups.size, actualGroups.size)
+        expectedGroups.forEachIndexed { index, group ->
+            assertSameGroup(expectedDatabase, group, actualDatabase, actualGroups[index])
+            assertEquals(actual, actualGroups[index].parent)
+        }
+    }
+
+    private fun assertSameEntry(expectedDatabase: DatabaseKDBX, expected: EntryKDBX,
+                                actualDatabase: DatabaseKDBX, actual: EntryKDBX) {
+        assertEquals(expected.id, actual.id)
+        assertEquals(expected.getFields().associate { field ->
+            field.name to Pair(field.protectedValue.stringValue, field.protectedValue.isProtected)
+        }, actual.getFields().associate { field ->
+            field.name to Pair(field.protectedValue.stringValue, field.protectedValue.isProtected)
+        })
+        val expectedAttachments = expected.getAttachments(expectedDatabase.attachmentPool)
+        val actualAttachments = actual.getAttachments(actualDatabase.attachmentPool)
+        assertEquals(expectedAttachments.map { it.name }, actualAttachments.map { it.name })
+        expectedAttachments.forEachIndexed { index, attachment ->
+            val actualBinary = actualAttachments[index].binaryData
+            assertEquals(attachment.binaryData.isProtected, actualBinary.isProtected)
+            assertArrayEquals(
+                    attachment.binaryData.getInputDataStream(expectedDatabase.binaryCache).use { it.readBytes() },
+                    actualBinary.getInputDataStream(actualDatabase.binaryCache).use { it.readBytes() })
+        }
+        assertEquals(expected.history.size, actual.history.size)
+        expected.history.forEachIndexed { index, entry ->
+            assertSameEntry(expectedDatabase, entry, actualDatabase, actual.history[index])
+        }
+    }
+
+    private const val KEY_ROUNDS = 16L
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.database
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.net.Uri
+import androidx.preference.PreferenceManager
+import androidx.test.platform.app.InstrumentationRegistry
+import com.kunzisoft.keepass.R
+import com.kunzisoft.keepass.database.action.DatabaseSaveScheduler
+import com.kunzisoft.keepass.database.element.Database
+import com.kunzisoft.keepass.database.element.binary.LoadedKey
+import com.kunzisoft.keepass.model.MainCredential
+import com.kunzisoft.keepass.services.DatabaseTaskNotificationService
+import com.kunzisoft.keepass.timeout.TimeoutHelper
+import com.kunzisoft.keepass.utils.DATABASE_STOP_TASK_ACTION
+import com.kunzisoft.keepass.utils.closeDatabase
+import junit.framework.TestCase
+import java.io.File
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class DatabaseSaveSchedulerTest : TestCase() {
+
+    private val context = InstrumentationRegistry.getInstrumentation().targetContext
+    private val preferences = PreferenceManager.getDefaultSharedPreferences(context)
+    private lateinit var cacheDirectory: File
+    private lateinit var databaseFile: File
+
+    override fun setUp() {
+        cacheDirectory = File(context.cacheDir, "saveScheduler").apply {
+            mkdirs()
+        }
+        databaseFile = File(cacheDirectory, "database.kdbx")
+        databaseFile.writeBytes(DatabaseKDBXSample.save(DatabaseKDBXSample.build(4, 20)))
+    }
+
+    override fun tearDown() {
+        preferences.edit()
+                .remove(context.getString(R.string.save_delay_key))
+                .remove(context.getString(R.string.app_timeout_key))
+                .apply()
+        cacheDirectory.deleteRecursively()
+    }
+
+    private fun loadDatabase(database: Database = Database()): Database {
+        return database.apply {
+            loadData(Uri.fromFile(databaseFile),
+                    MainCredential(DatabaseKDBXSample.PASSWORD),
+                    false,
+                    context.contentResolver,
+                    cacheDirectory,
+                    { true },
+                    LoadedKey.generateNewCipherKey(),
+                    false,
+                    null)
+        }
+    }
+
+    private fun savedName(): String {
+        val database = loadDatabase()
+        val name = database.name
+        database.clear()
+        return name
+    }
+
+    fun testRapidEditsSavedOnce() {
+        val database = loadDatabase()
+        val saves = AtomicInteger()
+        val saved = CountDownLatch(1)
+        val scheduler = DatabaseSaveScheduler(QUIET_PERIOD) {
+            database.saveData(context.contentResolver)
+            saves.incrementAndGet()
+            saved.countDown()
+        }
+        for (i in 0 until EDITS) {
+            database.name = "Edit $i"
+            scheduler.markDirty()
+        }
+        assertTrue(scheduler.isDirty)
+        assertTrue(saved.await(10, TimeUnit.SECONDS))
+        // Nothing left to save after the merged save
+        assertFalse(scheduler.isDirty)
+        assertFalse(scheduler.cancel())
+        assertEquals(1, saves.get())
+        database.clear()
+        assertEquals("Edit ${EDITS - 1}", savedName())
+    }
+
+    fun testCancel() {
+        val originalBytes = databaseFile.readBytes()
+        val database = loadDatabase()
+        val scheduler = DatabaseSaveScheduler(QUIET_PERIOD) {
+            database.saveData(context.contentResolver)
+        }
+        database.name = "Cancelled"
+        scheduler.markDirty()
+        assertTrue(scheduler.cancel())
+        assertFalse(scheduler.isDirty)
+        assertFalse(scheduler.cancel())
+        database.clear()
+        assertTrue(originalBytes.contentEquals(databaseFile.readBytes()))
+    }
+
+    /**
+     * Register a receiver counting down [latch] at the end of a task of the database service
+     */
+    private fun registerStopTaskReceiver(latch: CountDownLatch): BroadcastReceiver {
+        return object : BroadcastReceiver() {
+            override fun onReceive(context: Context?, intent: Intent?) {
+                latch.countDown()
+            }
+        }.also {
+            context.registerReceiver(it, IntentFilter(DATABASE_STOP_TASK_ACTION))
+        }
+    }
+
+    fun testServiceSavesDelayedModificationsOnClose() {
+        // Only the lock writes the modifications
+        preferences.edit()
+                .putString(context.getString(R.string.save_delay_key), "600000")
+                .putString(context.getString(R.string.app_timeout_key), TimeoutHelper.NEVER.toString())
+                .apply()
+        val originalBytes = databaseFile.readBytes()
+        val database = loadDatabase(Database.getInstance())
+        database.loaded = true
+
+        val actionStopped = CountDownLatch(1)
+        val receiver = registerStopTaskReceiver(actionStopped)
+        try {
+            database.name = "Delayed"
+            context.startService(Intent(context, DatabaseTaskNotificationService::class.java).apply {
+                action = DatabaseTaskNotificationService.ACTION_DATABASE_UPDATE_NAME_TASK
+                putExtra(DatabaseTaskNotificationService.OLD_ELEMENT_KEY, "")
+                putExtra(DatabaseTaskNotificationService.NEW_ELEMENT_KEY, "Delayed")
+                putExtra(DatabaseTaskNotificationService.SAVE_DATABASE_KEY, true)
+            })
+            assertTrue(actionStopped.await(10, TimeUnit.SECONDS))
+        } finally {
+            context.unregisterReceiver(receiver)
+        }
+        // The modification is kept in memory
+        assertTrue(database.hasDelayedModifications)
+        assertTrue(originalBytes.contentEquals(databaseFile.readBytes()))
+
+        // Written before clearing the data, as by each lock receiver
+        InstrumentationRegistry.getInstrumentation().runOnMainSync {
+            context.closeDatabase(database)
+        }
+        assertFalse(database.hasDelayedModifications)
+        assertFalse(database.loaded)
+        assertEquals("Delayed", savedName())
+        context.stopService(Intent(context, DatabaseTaskNotificationService::class.java))
+    }
+
+    fun testClosedWhenDelayedSaveFails() {
+        val database = loadDatabase()
+        database.loaded = true
+        database.name = "Not written"
+        database.hasDelayedModifications = true
+        // The file can't be replaced by a directory
+        databaseFile.delete()
+        databaseFile.mkdir()
+        InstrumentationRegistry.getInstrumentation().runOnMainSync {
+            context.closeDatabase(database)
+        }
+        // Locked anyway
+        assertFalse(database.hasDelayedModifications)
+        assertFalse(database.loaded)
+        assertNull(database.fileUri)
+    }
+
+    companion object {
+        private const val EDITS = 10
+        private const val QUIET_PERIOD = 100L
+    }
+}
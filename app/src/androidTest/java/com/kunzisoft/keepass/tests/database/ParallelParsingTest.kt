@@ -0,0 +1,117 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.database
+
+import androidx.test.platform.app.InstrumentationRegistry
+import com.kunzisoft.keepass.database.element.binary.LoadedKey
+import com.kunzisoft.keepass.database.file.input.DatabaseInputKDBX
+import com.kunzisoft.keepass.tasks.ProgressTaskUpdater
+import junit.framework.TestCase
+import java.io.ByteArrayInputStream
+import java.io.File
+
+class ParallelParsingTest : TestCase() {
+
+    private lateinit var cacheDirectory: File
+
+    override fun setUp() {
+        cacheDirectory = File(InstrumentationRegistry.getInstrumentation().targetContext.cacheDir,
+                "parallelParsing").apply {
+            mkdirs()
+        }
+    }
+
+    override fun tearDown() {
+        cacheDirectory.deleteRecursively()
+    }
+
+    fun testParallelAsSequential() {
+        // Large enough to be split, in more subtrees than tasks
+        val bytes = DatabaseKDBXSample.save(DatabaseKDBXSample.build(40, 60))
+
+        val sequential = DatabaseKDBXSample.load(bytes, cacheDirectory, false)
+        val parallelInput = DatabaseInputKDBX(cacheDirectory) { true }.apply {
+            parallelParsing = true
+        }
+        val parallel = parallelInput.openDatabase(ByteArrayInputStream(bytes),
+                DatabaseKDBXSample.masterKey.clone(),
+                LoadedKey.generateNewCipherKey(),
+                null,
+                false)
+        assertTrue(parallelInput.parallelParsed)
+
+        DatabaseKDBXSample.assertSameTree(sequential, parallel)
+        // Indexed in the document order
+        assertEquals(sequential.getGroupIndexes().map { it.nodeId },
+                parallel.getGroupIndexes().map { it.nodeId })
+        assertEquals(sequential.getEntryIndexes().map { it.nodeId },
+                parallel.getEntryIndexes().map { it.nodeId })
+    }
+
+    fun testNotSplitWithoutRAM() {
+        val bytes = DatabaseKDBXSample.save(DatabaseKDBXSample.build(40, 60))
+        val input = DatabaseInputKDBX(cacheDirectory) { false }.apply {
+            parallelParsing = true
+        }
+        val database = input.openDatabase(ByteArrayInputStream(bytes),
+                DatabaseKDBXSample.masterKey.clone(),
+                LoadedKey.generateNewCipherKey(),
+                null,
+                false)
+        assertFalse(input.parallelParsed)
+        DatabaseKDBXSample.assertSameTree(DatabaseKDBXSample.load(bytes, cacheDirectory), database)
+    }
+
+    fun testNotSplitAboveMaxSize() {
+        val bytes = DatabaseKDBXSample.save(DatabaseKDBXSample.build(40, 60))
+        val input = DatabaseInputKDBX(cacheDirectory) { true }.apply {
+            parallelParsing = true
+            maxParallelXmlSize = 0
+        }
+        val database = input.openDatabase(ByteArrayInputStream(bytes),
+                DatabaseKDBXSample.masterKey.clone(),
+                LoadedKey.generateNewCipherKey(),
+                null,
+                false)
+        assertFalse(input.parallelParsed)
+        DatabaseKDBXSample.assertSameTree(DatabaseKDBXSample.load(bytes, cacheDirectory), database)
+    }
+
+    fun testStageThroughputReported() {
+        val bytes = DatabaseKDBXSample.save(DatabaseKDBXSample.build(4, 10))
+        val stageBytes = LinkedHashMap<String, Long>()
+        DatabaseKDBXSample.load(bytes, cacheDirectory, false, object : ProgressTaskUpdater {
+            override fun updateMessage(resId: Int) {}
+
+            override fun updateStageThroughput(stageName: String, bytes: Long, durationMillis: Long) {
+                assertTrue(durationMillis >= 0)
+                stageBytes[stageName] = bytes
+            }
+        })
+
+        // Each stage in the loading order, the parsing reads the output of the last one
+        assertEquals(listOf(DatabaseInputKDBX.STAGE_DECRYPT,
+                DatabaseInputKDBX.STAGE_INFLATE,
+                DatabaseInputKDBX.STAGE_PARSE), stageBytes.keys.toList())
+        assertTrue(stageBytes.values.all { it > 0 })
+        assertEquals(stageBytes[DatabaseInputKDBX.STAGE_INFLATE],
+                stageBytes[DatabaseInputKDBX.STAGE_PARSE])
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.database
+
+import androidx.test.platform.app.InstrumentationRegistry
+import com.kunzisoft.keepass.database.element.database.DatabaseKDBX
+import com.kunzisoft.keepass.database.file.output.DatabaseOutputKDBX
+import junit.framework.TestCase
+import java.io.ByteArrayOutputStream
+import java.io.File
+
+class ParallelSerializationTest : TestCase() {
+
+    private lateinit var cacheDirectory: File
+
+    override fun setUp() {
+        cacheDirectory = File(InstrumentationRegistry.getInstrumentation().targetContext.cacheDir,
+                "parallelSerialization").apply {
+            mkdirs()
+        }
+    }
+
+    override fun tearDown() {
+        cacheDirectory.deleteRecursively()
+    }
+
+    /**
+     * Save the [database] with the public output, checking the path of the root children
+     */
+    private fun save(database: DatabaseKDBX, parallelSerialization: Boolean): ByteArray {
+        return ByteArrayOutputStream().apply {
+            val output = DatabaseOutputKDBX(database, this).apply {
+                this.parallelSerialization = parallelSerialization
+            }
+            output.output()
+            assertEquals(parallelSerialization, output.parallelSerialized)
+        }.toByteArray()
+    }
+
+    fun testParallelAsSequential() {
+        // Enough nodes to be split, in more subtrees than tasks in flight
+        val database = DatabaseKDBXSample.build(40, 60)
+        val sequential = DatabaseKDBXSample.load(save(database, false), cacheDirectory)
+        val parallel = DatabaseKDBXSample.load(save(database, true), cacheDirectory)
+
+        // Protected values only readable if enciphered at their position in the inner stream
+        DatabaseKDBXSample.assertSameTree(sequential, parallel)
+        // Written in the document order
+        assertEquals(sequential.getGroupIndexes().map { it.nodeId },
+                parallel.getGroupIndexes().map { it.nodeId })
+        assertEquals(sequential.getEntryIndexes().map { it.nodeId },
+                parallel.getEntryIndexes().map { it.nodeId })
+    }
+
+    fun testParallelReloaded() {
+        val database = DatabaseKDBXSample.build(40, 60)
+        val bytes = DatabaseKDBXSample.save(database, true)
+        DatabaseKDBXSample.assertSameTree(database, DatabaseKDBXSample.load(bytes, cacheDirectory))
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.database
+
+import com.kunzisoft.keepass.database.crypto.kdf.AesKdf
+import com.kunzisoft.keepass.database.crypto.kdf.KdfFactory
+import com.kunzisoft.keepass.database.crypto.kdf.KdfParameters
+import com.kunzisoft.keepass.database.element.database.DatabaseKDBX
+import junit.framework.TestCase
+import org.junit.Assert.assertArrayEquals
+import java.util.*
+
+class TransformedKeyTest : TestCase() {
+
+    private val random = Random()
+
+    private fun buildDatabase(rounds: Long = ROUNDS): DatabaseKDBX {
+        return DatabaseKDBX().apply {
+            kdfParameters = KdfFactory.aesKdf.defaultParameters.also {
+                KdfFactory.aesKdf.randomize(it)
+                KdfFactory.aesKdf.setKeyRounds(it, rounds)
+            }
+            masterKey = ByteArray(32).apply { random.nextBytes(this) }
+        }
+    }
+
+    private fun waitNextTransformedKey(database: DatabaseKDBX) {
+        val timeout = System.currentTimeMillis() + 10000
+        while (!database.isNextTransformedKeyReady()) {
+            assertTrue("Next transformed key not derived", System.currentTimeMillis() < timeout)
+            Thread.sleep(10)
+        }
+    }
+
+    private fun seedOf(parameters: KdfParameters?): ByteArray? {
+        return parameters?.getByteArray(AesKdf.PARAM_SEED)?.clone()
+    }
+
+    /**
+     * Final key derived without any prepared key, from a copy of the [database] parameters
+     */
+    private fun referenceFinalKey(database: DatabaseKDBX, masterSeed: ByteArray): ByteArray? {
+        val parameters = database.kdfParameters!!
+        return DatabaseKDBX().apply {
+            kdfParameters = KdfParameters(parameters.uuid, parameters)
+            masterKey = database.masterKey.clone()
+            makeFinalKey(masterSeed)
+        }.finalKey
+    }
+
+    fun testPreparedKeyReused() {
+        val database = buildDatabase()
+        val previousParameters = database.kdfParameters
+        val previousSeed = seedOf(previousParameters)
+        database.prepareNextTransformedKey()
+        waitNextTransformedKey(database)
+
+        database.randomizeKdfParameters()
+
+        // The prepared parameters replace the current ones
+        assertNotSame(previousParameters, database.kdfParameters)
+        assertFalse(Arrays.equals(previousSeed, seedOf(database.kdfParameters)))
+        assertFalse(database.isNextTransformedKeyReady())
+
+        val masterSeed = ByteArray(32).apply { random.nextBytes(this) }
+        database.makeFinalKey(masterSeed)
+        assertArrayEquals("Check the prepared key",
+                referenceFinalKey(database, masterSeed), database.finalKey)
+    }
+
+    fun testPreparedKeyNotReusedAfterRoundsChange() {
+        val database = buildDatabase()
+        database.prepareNextTransformedKey()
+        waitNextTransformedKey(database)
+
+        // Changed in place without cancelling the derivation
+        KdfFactory.aesKdf.setKeyRounds(database.kdfParameters!!, ROUNDS + 1)
+        assertNotReused(database)
+    }
+
+    fun testPreparedKeyNotReusedAfterOtherParameterChange() {
+        val database = buildDatabase()
+        database.prepareNextTransformedKey()
+        waitNextTransformedKey(database)
+
+        // Any parameter counts, not only the rounds, memory and parallelism
+        database.kdfParameters!!.setByteArray("K", ByteArray(32).apply { random.nextBytes(this) })
+        assertNotReused(database)
+    }
+
+    fun testPreparedKeyNotReusedAfterMasterKeyChange() {
+        val database = buildDatabase()
+        database.prepareNextTransformedKey()
+        waitNextTransformedKey(database)
+
+        database.masterKey = ByteArray(32).apply { random.nextBytes(this) }
+        assertNotReused(database)
+    }
+
+    fun testPreparedKeyNotReusedAfterCancel() {
+        val database = buildDatabase()
+        database.prepareNextTransformedKey()
+        waitNextTransformedKey(database)
+
+        database.cancelNextTransformedKey()
+        assertFalse(database.isNextTransformedKeyReady())
+        assertNotReused(database)
+    }
+
+    fun testPreparedKeyInProgressNotAwaited() {
+        // Long enough to still be in progress when the save starts
+        val database = buildDatabase(LONG_ROUNDS)
+        database.prepareNextTransformedKey()
+
+        assertNotReused(database, false)
+    }
+
+    fun testPreparedKeySkippedWithoutMemory() {
+        val database = DatabaseKDBX().apply {
+            kdfParameters = KdfFactory.argon2dKdf.defaultParameters.also {
+                KdfFactory.argon2dKdf.randomize(it)
+            }
+            masterKey = ByteArray(32).apply { random.nextBytes(this) }
+        }
+        var memoryWanted = 0L
+        database.prepareNextTransformedKey { memory ->
+            memoryWanted = memory
+            false
+        }
+
+        assertEquals(KdfFactory.argon2dKdf.getMemoryUsage(database.kdfParameters!!), memoryWanted)
+        assertFalse(database.isNextTransformedKeyReady())
+        assertNotReused(database, false)
+    }
+
+    fun testPreparedKeyCancelledInProgress() {
+        val database = buildDatabase(LONG_ROUNDS)
+        database.prepareNextTransformedKey()
+        // Let the derivation start before the cancellation
+        Thread.sleep(100)
+
+        database.cancelNextTransformedKey()
+        // A key derived after the cancellation is never used
+        Thread.sleep(100)
+        assertFalse(database.isNextTransformedKeyReady())
+        assertNotReused(database, false)
+    }
+
+    fun testPreparedKeyReplaced() {
+        val database = buildDatabase()
+        database.prepareNextTransformedKey()
+        database.prepareNextTransformedKey()
+        waitNextTransformedKey(database)
+
+        val previousParameters = database.kdfParameters
+        database.randomizeKdfParameters()
+        assertNotSame(previousParameters, database.kdfParameters)
+    }
+
+    /**
+     * The save randomizes the current parameters in place and, if [derive], derives its own key
+     */
+    private fun assertNotReused(database: DatabaseKDBX, derive: Boolean = true) {
+        val previousParameters = database.kdfParameters
+        val previousSeed = seedOf(previousParameters)
+
+        database.randomizeKdfParameters()
+
+        assertSame(previousParameters, database.kdfParameters)
+        assertFalse(Arrays.equals(previousSeed, seedOf(database.kdfParameters)))
+
+        if (!derive)
+            return
+        val masterSeed = ByteArray(32).apply { random.nextBytes(this) }
+        database.makeFinalKey(masterSeed)
+        assertArrayEquals("Check the derived key",
+                referenceFinalKey(database, masterSeed), database.finalKey)
+    }
+
+    companion object {
+        private const val ROUNDS = 1000L
+        private const val LONG_ROUNDS = 1000000000L
+    }
+}
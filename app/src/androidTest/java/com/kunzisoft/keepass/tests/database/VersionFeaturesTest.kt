@@ -0,0 +1,199 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.database
+
+import androidx.test.platform.app.InstrumentationRegistry
+import com.kunzisoft.keepass.database.crypto.kdf.KdfFactory
+import com.kunzisoft.keepass.database.element.CustomData
+import com.kunzisoft.keepass.database.element.CustomDataItem
+import com.kunzisoft.keepass.database.element.Tags
+import com.kunzisoft.keepass.database.element.database.DatabaseKDBX
+import com.kunzisoft.keepass.database.element.entry.EntryKDBX
+import com.kunzisoft.keepass.database.element.group.GroupKDBX
+import com.kunzisoft.keepass.database.file.DatabaseHeaderKDBX
+import com.kunzisoft.keepass.database.file.DatabaseHeaderKDBX.Companion.FILE_VERSION_31
+import com.kunzisoft.keepass.database.file.DatabaseHeaderKDBX.Companion.FILE_VERSION_40
+import com.kunzisoft.keepass.database.file.DatabaseHeaderKDBX.Companion.FILE_VERSION_41
+import com.kunzisoft.keepass.utils.UnsignedInt
+import junit.framework.TestCase
+
+class VersionFeaturesTest : TestCase() {
+
+    private val resources = InstrumentationRegistry.getInstrumentation().targetContext.resources
+
+    private lateinit var database: DatabaseKDBX
+    private lateinit var root: GroupKDBX
+    private lateinit var group: GroupKDBX
+
+    override fun setUp() {
+        database = DatabaseKDBX("Features", "Root").apply {
+            // An AES key derivation doesn't require KDBX 4
+            kdfParameters = KdfFactory.aesKdf.defaultParameters
+        }
+        root = database.rootGroup!!
+        group = database.createGroup().apply {
+            title = "Group"
+        }
+        database.addGroupTo(group, root)
+        database.addEntryTo(database.createEntry().apply {
+            title = "Entry"
+        }, group)
+        assertVersion(FILE_VERSION_31)
+    }
+
+    /**
+     * Check the version of the incremental counts, then the one of a full recount of the tree
+     */
+    private fun assertVersion(expected: UnsignedInt) {
+        val features = features()
+        assertEquals(expected, DatabaseHeaderKDBX(database).version)
+        database.countVersionFeatures()
+        assertEquals("Incremental count differs from the recount", features(), features)
+        assertEquals(expected, DatabaseHeaderKDBX(database).version)
+    }
+
+    private fun features(): List<Boolean> {
+        return listOf(database.containsGroupWithTag,
+                database.containsNodeCustomData,
+                database.containsEntryWithPasswordQualityEstimationDisabled)
+    }
+
+    private fun copyOf(group: GroupKDBX): GroupKDBX {
+        return GroupKDBX().apply { updateWith(group) }
+    }
+
+    private fun copyOf(entry: EntryKDBX): EntryKDBX {
+        return EntryKDBX().apply {
+            updateWith(entry)
+            qualityCheck = entry.qualityCheck
+        }
+    }
+
+    fun testGroupTags() {
+        val tagged = database.createGroup().apply {
+            title = "Tagged"
+            tags = Tags("tag")
+        }
+        // Add
+        database.addGroupTo(tagged, root)
+        assertVersion(FILE_VERSION_41)
+        // Update without tags, then back out the update
+        val untagged = copyOf(tagged).apply {
+            tags = Tags()
+        }
+        database.updateGroup(untagged)
+        assertVersion(FILE_VERSION_31)
+        database.updateGroup(tagged)
+        assertVersion(FILE_VERSION_41)
+        // Move
+        database.removeGroupFrom(tagged, root)
+        database.addGroupTo(tagged, group)
+        assertVersion(FILE_VERSION_41)
+        // Delete and undo
+        database.removeGroupFrom(tagged, group)
+        assertVersion(FILE_VERSION_31)
+        database.undoDeleteGroupFrom(tagged, group)
+        assertVersion(FILE_VERSION_41)
+        // Recycle and undo
+        database.recycle(tagged, resources)
+        assertVersion(FILE_VERSION_41)
+        database.undoRecycle(tagged, group)
+        assertVersion(FILE_VERSION_41)
+        database.removeGroupFrom(tagged, group)
+        assertVersion(FILE_VERSION_31)
+    }
+
+    fun testEntryQualityCheck() {
+        val entry = database.createEntry().apply {
+            title = "Without quality check"
+            qualityCheck = false
+        }
+        // Add
+        database.addEntryTo(entry, root)
+        assertVersion(FILE_VERSION_41)
+        // Update with the quality check, then back out the update
+        val checked = copyOf(entry).apply {
+            qualityCheck = true
+        }
+        database.updateEntry(checked)
+        assertVersion(FILE_VERSION_31)
+        database.updateEntry(entry)
+        assertVersion(FILE_VERSION_41)
+        // Move
+        database.removeEntryFrom(entry, root)
+        database.addEntryTo(entry, group)
+        assertVersion(FILE_VERSION_41)
+        // Delete and undo
+        database.removeEntryFrom(entry, group)
+        assertVersion(FILE_VERSION_31)
+        database.undoDeleteEntryFrom(entry, group)
+        assertVersion(FILE_VERSION_41)
+        // Recycle and undo
+        database.recycle(entry, resources)
+        assertVersion(FILE_VERSION_41)
+        database.undoRecycle(entry, group)
+        assertVersion(FILE_VERSION_41)
+        database.removeEntryFrom(entry, group)
+        assertVersion(FILE_VERSION_31)
+    }
+
+    fun testNodeCustomData() {
+        val entry = database.createEntry().apply {
+            title = "Custom data"
+            customData.put(CustomDataItem("key", "value"))
+        }
+        val customGroup = database.createGroup().apply {
+            title = "Custom data"
+            customData.put(CustomDataItem("key", "value"))
+        }
+        database.addEntryTo(entry, group)
+        database.addGroupTo(customGroup, root)
+        assertVersion(FILE_VERSION_40)
+        // One node without custom data is still at least KDBX 4.0
+        database.updateEntry(copyOf(entry).apply {
+            customData = CustomData()
+        })
+        assertVersion(FILE_VERSION_40)
+        database.updateGroup(copyOf(customGroup).apply {
+            customData = CustomData()
+        })
+        assertVersion(FILE_VERSION_31)
+        // Undo both updates
+        database.updateEntry(entry)
+        database.updateGroup(customGroup)
+        assertVersion(FILE_VERSION_40)
+        database.removeEntryFrom(entry, group)
+        database.removeGroupFrom(customGroup, root)
+        assertVersion(FILE_VERSION_31)
+    }
+
+    fun testNodesOfLoadedTree() {
+        // Nodes indexed before the features are enabled, like a tree built outside of the index
+        val tagged = database.createGroup().apply {
+            title = "Tagged later"
+        }
+        database.addGroupTo(tagged, root)
+        tagged.tags = Tags("tag")
+        database.countVersionFeatures()
+        assertVersion(FILE_VERSION_41)
+        database.removeGroupFrom(tagged, root)
+        assertVersion(FILE_VERSION_31)
+    }
+}
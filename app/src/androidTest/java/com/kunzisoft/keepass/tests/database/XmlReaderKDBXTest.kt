@@ -0,0 +1,192 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.database
+
+import android.util.Log
+import com.kunzisoft.keepass.database.file.XmlTagKDBX
+import com.kunzisoft.keepass.database.file.input.XmlReaderKDBX
+import junit.framework.TestCase
+import org.junit.Assert.assertEquals
+import org.junit.Ignore
+import org.xmlpull.v1.XmlPullParser
+import org.xmlpull.v1.XmlPullParserFactory
+import java.io.ByteArrayInputStream
+import java.io.IOException
+
+class XmlReaderKDBXTest : TestCase() {
+
+    @Throws(IOException::class)
+    fun testSameEventsAsPullParser() {
+        val xml = (SAMPLE_HEADER + buildEntries(10) + SAMPLE_FOOTER).toByteArray()
+        val expected = pullParserEvents(xml)
+        for (bufferSize in intArrayOf(16, 64, XmlReaderKDBX.DEFAULT_BUFFER_SIZE)) {
+            assertEquals(expected, readerEvents(xml, bufferSize))
+        }
+    }
+
+    @Throws(IOException::class)
+    fun testTextChunks() {
+        val value = StringBuilder()
+        for (i in 0 until 3 * XmlReaderKDBX.TEXT_CHUNK_SIZE) {
+            value.append(('A'.toInt() + i % 26).toChar())
+        }
+        val xml = "<Binaries><Binary ID=\"0\">$value&amp;</Binary><Binary ID=\"1\"/></Binaries>"
+        val reader = XmlReaderKDBX(ByteArrayInputStream(xml.toByteArray()))
+        reader.next()
+        reader.next()
+        val chunks = StringBuilder()
+        var lastChunks = 0
+        reader.nextTextChunks { chars, length, last ->
+            assertTrue(length <= chars.size)
+            chunks.append(chars, 0, length)
+            if (last) lastChunks++
+        }
+        assertEquals("$value&", chunks.toString())
+        assertEquals(1, lastChunks)
+        assertEquals(XmlPullParser.END_TAG, reader.eventType)
+        reader.next()
+        reader.nextTextChunks { _, _, _ -> fail("No text expected") }
+        assertEquals(XmlTagKDBX.Binary, reader.nameToken)
+        assertEquals(XmlPullParser.END_TAG, reader.next())
+        assertEquals(XmlTagKDBX.Binaries, reader.nameToken)
+    }
+
+    fun testTokens() {
+        for (token in 1..XmlTagKDBX.StringDictExItem) {
+            val name = XmlTagKDBX.name(token)
+            val bytes = name.toByteArray()
+            assertEquals(token, XmlTagKDBX.token(bytes, bytes.size))
+        }
+        val unknown = "NotAKeePassTag".toByteArray()
+        assertEquals(XmlTagKDBX.Unknown, XmlTagKDBX.token(unknown, unknown.size))
+    }
+
+    /**
+     * Benchmark run manually, not named as a test as JUnit 3 ignores the annotation
+     */
+    @Ignore("Benchmark, run manually")
+    @Throws(IOException::class)
+    fun benchmark() {
+        val xml = (SAMPLE_HEADER + buildEntries(BENCHMARK_ENTRIES) + SAMPLE_FOOTER).toByteArray()
+
+        var startTime = System.nanoTime()
+        val pullParserCount = pullParserDispatch(xml)
+        val pullParserTime = System.nanoTime() - startTime
+
+        startTime = System.nanoTime()
+        val readerCount = readerDispatch(xml)
+        val readerTime = System.nanoTime() - startTime
+
+        assertEquals(pullParserCount, readerCount)
+        Log.i(TAG, "$BENCHMARK_ENTRIES entries (${xml.size} bytes): " +
+                "pull parser ${pullParserTime / 1000000} ms, " +
+                "byte reader ${readerTime / 1000000} ms")
+    }
+
+    private fun pullParserEvents(xml: ByteArray): List<String> {
+        val xpp = XmlPullParserFactory.newInstance().newPullParser()
+        xpp.setInput(ByteArrayInputStream(xml), null)
+        val events = ArrayList<String>()
+        while (true) {
+            when (xpp.next()) {
+                XmlPullParser.START_TAG -> events.add("<" + xpp.name
+                        + " " + xpp.getAttributeValue(null, "Protected")
+                        + " " + xpp.getAttributeValue(null, "Ref"))
+                XmlPullParser.END_TAG -> events.add("</" + xpp.name)
+                XmlPullParser.TEXT -> events.add(xpp.text)
+                XmlPullParser.END_DOCUMENT -> return events
+            }
+        }
+    }
+
+    private fun readerEvents(xml: ByteArray, bufferSize: Int): List<String> {
+        val reader = XmlReaderKDBX(ByteArrayInputStream(xml), bufferSize)
+        val events = ArrayList<String>()
+        while (true) {
+            when (reader.next()) {
+                XmlPullParser.START_TAG -> events.add("<" + reader.name
+                        + " " + reader.getAttributeValue("Protected")
+                        + " " + reader.getAttributeValue("Ref"))
+                XmlPullParser.END_TAG -> events.add("</" + reader.name)
+                XmlPullParser.TEXT -> events.add(reader.text)
+                XmlPullParser.END_DOCUMENT -> return events
+            }
+        }
+    }
+
+    /**
+     * Dispatch on the element names as the database reader did with the pull parser
+     */
+    private fun pullParserDispatch(xml: ByteArray): Int {
+        val xpp = XmlPullParserFactory.newInstance().newPullParser()
+        xpp.setInput(ByteArrayInputStream(xml), null)
+        var count = 0
+        while (xpp.next() != XmlPullParser.END_DOCUMENT) {
+            if (xpp.eventType == XmlPullParser.START_TAG) {
+                val name = xpp.name
+                when {
+                    name.equals("Entry", ignoreCase = true) -> count++
+                    name.equals("Key", ignoreCase = true)
+                            || name.equals("Value", ignoreCase = true) -> count += xpp.nextText().length
+                }
+            }
+        }
+        return count
+    }
+
+    private fun readerDispatch(xml: ByteArray): Int {
+        val reader = XmlReaderKDBX(ByteArrayInputStream(xml))
+        var count = 0
+        while (reader.next() != XmlPullParser.END_DOCUMENT) {
+            if (reader.eventType == XmlPullParser.START_TAG) {
+                when (reader.nameToken) {
+                    XmlTagKDBX.Entry -> count++
+                    XmlTagKDBX.Key,
+                    XmlTagKDBX.Value -> count += reader.nextText().length
+                }
+            }
+        }
+        return count
+    }
+
+    private fun buildEntries(number: Int): String {
+        val builder = StringBuilder()
+        for (i in 0 until number) {
+            builder.append("<Entry><UUID>AAAAAAAAAAAAAAAAAAAA").append(i % 10).append("Q==</UUID>")
+                    .append("<IconID>0</IconID><Times><LastModificationTime>2021-03-01T10:00:00Z</LastModificationTime></Times>")
+                    .append("<String><Key>Title</Key><Value>Entry &amp; ").append(i).append("</Value></String>")
+                    .append("<String><Key>Password</Key><Value Protected=\"True\">cGFzc3dvcmQ=</Value></String>")
+                    .append("<Binary><Key>file</Key><Value Ref=\"0\" /></Binary>")
+                    .append("<AutoType><Enabled>True</Enabled></AutoType></Entry>\n")
+        }
+        return builder.toString()
+    }
+
+    companion object {
+        private const val TAG = "XmlReaderKDBXTest"
+
+        private const val BENCHMARK_ENTRIES = 100000
+
+        private const val SAMPLE_HEADER = "<?xml version=\"1.0\" encoding=\"utf-8\" standalone=\"yes\"?>\n" +
+                "<KeePassFile><Meta><Generator>KeePassDX</Generator><DatabaseName>Ünïcødé</DatabaseName>" +
+                "<Color /></Meta><Root><Group><UUID>AAAAAAAAAAAAAAAAAAAAAA==</UUID><Name>Root</Name>\n"
+        private const val SAMPLE_FOOTER = "</Group></Root></KeePassFile>\n"
+    }
+}
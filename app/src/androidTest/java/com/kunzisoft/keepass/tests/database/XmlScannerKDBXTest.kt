@@ -0,0 +1,103 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.database
+
+import com.kunzisoft.keepass.database.file.XmlTagKDBX
+import com.kunzisoft.keepass.database.file.input.XmlReaderKDBX
+import com.kunzisoft.keepass.database.file.input.XmlScannerKDBX
+import com.kunzisoft.keepass.database.file.input.XmlValueDecoderKDBX
+import junit.framework.TestCase
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.xmlpull.v1.XmlPullParser
+import java.io.ByteArrayInputStream
+import java.io.IOException
+
+class XmlScannerKDBXTest : TestCase() {
+
+    @Throws(IOException::class)
+    fun testProtectedOffsets() {
+        val xml = buildDocument(50, "").toByteArray()
+        val subtrees = XmlScannerKDBX(xml, xml.size).scan()
+        assertNotNull(subtrees)
+        // 50 entries and 50 groups containing one entry
+        assertEquals(100, subtrees!!.size)
+
+        // Same offsets as the protected bytes read sequentially
+        val offsets = sequentialProtectedOffsets(xml)
+        subtrees.forEach { subtree ->
+            assertEquals(offsets[subtree.start], subtree.protectedOffset)
+            val reader = XmlReaderKDBX(ByteArrayInputStream(xml, subtree.start, subtree.end - subtree.start))
+            assertEquals(XmlPullParser.START_TAG, reader.next())
+            assertEquals(true, reader.nameToken == XmlTagKDBX.Group || reader.nameToken == XmlTagKDBX.Entry)
+        }
+    }
+
+    fun testNotSplittable() {
+        // Protected value after the children of the root group
+        val xml = buildDocument(5, "<DeletedObjects><Value Protected=\"True\">AAAA</Value></DeletedObjects>")
+                .toByteArray()
+        assertNull(XmlScannerKDBX(xml, xml.size).scan())
+        // Entity in a protected value
+        val entity = buildDocument(5, "").replace("cGFzc3dvcmQ=", "cGFz&#65;c3dvcmQ=").toByteArray()
+        assertNull(XmlScannerKDBX(entity, entity.size).scan())
+    }
+
+    /**
+     * Number of protected bytes read before each start tag
+     */
+    private fun sequentialProtectedOffsets(xml: ByteArray): Map<Int, Long> {
+        val offsets = HashMap<Int, Long>()
+        var protectedBytes = 0L
+        var index = 0
+        val tags = Regex("<(Group|Entry)[ />]").findAll(String(xml)).map { it.range.first }.toList()
+        val reader = XmlReaderKDBX(ByteArrayInputStream(xml))
+        while (reader.next() != XmlPullParser.END_DOCUMENT) {
+            if (reader.eventType != XmlPullParser.START_TAG)
+                continue
+            if (reader.nameToken == XmlTagKDBX.Group || reader.nameToken == XmlTagKDBX.Entry)
+                offsets[tags[index++]] = protectedBytes
+            if (reader.getAttributeValue("Protected").equals("True", ignoreCase = true)) {
+                val length = reader.nextTextCharacters()
+                val output = ByteArray(XmlValueDecoderKDBX.base64DecodedMaxSize(length))
+                protectedBytes += XmlValueDecoderKDBX.base64ToBytes(reader.textCharacters, 0, length, output)
+            }
+        }
+        return offsets
+    }
+
+    private fun buildDocument(number: Int, afterRoot: String): String {
+        val builder = StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\" standalone=\"yes\"?>\n")
+                .append("<KeePassFile><Meta><Binaries><Binary ID=\"0\" Protected=\"True\">AAAAAAAA</Binary></Binaries></Meta>")
+                .append("<Root><Group><UUID>AAAAAAAAAAAAAAAAAAAAAA==</UUID><Name>Root</Name>\n")
+        for (i in 0 until number) {
+            builder.append("<Entry><String><Key>Password</Key><Value Protected=\"True\">cGFzc3dvcmQ=</Value></String>")
+                    .append("<History><Entry><String><Key>Password</Key><Value Protected=\"True\">")
+                    .append("b2xk".repeat(i % 5)).append("</Value></String></Entry></History></Entry>\n")
+        }
+        for (i in 0 until number) {
+            builder.append("<Group><Name>G").append(i).append("</Name><Entry><String><Key>Password</Key>")
+                    .append("<!-- comment --><Value Protected='true'>QQ</Value></String></Entry><Group/></Group>\n")
+        }
+        builder.append("</Group>").append(afterRoot).append("</Root></KeePassFile>\n")
+        return builder.toString()
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.database
+
+import android.util.Base64
+import com.kunzisoft.keepass.database.file.DatabaseKDBXXML
+import com.kunzisoft.keepass.database.file.input.XmlValueDecoderKDBX
+import com.kunzisoft.keepass.utils.bytes16ToUuid
+import com.kunzisoft.keepass.utils.bytes64ToLong
+import junit.framework.TestCase
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import java.util.*
+
+class XmlValueDecoderKDBXTest : TestCase() {
+
+    private val random = Random(42)
+
+    fun testBase64Long() {
+        for (i in 0 until 1000) {
+            val bytes = ByteArray(8)
+            random.nextBytes(bytes)
+            val chars = Base64.encodeToString(bytes, Base64.NO_WRAP).toCharArray()
+            assertEquals(bytes64ToLong(bytes), XmlValueDecoderKDBX.base64ToLong(chars, 0, chars.size))
+        }
+    }
+
+    fun testBase64Uuid() {
+        for (i in 0 until 1000) {
+            val bytes = ByteArray(16)
+            random.nextBytes(bytes)
+            val chars = Base64.encodeToString(bytes, Base64.NO_WRAP).toCharArray()
+            assertEquals(bytes16ToUuid(bytes), XmlValueDecoderKDBX.base64ToUuid(chars, 0, chars.size))
+        }
+        val short = "AAAA".toCharArray()
+        assertNull(XmlValueDecoderKDBX.base64ToUuid(short, 0, short.size))
+    }
+
+    fun testBase64Bytes() {
+        for (size in 0 until 100) {
+            val bytes = ByteArray(size)
+            random.nextBytes(bytes)
+            val chars = Base64.encodeToString(bytes, Base64.NO_WRAP).toCharArray()
+            val output = ByteArray(XmlValueDecoderKDBX.base64DecodedMaxSize(chars.size))
+            val length = XmlValueDecoderKDBX.base64ToBytes(chars, 0, chars.size, output)
+            assertArrayEquals(bytes, output.copyOf(length))
+        }
+    }
+
+    fun testBase64Malformed() {
+        // Rejected by android.util.Base64 as by the decoder
+        for (value in listOf("A", "AAAAA", "=", "A===", "AA=", "AA=A", "AAA==", "AAAA=", "AAA=A", "AA==AA")) {
+            assertBase64Invalid(value)
+        }
+        // Characters out of the alphabet are skipped
+        for (value in listOf("AA AA\n", " AAE=", "A-A!A", "AAAA\u00e9", "AA= =", "AAA= ")) {
+            val expected = Base64.decode(value, Base64.NO_WRAP)
+            val chars = value.toCharArray()
+            val output = ByteArray(XmlValueDecoderKDBX.base64DecodedMaxSize(chars.size))
+            val length = XmlValueDecoderKDBX.base64ToBytes(chars, 0, chars.size, output)
+            assertArrayEquals("Decode \"$value\"", expected, output.copyOf(length))
+        }
+        // The padding can be omitted
+        val unpadded = "AQ".toCharArray()
+        assertEquals(1L, XmlValueDecoderKDBX.base64ToLong(unpadded, 0, unpadded.size))
+    }
+
+    private fun assertBase64Invalid(value: String) {
+        try {
+            Base64.decode(value, Base64.NO_WRAP)
+            fail("\"$value\" is expected to be rejected by android.util.Base64")
+        } catch (e: IllegalArgumentException) {
+            // Reference behaviour
+        }
+        val chars = value.toCharArray()
+        try {
+            XmlValueDecoderKDBX.base64ToBytes(chars, 0, chars.size,
+                    ByteArray(XmlValueDecoderKDBX.base64DecodedMaxSize(chars.size)))
+            fail("Bytes of \"$value\" must be rejected")
+        } catch (e: IllegalArgumentException) {
+            // Malformed
+        }
+        try {
+            XmlValueDecoderKDBX.base64ToLong(chars, 0, chars.size)
+            fail("Long of \"$value\" must be rejected")
+        } catch (e: IllegalArgumentException) {
+            // Malformed
+        }
+        assertNull(XmlValueDecoderKDBX.base64ToUuid(chars, 0, chars.size))
+    }
+
+    fun testBase64UuidMalformed() {
+        val bytes = ByteArray(16)
+        random.nextBytes(bytes)
+        val encoded = Base64.encodeToString(bytes, Base64.NO_WRAP)
+        // Data after the padding
+        val trailing = (encoded + "AAAA").toCharArray()
+        assertNull(XmlValueDecoderKDBX.base64ToUuid(trailing, 0, trailing.size))
+        // Incomplete padding
+        val incomplete = encoded.dropLast(1).toCharArray()
+        assertNull(XmlValueDecoderKDBX.base64ToUuid(incomplete, 0, incomplete.size))
+    }
+
+    fun testIsoDate() {
+        for (i in 0 until 1000) {
+            // Seconds from 1970 to year 9999, the formatter switches to the Julian calendar before 1582
+            val date = Date((random.nextLong() and Long.MAX_VALUE) % 253402300800000L / 1000L * 1000L)
+            val chars = DatabaseKDBXXML.DateFormatter.format(date).toCharArray()
+            assertEquals(DatabaseKDBXXML.DateFormatter.parse(String(chars)),
+                    XmlValueDecoderKDBX.isoDateToDate(chars, 0, chars.size))
+        }
+        val fraction = "2021-03-01T10:00:00.250Z".toCharArray()
+        assertEquals(Date(1614592800250L), XmlValueDecoderKDBX.isoDateToDate(fraction, 0, fraction.size))
+        for (value in listOf("2021-03-01 10:00:00", " 2021-03-01T10:00:00Z", "2021-03-01T10:00:00Z ",
+                "2021-13-01T10:00:00Z", "2021-03-01T10:00Z", "")) {
+            val invalid = value.toCharArray()
+            assertNull("Date of \"$value\"", XmlValueDecoderKDBX.isoDateToDate(invalid, 0, invalid.size))
+        }
+    }
+
+    fun testNumbers() {
+        for (value in listOf("0", "-1", "42", "+7", "2147483647", "-2147483648",
+                "9223372036854775807", "-9223372036854775808")) {
+            val chars = value.toCharArray()
+            assertEquals(value.toLong(), XmlValueDecoderKDBX.toLong(chars, 0, chars.size, 3L))
+            assertEquals(value.toIntOrNull() ?: 3, XmlValueDecoderKDBX.toInt(chars, 0, chars.size, 3))
+        }
+        // Malformed as for String.toLong(), surrounding whitespaces are not trimmed
+        for (value in listOf("", "-", "+", "1a", "0x10", "1.0", " 1", "1 ", "\n42\n", "--1",
+                "9223372036854775808", "-9223372036854775809")) {
+            assertNull(value.toLongOrNull())
+            val chars = value.toCharArray()
+            assertEquals(3L, XmlValueDecoderKDBX.toLong(chars, 0, chars.size, 3L))
+            assertEquals(3, XmlValueDecoderKDBX.toInt(chars, 0, chars.size, 3))
+        }
+    }
+
+    fun testBooleans() {
+        val chars = "xTRUEfalseNull".toCharArray()
+        assertEquals(true, XmlValueDecoderKDBX.toBoolean(chars, 1, 4, null))
+        assertEquals(false, XmlValueDecoderKDBX.toBoolean(chars, 5, 5, null))
+        assertNull(XmlValueDecoderKDBX.toBoolean(chars, 0, 4, null))
+        assertEquals(true, XmlValueDecoderKDBX.isNull(chars, 10, 4))
+    }
+}
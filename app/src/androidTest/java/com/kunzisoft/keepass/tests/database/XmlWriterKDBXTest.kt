@@ -0,0 +1,284 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.database
+
+import android.os.Debug
+import android.util.Base64
+import android.util.Log
+import com.kunzisoft.keepass.database.file.XmlTagKDBX
+import com.kunzisoft.keepass.database.file.output.XmlWriterKDBX
+import junit.framework.TestCase
+import org.junit.Assert.assertArrayEquals
+import org.junit.Ignore
+import org.xmlpull.v1.XmlPullParserFactory
+import org.xmlpull.v1.XmlSerializer
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.util.*
+
+class XmlWriterKDBXTest : TestCase() {
+
+    @Throws(IOException::class)
+    fun testSameDocumentAsSerializer() {
+        for (bufferSize in intArrayOf(64, XmlWriterKDBX.DEFAULT_BUFFER_SIZE)) {
+            assertArrayEquals(serializerDocument(100), writerDocument(100, bufferSize))
+        }
+    }
+
+    @Throws(IOException::class)
+    fun testBase64() {
+        val random = Random(42)
+        for (length in 0..20) {
+            val data = ByteArray(length)
+            random.nextBytes(data)
+            val outputStream = ByteArrayOutputStream()
+            XmlWriterKDBX(outputStream).apply {
+                textBase64(data)
+                flush()
+            }
+            assertEquals(String(Base64.encode(data, Base64.NO_WRAP)), outputStream.toString("UTF-8"))
+        }
+    }
+
+    @Throws(IOException::class)
+    fun testBase64Stream() {
+        val random = Random(42)
+        val data = ByteArray(10000)
+        random.nextBytes(data)
+        val outputStream = ByteArrayOutputStream()
+        XmlWriterKDBX(outputStream, 64).apply {
+            textBase64Stream().use { base64OutputStream ->
+                // Chunks of sizes which are not multiples of 3
+                var offset = 0
+                var chunkSize = 1
+                while (offset < data.size) {
+                    val length = minOf(chunkSize, data.size - offset)
+                    if (length == 1)
+                        base64OutputStream.write(data[offset].toInt())
+                    else
+                        base64OutputStream.write(data, offset, length)
+                    offset += length
+                    chunkSize = chunkSize * 2 + 1
+                }
+            }
+            flush()
+        }
+        assertEquals(String(Base64.encode(data, Base64.NO_WRAP)), outputStream.toString("UTF-8"))
+    }
+
+    @Throws(IOException::class)
+    fun testFilterXmlChars() {
+        val text = "a\u0001b\uFFFE\uD83D\uDE00c\td"
+        val outputStream = ByteArrayOutputStream()
+        XmlWriterKDBX(outputStream).apply {
+            text(text, true)
+            flush()
+        }
+        assertEquals("abc\td", outputStream.toString("UTF-8"))
+        try {
+            XmlWriterKDBX(ByteArrayOutputStream()).text(text)
+            fail("Invalid character written")
+        } catch (e: IllegalArgumentException) {
+            // Expected
+        }
+    }
+
+    @Throws(IOException::class)
+    fun testAstralCharacters() {
+        // Characters out of the basic plane, written as character references
+        val text = "a\uD83D\uDE00b \uD800\uDC00\uDBFF\uDFFF<\u00e9"
+        val serializerStream = ByteArrayOutputStream()
+        XmlPullParserFactory.newInstance().newSerializer().apply {
+            setOutput(serializerStream, "UTF-8")
+            startTag(null, "Value")
+            attribute(null, "Protected", text)
+            text(text)
+            endTag(null, "Value")
+            flush()
+        }
+        val writerStream = ByteArrayOutputStream()
+        XmlWriterKDBX(writerStream).apply {
+            startTag(XmlTagKDBX.Value)
+            attribute("Protected", text)
+            text(text)
+            endTag(XmlTagKDBX.Value)
+            flush()
+        }
+        assertArrayEquals(serializerStream.toByteArray(), writerStream.toByteArray())
+        assertEquals("<Value Protected=\"a&#128512;b &#65536;&#1114111;&lt;\u00e9\">" +
+                "a&#128512;b &#65536;&#1114111;&lt;\u00e9</Value>", writerStream.toString("UTF-8"))
+        try {
+            XmlWriterKDBX(ByteArrayOutputStream()).text("a\uDE00\uD83Db")
+            fail("Unpaired surrogate written")
+        } catch (e: IllegalArgumentException) {
+            // Expected
+        }
+    }
+
+    /**
+     * Benchmark run manually, not named as a test as JUnit 3 ignores the annotation
+     */
+    @Ignore("Benchmark, run manually")
+    @Suppress("DEPRECATION")
+    @Throws(IOException::class)
+    fun benchmark() {
+        Debug.startAllocCounting()
+
+        Debug.resetThreadAllocCount()
+        Debug.resetThreadAllocSize()
+        var startTime = System.nanoTime()
+        val serializerSize = serializerDocument(BENCHMARK_ENTRIES).size
+        val serializerTime = System.nanoTime() - startTime
+        val serializerAllocations = Debug.getThreadAllocCount()
+        val serializerAllocationSize = Debug.getThreadAllocSize()
+
+        Debug.resetThreadAllocCount()
+        Debug.resetThreadAllocSize()
+        startTime = System.nanoTime()
+        val writerSize = writerDocument(BENCHMARK_ENTRIES).size
+        val writerTime = System.nanoTime() - startTime
+        val writerAllocations = Debug.getThreadAllocCount()
+        val writerAllocationSize = Debug.getThreadAllocSize()
+
+        Debug.stopAllocCounting()
+
+        assertEquals(serializerSize, writerSize)
+        Log.i(TAG, "$BENCHMARK_ENTRIES entries ($writerSize bytes): " +
+                "serializer ${serializerTime / 1000000} ms, " +
+                "$serializerAllocations allocations of $serializerAllocationSize bytes, " +
+                "writer ${writerTime / 1000000} ms, " +
+                "$writerAllocations allocations of $writerAllocationSize bytes")
+    }
+
+    /**
+     * Document written as the database output did with the serializer
+     */
+    private fun serializerDocument(entries: Int): ByteArray {
+        val outputStream = ByteArrayOutputStream()
+        val xml = XmlPullParserFactory.newInstance().newSerializer()
+        xml.setOutput(outputStream, "UTF-8")
+        xml.startDocument("UTF-8", true)
+        xml.startTag(null, "KeePassFile")
+        xml.startTag(null, "Meta")
+        serializerString(xml, "Generator", "KeePassDX")
+        serializerString(xml, "DatabaseName", "Ünïcødé <>")
+        serializerString(xml, "Color", "")
+        xml.endTag(null, "Meta")
+        xml.startTag(null, "Root")
+        xml.startTag(null, "Group")
+        for (i in 0 until entries) {
+            xml.startTag(null, "Entry")
+            serializerString(xml, "UUID", String(Base64.encode(uuidBytes(i), Base64.NO_WRAP)))
+            serializerString(xml, "IconID", "0")
+            xml.startTag(null, "Times")
+            serializerString(xml, "LastModificationTime", String(Base64.encode(longBytes(i), Base64.NO_WRAP)))
+            serializerString(xml, "CreationTime", String(Base64.encode(longBytes(i), Base64.NO_WRAP)))
+            xml.endTag(null, "Times")
+            xml.startTag(null, "String")
+            serializerString(xml, "Key", "Title")
+            serializerString(xml, "Value", "Entry & $i")
+            xml.endTag(null, "String")
+            xml.startTag(null, "String")
+            serializerString(xml, "Key", "Password")
+            xml.startTag(null, "Value")
+            xml.attribute(null, "Protected", "True")
+            xml.text(String(Base64.encode(PASSWORD, Base64.NO_WRAP)))
+            xml.endTag(null, "Value")
+            xml.endTag(null, "String")
+            xml.endTag(null, "Entry")
+        }
+        xml.endTag(null, "Group")
+        xml.endTag(null, "Root")
+        xml.endTag(null, "KeePassFile")
+        xml.endDocument()
+        return outputStream.toByteArray()
+    }
+
+    private fun serializerString(xml: XmlSerializer, name: String, value: String) {
+        xml.startTag(null, name)
+        xml.text(value)
+        xml.endTag(null, name)
+    }
+
+    private fun writerDocument(entries: Int, bufferSize: Int = XmlWriterKDBX.DEFAULT_BUFFER_SIZE): ByteArray {
+        val outputStream = ByteArrayOutputStream()
+        val xml = XmlWriterKDBX(outputStream, bufferSize)
+        xml.startDocument()
+        xml.startTag(XmlTagKDBX.DocNode)
+        xml.startTag(XmlTagKDBX.Meta)
+        writerString(xml, XmlTagKDBX.Generator, "KeePassDX")
+        writerString(xml, XmlTagKDBX.DbName, "Ünïcødé <>")
+        writerString(xml, XmlTagKDBX.DbColor, "")
+        xml.endTag(XmlTagKDBX.Meta)
+        xml.startTag(XmlTagKDBX.Root)
+        xml.startTag(XmlTagKDBX.Group)
+        for (i in 0 until entries) {
+            xml.startTag(XmlTagKDBX.Entry)
+            xml.startTag(XmlTagKDBX.Uuid)
+            xml.textBase64(UUID(i.toLong(), i.toLong()))
+            xml.endTag(XmlTagKDBX.Uuid)
+            writerString(xml, XmlTagKDBX.Icon, "0")
+            xml.startTag(XmlTagKDBX.Times)
+            xml.startTag(XmlTagKDBX.LastModTime)
+            xml.textBase64(i.toLong())
+            xml.endTag(XmlTagKDBX.LastModTime)
+            xml.startTag(XmlTagKDBX.CreationTime)
+            xml.textBase64(i.toLong())
+            xml.endTag(XmlTagKDBX.CreationTime)
+            xml.endTag(XmlTagKDBX.Times)
+            xml.startTag(XmlTagKDBX.String)
+            writerString(xml, XmlTagKDBX.Key, "Title")
+            writerString(xml, XmlTagKDBX.Value, "Entry & $i")
+            xml.endTag(XmlTagKDBX.String)
+            xml.startTag(XmlTagKDBX.String)
+            writerString(xml, XmlTagKDBX.Key, "Password")
+            xml.startTag(XmlTagKDBX.Value)
+            xml.attribute("Protected", "True")
+            xml.textBase64(PASSWORD)
+            xml.endTag(XmlTagKDBX.Value)
+            xml.endTag(XmlTagKDBX.String)
+            xml.endTag(XmlTagKDBX.Entry)
+        }
+        xml.endDocument()
+        return outputStream.toByteArray()
+    }
+
+    private fun writerString(xml: XmlWriterKDBX, token: Int, value: String) {
+        xml.startTag(token)
+        xml.text(value)
+        xml.endTag(token)
+    }
+
+    private fun uuidBytes(i: Int): ByteArray {
+        return longBytes(i) + longBytes(i)
+    }
+
+    private fun longBytes(i: Int): ByteArray {
+        return ByteArray(8) { index -> (i.toLong() ushr (8 * index)).toByte() }
+    }
+
+    companion object {
+        private const val TAG = "XmlWriterKDBXTest"
+
+        private const val BENCHMARK_ENTRIES = 100000
+
+        private val PASSWORD = "password".toByteArray()
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.stream
+
+import com.kunzisoft.keepass.database.crypto.AeadChunk
+import com.kunzisoft.keepass.database.element.binary.BinaryCache
+import com.kunzisoft.keepass.database.element.binary.BinaryFile
+import com.kunzisoft.keepass.database.element.binary.LoadedKey
+import com.kunzisoft.keepass.stream.AeadChunkInputStream
+import com.kunzisoft.keepass.stream.AeadChunkOutputStream
+import junit.framework.TestCase
+import org.junit.Assert.assertArrayEquals
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import javax.crypto.Cipher
+import javax.crypto.spec.SecretKeySpec
+import kotlin.random.Random
+
+class AeadChunkTest : TestCase() {
+
+    private val key = LoadedKey.generateNewCipherKey().key
+    private lateinit var file: File
+
+    override fun setUp() {
+        file = File.createTempFile("aead", ".bin")
+    }
+
+    override fun tearDown() {
+        file.delete()
+    }
+
+    private fun write(data: ByteArray) {
+        AeadChunkOutputStream(FileOutputStream(file), key).use { outputStream ->
+            // Written by irregular pieces
+            var offset = 0
+            while (offset < data.size) {
+                val length = minOf(data.size - offset, 1 + offset % 10007)
+                outputStream.write(data, offset, length)
+                offset += length
+            }
+        }
+    }
+
+    private fun read(position: Long = 0): ByteArray {
+        return AeadChunkInputStream(file, key, position).use { it.readBytes() }
+    }
+
+    fun testReadWrite() {
+        val chunk = AeadChunk.CHUNK_SIZE
+        for (size in intArrayOf(0, 1, chunk - 1, chunk, chunk + 1, 3 * chunk + 5)) {
+            val data = Random.nextBytes(size)
+            write(data)
+            assertArrayEquals("Size $size", data, read())
+            val chunkCount = maxOf(1, (size + chunk - 1) / chunk)
+            assertEquals(AeadChunk.NONCE_PREFIX_SIZE + size + chunkCount * AeadChunk.TAG_SIZE.toLong(),
+                    file.length())
+            assertEquals(size.toLong(), AeadChunkInputStream(file, key).use { it.length })
+        }
+    }
+
+    fun testSeek() {
+        val data = Random.nextBytes(4 * AeadChunk.CHUNK_SIZE + 123)
+        write(data)
+        for (position in longArrayOf(0, 1, AeadChunk.CHUNK_SIZE - 1L, AeadChunk.CHUNK_SIZE.toLong(),
+                2L * AeadChunk.CHUNK_SIZE + 77, data.size - 1L, data.size.toLong())) {
+            assertArrayEquals("Position $position",
+                    data.copyOfRange(position.toInt(), data.size), read(position))
+        }
+        AeadChunkInputStream(file, key).use { inputStream ->
+            assertEquals(1000L, inputStream.skip(1000))
+            assertEquals(data[1000].toInt() and 0xFF, inputStream.read())
+            inputStream.seek(10)
+            assertEquals(data[10].toInt() and 0xFF, inputStream.read())
+            assertEquals(11L, inputStream.position)
+        }
+    }
+
+    fun testTampering() {
+        val data = Random.nextBytes(2 * AeadChunk.CHUNK_SIZE + 10)
+        write(data)
+        RandomAccessFile(file, "rw").use {
+            it.seek(AeadChunk.NONCE_PREFIX_SIZE + 100L)
+            val byte = it.read()
+            it.seek(AeadChunk.NONCE_PREFIX_SIZE + 100L)
+            it.write(byte xor 1)
+        }
+        // The other chunks are still readable
+        assertArrayEquals(data.copyOfRange(AeadChunk.CHUNK_SIZE, data.size),
+                read(AeadChunk.CHUNK_SIZE.toLong()))
+        try {
+            read()
+            fail("Modified chunk not detected")
+        } catch (e: IOException) {}
+    }
+
+    fun testTruncation() {
+        val data = Random.nextBytes(2 * AeadChunk.CHUNK_SIZE)
+        write(data)
+        // Remove the last chunk, the first one is not authenticated as the last one
+        RandomAccessFile(file, "rw").use {
+            it.setLength(AeadChunk.NONCE_PREFIX_SIZE + AeadChunk.ENCRYPTED_CHUNK_SIZE.toLong())
+        }
+        try {
+            read()
+            fail("Truncation not detected")
+        } catch (e: IOException) {}
+    }
+
+    /**
+     * GCM test case 15 with the cipher and the parameters of the chunks,
+     * the IV spec used before KitKat must also give the 128 bits tag
+     */
+    fun testKnownAnswer() {
+        val gcmKey = SecretKeySpec(hexToBytes(
+                "feffe9928665731c6d6a8f9467308308feffe9928665731c6d6a8f9467308308"),
+                AeadChunk.KEY_ALGORITHM)
+        val nonce = hexToBytes("cafebabefacedbaddecaf888")
+        val plaintext = hexToBytes("d9313225f88406e5a55909c5aff5269a" +
+                "86a7a9531534f7da2e4c303d8a318a72" +
+                "1c3c0c95956809532fcf0e2449a6b525" +
+                "b16aedf5aa0de657ba637b391aafd255")
+        val expected = hexToBytes("522dc1f099567d07f47f37a32a84427d" +
+                "643a8cdcbfe5c0c97598a2bd2555d1aa" +
+                "8cb08e48590dbb3da7b08b1056828838" +
+                "c5f61e6393ba7a0abcc9f662898015ad" +
+                "b094dac5d93471bdec1a502270e3cc6c")
+
+        val cipher = Cipher.getInstance(AeadChunk.CIPHER)
+        cipher.init(Cipher.ENCRYPT_MODE, gcmKey, AeadChunk.parameterSpec(nonce))
+        assertArrayEquals(expected, cipher.doFinal(plaintext))
+        cipher.init(Cipher.DECRYPT_MODE, gcmKey, AeadChunk.parameterSpec(nonce))
+        assertArrayEquals(plaintext, cipher.doFinal(expected))
+    }
+
+    fun testChunkIndexRange() {
+        val noncePrefix = Random.nextBytes(AeadChunk.NONCE_PREFIX_SIZE)
+        val lastNonce = AeadChunk.chunkNonce(noncePrefix, AeadChunk.MAX_CHUNK_INDEX, false)
+        assertArrayEquals(byteArrayOf(-1, -1, -1, -1), lastNonce.copyOfRange(8, 12))
+        for (chunkIndex in longArrayOf(-1, AeadChunk.MAX_CHUNK_INDEX + 1)) {
+            try {
+                AeadChunk.chunkNonce(noncePrefix, chunkIndex, false)
+                fail("Nonce built for the chunk $chunkIndex")
+            } catch (e: IllegalArgumentException) {}
+        }
+    }
+
+    private fun hexToBytes(hex: String): ByteArray {
+        return ByteArray(hex.length / 2) { i ->
+            hex.substring(2 * i, 2 * i + 2).toInt(16).toByte()
+        }
+    }
+
+    fun testBinaryFileRandomAccess() {
+        val binaryCache = BinaryCache()
+        val binaryFile = BinaryFile(file)
+        val data = Random.nextBytes(3 * AeadChunk.CHUNK_SIZE)
+        binaryFile.getOutputDataStream(binaryCache).use { it.write(data) }
+        assertEquals(data.size.toLong(), binaryFile.getSize())
+        assertArrayEquals(data, binaryFile.getInputDataStream(binaryCache).use { it.readBytes() })
+
+        val buffer = ByteArray(100)
+        val position = 2L * AeadChunk.CHUNK_SIZE - 50
+        assertEquals(100, binaryFile.readAt(binaryCache, position, buffer))
+        assertArrayEquals(data.copyOfRange(position.toInt(), position.toInt() + 100), buffer)
+        assertEquals(-1, binaryFile.readAt(binaryCache, data.size.toLong(), buffer))
+        assertArrayEquals(data.copyOfRange(position.toInt(), data.size),
+                binaryFile.getInputDataStream(binaryCache, position).use { it.readBytes() })
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.stream
+
+import android.util.Log
+import com.kunzisoft.keepass.database.element.database.CompressionLevel
+import com.kunzisoft.keepass.stream.GZipLevelOutputStream
+import junit.framework.TestCase
+import org.junit.Assert.assertArrayEquals
+import org.junit.Ignore
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+
+class GZipLevelTest : TestCase() {
+
+    @Throws(IOException::class)
+    fun testReadableAsGZip() {
+        val xml = buildDocument(1000)
+        for (level in CompressionLevel.values()) {
+            assertArrayEquals(xml, inflate(deflate(xml, level)))
+        }
+    }
+
+    @Throws(IOException::class)
+    fun testSameAsDefaultGZip() {
+        val xml = buildDocument(1000)
+        val outputStream = ByteArrayOutputStream()
+        GZIPOutputStream(outputStream).use { it.write(xml) }
+        assertArrayEquals(outputStream.toByteArray(), deflate(xml, CompressionLevel.Default))
+    }
+
+    /**
+     * Save and load time against the file size for each level,
+     * run manually, not named as a test as JUnit 3 ignores the annotation
+     */
+    @Ignore("Benchmark, run manually")
+    @Throws(IOException::class)
+    fun benchmark() {
+        for (entries in intArrayOf(1000, 10000, BENCHMARK_ENTRIES)) {
+            val xml = buildDocument(entries)
+            for (level in CompressionLevel.values()) {
+                var startTime = System.nanoTime()
+                val compressed = deflate(xml, level)
+                val saveTime = System.nanoTime() - startTime
+
+                startTime = System.nanoTime()
+                inflate(compressed)
+                val loadTime = System.nanoTime() - startTime
+
+                Log.i(TAG, "$entries entries (${xml.size} bytes), level $level: " +
+                        "${compressed.size} bytes, " +
+                        "save ${saveTime / 1000000} ms, " +
+                        "load ${loadTime / 1000000} ms")
+            }
+        }
+    }
+
+    private fun deflate(data: ByteArray, level: CompressionLevel): ByteArray {
+        val outputStream = ByteArrayOutputStream()
+        GZipLevelOutputStream(outputStream, level.deflateLevel).use { gzip ->
+            // Written by chunks as the XML writer does
+            var offset = 0
+            while (offset < data.size) {
+                val length = minOf(CHUNK_SIZE, data.size - offset)
+                gzip.write(data, offset, length)
+                offset += length
+            }
+        }
+        return outputStream.toByteArray()
+    }
+
+    private fun inflate(data: ByteArray): ByteArray {
+        return GZIPInputStream(ByteArrayInputStream(data), GZipLevelOutputStream.DEFAULT_BUFFER_SIZE).use {
+            it.readBytes()
+        }
+    }
+
+    private fun buildDocument(entries: Int): ByteArray {
+        val builder = StringBuilder("<KeePassFile><Root><Group>")
+        for (i in 0 until entries) {
+            builder.append("<Entry><UUID>AAAAAAAAAAAAAAAAAAAA").append(i % 10).append("Q==</UUID>")
+                    .append("<Times><LastModificationTime>").append(i * 7919 % 100000).append("</LastModificationTime></Times>")
+                    .append("<String><Key>Title</Key><Value>Entry ").append(i).append("</Value></String>")
+                    .append("<String><Key>Password</Key><Value Protected=\"True\">")
+                    .append(Integer.toHexString(i * 31337)).append("==</Value></String></Entry>")
+        }
+        builder.append("</Group></Root></KeePassFile>")
+        return builder.toString().toByteArray()
+    }
+
+    companion object {
+        private const val TAG = "GZipLevelTest"
+
+        private const val BENCHMARK_ENTRIES = 100000
+        private const val CHUNK_SIZE = 8 * 1024
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 Brian Pellin, Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.stream
+
+import org.junit.Assert.assertArrayEquals
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.util.Random
+
+import junit.framework.TestCase
+
+import com.kunzisoft.keepass.stream.HmacBlockInputStream
+import com.kunzisoft.keepass.stream.HmacBlockOutputStream
+
+class HmacBlockTest : TestCase() {
+
+    private val key = ByteArray(64).apply { rand.nextBytes(this) }
+
+    @Throws(IOException::class)
+    fun testParallelWriteSerialRead() {
+        SIZES.forEach { size ->
+            testWriteRead(size, PARALLEL_BLOCKS, 1)
+        }
+    }
+
+    @Throws(IOException::class)
+    fun testSerialWriteParallelRead() {
+        SIZES.forEach { size ->
+            testWriteRead(size, 1, PARALLEL_BLOCKS)
+        }
+    }
+
+    @Throws(IOException::class)
+    fun testParallelWriteParallelRead() {
+        SIZES.forEach { size ->
+            testWriteRead(size, PARALLEL_BLOCKS, PARALLEL_BLOCKS)
+        }
+    }
+
+    @Throws(IOException::class)
+    fun testParallelAndSerialWritesIdentical() {
+        SIZES.forEach { size ->
+            val orig = ByteArray(size)
+            rand.nextBytes(orig)
+            assertArrayEquals("Parallel and serial encoding of $size bytes not equal",
+                    encode(orig, 1),
+                    encode(orig, PARALLEL_BLOCKS))
+        }
+    }
+
+    @Throws(IOException::class)
+    fun testParallelReadCorruptedBlock() {
+        val orig = ByteArray(BLOCK_SIZE * 3 + 10)
+        rand.nextBytes(orig)
+        val encoded = encode(orig, 1)
+        // Alter a byte of the data of the second block
+        encoded[(HEADER_SIZE + BLOCK_SIZE) + HEADER_SIZE + 5]++
+        try {
+            decode(encoded, PARALLEL_BLOCKS)
+            fail("The corrupted block must be rejected")
+        } catch (e: IOException) {
+            assertEquals("Invalid Hmac", e.message)
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun testWriteRead(size: Int, writeParallelBlocks: Int, readParallelBlocks: Int) {
+        val orig = ByteArray(size)
+        rand.nextBytes(orig)
+
+        val decoded = decode(encode(orig, writeParallelBlocks), readParallelBlocks)
+
+        assertArrayEquals("Output of $size bytes not equal to input", orig, decoded)
+    }
+
+    @Throws(IOException::class)
+    private fun encode(data: ByteArray, parallelBlocks: Int): ByteArray {
+        val bos = ByteArrayOutputStream()
+        val output = HmacBlockOutputStream(bos, key, parallelBlocks)
+        // Write with an odd chunk size to not align the writes on the blocks
+        var offset = 0
+        while (offset < data.size) {
+            val count = (data.size - offset).coerceAtMost(1000)
+            output.write(data, offset, count)
+            offset += count
+        }
+        output.close()
+        return bos.toByteArray()
+    }
+
+    @Throws(IOException::class)
+    private fun decode(encoded: ByteArray, parallelBlocks: Int): ByteArray {
+        val input = HmacBlockInputStream(ByteArrayInputStream(encoded), true, key, parallelBlocks)
+        val decoded = ByteArrayOutputStream()
+        val buf = ByteArray(777)
+        while (true) {
+            val read = input.read(buf)
+            if (read == -1) {
+                break
+            }
+            decoded.write(buf, 0, read)
+        }
+        input.close()
+        return decoded.toByteArray()
+    }
+
+    companion object {
+        // Size of the blocks written by HmacBlockOutputStream
+        private const val BLOCK_SIZE = DEFAULT_BUFFER_SIZE
+        // Hmac and block size
+        private const val HEADER_SIZE = 32 + 4
+        private const val PARALLEL_BLOCKS = 4
+
+        private val SIZES = listOf(0, 1, BLOCK_SIZE - 1, BLOCK_SIZE, BLOCK_SIZE + 1,
+                BLOCK_SIZE * 5 + 123, 100000)
+
+        private val rand = Random()
+    }
+}
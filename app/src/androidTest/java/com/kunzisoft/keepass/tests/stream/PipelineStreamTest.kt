@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 Brian Pellin, Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.stream
+
+import org.junit.Assert.assertArrayEquals
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.util.Random
+
+import junit.framework.TestCase
+
+import com.kunzisoft.keepass.stream.PipelineInputStream
+
+class PipelineStreamTest : TestCase() {
+
+    @Throws(IOException::class)
+    fun testOrderingAlignedChunks() {
+        testSize(4096, 1024)
+    }
+
+    @Throws(IOException::class)
+    fun testOrderingOffsetChunks() {
+        testSize(10000, 1000 - 3)
+    }
+
+    @Throws(IOException::class)
+    fun testOrderingSmallerThanChunk() {
+        testSize(100, 1024)
+    }
+
+    @Throws(IOException::class)
+    fun testChainedStages() {
+        val orig = ByteArray(50000)
+        rand.nextBytes(orig)
+
+        val firstStage = PipelineInputStream(ByteArrayInputStream(orig), "first",
+                bufferSize = 777, bufferCount = 2)
+        val secondStage = PipelineInputStream(firstStage, "second", firstStage,
+                bufferSize = 1024, bufferCount = 3)
+
+        assertArrayEquals("Output not equal to input", orig, readAll(secondStage))
+        assertEquals(orig.size.toLong(), firstStage.bytesProcessed)
+        assertEquals(orig.size.toLong(), secondStage.bytesProcessed)
+        secondStage.close()
+    }
+
+    @Throws(IOException::class)
+    fun testEmptySource() {
+        val input = PipelineInputStream(ByteArrayInputStream(ByteArray(0)), "empty")
+        assertEquals(-1, input.read())
+        assertEquals(-1, input.read(ByteArray(16), 0, 16))
+        assertEquals(0L, input.bytesProcessed)
+        input.close()
+    }
+
+    @Throws(IOException::class)
+    fun testEndOfStreamRepeated() {
+        val input = PipelineInputStream(ByteArrayInputStream(byteArrayOf(1, 2, 3)), "eof",
+                bufferSize = 2, bufferCount = 2)
+        assertEquals(1, input.read())
+        assertEquals(2, input.read())
+        assertEquals(3, input.read())
+        assertEquals(-1, input.read())
+        assertEquals(-1, input.read())
+        assertEquals(-1, input.read(ByteArray(4), 0, 4))
+        input.close()
+    }
+
+    @Throws(IOException::class)
+    fun testIOExceptionPropagation() {
+        val input = PipelineInputStream(FailingInputStream(2048, IOException("Source failure")),
+                "failure", bufferSize = 1024, bufferCount = 2)
+        val buffer = ByteArray(1024)
+        var readBytes = 0L
+        try {
+            while (true) {
+                val read = input.read(buffer)
+                if (read < 0)
+                    break
+                readBytes += read
+            }
+            fail("The source exception must be thrown to the reader")
+        } catch (e: IOException) {
+            assertEquals("Source failure", e.message)
+        }
+        // The data read before the failure is delivered in order
+        assertEquals(2048L, readBytes)
+        input.close()
+    }
+
+    @Throws(IOException::class)
+    fun testRuntimeExceptionWrapped() {
+        val error = IllegalStateException("Source bug")
+        val input = PipelineInputStream(FailingInputStream(0, error), "failure")
+        try {
+            input.read()
+            fail("The source exception must be thrown to the reader")
+        } catch (e: IOException) {
+            assertSame(error, e.cause)
+        }
+        input.close()
+    }
+
+    @Throws(IOException::class)
+    fun testCloseBeforeEnd() {
+        val orig = ByteArray(100000)
+        rand.nextBytes(orig)
+        val source = ByteArrayInputStream(orig)
+        val input = PipelineInputStream(source, "close", bufferSize = 1024, bufferCount = 2)
+        input.read(ByteArray(10))
+        // The stage thread blocked on a full queue is stopped
+        input.close()
+        input.close()
+    }
+
+    @Throws(IOException::class)
+    private fun testSize(length: Int, bufferSize: Int) {
+        val orig = ByteArray(length)
+        rand.nextBytes(orig)
+
+        val input = PipelineInputStream(ByteArrayInputStream(orig), "test",
+                bufferSize = bufferSize, bufferCount = 2)
+
+        assertArrayEquals("Output not equal to input", orig, readAll(input))
+        assertEquals(length.toLong(), input.bytesProcessed)
+        input.close()
+    }
+
+    @Throws(IOException::class)
+    private fun readAll(input: InputStream): ByteArray {
+        val decoded = ByteArrayOutputStream()
+        // Mix single byte and buffer reads
+        val single = input.read()
+        if (single == -1)
+            return decoded.toByteArray()
+        decoded.write(single)
+        val buf = ByteArray(333)
+        while (true) {
+            val read = input.read(buf)
+            if (read == -1) {
+                break
+            }
+            decoded.write(buf, 0, read)
+        }
+        return decoded.toByteArray()
+    }
+
+    /**
+     * Source returning [length] zero bytes, then throwing [error]
+     */
+    private class FailingInputStream(private var length: Int,
+                                     private val error: Exception) : InputStream() {
+        override fun read(): Int {
+            val buffer = ByteArray(1)
+            return if (read(buffer, 0, 1) < 0) -1 else buffer[0].toInt()
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (length == 0)
+                throw error
+            val read = len.coerceAtMost(length)
+            b.fill(0, off, off + read)
+            length -= read
+            return read
+        }
+    }
+
+    companion object {
+
+        private val rand = Random()
+    }
+}
@@ -111,6 +111,10 @@ abstract class DatabaseLockActivity : DatabaseModeActivity(),
             mDatabaseTaskProvider?.startDatabaseSaveCompression(it.oldValue, it.newValue, it.save)
         }
 
+        mDatabaseViewModel.saveCompressionLevel.observe(this) {
+            mDatabaseTaskProvider?.startDatabaseSaveCompressionLevel(it.oldValue, it.newValue, it.save)
+        }
+
         mDatabaseViewModel.removeUnlinkData.observe(this) {
             mDatabaseTaskProvider?.startDatabaseRemoveUnlinkedData(it)
         }
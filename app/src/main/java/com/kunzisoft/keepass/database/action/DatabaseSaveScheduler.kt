@@ -0,0 +1,83 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.action
+
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * Write-behind of the database, each modification marks the database as dirty
+ * and the pending saves are merged in a single [onSave] call
+ * after [quietPeriod] milliseconds without new modification.
+ */
+class DatabaseSaveScheduler(var quietPeriod: Long = DEFAULT_QUIET_PERIOD,
+                            private val onSave: () -> Unit) {
+
+    private var mDirty = false
+    private var mPendingSave: ScheduledFuture<*>? = null
+
+    val isDirty: Boolean
+        get() = synchronized(this) { mDirty }
+
+    /**
+     * Indicate a modification not yet saved and restart the quiet period
+     */
+    fun markDirty() {
+        synchronized(this) {
+            mDirty = true
+            mPendingSave?.cancel(false)
+            mPendingSave = saveExecutor.schedule({
+                if (consume()) {
+                    onSave.invoke()
+                }
+            }, quietPeriod, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    /**
+     * Drop the scheduled save without calling [onSave],
+     * return true if a modification was not yet saved
+     */
+    fun cancel(): Boolean {
+        return consume()
+    }
+
+    private fun consume(): Boolean {
+        synchronized(this) {
+            mPendingSave?.cancel(false)
+            mPendingSave = null
+            val dirty = mDirty
+            mDirty = false
+            return dirty
+        }
+    }
+
+    companion object {
+        const val DEFAULT_QUIET_PERIOD = 2000L
+
+        private val saveExecutor: ScheduledExecutorService by lazy {
+            Executors.newSingleThreadScheduledExecutor {
+                Thread(it, "SaveDatabaseScheduler").apply { isDaemon = true }
+            }
+        }
+    }
+}
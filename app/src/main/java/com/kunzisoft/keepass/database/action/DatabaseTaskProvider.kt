@@ -39,6 +39,7 @@ import com.kunzisoft.keepass.database.element.Database
 import com.kunzisoft.keepass.database.element.Entry
 import com.kunzisoft.keepass.database.element.Group
 import com.kunzisoft.keepass.database.element.database.CompressionAlgorithm
+import com.kunzisoft.keepass.database.element.database.CompressionLevel
 import com.kunzisoft.keepass.database.element.node.Node
 import com.kunzisoft.keepass.database.element.node.NodeId
 import com.kunzisoft.keepass.database.element.node.Type
@@ -59,6 +60,7 @@ import com.kunzisoft.keepass.services.DatabaseTaskNotificationService.Companion.
 import com.kunzisoft.keepass.services.DatabaseTaskNotificationService.Companion.ACTION_DATABASE_RESTORE_ENTRY_HISTORY
 import com.kunzisoft.keepass.services.DatabaseTaskNotificationService.Companion.ACTION_DATABASE_SAVE
 import com.kunzisoft.keepass.services.DatabaseTaskNotificationService.Companion.ACTION_DATABASE_UPDATE_COLOR_TASK
+import com.kunzisoft.keepass.services.DatabaseTaskNotificationService.Companion.ACTION_DATABASE_UPDATE_COMPRESSION_LEVEL_TASK
 import com.kunzisoft.keepass.services.DatabaseTaskNotificationService.Companion.ACTION_DATABASE_UPDATE_COMPRESSION_TASK
 import com.kunzisoft.keepass.services.DatabaseTaskNotificationService.Companion.ACTION_DATABASE_UPDATE_DEFAULT_USERNAME_TASK
 import com.kunzisoft.keepass.services.DatabaseTaskNotificationService.Companion.ACTION_DATABASE_UPDATE_DESCRIPTION_TASK
@@ -133,6 +135,10 @@ class DatabaseTaskProvider {
             updateDialog(titleId, messageId, warningId)
         }
 
+        override fun onUpdateProgress(database: Database, progress: Int) {
+            progressTaskDialogFragment?.updateProgress(progress)
+        }
+
         override fun onStopAction(database: Database, actionTask: String, result: ActionRunnable.Result) {
             onActionFinish?.invoke(database, actionTask, result)
             // Remove the progress task
@@ -196,6 +202,9 @@ class DatabaseTaskProvider {
                         PROGRESS_TASK_DIALOG_TAG
                     )
                 }
+                progressTaskDialogFragment?.onCancelTask = {
+                    mBinder?.cancelTask()
+                }
                 updateDialog(titleId, messageId, warningId)
             }
         }
@@ -556,6 +565,17 @@ class DatabaseTaskProvider {
                 , ACTION_DATABASE_UPDATE_COMPRESSION_TASK)
     }
 
+    fun startDatabaseSaveCompressionLevel(oldCompressionLevel: CompressionLevel,
+                                          newCompressionLevel: CompressionLevel,
+                                          save: Boolean) {
+        start(Bundle().apply {
+            putSerializable(DatabaseTaskNotificationService.OLD_ELEMENT_KEY, oldCompressionLevel)
+            putSerializable(DatabaseTaskNotificationService.NEW_ELEMENT_KEY, newCompressionLevel)
+            putBoolean(DatabaseTaskNotificationService.SAVE_DATABASE_KEY, save)
+        }
+                , ACTION_DATABASE_UPDATE_COMPRESSION_LEVEL_TASK)
+    }
+
     fun startDatabaseRemoveUnlinkedData(save: Boolean) {
         start(Bundle().apply {
             putBoolean(DatabaseTaskNotificationService.SAVE_DATABASE_KEY, save)
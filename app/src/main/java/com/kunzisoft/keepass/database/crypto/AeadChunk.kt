@@ -0,0 +1,89 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.crypto
+
+import android.os.Build
+import java.security.spec.AlgorithmParameterSpec
+import javax.crypto.spec.GCMParameterSpec
+import javax.crypto.spec.IvParameterSpec
+
+/**
+ * Format of the chunked authenticated encryption used for the cache files,
+ * a random nonce prefix followed by chunks of [CHUNK_SIZE] bytes encrypted with AES-GCM,
+ * each chunk with its own nonce built from the prefix, the last chunk flag and the chunk index,
+ * so a chunk can't be moved, and the file can't be truncated, without failing the tag check.
+ * The chunk index takes 32 bits of the nonce, a file is limited to [MAX_CHUNK_INDEX] + 1 chunks.
+ */
+object AeadChunk {
+
+    const val CIPHER = "AES/GCM/NoPadding"
+    const val KEY_ALGORITHM = "AES"
+    const val KEY_SIZE = 256
+
+    const val CHUNK_SIZE = 64 * 1024
+    const val TAG_SIZE = 16
+    const val NONCE_SIZE = 12
+    const val NONCE_PREFIX_SIZE = 7
+    const val ENCRYPTED_CHUNK_SIZE = CHUNK_SIZE + TAG_SIZE
+    const val MAX_CHUNK_INDEX = 0xFFFFFFFFL
+
+    fun chunkNonce(noncePrefix: ByteArray, chunkIndex: Long, lastChunk: Boolean): ByteArray {
+        // A larger index would reuse the nonce of a previous chunk
+        if (chunkIndex < 0 || chunkIndex > MAX_CHUNK_INDEX)
+            throw IllegalArgumentException("Chunk index out of the nonce range")
+        val nonce = ByteArray(NONCE_SIZE)
+        System.arraycopy(noncePrefix, 0, nonce, 0, NONCE_PREFIX_SIZE)
+        nonce[NONCE_PREFIX_SIZE] = if (lastChunk) 1 else 0
+        nonce[8] = (chunkIndex ushr 24).toByte()
+        nonce[9] = (chunkIndex ushr 16).toByte()
+        nonce[10] = (chunkIndex ushr 8).toByte()
+        nonce[11] = chunkIndex.toByte()
+        return nonce
+    }
+
+    fun parameterSpec(nonce: ByteArray): AlgorithmParameterSpec {
+        // Before KitKat, the GCM tag of the provider is 128 bits long with an IV spec,
+        // checked by the known answer test of the cipher
+        return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+            GCMParameterSpec(TAG_SIZE * 8, nonce)
+        else
+            IvParameterSpec(nonce)
+    }
+
+    /**
+     * Number of chunks in a file of [fileLength] bytes
+     */
+    fun chunkCount(fileLength: Long): Long {
+        val encryptedLength = fileLength - NONCE_PREFIX_SIZE
+        if (encryptedLength < TAG_SIZE)
+            return 0
+        return (encryptedLength + ENCRYPTED_CHUNK_SIZE - 1) / ENCRYPTED_CHUNK_SIZE
+    }
+
+    /**
+     * Length of the data stored in a file of [fileLength] bytes
+     */
+    fun dataLength(fileLength: Long): Long {
+        val chunkCount = chunkCount(fileLength)
+        if (chunkCount == 0L)
+            return 0
+        return fileLength - NONCE_PREFIX_SIZE - chunkCount * TAG_SIZE
+    }
+}
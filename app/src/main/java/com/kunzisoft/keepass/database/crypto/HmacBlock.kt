@@ -23,11 +23,41 @@ import java.io.IOException
 import java.security.InvalidKeyException
 import java.security.MessageDigest
 import java.security.NoSuchAlgorithmException
+import java.util.*
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
 import javax.crypto.Mac
 import javax.crypto.spec.SecretKeySpec
 
 object HmacBlock {
 
+    /**
+     * Number of blocks whose HMAC can be computed at the same time
+     */
+    val PARALLEL_BLOCKS = Runtime.getRuntime().availableProcessors().coerceIn(1, 8)
+
+    /**
+     * Workers shared by the HMAC block streams
+     */
+    val blockExecutor: ExecutorService by lazy {
+        Executors.newFixedThreadPool(PARALLEL_BLOCKS) { runnable ->
+            Thread(runnable, "HmacBlock").apply {
+                isDaemon = true
+            }
+        }
+    }
+
+    // Mac instances are reused by each worker, only the key changes between blocks
+    private val blockHmac = object : ThreadLocal<Mac>() {
+        override fun initialValue(): Mac {
+            try {
+                return Mac.getInstance("HmacSHA256")
+            } catch (e: NoSuchAlgorithmException) {
+                throw RuntimeException(e)
+            }
+        }
+    }
+
     fun getHmacSha256(blockKey: ByteArray): Mac {
         val hmac: Mac
         try {
@@ -53,4 +83,31 @@ object HmacBlock {
         hash.update(key)
         return hash.digest()
     }
+
+    /**
+     * Compute the HMAC-SHA256 of a block, depends only on the [key], the block index,
+     * the block size and the block data so blocks can be processed in any order
+     */
+    @Throws(IOException::class)
+    fun getBlockHmac(key: ByteArray,
+                     blockIndex: ByteArray,
+                     blockSize: ByteArray,
+                     data: ByteArray,
+                     dataLength: Int): ByteArray {
+        val blockKey = getHmacKey64(key, blockIndex)
+        val hmac = blockHmac.get()!!
+        try {
+            hmac.init(SecretKeySpec(blockKey, "HmacSHA256"))
+        } catch (e: InvalidKeyException) {
+            throw IOException("Invalid Hmac Key")
+        } finally {
+            Arrays.fill(blockKey, 0.toByte())
+        }
+        hmac.update(blockIndex)
+        hmac.update(blockSize)
+        if (dataLength > 0) {
+            hmac.update(data, 0, dataLength)
+        }
+        return hmac.doFinal()
+    }
 }
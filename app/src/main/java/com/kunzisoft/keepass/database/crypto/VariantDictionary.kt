@@ -104,6 +104,28 @@ open class VariantDictionary {
         return dict.size
     }
 
+    /**
+     * Check that the [other] dictionary contains the same names with the same typed values
+     */
+    fun contentEquals(other: VariantDictionary): Boolean {
+        if (dict.size != other.dict.size)
+            return false
+        for ((name, vdType) in dict) {
+            val otherVdType = other.dict[name] ?: return false
+            if (vdType.type != otherVdType.type)
+                return false
+            val value = vdType.value
+            val otherValue = otherVdType.value
+            val sameValue = if (value is ByteArray && otherValue is ByteArray)
+                value.contentEquals(otherValue)
+            else
+                value == otherValue
+            if (!sameValue)
+                return false
+        }
+        return true
+    }
+
     companion object {
         private const val VdVersion = 0x0100
         private const val VdmCritical = 0xFF00
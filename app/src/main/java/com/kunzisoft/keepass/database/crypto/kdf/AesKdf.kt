@@ -20,6 +20,8 @@
 package com.kunzisoft.keepass.database.crypto.kdf
 
 import com.kunzisoft.encrypt.HashManager
+import com.kunzisoft.encrypt.KdfBenchmark
+import com.kunzisoft.encrypt.KeyTransformationListener
 import com.kunzisoft.keepass.utils.UnsignedLong
 import com.kunzisoft.encrypt.aes.AESTransformer
 import com.kunzisoft.keepass.utils.bytes16ToUuid
@@ -44,7 +46,9 @@ class AesKdf : KdfEngine() {
     override val defaultKeyRounds = 500000L
 
     @Throws(IOException::class)
-    override fun transform(masterKey: ByteArray, kdfParameters: KdfParameters): ByteArray {
+    override fun transform(masterKey: ByteArray,
+                           kdfParameters: KdfParameters,
+                           listener: KeyTransformationListener?): ByteArray {
 
         var seed = kdfParameters.getByteArray(PARAM_SEED)
         if (seed != null && seed.size != 32) {
@@ -58,7 +62,7 @@ class AesKdf : KdfEngine() {
 
         val rounds = kdfParameters.getUInt64(PARAM_ROUNDS)?.toKotlinLong()
 
-        return AESTransformer.transformKey(seed, currentMasterKey, rounds) ?: ByteArray(0)
+        return AESTransformer.transformKey(seed, currentMasterKey, rounds, listener) ?: ByteArray(0)
     }
 
     override fun randomize(kdfParameters: KdfParameters) {
@@ -70,6 +74,12 @@ class AesKdf : KdfEngine() {
         kdfParameters.setByteArray(PARAM_SEED, seed)
     }
 
+    @Throws(IOException::class)
+    override fun benchmark(targetMillis: Long, maxMemoryUsage: Long): TunedParameters {
+        return TunedParameters(KdfBenchmark.aesRounds(targetMillis)
+                .coerceIn(minKeyRounds, maxKeyRounds))
+    }
+
     override fun getKeyRounds(kdfParameters: KdfParameters): Long {
         return kdfParameters.getUInt64(PARAM_ROUNDS)?.toKotlinLong() ?: defaultKeyRounds
     }
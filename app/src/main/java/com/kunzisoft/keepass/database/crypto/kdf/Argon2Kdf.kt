@@ -21,6 +21,8 @@ package com.kunzisoft.keepass.database.crypto.kdf
 
 import com.kunzisoft.keepass.utils.UnsignedInt
 import com.kunzisoft.keepass.utils.UnsignedLong
+import com.kunzisoft.encrypt.KdfBenchmark
+import com.kunzisoft.encrypt.KeyTransformationListener
 import com.kunzisoft.encrypt.argon2.Argon2Transformer
 import com.kunzisoft.encrypt.argon2.Argon2Type
 import com.kunzisoft.keepass.utils.bytes16ToUuid
@@ -51,7 +53,9 @@ class Argon2Kdf(private val type: Type) : KdfEngine() {
         get() = DEFAULT_ITERATIONS.toKotlinLong()
 
     @Throws(IOException::class)
-    override fun transform(masterKey: ByteArray, kdfParameters: KdfParameters): ByteArray {
+    override fun transform(masterKey: ByteArray,
+                           kdfParameters: KdfParameters,
+                           listener: KeyTransformationListener?): ByteArray {
 
         val salt = kdfParameters.getByteArray(PARAM_SALT) ?: ByteArray(0)
         val parallelism = kdfParameters.getUInt32(PARAM_PARALLELISM)?.toKotlinLong() ?: DEFAULT_PARALLELISM.toKotlinLong()
@@ -72,7 +76,8 @@ class Argon2Kdf(private val type: Type) : KdfEngine() {
                 parallelism,
                 memory,
                 iterations,
-                version)
+                version,
+                listener = listener)
     }
 
     override fun randomize(kdfParameters: KdfParameters) {
@@ -84,6 +89,21 @@ class Argon2Kdf(private val type: Type) : KdfEngine() {
         kdfParameters.setByteArray(PARAM_SALT, salt)
     }
 
+    @Throws(IOException::class)
+    override fun benchmark(targetMillis: Long, maxMemoryUsage: Long): TunedParameters {
+        val maxMemory = maxMemoryUsage.coerceIn(minMemoryUsage, this.maxMemoryUsage) / MEMORY_BLOCK_SIZE
+        val argonType = if (type == Type.ARGON2_ID) Argon2Type.ARGON2_ID else Argon2Type.ARGON2_D
+        val parameters = KdfBenchmark.argon2Parameters(
+                argonType,
+                MAX_VERSION.toKotlinInt(),
+                targetMillis,
+                maxMemory)
+        return TunedParameters(
+                parameters.iterations.coerceIn(minKeyRounds, maxKeyRounds),
+                (parameters.memory * MEMORY_BLOCK_SIZE).coerceIn(minMemoryUsage, this.maxMemoryUsage),
+                parameters.parallelism.coerceIn(minParallelism, maxParallelism))
+    }
+
     override fun getKeyRounds(kdfParameters: KdfParameters): Long {
         return kdfParameters.getUInt64(PARAM_ITERATIONS)?.toKotlinLong() ?: defaultKeyRounds
     }
@@ -19,6 +19,7 @@
  */
 package com.kunzisoft.keepass.database.crypto.kdf
 
+import com.kunzisoft.encrypt.KeyTransformationListener
 import com.kunzisoft.keepass.utils.UnsignedInt
 import java.io.IOException
 import java.io.Serializable
@@ -31,11 +32,24 @@ abstract class KdfEngine : Serializable {
 
     abstract val defaultParameters: KdfParameters
 
+    /**
+     * Transform the [masterKey], the [listener] is notified of the progress and can cancel
+     * the transformation with a KeyTransformationCancelledException
+     */
     @Throws(IOException::class)
-    abstract fun transform(masterKey: ByteArray, kdfParameters: KdfParameters): ByteArray
+    abstract fun transform(masterKey: ByteArray,
+                           kdfParameters: KdfParameters,
+                           listener: KeyTransformationListener? = null): ByteArray
 
     abstract fun randomize(kdfParameters: KdfParameters)
 
+    /**
+     * Measure the transformation on this device and return the parameters deriving a key
+     * in about [targetMillis], the memory usage in bytes is bounded by [maxMemoryUsage]
+     */
+    @Throws(IOException::class)
+    abstract fun benchmark(targetMillis: Long, maxMemoryUsage: Long): TunedParameters
+
     /*
      * ITERATIONS
      */
@@ -94,6 +108,13 @@ abstract class KdfEngine : Serializable {
     open val maxParallelism: Long
         get() = UnsignedInt.MAX_VALUE.toKotlinLong()
 
+    /**
+     * Parameters found by [benchmark], [UNKNOWN_VALUE] when not used by the engine
+     */
+    class TunedParameters(val keyRounds: Long,
+                          val memoryUsage: Long = UNKNOWN_VALUE,
+                          val parallelism: Long = UNKNOWN_VALUE)
+
     companion object {
         const val UNKNOWN_VALUE: Long = -1L
     }
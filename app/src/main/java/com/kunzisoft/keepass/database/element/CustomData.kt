@@ -32,6 +32,10 @@ class CustomData : Parcelable {
         return mCustomDataItems.any { mapEntry -> mapEntry.value.value.equals(value, true) }
     }
 
+    fun containsItemWithKeyOtherThan(key: String): Boolean {
+        return mCustomDataItems.keys.any { it != key }
+    }
+
     fun containsItemWithLastModificationTime(): Boolean {
         return mCustomDataItems.any { mapEntry -> mapEntry.value.lastModificationTime != null }
     }
@@ -34,6 +34,7 @@ import com.kunzisoft.keepass.database.element.binary.BinaryCache
 import com.kunzisoft.keepass.database.element.binary.BinaryData
 import com.kunzisoft.keepass.database.element.binary.LoadedKey
 import com.kunzisoft.keepass.database.element.database.CompressionAlgorithm
+import com.kunzisoft.keepass.database.element.database.CompressionLevel
 import com.kunzisoft.keepass.database.element.database.DatabaseKDB
 import com.kunzisoft.keepass.database.element.database.DatabaseKDBX
 import com.kunzisoft.keepass.database.element.icon.IconImageCustom
@@ -76,6 +77,9 @@ class Database {
 
     private var mSearchHelper: SearchHelper? = null
 
+    // Memory check of the loading, also required to derive the key of the next save in background
+    private var mIsRAMSufficient: ((memoryWanted: Long) -> Boolean)? = null
+
     var isReadOnly = false
 
     val iconDrawableFactory = IconDrawableFactory(
@@ -94,6 +98,11 @@ class Database {
      */
     var wasReloaded = false
 
+    /**
+     * Modifications waiting for the save delay of the database task service
+     */
+    var hasDelayedModifications = false
+
     var loadTimestamp: Long? = null
         private set
 
@@ -272,6 +281,17 @@ class Database {
             }
         }
 
+    val availableCompressionLevels: List<CompressionLevel>
+        get() = if (mDatabaseKDBX != null) CompressionLevel.values().toList() else ArrayList()
+
+    var compressionLevel: CompressionLevel?
+        get() = mDatabaseKDBX?.compressionLevel
+        set(value) {
+            value?.let {
+                mDatabaseKDBX?.compressionLevel = it
+            }
+        }
+
     fun compressionForNewEntry(): Boolean {
         if (mDatabaseKDB != null)
             return false
@@ -320,6 +340,7 @@ class Database {
         get() = mDatabaseKDB?.kdfEngine ?: mDatabaseKDBX?.kdfEngine
         set(kdfEngine) {
             kdfEngine?.let {
+                mDatabaseKDBX?.cancelNextTransformedKey()
                 if (mDatabaseKDBX?.kdfParameters?.uuid != kdfEngine.defaultParameters.uuid)
                     mDatabaseKDBX?.kdfParameters = kdfEngine.defaultParameters
                 numberKeyEncryptionRounds = kdfEngine.defaultKeyRounds
@@ -335,6 +356,7 @@ class Database {
     var numberKeyEncryptionRounds: Long
         get() = mDatabaseKDB?.numberKeyEncryptionRounds ?: mDatabaseKDBX?.numberKeyEncryptionRounds ?: 0
         set(numberRounds) {
+            mDatabaseKDBX?.cancelNextTransformedKey()
             mDatabaseKDB?.numberKeyEncryptionRounds = numberRounds
             mDatabaseKDBX?.numberKeyEncryptionRounds = numberRounds
         }
@@ -344,18 +366,21 @@ class Database {
             return mDatabaseKDBX?.memoryUsage ?: return KdfEngine.UNKNOWN_VALUE
         }
         set(memory) {
+            mDatabaseKDBX?.cancelNextTransformedKey()
             mDatabaseKDBX?.memoryUsage = memory
         }
 
     var parallelism: Long
         get() = mDatabaseKDBX?.parallelism ?: KdfEngine.UNKNOWN_VALUE
         set(parallelism) {
+            mDatabaseKDBX?.cancelNextTransformedKey()
             mDatabaseKDBX?.parallelism = parallelism
         }
 
     var masterKey: ByteArray
         get() = mDatabaseKDB?.masterKey ?: mDatabaseKDBX?.masterKey ?: ByteArray(32)
         set(masterKey) {
+            mDatabaseKDBX?.cancelNextTransformedKey()
             mDatabaseKDB?.masterKey = masterKey
             mDatabaseKDBX?.masterKey = masterKey
         }
@@ -535,6 +560,8 @@ class Database {
 
             this.mSearchHelper = SearchHelper()
             loaded = true
+            // Ready the key of the next save
+            prepareNextTransformedKey()
         } catch (e: LoadDatabaseException) {
             throw e
         } catch (e: Exception) {
@@ -557,6 +584,7 @@ class Database {
 
         // Save database URI
         this.fileUri = uri
+        this.mIsRAMSufficient = isRAMSufficient
 
         // Check if the file is writable
         this.isReadOnly = readOnly
@@ -609,6 +637,7 @@ class Database {
                    tempCipherKey: LoadedKey,
                    progressTaskUpdater: ProgressTaskUpdater?) {
 
+        this.mIsRAMSufficient = isRAMSufficient
         // Retrieve the stream from the old database URI
         try {
             fileUri?.let { oldDatabaseUri ->
@@ -697,6 +726,11 @@ class Database {
                         false)
     }
 
+    fun reuseAttachmentWithSameContent(binaryData: BinaryData): BinaryData {
+        // No deduplication in KDB database because unique attachment by entry
+        return mDatabaseKDBX?.reuseAttachmentWithSameContent(binaryData) ?: binaryData
+    }
+
     fun removeAttachmentIfNotUsed(attachment: Attachment) {
         // No need in KDB database because unique attachment by entry
         // Don't clear to fix upload multiple times
@@ -708,11 +742,23 @@ class Database {
         mDatabaseKDBX?.removeUnlinkedAttachments(true)
     }
 
+    private fun prepareNextTransformedKey() {
+        val isRAMSufficient = mIsRAMSufficient
+        if (isRAMSufficient != null) {
+            mDatabaseKDBX?.prepareNextTransformedKey(isRAMSufficient)
+        } else {
+            // Memory not known, no derivation in background
+            mDatabaseKDBX?.cancelNextTransformedKey()
+        }
+    }
+
     @Throws(DatabaseOutputException::class)
     fun saveData(contentResolver: ContentResolver) {
         try {
             this.fileUri?.let {
                 saveData(contentResolver, it)
+                // Ready the key of the next save
+                prepareNextTransformedKey()
             }
         } catch (e: Exception) {
             Log.e(TAG, "Unable to save database", e)
@@ -720,6 +766,25 @@ class Database {
         }
     }
 
+    /**
+     * Write immediately the modifications waiting for the save delay,
+     * the database is no longer flagged even if the save failed
+     * @return false if the modifications could not be saved
+     */
+    fun saveDelayedModifications(contentResolver: ContentResolver): Boolean {
+        if (!hasDelayedModifications)
+            return true
+        hasDelayedModifications = false
+        return try {
+            if (loaded && !isReadOnly) {
+                saveData(contentResolver)
+            }
+            true
+        } catch (e: DatabaseOutputException) {
+            false
+        }
+    }
+
     @Throws(IOException::class, DatabaseOutputException::class)
     private fun saveData(contentResolver: ContentResolver, uri: Uri) {
 
@@ -790,7 +855,9 @@ class Database {
         this.mDatabaseKDB = null
         this.mDatabaseKDBX = null
         this.fileUri = null
+        this.mIsRAMSufficient = null
         this.loaded = false
+        this.hasDelayedModifications = false
     }
 
     private fun cleanDirectory(directory: File) {
@@ -814,6 +881,7 @@ class Database {
 
     @Throws(IOException::class)
     fun retrieveMasterKey(key: String?, keyInputStream: InputStream?) {
+        mDatabaseKDBX?.cancelNextTransformedKey()
         mDatabaseKDB?.retrieveMasterKey(key, keyInputStream)
         mDatabaseKDBX?.retrieveMasterKey(key, keyInputStream)
     }
@@ -21,24 +21,76 @@ package com.kunzisoft.keepass.database.element.binary
 
 class AttachmentPool(binaryCache: BinaryCache) : BinaryPool<Int>(binaryCache) {
 
+    // Keys are not reused, to find an unused one without scanning the pool from 0
+    private var nextUnusedKey = 0
+
     /**
      * Utility method to find an unused key in the pool
      */
     override fun findUnusedKey(): Int {
-        var unusedKey = 0
+        var unusedKey = nextUnusedKey
         while (pool[unusedKey] != null)
             unusedKey++
+        nextUnusedKey = unusedKey + 1
         return unusedKey
     }
 
     /**
-     * To register a binary with a ref corresponding to an ordered index
+     * Build once the ordered binaries without duplication and the index of each key,
+     * to be reused by all the binary references of a save
+     */
+    fun buildBinaryReferences(): BinaryReferences {
+        val keyBinaries = orderedBinariesWithoutDuplication()
+        var minKey = 0
+        var maxKey = -1
+        for (key in pool.keys) {
+            if (key < minKey) minKey = key
+            if (key > maxKey) maxKey = key
+        }
+        // Keys are normally compact, a sparse pool loaded from a file uses a map
+        return if (minKey >= 0 && maxKey < MAX_KEY_TABLE_FACTOR * pool.size + MAX_KEY_TABLE_MARGIN) {
+            val keyIndexes = IntArray(maxKey + 1) { -1 }
+            keyBinaries.forEachIndexed { index, keyBinary ->
+                keyBinary.keys.forEach { keyIndexes[it] = index }
+            }
+            BinaryReferences(keyBinaries.map { it.binary }, keyIndexes, null)
+        } else {
+            val keyIndexes = HashMap<Int, Int>()
+            keyBinaries.forEachIndexed { index, keyBinary ->
+                keyBinary.keys.forEach { keyIndexes[it] = index }
+            }
+            BinaryReferences(keyBinaries.map { it.binary }, null, keyIndexes)
+        }
+    }
+
+    /**
+     * Binaries ordered without duplication with the ref index of each pool key,
+     * the table is not updated if the pool is modified
      */
-    fun getBinaryIndexFromKey(key: Int): Int? {
-        val index = orderedBinariesWithoutDuplication().indexOfFirst { it.keys.contains(key) }
-        return if (index < 0)
-            null
-        else
-            index
+    class BinaryReferences(val orderedBinaries: List<BinaryData>,
+                           private val keyIndexTable: IntArray?,
+                           private val keyIndexMap: Map<Int, Int>?) {
+
+        /**
+         * To register a binary with a ref corresponding to an ordered index
+         */
+        fun getBinaryIndexFromKey(key: Int): Int? {
+            keyIndexTable?.let { table ->
+                return if (key in table.indices && table[key] >= 0)
+                    table[key]
+                else
+                    null
+            }
+            return keyIndexMap?.get(key)
+        }
+
+        fun doForEachOrderedBinary(action: (index: Int, binary: BinaryData) -> Unit) {
+            orderedBinaries.forEachIndexed(action)
+        }
+    }
+
+    companion object {
+        private const val MAX_KEY_TABLE_FACTOR = 4
+        private const val MAX_KEY_TABLE_MARGIN = 64
     }
 }
@@ -21,9 +21,6 @@ package com.kunzisoft.keepass.database.element.binary
 
 import android.os.Parcel
 import android.os.Parcelable
-import android.util.Base64
-import android.util.Base64InputStream
-import android.util.Base64OutputStream
 import com.kunzisoft.keepass.utils.readAllBytes
 import com.kunzisoft.keepass.database.element.binary.BinaryCache.Companion.UNKNOWN
 import java.io.*
@@ -33,12 +30,6 @@ class BinaryByte : BinaryData {
 
     private var mDataByteId: String
 
-    private fun getByteArray(binaryCache: BinaryCache): ByteArray {
-        val keyData = binaryCache.getByteArray(mDataByteId)
-        mDataByteId = keyData.key
-        return keyData.data
-    }
-
     constructor() : super() {
         mDataByteId = UNKNOWN
     }
@@ -60,12 +51,12 @@ class BinaryByte : BinaryData {
 
     @Throws(IOException::class)
     override fun getInputDataStream(binaryCache: BinaryCache): InputStream {
-        return Base64InputStream(ByteArrayInputStream(getByteArray(binaryCache)), Base64.NO_WRAP)
+        return binaryCache.getInputStream(mDataByteId)
     }
 
     @Throws(IOException::class)
     override fun getOutputDataStream(binaryCache: BinaryCache): OutputStream {
-        return BinaryCountingOutputStream(Base64OutputStream(ByteOutputStream(binaryCache), Base64.NO_WRAP))
+        return BinaryCountingOutputStream(binaryCache.getOutputStream(mDataByteId))
     }
 
     @Throws(IOException::class)
@@ -117,16 +108,6 @@ class BinaryByte : BinaryData {
         return result
     }
 
-    /**
-     * Custom OutputStream to calculate the size and hash of binary file
-     */
-    private inner class ByteOutputStream(private val binaryCache: BinaryCache) : ByteArrayOutputStream() {
-        override fun close() {
-            binaryCache.setByteArray(mDataByteId, this.toByteArray())
-            super.close()
-        }
-    }
-
     companion object {
         private val TAG = BinaryByte::class.java.name
 
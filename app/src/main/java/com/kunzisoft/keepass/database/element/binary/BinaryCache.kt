@@ -1,6 +1,10 @@
 package com.kunzisoft.keepass.database.element.binary
 
-import java.io.File
+import com.kunzisoft.keepass.stream.AeadChunkInputStream
+import com.kunzisoft.keepass.stream.AeadChunkOutputStream
+import java.io.*
+import java.nio.ByteBuffer
+import java.security.Key
 import java.util.*
 
 class BinaryCache {
@@ -13,7 +17,23 @@ class BinaryCache {
 
     var cacheDirectory: File? = null
 
-    private val voidBinary = KeyByteArray(UNKNOWN, ByteArray(0))
+    /**
+     * Maximum number of bytes kept in memory for the byte binaries,
+     * the least recently used ones are written in encrypted files of [cacheDirectory] beyond
+     */
+    var memoryBudget: Long = DEFAULT_MEMORY_BUDGET
+        set(value) {
+            synchronized(this) {
+                field = value
+            }
+            trimToBudget()
+        }
+
+    /**
+     * Number of bytes currently used in memory by the byte binaries
+     */
+    val memoryUsage: Long
+        get() = synchronized(this) { usedPages.toLong() * PAGE_SIZE }
 
     fun getBinaryData(binaryId: String,
                       smallSize: Boolean = false,
@@ -28,55 +48,454 @@ class BinaryCache {
         }
     }
 
-    // Similar to file storage but much faster TODO SparseArray
-    private val byteArrayList = HashMap<String, ByteArray>()
+    // Byte binaries by access order, the first one is the least recently used
+    private val byteEntries = LinkedHashMap<String, ByteEntry>(16, 0.75f, true)
+    // Pages sliced from direct slabs, recycled instead of released to the GC
+    private val freePages = ArrayDeque<ByteBuffer>()
+    private var allocatedPages = 0
+    private var usedPages = 0
+    private var spillFileCount = 0
 
-    fun getByteArray(key: String): KeyByteArray {
+    private val maxPages: Int
+        get() = (memoryBudget / PAGE_SIZE).coerceIn(0, Int.MAX_VALUE.toLong()).toInt()
+
+    /**
+     * Retrieve the content stored with [key], in memory or in its spill file,
+     * empty if nothing is stored
+     */
+    @Throws(IOException::class)
+    fun getInputStream(key: String): InputStream {
         if (key == UNKNOWN) {
-            return voidBinary
+            return ByteArrayInputStream(ByteArray(0))
         }
-        if (!byteArrayList.containsKey(key)) {
-            val newItem = KeyByteArray(key, ByteArray(0))
-            byteArrayList[newItem.key] = newItem.data
-            return newItem
+        var promotion = false
+        val entry = synchronized(this) {
+            byteEntries[key]?.apply {
+                readers++
+                promotion = file != null && readers == 1 && length <= memoryBudget / 2
+            }
+        } ?: return ByteArrayInputStream(ByteArray(0))
+        // The content of an entry with a reader is neither evicted nor released
+        try {
+            if (promotion) {
+                promote(entry)
+            }
+            val spillFile = synchronized(this) { entry.file }
+            return if (spillFile != null) {
+                SpillInputStream(entry, AeadChunkInputStream(spillFile, entry.fileKey!!))
+            } else {
+                PageInputStream(entry)
+            }
+        } catch (e: Exception) {
+            closeReader(entry)
+            throw e
         }
-        return KeyByteArray(key, byteArrayList[key]!!)
     }
 
-    fun setByteArray(key: String, data: ByteArray): KeyByteArray {
+    /**
+     * Store a new content with [key], the previous one is replaced only when the stream is closed
+     */
+    fun getOutputStream(key: String): OutputStream {
         if (key == UNKNOWN) {
-            return voidBinary
+            return object : OutputStream() {
+                override fun write(b: Int) {}
+                override fun write(b: ByteArray, off: Int, len: Int) {}
+            }
         }
-        byteArrayList[key] = data
-        return KeyByteArray(key, data)
+        return PageOutputStream(key)
     }
 
     fun removeByteArray(key: String?) {
         key?.let {
-            byteArrayList.remove(it)
+            synchronized(this) {
+                byteEntries.remove(it)?.let { entry ->
+                    release(entry)
+                }
+            }
         }
     }
 
     fun clear() {
-        byteArrayList.clear()
+        synchronized(this) {
+            byteEntries.values.forEach { release(it) }
+            byteEntries.clear()
+            allocatedPages -= freePages.size
+            freePages.clear()
+        }
     }
 
-    companion object {
-        const val UNKNOWN = "UNKNOWN"
+    /**
+     * Take a page in the budget, the least recently used byte binaries are evicted to free it
+     * @return null if no binary can be evicted
+     */
+    private fun acquirePage(): ByteBuffer? {
+        while (true) {
+            val evicted = synchronized(this) {
+                if (usedPages < maxPages && (freePages.isNotEmpty() || allocatedPages < maxPages)) {
+                    if (freePages.isEmpty()) {
+                        allocateSlab()
+                    }
+                    usedPages++
+                    return freePages.pop().apply { clear() }
+                }
+                selectEviction() ?: return null
+            }
+            if (!evict(evicted))
+                return null
+        }
+    }
+
+    private fun allocateSlab() {
+        val slab = ByteBuffer.allocateDirect(PAGE_SIZE * PAGES_PER_SLAB)
+        for (i in 0 until PAGES_PER_SLAB) {
+            slab.limit((i + 1) * PAGE_SIZE)
+            slab.position(i * PAGE_SIZE)
+            freePages.push(slab.slice())
+        }
+        allocatedPages += PAGES_PER_SLAB
+    }
+
+    private fun releasePages(pages: MutableList<ByteBuffer>) {
+        usedPages -= pages.size
+        pages.forEach { freePages.push(it) }
+        pages.clear()
+    }
+
+    private fun trimToBudget() {
+        while (true) {
+            val evicted = synchronized(this) {
+                if (usedPages > maxPages) selectEviction() else null
+            } ?: break
+            if (!evict(evicted))
+                break
+        }
+        synchronized(this) {
+            while (allocatedPages > maxPages && freePages.isNotEmpty()) {
+                // Pages of a slab are released together by the GC when none is referenced anymore
+                freePages.pop()
+                allocatedPages--
+            }
+        }
+    }
+
+    /**
+     * Reserve the least recently used byte binary in memory for [evict], must be called in the lock
+     */
+    private fun selectEviction(): ByteEntry? {
+        if (cacheDirectory == null)
+            return null
+        return byteEntries.values.firstOrNull {
+            it.readers == 0 && !it.evicting && it.file == null && it.pages.isNotEmpty()
+        }?.apply {
+            evicting = true
+        }
+    }
+
+    /**
+     * Write an entry reserved by [selectEviction] to an encrypted spill file out of the lock,
+     * its pages are released only if no reader started meanwhile
+     * @return false if the spill file can't be written
+     */
+    private fun evict(entry: ByteEntry): Boolean {
+        val cacheDir = cacheDirectory
+        val cipherKey = loadedCipherKey.key
+        var written: File? = null
+        if (cacheDir != null) {
+            val spillFile = newSpillFile(cacheDir)
+            try {
+                AeadChunkOutputStream(FileOutputStream(spillFile), cipherKey).use { outputStream ->
+                    writePages(entry.pages, entry.length, outputStream)
+                }
+                written = spillFile
+            } catch (e: IOException) {
+                spillFile.delete()
+            }
+        }
+        val evicted = synchronized(this) {
+            entry.evicting = false
+            if (written != null && entry.readers == 0 && !entry.released) {
+                entry.file = written
+                entry.fileKey = cipherKey
+                releasePages(entry.pages)
+                true
+            } else {
+                if (entry.released) {
+                    release(entry)
+                }
+                false
+            }
+        }
+        if (!evicted) {
+            written?.delete()
+        }
+        return written != null
     }
 
-    data class KeyByteArray(val key: String, val data: ByteArray) {
-        override fun equals(other: Any?): Boolean {
-            if (this === other) return true
-            if (other !is KeyByteArray) return false
+    /**
+     * Read back in memory a byte binary of a spill file out of the lock, if the budget allows it,
+     * the caller must be the only reader of the entry
+     */
+    private fun promote(entry: ByteEntry) {
+        val spillFile = synchronized(this) { entry.file } ?: return
+        val pages = ArrayList<ByteBuffer>()
+        try {
+            AeadChunkInputStream(spillFile, entry.fileKey!!).use { inputStream ->
+                val buffer = ByteArray(PAGE_SIZE)
+                var remaining = entry.length
+                while (remaining > 0) {
+                    val page = acquirePage() ?: run {
+                        synchronized(this) {
+                            releasePages(pages)
+                        }
+                        return
+                    }
+                    pages.add(page)
+                    val length = minOf(remaining, PAGE_SIZE.toLong()).toInt()
+                    var read = 0
+                    while (read < length) {
+                        val count = inputStream.read(buffer, read, length - read)
+                        if (count < 0)
+                            throw EOFException()
+                        read += count
+                    }
+                    page.put(buffer, 0, length)
+                    remaining -= length
+                }
+            }
+        } catch (e: IOException) {
+            // Still readable from the spill file
+            synchronized(this) {
+                releasePages(pages)
+            }
+            return
+        }
+        val promoted = synchronized(this) {
+            // Another reader may have opened the spill file meanwhile
+            if (entry.readers == 1 && entry.file == spillFile) {
+                entry.pages.addAll(pages)
+                entry.file = null
+                entry.fileKey = null
+                true
+            } else {
+                releasePages(pages)
+                false
+            }
+        }
+        if (promoted) {
+            spillFile.delete()
+        }
+    }
 
-            if (key != other.key) return false
+    private fun newSpillFile(cacheDir: File): File {
+        return File(cacheDir, SPILL_FILE_PREFIX + synchronized(this) { spillFileCount++ })
+    }
 
-            return true
+    /**
+     * Remove the content of an entry, deferred until its last reader is closed
+     */
+    private fun release(entry: ByteEntry) {
+        entry.released = true
+        if (entry.readers == 0 && !entry.evicting) {
+            releasePages(entry.pages)
+            entry.file?.delete()
+            entry.file = null
+            entry.fileKey = null
         }
+    }
+
+    private fun closeReader(entry: ByteEntry) {
+        synchronized(this) {
+            entry.readers--
+            if (entry.released) {
+                release(entry)
+            }
+        }
+    }
+
+    private fun commit(key: String, entry: ByteEntry) {
+        synchronized(this) {
+            byteEntries.put(key, entry)?.let { previous ->
+                release(previous)
+            }
+        }
+        trimToBudget()
+    }
+
+    private class ByteEntry {
+        val pages = ArrayList<ByteBuffer>()
+        var length: Long = 0
+        var file: File? = null
+        var fileKey: Key? = null
+        var readers = 0
+        var evicting = false
+        var released = false
+    }
+
+    private inner class PageInputStream(private val entry: ByteEntry) : InputStream() {
+
+        // Duplicates, the position of a shared page is not modified
+        private val pages = entry.pages.map { it.duplicate() }
+        private var position = 0L
+        private var closed = false
+
+        override fun read(): Int {
+            if (position >= entry.length)
+                return -1
+            val page = pages[(position / PAGE_SIZE).toInt()]
+            val value = page.get((position % PAGE_SIZE).toInt()).toInt() and 0xFF
+            position++
+            return value
+        }
+
+        override fun read(buffer: ByteArray, offset: Int, length: Int): Int {
+            if (length == 0)
+                return 0
+            if (position >= entry.length)
+                return -1
+            var read = 0
+            while (read < length && position < entry.length) {
+                val page = pages[(position / PAGE_SIZE).toInt()]
+                val pageOffset = (position % PAGE_SIZE).toInt()
+                val count = minOf(length - read,
+                        PAGE_SIZE - pageOffset,
+                        (entry.length - position).toInt())
+                page.position(pageOffset)
+                page.get(buffer, offset + read, count)
+                read += count
+                position += count
+            }
+            return read
+        }
+
+        override fun skip(byteCount: Long): Long {
+            val skipped = maxOf(0L, minOf(byteCount, entry.length - position))
+            position += skipped
+            return skipped
+        }
+
+        override fun available(): Int {
+            return minOf(entry.length - position, Int.MAX_VALUE.toLong()).toInt()
+        }
+
+        override fun close() {
+            if (!closed) {
+                closed = true
+                closeReader(entry)
+            }
+        }
+    }
+
+    private inner class SpillInputStream(private val entry: ByteEntry,
+                                         inputStream: InputStream) : FilterInputStream(inputStream) {
+        private var closed = false
+
+        override fun close() {
+            super.close()
+            if (!closed) {
+                closed = true
+                closeReader(entry)
+            }
+        }
+    }
+
+    /**
+     * Write in pages of memory, or in a spill file when the budget is reached
+     * and no other binary can be evicted
+     */
+    private inner class PageOutputStream(private val key: String) : OutputStream() {
+
+        private val entry = ByteEntry()
+        private var spillStream: OutputStream? = null
+        private var closed = false
+
+        override fun write(oneByte: Int) {
+            write(byteArrayOf(oneByte.toByte()), 0, 1)
+        }
+
+        override fun write(buffer: ByteArray, offset: Int, length: Int) {
+            if (closed)
+                throw IOException("Stream closed")
+            var written = 0
+            while (written < length) {
+                spillStream?.let {
+                    it.write(buffer, offset + written, length - written)
+                    entry.length += length - written
+                    return
+                }
+                var page = entry.pages.lastOrNull()
+                if (page == null || !page.hasRemaining()) {
+                    page = acquirePage()
+                    if (page == null) {
+                        if (cacheDirectory != null) {
+                            spill()
+                            continue
+                        }
+                        // Nowhere to spill, kept in memory beyond the budget
+                        page = allocatePageBeyondBudget()
+                    }
+                    entry.pages.add(page)
+                }
+                val count = minOf(length - written, page.remaining())
+                page.put(buffer, offset + written, count)
+                written += count
+                entry.length += count
+            }
+        }
+
+        private fun allocatePageBeyondBudget(): ByteBuffer {
+            synchronized(this@BinaryCache) {
+                if (freePages.isEmpty())
+                    allocateSlab()
+                usedPages++
+                return freePages.pop().apply { clear() }
+            }
+        }
+
+        private fun spill() {
+            val cipherKey = loadedCipherKey.key
+            val spillFile = newSpillFile(cacheDirectory!!)
+            val outputStream = AeadChunkOutputStream(FileOutputStream(spillFile), cipherKey)
+            writePages(entry.pages, entry.length, outputStream)
+            synchronized(this@BinaryCache) {
+                releasePages(entry.pages)
+            }
+            entry.file = spillFile
+            entry.fileKey = cipherKey
+            spillStream = outputStream
+        }
+
+        override fun flush() {
+            spillStream?.flush()
+        }
+
+        override fun close() {
+            if (!closed) {
+                closed = true
+                spillStream?.close()
+                commit(key, entry)
+            }
+        }
+    }
+
+    companion object {
+        const val UNKNOWN = "UNKNOWN"
+
+        private const val PAGE_SIZE = 4096
+        private const val PAGES_PER_SLAB = 64
+        private const val SPILL_FILE_PREFIX = "binary_spill_"
+        private val DEFAULT_MEMORY_BUDGET = Runtime.getRuntime().maxMemory() / 8
 
-        override fun hashCode(): Int {
-            return key.hashCode()
+        private fun writePages(pages: List<ByteBuffer>, length: Long, outputStream: OutputStream) {
+            val buffer = ByteArray(PAGE_SIZE)
+            var remaining = length
+            for (page in pages) {
+                val count = minOf(remaining, PAGE_SIZE.toLong()).toInt()
+                val duplicate = page.duplicate()
+                duplicate.position(0)
+                duplicate.get(buffer, 0, count)
+                outputStream.write(buffer, 0, count)
+                remaining -= count
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -41,6 +41,9 @@ abstract class BinaryData : Parcelable {
     var isCorrupted: Boolean = false
     private var mLength: Long = 0
     private var mBinaryHash = 0
+    private var mBinaryDigest = ByteArray(0)
+    // Not parcelable, to update the index of the pool containing the binary
+    private var mDigestListener: ((binaryData: BinaryData) -> Unit)? = null
 
     protected constructor(compressed: Boolean = false, protected: Boolean = false) {
         this.isCompressed = compressed
@@ -55,6 +58,7 @@ abstract class BinaryData : Parcelable {
         isCorrupted = parcel.readByte().toInt() != 0
         mLength = parcel.readLong()
         mBinaryHash = parcel.readInt()
+        mBinaryDigest = parcel.createByteArray() ?: ByteArray(0)
     }
 
     override fun writeToParcel(dest: Parcel, flags: Int) {
@@ -63,6 +67,7 @@ abstract class BinaryData : Parcelable {
         dest.writeByte((if (isCorrupted) 1 else 0).toByte())
         dest.writeLong(mLength)
         dest.writeInt(mBinaryHash)
+        dest.writeByteArray(mBinaryDigest)
     }
 
     @Throws(IOException::class)
@@ -110,6 +115,21 @@ abstract class BinaryData : Parcelable {
         return mBinaryHash
     }
 
+    /**
+     * SHA-256 digest of the stored content, computed while the content is written,
+     * empty if the content was not written
+     */
+    fun binaryDigest(): ByteArray {
+        return mBinaryDigest
+    }
+
+    /**
+     * Called each time a new content is written and its digest is known
+     */
+    internal fun setDigestListener(listener: ((binaryData: BinaryData) -> Unit)?) {
+        mDigestListener = listener
+    }
+
     @Throws(IOException::class)
     abstract fun clear(binaryCache: BinaryCache)
 
@@ -146,8 +166,9 @@ abstract class BinaryData : Parcelable {
         private val mMessageDigest: MessageDigest
         init {
             mLength = 0
-            mMessageDigest = MessageDigest.getInstance("MD5")
+            mMessageDigest = MessageDigest.getInstance("SHA-256")
             mBinaryHash = 0
+            mBinaryDigest = ByteArray(0)
         }
 
         override fun beforeWrite(n: Int) {
@@ -175,6 +196,8 @@ abstract class BinaryData : Parcelable {
             mLength = byteCount
             val bytes = mMessageDigest.digest()
             mBinaryHash = ByteBuffer.wrap(bytes).int
+            mBinaryDigest = bytes
+            mDigestListener?.invoke(this@BinaryData)
         }
     }
 
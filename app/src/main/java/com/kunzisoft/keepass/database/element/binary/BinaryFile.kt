@@ -21,27 +21,16 @@ package com.kunzisoft.keepass.database.element.binary
 
 import android.os.Parcel
 import android.os.Parcelable
-import android.util.Base64
-import android.util.Base64InputStream
-import android.util.Base64OutputStream
+import com.kunzisoft.keepass.stream.AeadChunkInputStream
+import com.kunzisoft.keepass.stream.AeadChunkOutputStream
 import com.kunzisoft.keepass.utils.readAllBytes
 import java.io.*
 import java.util.zip.GZIPOutputStream
-import javax.crypto.Cipher
-import javax.crypto.CipherInputStream
-import javax.crypto.CipherOutputStream
-import javax.crypto.spec.IvParameterSpec
 
 class BinaryFile : BinaryData {
 
     private var mDataFile: File? = null
 
-    // Cipher to encrypt temp file
-    @Transient
-    private var cipherEncryption: Cipher = Cipher.getInstance(LoadedKey.BINARY_CIPHER)
-    @Transient
-    private var cipherDecryption: Cipher = Cipher.getInstance(LoadedKey.BINARY_CIPHER)
-
     constructor(dataFile: File,
                 compressed: Boolean = false,
                 protected: Boolean = false) : super(compressed, protected) {
@@ -69,13 +58,42 @@ class BinaryFile : BinaryData {
         return buildOutputStream(mDataFile, binaryCache)
     }
 
+    /**
+     * Stream of the stored data starting at [position],
+     * only the chunk containing [position] is decrypted to reach it
+     */
+    @Throws(IOException::class)
+    fun getInputDataStream(binaryCache: BinaryCache, position: Long): InputStream {
+        return buildInputStream(mDataFile, binaryCache, position)
+    }
+
+    /**
+     * Read at most [length] bytes of the stored data from [position] in [buffer],
+     * return the number of bytes read, or -1 if [position] is at the end of the data
+     */
+    @Throws(IOException::class)
+    fun readAt(binaryCache: BinaryCache,
+               position: Long,
+               buffer: ByteArray,
+               offset: Int = 0,
+               length: Int = buffer.size - offset): Int {
+        return buildInputStream(mDataFile, binaryCache, position).use { inputStream ->
+            var read = 0
+            while (read < length) {
+                val count = inputStream.read(buffer, offset + read, length - read)
+                if (count < 0)
+                    break
+                read += count
+            }
+            if (read == 0 && length > 0) -1 else read
+        }
+    }
+
     @Throws(IOException::class)
-    private fun buildInputStream(file: File?, binaryCache: BinaryCache): InputStream {
-        val cipherKey = binaryCache.loadedCipherKey
+    private fun buildInputStream(file: File?, binaryCache: BinaryCache, position: Long = 0): InputStream {
         return when {
             file != null && file.length() > 0 -> {
-                cipherDecryption.init(Cipher.DECRYPT_MODE, cipherKey.key, IvParameterSpec(cipherKey.iv))
-                Base64InputStream(CipherInputStream(FileInputStream(file), cipherDecryption), Base64.NO_WRAP)
+                AeadChunkInputStream(file, binaryCache.loadedCipherKey.key, position)
             }
             else -> ByteArrayInputStream(ByteArray(0))
         }
@@ -83,11 +101,9 @@ class BinaryFile : BinaryData {
 
     @Throws(IOException::class)
     private fun buildOutputStream(file: File?, binaryCache: BinaryCache): OutputStream {
-        val cipherKey = binaryCache.loadedCipherKey
         return when {
             file != null -> {
-                cipherEncryption.init(Cipher.ENCRYPT_MODE, cipherKey.key, IvParameterSpec(cipherKey.iv))
-                BinaryCountingOutputStream(Base64OutputStream(CipherOutputStream(FileOutputStream(file), cipherEncryption), Base64.NO_WRAP))
+                BinaryCountingOutputStream(AeadChunkOutputStream(FileOutputStream(file), binaryCache.loadedCipherKey.key))
             }
             else -> throw IOException("Unable to write in an unknown file")
         }
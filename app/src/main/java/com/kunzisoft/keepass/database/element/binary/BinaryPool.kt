@@ -21,12 +21,17 @@ package com.kunzisoft.keepass.database.element.binary
 
 import android.util.Log
 import java.io.IOException
+import java.nio.ByteBuffer
 import kotlin.math.abs
 
 abstract class BinaryPool<T>(private val mBinaryCache: BinaryCache) {
 
     protected val pool = LinkedHashMap<T, BinaryData>()
 
+    // Content-addressed index, keys of each SHA-256 digest, updated when a content is written
+    private val digestKeys = HashMap<ByteBuffer, LinkedHashSet<T>>()
+    private val keyDigests = HashMap<T, ByteBuffer>()
+
     // To build unique file id
     private var creationId: Long = System.currentTimeMillis()
     private var poolId: Int = abs(javaClass.simpleName.hashCode())
@@ -46,7 +51,9 @@ abstract class BinaryPool<T>(private val mBinaryCache: BinaryCache) {
             builder: (uniqueBinaryId: String) -> BinaryData): KeyBinary<T> {
         binaryFileIncrement++
         val newBinaryFile: BinaryData = builder("$poolId$creationId$binaryFileIncrement")
-        val newKey = put(key, newBinaryFile)
+        // A new binary can't be already in the pool
+        val newKey = key ?: findUnusedKey()
+        putInPool(newKey, newBinaryFile)
         return KeyBinary(newBinaryFile, newKey)
     }
 
@@ -57,7 +64,7 @@ abstract class BinaryPool<T>(private val mBinaryCache: BinaryCache) {
         if (key == null)
             return put(value)
         else
-            pool[key] = value
+            putInPool(key, value)
         return key
     }
 
@@ -71,16 +78,28 @@ abstract class BinaryPool<T>(private val mBinaryCache: BinaryCache) {
         if (key == null) {
             key = findUnusedKey()
         }
-        pool[key!!] = binaryData
+        putInPool(key!!, binaryData)
         return key
     }
 
+    private fun putInPool(key: T, binaryData: BinaryData) {
+        pool.put(key, binaryData)?.let { oldBinary ->
+            if (oldBinary !== binaryData)
+                oldBinary.setDigestListener(null)
+        }
+        indexDigest(key, binaryData)
+        binaryData.setDigestListener { binary ->
+            indexDigest(key, binary)
+        }
+    }
+
     /**
      * Remove a binary from the pool with its [key], the file is not deleted
      */
     @Throws(IOException::class)
     fun remove(key: T) {
-        pool.remove(key)
+        pool.remove(key)?.setDigestListener(null)
+        removeDigest(key)
         // Don't clear attachment here because a file can be used in many BinaryAttachment
     }
 
@@ -90,11 +109,65 @@ abstract class BinaryPool<T>(private val mBinaryCache: BinaryCache) {
     @Throws(IOException::class)
     fun remove(binaryData: BinaryData) {
         findKey(binaryData)?.let {
-            pool.remove(it)
+            remove(it)
         }
         // Don't clear attachment here because a file can be used in many BinaryAttachment
     }
 
+    private fun digestOf(binaryData: BinaryData): ByteBuffer? {
+        val digest = binaryData.binaryDigest()
+        return if (binaryData.getSize() > 0 && digest.isNotEmpty())
+            ByteBuffer.wrap(digest)
+        else
+            null
+    }
+
+    private fun indexDigest(key: T, binaryData: BinaryData) {
+        synchronized(digestKeys) {
+            removeDigest(key)
+            digestOf(binaryData)?.let { digest ->
+                digestKeys.getOrPut(digest) { LinkedHashSet() }.add(key)
+                keyDigests[key] = digest
+            }
+        }
+    }
+
+    private fun removeDigest(key: T) {
+        synchronized(digestKeys) {
+            keyDigests.remove(key)?.let { digest ->
+                digestKeys[digest]?.let { keys ->
+                    keys.remove(key)
+                    if (keys.isEmpty())
+                        digestKeys.remove(digest)
+                }
+            }
+        }
+    }
+
+    /**
+     * Keys of the binaries with the same content as [binaryData], without reading the data
+     */
+    private fun keysWithSameContent(binaryData: BinaryData): List<T> {
+        val digest = digestOf(binaryData) ?: return emptyList()
+        synchronized(digestKeys) {
+            return digestKeys[digest]?.toList() ?: emptyList()
+        }
+    }
+
+    /**
+     * Return another binary of the pool with the same content as [binaryData],
+     * or null if the content is unique
+     */
+    fun findBinaryWithSameContent(binaryData: BinaryData): KeyBinary<T>? {
+        for (key in keysWithSameContent(binaryData)) {
+            val binary = pool[key]
+            if (binary != null && binary != binaryData) {
+                return KeyBinary(binary, key)
+            }
+        }
+        return null
+    }
+
     /**
      * Utility method to find an unused key in the pool
      */
@@ -104,6 +177,11 @@ abstract class BinaryPool<T>(private val mBinaryCache: BinaryCache) {
      * Return key of [binaryDataToRetrieve] or null if not found
      */
     private fun findKey(binaryDataToRetrieve: BinaryData): T? {
+        // Content already indexed
+        for (key in keysWithSameContent(binaryDataToRetrieve)) {
+            if (pool[key] == binaryDataToRetrieve)
+                return key
+        }
         val contains = pool.containsValue(binaryDataToRetrieve)
         return if (!contains)
             null
@@ -120,17 +198,7 @@ abstract class BinaryPool<T>(private val mBinaryCache: BinaryCache) {
     fun isBinaryDuplicate(binaryData: BinaryData?): Boolean {
         try {
             binaryData?.let {
-                if (it.getSize() > 0) {
-                    val searchBinaryMD5 = it.binaryHash()
-                    var i = 0
-                    for ((_, binary) in pool) {
-                        if (binary.binaryHash() == searchBinaryMD5) {
-                            i++
-                            if (i > 1)
-                                return true
-                        }
-                    }
-                }
+                return keysWithSameContent(it).size > 1
             }
         } catch (e: Exception) {
             Log.e(TAG, "Unable to check binary duplication", e)
@@ -160,27 +228,28 @@ abstract class BinaryPool<T>(private val mBinaryCache: BinaryCache) {
     protected fun orderedBinariesWithoutDuplication(condition: ((binary: BinaryData) -> Boolean) = { true })
     : List<KeyBinary<T>> {
         val keyBinaryList = ArrayList<KeyBinary<T>>()
+        // Full digest of the content already added, ByteBuffer compares the content
+        val keyBinaryDigests = HashMap<ByteBuffer, KeyBinary<T>>()
         for ((key, binary) in pool) {
-            // Don't deduplicate
-            val existentBinary =
-            try {
-                if (binary.getSize() > 0) {
-                    keyBinaryList.find {
-                        val hash0 = it.binary.binaryHash()
-                        val hash1 = binary.binaryHash()
-                        hash0 != 0 && hash1 != 0 && hash0 == hash1
-                    }
+            val digest = try {
+                if (binary.getSize() > 0 && binary.binaryDigest().isNotEmpty()) {
+                    ByteBuffer.wrap(binary.binaryDigest())
                 } else {
+                    // Don't deduplicate
                     null
                 }
             } catch (e: Exception) {
                 Log.e(TAG, "Unable to check binary hash", e)
                 null
             }
+            val existentBinary = digest?.let { keyBinaryDigests[it] }
             if (existentBinary == null) {
                 val newKeyBinary = KeyBinary(binary, key)
                 if (condition.invoke(newKeyBinary.binary)) {
                     keyBinaryList.add(newKeyBinary)
+                    if (digest != null) {
+                        keyBinaryDigests[digest] = newKeyBinary
+                    }
                 }
             } else {
                 if (condition.invoke(existentBinary.binary)) {
@@ -226,9 +295,14 @@ abstract class BinaryPool<T>(private val mBinaryCache: BinaryCache) {
     @Throws(IOException::class)
     fun clear() {
         doForEachBinary { _, binary ->
+            binary.setDigestListener(null)
             binary.clear(mBinaryCache)
         }
         pool.clear()
+        synchronized(digestKeys) {
+            digestKeys.clear()
+            keyDigests.clear()
+        }
     }
 
     override fun toString(): String {
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.element.database
+
+import android.content.res.Resources
+import android.os.Parcel
+import android.os.Parcelable
+import com.kunzisoft.keepass.R
+import com.kunzisoft.keepass.utils.ObjectNameResource
+import com.kunzisoft.keepass.utils.readEnum
+import com.kunzisoft.keepass.utils.writeEnum
+import java.util.zip.Deflater
+
+/**
+ * Deflate level of the GZip compression of a database, to favor the saving speed or the file size
+ */
+enum class CompressionLevel(val deflateLevel: Int) : ObjectNameResource, Parcelable {
+
+    Fast(Deflater.BEST_SPEED),
+    Default(Deflater.DEFAULT_COMPRESSION),
+    Best(Deflater.BEST_COMPRESSION);
+
+    override fun writeToParcel(dest: Parcel, flags: Int) {
+        dest.writeEnum(this)
+    }
+
+    override fun describeContents(): Int {
+        return 0
+    }
+
+    override fun getName(resources: Resources): String {
+        return when (this) {
+            Fast -> resources.getString(R.string.compression_level_fast)
+            Default -> resources.getString(R.string.compression_level_default)
+            Best -> resources.getString(R.string.compression_level_best)
+        }
+    }
+
+    companion object CREATOR : Parcelable.Creator<CompressionLevel> {
+
+        fun getFrom(name: String?): CompressionLevel {
+            return values().firstOrNull { it.name == name } ?: Default
+        }
+
+        override fun createFromParcel(parcel: Parcel): CompressionLevel {
+            return parcel.readEnum<CompressionLevel>() ?: Default
+        }
+
+        override fun newArray(size: Int): Array<CompressionLevel?> {
+            return arrayOfNulls(size)
+        }
+    }
+}
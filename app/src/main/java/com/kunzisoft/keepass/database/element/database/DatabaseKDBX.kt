@@ -23,6 +23,8 @@ import android.content.res.Resources
 import android.util.Base64
 import android.util.Log
 import com.kunzisoft.encrypt.HashManager
+import com.kunzisoft.encrypt.KeyTransformationCancelledException
+import com.kunzisoft.encrypt.KeyTransformationListener
 import com.kunzisoft.keepass.R
 import com.kunzisoft.keepass.database.action.node.NodeHandler
 import com.kunzisoft.keepass.database.crypto.AesEngine
@@ -33,6 +35,7 @@ import com.kunzisoft.keepass.database.crypto.kdf.KdfEngine
 import com.kunzisoft.keepass.database.crypto.kdf.KdfFactory
 import com.kunzisoft.keepass.database.crypto.kdf.KdfParameters
 import com.kunzisoft.keepass.database.element.CustomData
+import com.kunzisoft.keepass.database.element.CustomDataItem
 import com.kunzisoft.keepass.database.element.DateInstant
 import com.kunzisoft.keepass.database.element.DeletedObject
 import com.kunzisoft.keepass.database.element.binary.BinaryData
@@ -62,6 +65,9 @@ import java.io.InputStream
 import java.security.MessageDigest
 import java.security.NoSuchAlgorithmException
 import java.util.*
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.FutureTask
 import javax.crypto.Mac
 import javax.xml.XMLConstants
 import javax.xml.parsers.DocumentBuilderFactory
@@ -81,8 +87,16 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
     private var numKeyEncRounds: Long = 0
     var publicCustomData = VariantDictionary()
     private val mFieldReferenceEngine = FieldReferencesEngine(this)
+    private val mTransformedKeyLock = Any()
+    private var mNextTransformedKey: PreparedTransformedKey? = null
+    private var mCurrentTransformedKey: PreparedTransformedKey? = null
     private val mTemplateEngine = TemplateEngineCompatible(this)
 
+    // Nodes of the index using a feature of a recent KDBX version, to get the minimum version without a tree walk
+    private var groupsWithTags = 0
+    private var nodesWithCustomData = 0
+    private var entriesWithoutQualityCheck = 0
+
     var kdbxVersion = UnsignedInt(0)
     var name = ""
     var nameChanged = DateInstant()
@@ -184,6 +198,15 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
         throw unknownKDFException
     }
 
+    /**
+     * Deflate level of the GZip compression, stored in the custom data of the database
+     */
+    var compressionLevel: CompressionLevel
+        get() = CompressionLevel.getFrom(customData.get(CUSTOM_DATA_COMPRESSION_LEVEL)?.value)
+        set(value) {
+            customData.put(CustomDataItem(CUSTOM_DATA_COMPRESSION_LEVEL, value.name))
+        }
+
     val availableCompressionAlgorithms: List<CompressionAlgorithm>
         get() {
             val list = ArrayList<CompressionAlgorithm>()
@@ -472,13 +495,140 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
         return HashManager.hashSha256(masterKey)
     }
 
+    /**
+     * Generate the KDF seed of the next save and derive its transformed key in background,
+     * skipped if [isRAMSufficient] doesn't allow a second derivation in memory
+     */
+    fun prepareNextTransformedKey(isRAMSufficient: (memoryWanted: Long) -> Boolean = { true }) {
+        val currentParameters = kdfParameters
+        if (currentParameters == null) {
+            cancelNextTransformedKey()
+            return
+        }
+        val kdfEngine = try {
+            getEngineKDBX4(currentParameters)
+        } catch (unknownKDF: UnknownKDF) {
+            cancelNextTransformedKey()
+            return
+        }
+        // The memory of the derivation would be used twice, by the save and in background
+        val memoryUsage = kdfEngine.getMemoryUsage(currentParameters)
+        if (memoryUsage > 0 && !isRAMSufficient.invoke(memoryUsage)) {
+            cancelNextTransformedKey()
+            return
+        }
+        val nextParameters = KdfParameters(currentParameters.uuid, currentParameters)
+        kdfEngine.randomize(nextParameters)
+        // The derivation owns its copy of the master key, wiped when the derivation ends
+        val nextTransformedKey = PreparedTransformedKey(
+                KdfParameters(currentParameters.uuid, currentParameters),
+                nextParameters,
+                HashManager.hashSha256(masterKey),
+                masterKey.clone())
+        val task = FutureTask<Unit>(Runnable {
+            val masterKeyCopy = nextTransformedKey.startDerivation() ?: return@Runnable
+            var transformedKey: ByteArray? = null
+            try {
+                // Stop the derivation as soon as the task is cancelled
+                val interruptionListener = object : KeyTransformationListener {
+                    override fun onProgress(done: Long, total: Long): Boolean {
+                        return !Thread.currentThread().isInterrupted
+                    }
+                }
+                transformedKey = kdfEngine.transform(masterKeyCopy,
+                        nextParameters, interruptionListener)
+            } catch (e: KeyTransformationCancelledException) {
+                // Derivation no longer needed
+            } catch (e: Exception) {
+                Log.w(TAG, "Unable to prepare the next transformed key", e)
+            } finally {
+                nextTransformedKey.endDerivation(transformedKey)
+            }
+        }, Unit)
+        nextTransformedKey.task = task
+        // The task is attached before being visible, so a concurrent cancellation always stops it
+        val previousTransformedKey = synchronized(mTransformedKeyLock) {
+            val previous = mNextTransformedKey
+            mNextTransformedKey = nextTransformedKey
+            previous
+        }
+        previousTransformedKey?.discard()
+        keyDerivationExecutor.execute(task)
+    }
+
+    /**
+     * True when the transformed key of the next save is derived
+     */
+    fun isNextTransformedKeyReady(): Boolean {
+        val nextTransformedKey = synchronized(mTransformedKeyLock) {
+            mNextTransformedKey
+        }
+        return nextTransformedKey?.isReady == true
+    }
+
+    /**
+     * Stop the background derivation and forget its result,
+     * to call when the credentials or the KDF parameters change, or when the database is locked
+     */
+    fun cancelNextTransformedKey() {
+        val transformedKeys = synchronized(mTransformedKeyLock) {
+            val keys = listOfNotNull(mNextTransformedKey, mCurrentTransformedKey)
+            mNextTransformedKey = null
+            mCurrentTransformedKey = null
+            keys
+        }
+        transformedKeys.forEach { it.discard() }
+    }
+
+    /**
+     * Change the KDF seed before a save, the prepared seed is used if its derivation is done
+     * with the current master key and KDF parameters, otherwise a new seed is generated
+     * and the key derived by the save
+     */
+    @Throws(UnknownKDF::class)
+    fun randomizeKdfParameters() {
+        val currentParameters = kdfParameters ?: return
+        val kdfEngine = getEngineKDBX4(currentParameters)
+        val nextTransformedKey = synchronized(mTransformedKeyLock) {
+            mCurrentTransformedKey?.discard()
+            mCurrentTransformedKey = null
+            val next = mNextTransformedKey
+            mNextTransformedKey = null
+            next
+        }
+        if (nextTransformedKey != null
+                && nextTransformedKey.isDerivedFrom(currentParameters, masterKey)) {
+            // Never wait for the background derivation
+            if (nextTransformedKey.isReady) {
+                synchronized(mTransformedKeyLock) {
+                    kdfParameters = nextTransformedKey.kdfParameters
+                    mCurrentTransformedKey = nextTransformedKey
+                }
+                return
+            }
+        }
+        nextTransformedKey?.discard()
+        kdfEngine.randomize(currentParameters)
+    }
+
     @Throws(IOException::class)
-    fun makeFinalKey(masterSeed: ByteArray) {
+    fun makeFinalKey(masterSeed: ByteArray, listener: KeyTransformationListener? = null) {
 
         kdfParameters?.let { keyDerivationFunctionParameters ->
             val kdfEngine = getEngineKDBX4(keyDerivationFunctionParameters)
 
-            var transformedMasterKey = kdfEngine.transform(masterKey, keyDerivationFunctionParameters)
+            // Use the key prepared in background for these parameters if available
+            val preparedTransformedKey = synchronized(mTransformedKeyLock) {
+                val current = mCurrentTransformedKey
+                mCurrentTransformedKey = null
+                current
+            }
+            val preparedKey = preparedTransformedKey?.takeIf {
+                it.kdfParameters === keyDerivationFunctionParameters
+            }?.transformedKey
+            preparedTransformedKey?.discard()
+            var transformedMasterKey = preparedKey
+                    ?: kdfEngine.transform(masterKey, keyDerivationFunctionParameters, listener)
             if (transformedMasterKey.size != 32) {
                 transformedMasterKey = HashManager.hashSha256(transformedMasterKey)
             }
@@ -486,6 +636,7 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
             val cmpKey = ByteArray(65)
             System.arraycopy(masterSeed, 0, cmpKey, 0, 32)
             System.arraycopy(transformedMasterKey, 0, cmpKey, 32, 32)
+            Arrays.fill(transformedMasterKey, 0.toByte())
             finalKey = resizeKey(cmpKey, dataEngine.keyLength())
 
             val messageDigest: MessageDigest
@@ -785,6 +936,61 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
         this.deletedObjects.add(deletedObject)
     }
 
+    val containsGroupWithTag: Boolean
+        get() = groupsWithTags > 0
+
+    val containsNodeCustomData: Boolean
+        get() = nodesWithCustomData > 0
+
+    val containsEntryWithPasswordQualityEstimationDisabled: Boolean
+        get() = entriesWithoutQualityCheck > 0
+
+    /**
+     * Count the version features of the whole tree, to call after the nodes were changed outside of the index
+     */
+    fun countVersionFeatures() {
+        groupsWithTags = 0
+        nodesWithCustomData = 0
+        entriesWithoutQualityCheck = 0
+        rootGroup?.doForEachChildAndForIt(
+                object : NodeHandler<EntryKDBX>() {
+                    override fun operate(node: EntryKDBX): Boolean {
+                        countEntryFeatures(node, 1)
+                        return true
+                    }
+                },
+                object : NodeHandler<GroupKDBX>() {
+                    override fun operate(node: GroupKDBX): Boolean {
+                        countGroupFeatures(node, 1)
+                        return true
+                    }
+                })
+    }
+
+    override fun onGroupIndexChanged(oldGroup: GroupKDBX?, newGroup: GroupKDBX?) {
+        oldGroup?.let { countGroupFeatures(it, -1) }
+        newGroup?.let { countGroupFeatures(it, 1) }
+    }
+
+    override fun onEntryIndexChanged(oldEntry: EntryKDBX?, newEntry: EntryKDBX?) {
+        oldEntry?.let { countEntryFeatures(it, -1) }
+        newEntry?.let { countEntryFeatures(it, 1) }
+    }
+
+    private fun countGroupFeatures(group: GroupKDBX, increment: Int) {
+        if (!group.tags.isEmpty())
+            groupsWithTags += increment
+        if (group.customData.isNotEmpty())
+            nodesWithCustomData += increment
+    }
+
+    private fun countEntryFeatures(entry: EntryKDBX, increment: Int) {
+        if (!entry.qualityCheck)
+            entriesWithoutQualityCheck += increment
+        if (entry.customData.isNotEmpty())
+            nodesWithCustomData += increment
+    }
+
     override fun addEntryTo(newEntry: EntryKDBX, parent: GroupKDBX?) {
         super.addEntryTo(newEntry, parent)
         mFieldReferenceEngine.clear()
@@ -819,6 +1025,24 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
         }.binary
     }
 
+    /**
+     * If the content of the new [binary] is already stored in another attachment,
+     * remove the new one with its data and return the existing one, else return [binary]
+     */
+    fun reuseAttachmentWithSameContent(binary: BinaryData): BinaryData {
+        synchronized(attachmentPool) {
+            val existingBinary = attachmentPool.findBinaryWithSameContent(binary)?.binary
+                    ?: return binary
+            try {
+                attachmentPool.remove(binary)
+                binary.clear(binaryCache)
+            } catch (e: Exception) {
+                Log.w(TAG, "Unable to clean the duplicate binary", e)
+            }
+            return existingBinary
+        }
+    }
+
     fun removeUnlinkedAttachment(binary: BinaryData, clear: Boolean) {
         val listBinaries = ArrayList<BinaryData>()
         listBinaries.add(binary)
@@ -868,7 +1092,11 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
 
     override fun clearCache() {
         try {
+            cancelNextTransformedKey()
             super.clearCache()
+            groupsWithTags = 0
+            nodesWithCustomData = 0
+            entriesWithoutQualityCheck = 0
             mFieldReferenceEngine.clear()
             attachmentPool.clear()
         } catch (e: Exception) {
@@ -876,10 +1104,101 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
         }
     }
 
+    /**
+     * Key derived in background with the [kdfParameters] of the next save,
+     * randomized from a snapshot of the [sourceParameters]
+     */
+    private class PreparedTransformedKey(private val sourceParameters: KdfParameters,
+                                         val kdfParameters: KdfParameters,
+                                         private val masterKeyDigest: ByteArray,
+                                         private var masterKeyCopy: ByteArray?) {
+        private var derivedKey: ByteArray? = null
+        private var deriving = false
+        private var discarded = false
+        @Volatile
+        var task: Future<*>? = null
+
+        /**
+         * True when the derivation is done and its key not discarded
+         */
+        val isReady: Boolean
+            get() = synchronized(this) { derivedKey != null }
+
+        /**
+         * Copy of the derived key, null if not ready
+         */
+        val transformedKey: ByteArray?
+            get() = synchronized(this) { derivedKey?.clone() }
+
+        /**
+         * Called by the derivation task, return the master key to derive or null if already discarded
+         */
+        fun startDerivation(): ByteArray? {
+            synchronized(this) {
+                if (discarded)
+                    return null
+                deriving = true
+                return masterKeyCopy
+            }
+        }
+
+        /**
+         * Called by the derivation task, the master key is wiped only now that no longer used,
+         * and a key derived after a discard is wiped immediately
+         */
+        fun endDerivation(transformedKey: ByteArray?) {
+            synchronized(this) {
+                deriving = false
+                masterKeyCopy?.let { Arrays.fill(it, 0.toByte()) }
+                masterKeyCopy = null
+                if (discarded) {
+                    transformedKey?.let { Arrays.fill(it, 0.toByte()) }
+                } else {
+                    derivedKey = transformedKey
+                }
+            }
+        }
+
+        /**
+         * Check that the key was prepared from these exact KDF parameters and master key
+         */
+        fun isDerivedFrom(parameters: KdfParameters, masterKey: ByteArray): Boolean {
+            return sourceParameters.uuid == parameters.uuid
+                    && sourceParameters.contentEquals(parameters)
+                    && masterKeyDigest.contentEquals(HashManager.hashSha256(masterKey))
+        }
+
+        /**
+         * Stop the derivation and wipe the key material,
+         * the master key still used by a running derivation is wiped when it ends
+         */
+        fun discard() {
+            synchronized(this) {
+                discarded = true
+                derivedKey?.let { Arrays.fill(it, 0.toByte()) }
+                derivedKey = null
+                if (!deriving) {
+                    masterKeyCopy?.let { Arrays.fill(it, 0.toByte()) }
+                    masterKeyCopy = null
+                }
+            }
+            task?.cancel(true)
+        }
+    }
+
     companion object {
         val TYPE = DatabaseKDBX::class.java
         private val TAG = DatabaseKDBX::class.java.name
 
+        private val keyDerivationExecutor = Executors.newSingleThreadExecutor { runnable ->
+            Thread(runnable, "NextTransformedKey").apply {
+                isDaemon = true
+                priority = Thread.MIN_PRIORITY
+            }
+        }
+
+        const val CUSTOM_DATA_COMPRESSION_LEVEL = "KeePassDX_CompressionLevel"
+
         private const val DEFAULT_HISTORY_MAX_ITEMS = 10 // -1 unlimited
         private const val DEFAULT_HISTORY_MAX_SIZE = (6 * 1024 * 1024).toLong() // -1 unlimited
 
@@ -216,9 +216,13 @@ abstract class DatabaseVersioned<
     }
 
     fun setGroupIndexes(groupList: List<Group>) {
+        for (oldGroup in this.groupIndexes.values) {
+            onGroupIndexChanged(oldGroup, null)
+        }
         this.groupIndexes.clear()
         for (currentGroup in groupList) {
             this.groupIndexes[currentGroup.nodeId] = currentGroup
+            onGroupIndexChanged(null, currentGroup)
         }
     }
 
@@ -240,10 +244,13 @@ abstract class DatabaseVersioned<
         } else {
             this.groupIndexes[groupId] = group
         }
+        onGroupIndexChanged(null, group)
     }
 
     fun removeGroupIndex(group: Group) {
-        this.groupIndexes.remove(group.nodeId)
+        this.groupIndexes.remove(group.nodeId)?.let { oldGroup ->
+            onGroupIndexChanged(oldGroup, null)
+        }
     }
 
     fun numberOfGroups(): Int {
@@ -282,16 +289,31 @@ abstract class DatabaseVersioned<
         } else {
             this.entryIndexes[entryId] = entry
         }
+        onEntryIndexChanged(null, entry)
     }
 
     fun removeEntryIndex(entry: Entry) {
-        this.entryIndexes.remove(entry.nodeId)
+        this.entryIndexes.remove(entry.nodeId)?.let { oldEntry ->
+            onEntryIndexChanged(oldEntry, null)
+        }
     }
 
     fun numberOfEntries(): Int {
         return entryIndexes.size
     }
 
+    /**
+     * Called when [oldGroup] is replaced by [newGroup] in the index,
+     * [oldGroup] is null for an added group and [newGroup] is null for a removed one
+     */
+    protected open fun onGroupIndexChanged(oldGroup: Group?, newGroup: Group?) {}
+
+    /**
+     * Called when [oldEntry] is replaced by [newEntry] in the index,
+     * [oldEntry] is null for an added entry and [newEntry] is null for a removed one
+     */
+    protected open fun onEntryIndexChanged(oldEntry: Entry?, newEntry: Entry?) {}
+
     open fun clearCache() {
         this.groupIndexes.clear()
         this.entryIndexes.clear()
@@ -318,7 +340,7 @@ abstract class DatabaseVersioned<
         group.parent?.updateChildGroup(group)
         val groupId = group.nodeId
         if (groupIndexes.containsKey(groupId)) {
-            groupIndexes[groupId] = group
+            onGroupIndexChanged(groupIndexes.put(groupId, group), group)
         }
     }
 
@@ -339,7 +361,7 @@ abstract class DatabaseVersioned<
         entry.parent?.updateChildEntry(entry)
         val entryId = entry.nodeId
         if (entryIndexes.containsKey(entryId)) {
-            entryIndexes[entryId] = entry
+            onEntryIndexChanged(entryIndexes.put(entryId, entry), entry)
         }
     }
 
@@ -86,6 +86,13 @@ class KDFMemoryDatabaseException : LoadDatabaseException {
     constructor(exception: Throwable) : super(exception)
 }
 
+class CancelledDatabaseException : LoadDatabaseException {
+    @StringRes
+    override var errorId: Int = R.string.error_load_database_cancelled
+    constructor() : super()
+    constructor(exception: Throwable) : super(exception)
+}
+
 class SignatureDatabaseException : LoadDatabaseException {
     @StringRes
     override var errorId: Int = R.string.invalid_db_sig
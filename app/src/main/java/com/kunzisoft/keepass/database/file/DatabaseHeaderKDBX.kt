@@ -20,7 +20,6 @@
 package com.kunzisoft.keepass.database.file
 
 import com.kunzisoft.encrypt.HashManager
-import com.kunzisoft.keepass.database.action.node.NodeHandler
 import com.kunzisoft.keepass.database.crypto.CrsAlgorithm
 import com.kunzisoft.keepass.database.crypto.VariantDictionary
 import com.kunzisoft.keepass.database.crypto.kdf.AesKdf
@@ -28,9 +27,6 @@ import com.kunzisoft.keepass.database.crypto.kdf.KdfFactory
 import com.kunzisoft.keepass.database.crypto.kdf.KdfParameters
 import com.kunzisoft.keepass.database.element.database.CompressionAlgorithm
 import com.kunzisoft.keepass.database.element.database.DatabaseKDBX
-import com.kunzisoft.keepass.database.element.entry.EntryKDBX
-import com.kunzisoft.keepass.database.element.group.GroupKDBX
-import com.kunzisoft.keepass.database.element.node.NodeKDBXInterface
 import com.kunzisoft.keepass.database.exception.VersionDatabaseException
 import com.kunzisoft.keepass.stream.CopyInputStream
 import com.kunzisoft.keepass.utils.*
@@ -91,51 +87,21 @@ class DatabaseHeaderKDBX(private val databaseV4: DatabaseKDBX) : DatabaseHeader(
         this.masterSeed = ByteArray(32)
     }
 
-    private open class NodeOperationHandler<T: NodeKDBXInterface> : NodeHandler<T>() {
-        var containsCustomData = false
-        override fun operate(node: T): Boolean {
-            if (node.customData.isNotEmpty()) {
-                containsCustomData = true
-            }
-            return true
-        }
-    }
-
-    private inner class EntryOperationHandler: NodeOperationHandler<EntryKDBX>() {
-        var passwordQualityEstimationDisabled = false
-        override fun operate(node: EntryKDBX): Boolean {
-            if (!node.qualityCheck) {
-                passwordQualityEstimationDisabled = true
-            }
-            return super.operate(node)
-        }
-    }
-
-    private inner class GroupOperationHandler: NodeOperationHandler<GroupKDBX>() {
-        var containsTags = false
-        override fun operate(node: GroupKDBX): Boolean {
-            if (!node.tags.isEmpty())
-                containsTags = true
-            return super.operate(node)
-        }
-    }
-
     private fun getMinKdbxVersion(databaseKDBX: DatabaseKDBX): UnsignedInt {
-        val entryHandler = EntryOperationHandler()
-        val groupHandler = GroupOperationHandler()
-        databaseKDBX.rootGroup?.doForEachChildAndForIt(entryHandler, groupHandler)
-
         // https://keepass.info/help/kb/kdbx_4.1.html
-        val containsGroupWithTag = groupHandler.containsTags
-        val containsEntryWithPasswordQualityEstimationDisabled = entryHandler.passwordQualityEstimationDisabled
+        // Node features are counted by the database when the index changes
+        val containsGroupWithTag = databaseKDBX.containsGroupWithTag
+        val containsEntryWithPasswordQualityEstimationDisabled = databaseKDBX.containsEntryWithPasswordQualityEstimationDisabled
         val containsCustomIconWithNameOrLastModificationTime = databaseKDBX.iconsManager.containsCustomIconWithNameOrLastModificationTime()
         val containsHeaderCustomDataWithLastModificationTime = databaseKDBX.customData.containsItemWithLastModificationTime()
 
         // https://keepass.info/help/kb/kdbx_4.html
         // If AES is not use, it's at least 4.0
         val kdfIsNotAes = databaseKDBX.kdfParameters?.uuid != AesKdf.CIPHER_UUID
-        val containsHeaderCustomData = databaseKDBX.customData.isNotEmpty()
-        val containsNodeCustomData = entryHandler.containsCustomData || groupHandler.containsCustomData
+        // The compression level is a KeePassDX setting, also readable in a KDBX 3.1 Meta
+        val containsHeaderCustomData = databaseKDBX.customData
+                .containsItemWithKeyOtherThan(DatabaseKDBX.CUSTOM_DATA_COMPRESSION_LEVEL)
+        val containsNodeCustomData = databaseKDBX.containsNodeCustomData
 
         // Check each condition to determine version
         return if (containsGroupWithTag
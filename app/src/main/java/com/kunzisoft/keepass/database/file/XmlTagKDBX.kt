@@ -0,0 +1,282 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.file
+
+/**
+ * Integer tokens of the KDBX XML element names, used to dispatch on a tag without
+ * comparing its name. A name is mapped to its token by a perfect hash table built once,
+ * ignoring the case of the name.
+ */
+object XmlTagKDBX {
+
+    const val Unknown = 0
+    const val DocNode = 1
+    const val Meta = 2
+    const val Root = 3
+    const val Group = 4
+    const val Entry = 5
+    const val Generator = 6
+    const val HeaderHash = 7
+    const val SettingsChanged = 8
+    const val DbName = 9
+    const val DbNameChanged = 10
+    const val DbDesc = 11
+    const val DbDescChanged = 12
+    const val DbDefaultUser = 13
+    const val DbDefaultUserChanged = 14
+    const val DbMntncHistoryDays = 15
+    const val DbColor = 16
+    const val DbKeyChanged = 17
+    const val DbKeyChangeRec = 18
+    const val DbKeyChangeForce = 19
+    const val DbKeyChangeForceOnce = 20
+    const val RecycleBinEnabled = 21
+    const val RecycleBinUuid = 22
+    const val RecycleBinChanged = 23
+    const val EntryTemplatesGroup = 24
+    const val EntryTemplatesGroupChanged = 25
+    const val HistoryMaxItems = 26
+    const val HistoryMaxSize = 27
+    const val LastSelectedGroup = 28
+    const val LastTopVisibleGroup = 29
+    const val MemoryProt = 30
+    const val ProtTitle = 31
+    const val ProtUserName = 32
+    const val ProtPassword = 33
+    const val ProtURL = 34
+    const val ProtNotes = 35
+    const val ProtAutoHide = 36
+    const val CustomIcons = 37
+    const val CustomIconItem = 38
+    const val Uuid = 39
+    const val CustomIconItemData = 40
+    const val AutoType = 41
+    const val History = 42
+    const val Name = 43
+    const val Notes = 44
+    const val Icon = 45
+    const val CustomIconID = 46
+    const val FgColor = 47
+    const val BgColor = 48
+    const val OverrideUrl = 49
+    const val QualityCheck = 50
+    const val Times = 51
+    const val Tags = 52
+    const val PreviousParentGroup = 53
+    const val CreationTime = 54
+    const val LastModTime = 55
+    const val LastAccessTime = 56
+    const val ExpiryTime = 57
+    const val Expires = 58
+    const val UsageCount = 59
+    const val LocationChanged = 60
+    const val GroupDefaultAutoTypeSeq = 61
+    const val EnableAutoType = 62
+    const val EnableSearching = 63
+    const val String = 64
+    const val Binary = 65
+    const val Key = 66
+    const val Value = 67
+    const val AutoTypeEnabled = 68
+    const val AutoTypeObfuscation = 69
+    const val AutoTypeDefaultSeq = 70
+    const val AutoTypeItem = 71
+    const val Window = 72
+    const val KeystrokeSequence = 73
+    const val Binaries = 74
+    const val IsExpanded = 75
+    const val LastTopVisibleEntry = 76
+    const val DeletedObjects = 77
+    const val DeletedObject = 78
+    const val DeletionTime = 79
+    const val CustomData = 80
+    const val StringDictExItem = 81
+
+    // Same name as Uuid
+    const val CustomIconItemID = Uuid
+
+    // Names in the order of the tokens
+    private val NAMES = arrayOf(
+            "",
+            DatabaseKDBXXML.ElemDocNode,
+            DatabaseKDBXXML.ElemMeta,
+            DatabaseKDBXXML.ElemRoot,
+            DatabaseKDBXXML.ElemGroup,
+            DatabaseKDBXXML.ElemEntry,
+            DatabaseKDBXXML.ElemGenerator,
+            DatabaseKDBXXML.ElemHeaderHash,
+            DatabaseKDBXXML.ElemSettingsChanged,
+            DatabaseKDBXXML.ElemDbName,
+            DatabaseKDBXXML.ElemDbNameChanged,
+            DatabaseKDBXXML.ElemDbDesc,
+            DatabaseKDBXXML.ElemDbDescChanged,
+            DatabaseKDBXXML.ElemDbDefaultUser,
+            DatabaseKDBXXML.ElemDbDefaultUserChanged,
+            DatabaseKDBXXML.ElemDbMntncHistoryDays,
+            DatabaseKDBXXML.ElemDbColor,
+            DatabaseKDBXXML.ElemDbKeyChanged,
+            DatabaseKDBXXML.ElemDbKeyChangeRec,
+            DatabaseKDBXXML.ElemDbKeyChangeForce,
+            DatabaseKDBXXML.ElemDbKeyChangeForceOnce,
+            DatabaseKDBXXML.ElemRecycleBinEnabled,
+            DatabaseKDBXXML.ElemRecycleBinUuid,
+            DatabaseKDBXXML.ElemRecycleBinChanged,
+            DatabaseKDBXXML.ElemEntryTemplatesGroup,
+            DatabaseKDBXXML.ElemEntryTemplatesGroupChanged,
+            DatabaseKDBXXML.ElemHistoryMaxItems,
+            DatabaseKDBXXML.ElemHistoryMaxSize,
+            DatabaseKDBXXML.ElemLastSelectedGroup,
+            DatabaseKDBXXML.ElemLastTopVisibleGroup,
+            DatabaseKDBXXML.ElemMemoryProt,
+            DatabaseKDBXXML.ElemProtTitle,
+            DatabaseKDBXXML.ElemProtUserName,
+            DatabaseKDBXXML.ElemProtPassword,
+            DatabaseKDBXXML.ElemProtURL,
+            DatabaseKDBXXML.ElemProtNotes,
+            DatabaseKDBXXML.ElemProtAutoHide,
+            DatabaseKDBXXML.ElemCustomIcons,
+            DatabaseKDBXXML.ElemCustomIconItem,
+            DatabaseKDBXXML.ElemUuid,
+            DatabaseKDBXXML.ElemCustomIconItemData,
+            DatabaseKDBXXML.ElemAutoType,
+            DatabaseKDBXXML.ElemHistory,
+            DatabaseKDBXXML.ElemName,
+            DatabaseKDBXXML.ElemNotes,
+            DatabaseKDBXXML.ElemIcon,
+            DatabaseKDBXXML.ElemCustomIconID,
+            DatabaseKDBXXML.ElemFgColor,
+            DatabaseKDBXXML.ElemBgColor,
+            DatabaseKDBXXML.ElemOverrideUrl,
+            DatabaseKDBXXML.ElemQualityCheck,
+            DatabaseKDBXXML.ElemTimes,
+            DatabaseKDBXXML.ElemTags,
+            DatabaseKDBXXML.ElemPreviousParentGroup,
+            DatabaseKDBXXML.ElemCreationTime,
+            DatabaseKDBXXML.ElemLastModTime,
+            DatabaseKDBXXML.ElemLastAccessTime,
+            DatabaseKDBXXML.ElemExpiryTime,
+            DatabaseKDBXXML.ElemExpires,
+            DatabaseKDBXXML.ElemUsageCount,
+            DatabaseKDBXXML.ElemLocationChanged,
+            DatabaseKDBXXML.ElemGroupDefaultAutoTypeSeq,
+            DatabaseKDBXXML.ElemEnableAutoType,
+            DatabaseKDBXXML.ElemEnableSearching,
+            DatabaseKDBXXML.ElemString,
+            DatabaseKDBXXML.ElemBinary,
+            DatabaseKDBXXML.ElemKey,
+            DatabaseKDBXXML.ElemValue,
+            DatabaseKDBXXML.ElemAutoTypeEnabled,
+            DatabaseKDBXXML.ElemAutoTypeObfuscation,
+            DatabaseKDBXXML.ElemAutoTypeDefaultSeq,
+            DatabaseKDBXXML.ElemAutoTypeItem,
+            DatabaseKDBXXML.ElemWindow,
+            DatabaseKDBXXML.ElemKeystrokeSequence,
+            DatabaseKDBXXML.ElemBinaries,
+            DatabaseKDBXXML.ElemIsExpanded,
+            DatabaseKDBXXML.ElemLastTopVisibleEntry,
+            DatabaseKDBXXML.ElemDeletedObjects,
+            DatabaseKDBXXML.ElemDeletedObject,
+            DatabaseKDBXXML.ElemDeletionTime,
+            DatabaseKDBXXML.ElemCustomData,
+            DatabaseKDBXXML.ElemStringDictExItem)
+
+    private const val TABLE_BITS = 10
+    // Fibonacci hashing to spread the name hash over the table
+    private const val GOLDEN_RATIO = -0x61c88647
+
+    private val NAME_BYTES = Array(NAMES.size) { token ->
+        NAMES[token].toByteArray(Charsets.US_ASCII).apply {
+            for (i in indices) {
+                this[i] = lowerCase(this[i]).toByte()
+            }
+        }
+    }
+    private val TABLE = IntArray(1 shl TABLE_BITS)
+    private val HASH_MULTIPLIER: Int
+
+    init {
+        // Search a multiplier without collision, found after a few tries with this table size
+        var multiplier = 31
+        while (!fillTable(multiplier)) {
+            multiplier += 2
+        }
+        HASH_MULTIPLIER = multiplier
+    }
+
+    private fun fillTable(multiplier: Int): Boolean {
+        TABLE.fill(Unknown)
+        for (token in 1 until NAME_BYTES.size) {
+            val name = NAME_BYTES[token]
+            val index = tableIndex(hash(name, 0, name.size, multiplier))
+            if (TABLE[index] != Unknown)
+                return false
+            TABLE[index] = token
+        }
+        return true
+    }
+
+    private fun lowerCase(byte: Byte): Int {
+        val char = byte.toInt()
+        return if (char in 'A'.toInt()..'Z'.toInt()) char + ('a' - 'A') else char
+    }
+
+    private fun hash(name: ByteArray, offset: Int, length: Int, multiplier: Int): Int {
+        var hash = 0
+        for (i in offset until offset + length) {
+            hash = hash * multiplier + lowerCase(name[i])
+        }
+        return hash
+    }
+
+    private fun tableIndex(hash: Int): Int {
+        return (hash * GOLDEN_RATIO) ushr (Int.SIZE_BITS - TABLE_BITS)
+    }
+
+    /**
+     * Token of the UTF-8 tag name in the [length] first bytes of [name], [Unknown] if not a KDBX element
+     */
+    fun token(name: ByteArray, length: Int): Int {
+        return token(name, 0, length)
+    }
+
+    /**
+     * Token of the UTF-8 tag name in the [length] bytes of [bytes] from [offset]
+     */
+    fun token(bytes: ByteArray, offset: Int, length: Int): Int {
+        val token = TABLE[tableIndex(hash(bytes, offset, length, HASH_MULTIPLIER))]
+        if (token == Unknown)
+            return Unknown
+        val tokenName = NAME_BYTES[token]
+        if (tokenName.size != length)
+            return Unknown
+        for (i in 0 until length) {
+            if (lowerCase(bytes[offset + i]) != tokenName[i].toInt())
+                return Unknown
+        }
+        return token
+    }
+
+    /**
+     * Element name of the [token], empty for [Unknown]
+     */
+    fun name(token: Int): String {
+        return NAMES[token]
+    }
+}
@@ -20,6 +20,7 @@
 package com.kunzisoft.keepass.database.file.input
 
 import android.util.Log
+import com.kunzisoft.encrypt.KeyTransformationListener
 import com.kunzisoft.keepass.R
 import com.kunzisoft.keepass.database.element.binary.LoadedKey
 import com.kunzisoft.keepass.database.element.database.DatabaseVersioned
@@ -67,10 +68,34 @@ abstract class DatabaseInput<D : DatabaseVersioned<*, *, *, *>>
         startTimeKey = System.currentTimeMillis()
     }
 
-    protected fun stopKeyTimer() {
+    protected fun stopKeyTimer(progressTaskUpdater: ProgressTaskUpdater?) {
+        progressTaskUpdater?.updateProgress(ProgressTaskUpdater.PROGRESS_INDETERMINATE)
         Log.d(TAG, "Stop retrieving database key... ${System.currentTimeMillis() - startTimeKey} ms")
     }
 
+    /**
+     * Listener of the key derivation, forwards the percentage done to the [progressTaskUpdater]
+     * and cancels the derivation when the task is cancelled
+     */
+    protected fun buildKeyTransformationListener(progressTaskUpdater: ProgressTaskUpdater?): KeyTransformationListener? {
+        if (progressTaskUpdater == null)
+            return null
+        return object : KeyTransformationListener {
+            private var lastPercent = ProgressTaskUpdater.PROGRESS_INDETERMINATE
+
+            override fun onProgress(done: Long, total: Long): Boolean {
+                if (total > 0) {
+                    val percent = (done.toDouble() * 100 / total).toInt().coerceIn(0, 100)
+                    if (percent != lastPercent) {
+                        lastPercent = percent
+                        progressTaskUpdater.updateProgress(percent)
+                    }
+                }
+                return !progressTaskUpdater.isCancelled()
+            }
+        }
+    }
+
     protected fun startContentTimer(progressTaskUpdater: ProgressTaskUpdater?) {
         progressTaskUpdater?.updateMessage(R.string.decrypting_db)
         Log.d(TAG, "Start decrypting database content...")
@@ -21,6 +21,7 @@
 package com.kunzisoft.keepass.database.file.input
 
 import com.kunzisoft.encrypt.HashManager
+import com.kunzisoft.encrypt.KeyTransformationCancelledException
 import com.kunzisoft.keepass.database.crypto.EncryptionAlgorithm
 import com.kunzisoft.keepass.database.element.DateInstant
 import com.kunzisoft.keepass.database.element.binary.LoadedKey
@@ -130,9 +131,10 @@ class DatabaseInputKDB(cacheDirectory: File,
             mDatabase.makeFinalKey(
                     header.masterSeed,
                     header.transformSeed,
-                    mDatabase.numberKeyEncryptionRounds)
+                    mDatabase.numberKeyEncryptionRounds,
+                    buildKeyTransformationListener(progressTaskUpdater))
 
-            stopKeyTimer()
+            stopKeyTimer(progressTaskUpdater)
             startContentTimer(progressTaskUpdater)
 
             val cipher: Cipher = try {
@@ -325,6 +327,9 @@ class DatabaseInputKDB(cacheDirectory: File,
         } catch (e: LoadDatabaseException) {
             mDatabase.clearCache()
             throw e
+        } catch (e: KeyTransformationCancelledException) {
+            mDatabase.clearCache()
+            throw CancelledDatabaseException(e)
         } catch (e: IOException) {
             mDatabase.clearCache()
             throw IODatabaseException(e)
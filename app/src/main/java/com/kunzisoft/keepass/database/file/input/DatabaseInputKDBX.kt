@@ -20,7 +20,9 @@
 package com.kunzisoft.keepass.database.file.input
 
 import android.util.Base64
+import android.util.Base64OutputStream
 import android.util.Log
+import com.kunzisoft.encrypt.KeyTransformationCancelledException
 import com.kunzisoft.encrypt.StreamCipher
 import com.kunzisoft.keepass.database.crypto.CipherEngine
 import com.kunzisoft.keepass.database.crypto.CrsAlgorithm
@@ -42,25 +44,23 @@ import com.kunzisoft.keepass.database.exception.*
 import com.kunzisoft.keepass.database.file.DatabaseHeaderKDBX
 import com.kunzisoft.keepass.database.file.DatabaseHeaderKDBX.Companion.FILE_VERSION_40
 import com.kunzisoft.keepass.database.file.DatabaseKDBXXML
+import com.kunzisoft.keepass.database.file.XmlTagKDBX
 import com.kunzisoft.keepass.database.file.DateKDBXUtil
 import com.kunzisoft.keepass.stream.HashedBlockInputStream
 import com.kunzisoft.keepass.stream.HmacBlockInputStream
+import com.kunzisoft.keepass.stream.PipelineInputStream
 import com.kunzisoft.keepass.tasks.ProgressTaskUpdater
 import com.kunzisoft.keepass.utils.*
 import org.xmlpull.v1.XmlPullParser
 import org.xmlpull.v1.XmlPullParserException
-import org.xmlpull.v1.XmlPullParserFactory
-import java.io.File
-import java.io.IOException
-import java.io.InputStream
-import java.io.UnsupportedEncodingException
-import java.nio.charset.Charset
-import java.text.ParseException
+import java.io.*
 import java.util.*
+import java.util.concurrent.*
 import java.util.zip.GZIPInputStream
 import javax.crypto.Cipher
 import javax.crypto.CipherInputStream
 import javax.crypto.Mac
+import kotlin.math.max
 import kotlin.math.min
 
 class DatabaseInputKDBX(cacheDirectory: File,
@@ -68,10 +68,37 @@ class DatabaseInputKDBX(cacheDirectory: File,
     : DatabaseInput<DatabaseKDBX>(cacheDirectory, isRAMSufficient) {
 
     private var randomStream: StreamCipher? = null
+    // Reused to decipher the protected values
+    private var protectedBuffer = ByteArray(256)
+    // Reused to decode the binaries by chunks
+    private var binaryChunkBuffer = ByteArray(0)
     private lateinit var mDatabase: DatabaseKDBX
 
     private var hashOfHeader: ByteArray? = null
 
+    /**
+     * Parse the children of the root group in parallel when the document can be split
+     */
+    var parallelParsing = PARALLEL_PARSING_THREADS > 1
+
+    /**
+     * Largest XML document read in memory to be split, a larger document is read sequentially.
+     * A fraction of the heap by default, the document is kept until its subtrees are parsed
+     */
+    var maxParallelXmlSize: Long = Runtime.getRuntime().maxMemory() / PARALLEL_XML_MEMORY_DIVISOR
+
+    /**
+     * True if the last document was split and its subtrees parsed in parallel
+     */
+    var parallelParsed = false
+        private set
+
+    // Nodes of a worker, indexed only when its subtrees are merged
+    private var pendingGroupIndexes: ArrayList<GroupKDBX>? = null
+    private var pendingEntryIndexes: ArrayList<EntryKDBX>? = null
+    // IDs generated by all the workers, not yet in the database indexes
+    private var allocatedNodeIds: MutableSet<UUID>? = null
+
     private var readNextNode = true
     private val ctxGroups = Stack<GroupKDBX>()
     private var ctxGroup: GroupKDBX? = null
@@ -143,9 +170,10 @@ class DatabaseInputKDBX(cacheDirectory: File,
             val pbHeader = headerAndHash.header
 
             assignMasterKey?.invoke()
-            mDatabase.makeFinalKey(header.masterSeed)
+            mDatabase.makeFinalKey(header.masterSeed,
+                    buildKeyTransformationListener(progressTaskUpdater))
 
-            stopKeyTimer()
+            stopKeyTimer(progressTaskUpdater)
             startContentTimer(progressTaskUpdater)
 
             val engine: CipherEngine
@@ -201,40 +229,67 @@ class DatabaseInputKDBX(cacheDirectory: File,
                     throw InvalidCredentialsDatabaseException()
                 }
 
-                val hmIs = HmacBlockInputStream(databaseInputStream, true, hmacKey)
+                val hmIs = HmacBlockInputStream(databaseInputStream, true, hmacKey, HmacBlock.PARALLEL_BLOCKS)
 
                 plainInputStream = CipherInputStream(hmIs, cipher)
             }
 
+            // Decryption, inflation and parsing are each run in their own thread
+            val stages = ArrayList<PipelineInputStream>()
+            val decryptStage = PipelineInputStream(plainInputStream, STAGE_DECRYPT)
+            stages.add(decryptStage)
             val inputStreamXml: InputStream = when (mDatabase.compressionAlgorithm) {
-                CompressionAlgorithm.GZip -> GZIPInputStream(plainInputStream)
-                else -> plainInputStream
-            }
-
-            if (!mDatabase.kdbxVersion.isBefore(FILE_VERSION_40)) {
-                readInnerHeader(inputStreamXml, header)
+                CompressionAlgorithm.GZip -> PipelineInputStream(
+                        GZIPInputStream(decryptStage, PipelineInputStream.DEFAULT_STAGE_BUFFER_SIZE),
+                        STAGE_INFLATE,
+                        decryptStage).also { stages.add(it) }
+                else -> decryptStage
             }
 
             try {
-                randomStream = CrsAlgorithm.getCipher(header.innerRandomStream, header.innerRandomStreamKey)
-            } catch (e: Exception) {
-                throw LoadDatabaseException(e)
-            }
+                if (!mDatabase.kdbxVersion.isBefore(FILE_VERSION_40)) {
+                    readInnerHeader(inputStreamXml, header)
+                }
 
-            val xmlPullParserFactory = XmlPullParserFactory.newInstance().apply {
-                isNamespaceAware = false
-            }
-            val xmlPullParser = xmlPullParserFactory.newPullParser().apply {
-                setInput(inputStreamXml, null)
-            }
-            readDocumentStreamed(xmlPullParser)
+                try {
+                    randomStream = CrsAlgorithm.getCipher(header.innerRandomStream, header.innerRandomStreamKey)
+                } catch (e: Exception) {
+                    throw LoadDatabaseException(e)
+                }
 
-            stopContentTimer()
+                val lastStage = stages.last()
+                val startTimeParse = System.nanoTime()
+                val startWaitingTimeParse = lastStage.waitingNanoTime
+                if (parallelParsing && randomStream?.isSeekable == true) {
+                    readDocumentParallel(inputStreamXml, header)
+                } else {
+                    readDocumentStreamed(XmlReaderKDBX(inputStreamXml))
+                }
+                // Groups are indexed before their tags and custom data are read
+                mDatabase.countVersionFeatures()
+                // Only the parsing work, without the time waiting for the previous stage
+                val parseNanoTime = System.nanoTime() - startTimeParse -
+                        (lastStage.waitingNanoTime - startWaitingTimeParse)
+
+                stopContentTimer()
+
+                stages.forEach { stage ->
+                    reportStageThroughput(progressTaskUpdater,
+                            stage.stageName, stage.bytesProcessed, stage.processingNanoTime)
+                }
+                reportStageThroughput(progressTaskUpdater,
+                        STAGE_PARSE, lastStage.bytesProcessed, parseNanoTime)
+            } finally {
+                // Stop the stage threads if the parsing is interrupted
+                inputStreamXml.close()
+            }
 
         } catch (e: LoadDatabaseException) {
             throw e
         } catch (e: XmlPullParserException) {
             throw IODatabaseException(e)
+        } catch (e: KeyTransformationCancelledException) {
+            throw CancelledDatabaseException(e)
         } catch (e: IOException) {
             if (e.message?.contains("Hash failed with code") == true)
                 throw KDFMemoryDatabaseException(e)
@@ -249,6 +304,15 @@ class DatabaseInputKDBX(cacheDirectory: File,
         return mDatabase
     }
 
+    private fun reportStageThroughput(progressTaskUpdater: ProgressTaskUpdater?,
+                                      stageName: String,
+                                      bytes: Long,
+                                      nanoTime: Long) {
+        val durationMillis = nanoTime / 1000000L
+        Log.d(TAG, "Stage $stageName: $bytes bytes in $durationMillis ms")
+        progressTaskUpdater?.updateStageThroughput(stageName, bytes, durationMillis)
+    }
+
     @Throws(IOException::class)
     private fun readInnerHeader(dataInputStream: InputStream,
                                 header: DatabaseHeaderKDBX) {
@@ -329,11 +393,20 @@ class DatabaseInputKDBX(cacheDirectory: File,
     }
 
     @Throws(XmlPullParserException::class, IOException::class, LoadDatabaseException::class)
-    private fun readDocumentStreamed(xpp: XmlPullParser) {
+    private fun readDocumentStreamed(xpp: XmlReaderKDBX) {
 
         ctxGroups.clear()
 
-        var ctx = KdbContext.Null
+        val ctx = readElements(xpp, KdbContext.Null)
+
+        // Error checks
+        if (ctx != KdbContext.Null) throw IOException("Malformed")
+        if (ctxGroups.size != 0) throw IOException("Malformed")
+    }
+
+    @Throws(XmlPullParserException::class, IOException::class, LoadDatabaseException::class)
+    private fun readElements(xpp: XmlReaderKDBX, startContext: KdbContext): KdbContext {
+        var ctx = startContext
 
         readNextNode = true
 
@@ -353,278 +426,438 @@ class DatabaseInputKDBX(cacheDirectory: File,
                 }
             }
         }
+        return ctx
+    }
 
-        // Error checks
-        if (ctx != KdbContext.Null) throw IOException("Malformed")
-        if (ctxGroups.size != 0) throw IOException("Malformed")
+    /**
+     * Read the XML in memory and split the children of the root group, each subtree
+     * is parsed by a worker with its own inner stream seeked to its first protected byte.
+     * The document is read sequentially if it's larger than [maxParallelXmlSize],
+     * if the RAM is not sufficient or if it can't be split
+     */
+    @Throws(XmlPullParserException::class, IOException::class, LoadDatabaseException::class)
+    private fun readDocumentParallel(inputStreamXml: InputStream, header: DatabaseHeaderKDBX) {
+        val maxXmlSize = min(maxParallelXmlSize, MAX_ARRAY_SIZE.toLong()).toInt()
+        if (maxXmlSize < MIN_PARALLEL_XML_SIZE) {
+            readDocumentStreamed(XmlReaderKDBX(inputStreamXml))
+            return
+        }
+        var xml = ByteArray(PipelineInputStream.DEFAULT_STAGE_BUFFER_SIZE)
+        var xmlLength = 0
+        while (true) {
+            if (xmlLength == xml.size) {
+                val grownSize = min(xml.size.toLong() * 2, maxXmlSize.toLong()).toInt()
+                // The buffer and its grown copy
+                if (xml.size >= maxXmlSize
+                        || !isRAMSufficient.invoke(xml.size.toLong() + grownSize)) {
+                    // Too large to be split, continue with the stream and release the buffer
+                    val prefixedStream = PrefixedInputStream(xml, xmlLength, inputStreamXml)
+                    xml = ByteArray(0)
+                    readDocumentStreamed(XmlReaderKDBX(prefixedStream))
+                    return
+                }
+                xml = xml.copyOf(grownSize)
+            }
+            val read = inputStreamXml.read(xml, xmlLength, xml.size - xmlLength)
+            if (read < 0)
+                break
+            xmlLength += read
+        }
+
+        val subtrees = if (xmlLength >= MIN_PARALLEL_XML_SIZE)
+            XmlScannerKDBX(xml, xmlLength).scan()
+        else
+            null
+        if (subtrees == null || subtrees.size < 2) {
+            readDocumentStreamed(XmlReaderKDBX(ByteArrayInputStream(xml, 0, xmlLength)))
+            return
+        }
+
+        // The document without the subtrees, protected values are only before them
+        val childrenStart = subtrees.first().start
+        val childrenEnd = subtrees.last().end
+        readDocumentStreamed(XmlReaderKDBX(SequenceInputStream(
+                ByteArrayInputStream(xml, 0, childrenStart),
+                ByteArrayInputStream(xml, childrenEnd, xmlLength - childrenEnd))))
+        val rootGroup = mDatabase.rootGroup ?: throw IOException("Malformed")
+        val database = mDatabase
+        val document = xml
+        val allocatedIds = Collections.synchronizedSet(HashSet<UUID>())
+
+        // Contiguous runs of subtrees of about the same size for each task
+        val taskCount = min(subtrees.size, PARALLEL_PARSING_THREADS * TASKS_PER_THREAD)
+        val taskSize = (childrenEnd - childrenStart) / taskCount + 1
+        val tasks = ArrayList<Future<DatabaseInputKDBX>>()
+        var first = 0
+        while (first < subtrees.size) {
+            var last = first
+            while (last + 1 < subtrees.size
+                    && subtrees[last + 1].end - subtrees[first].start <= taskSize) {
+                last++
+            }
+            val start = subtrees[first].start
+            val end = subtrees[last].end
+            val protectedOffset = subtrees[first].protectedOffset
+            tasks.add(parseExecutor.submit(Callable {
+                DatabaseInputKDBX(cacheDirectory, isRAMSufficient).apply {
+                    readRootChildren(database, header,
+                            XmlReaderKDBX(ByteArrayInputStream(document, start, end - start)),
+                            protectedOffset, allocatedIds)
+                }
+            }))
+            first = last + 1
+        }
+
+        // Merge the subtrees in the document order
+        val workers = tasks.map { task ->
+            try {
+                task.get()
+            } catch (e: ExecutionException) {
+                tasks.forEach { it.cancel(true) }
+                when (val cause = e.cause) {
+                    is IOException -> throw cause
+                    is XmlPullParserException -> throw cause
+                    is LoadDatabaseException -> throw cause
+                    is Error -> throw cause
+                    else -> throw IOException(cause)
+                }
+            } catch (e: InterruptedException) {
+                tasks.forEach { it.cancel(true) }
+                throw IOException(e)
+            }
+        }
+        workers.forEach { worker ->
+            worker.moveRootChildrenTo(rootGroup)
+        }
+        workers.forEach { worker ->
+            worker.pendingGroupIndexes?.forEach { mDatabase.addGroupIndex(it) }
+            worker.pendingEntryIndexes?.forEach { mDatabase.addEntryIndex(it) }
+        }
+        parallelParsed = true
     }
 
+    /**
+     * Parse in a worker the children of the root group read by [xpp], in a container group
+     * and without indexing them, nodes are indexed after the merge to keep the document order
+     */
     @Throws(XmlPullParserException::class, IOException::class, LoadDatabaseException::class)
-    private fun readXmlElement(ctx: KdbContext, xpp: XmlPullParser): KdbContext {
-        val name = xpp.name
-        when (ctx) {
-            KdbContext.Null -> if (name.equals(DatabaseKDBXXML.ElemDocNode, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.KeePassFile, xpp)
-            } else
-                readUnknown(xpp)
-
-            KdbContext.KeePassFile -> if (name.equals(DatabaseKDBXXML.ElemMeta, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.Meta, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemRoot, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.Root, xpp)
+    private fun readRootChildren(database: DatabaseKDBX,
+                                 header: DatabaseHeaderKDBX,
+                                 xpp: XmlReaderKDBX,
+                                 protectedOffset: Long,
+                                 allocatedIds: MutableSet<UUID>) {
+        mDatabase = database
+        randomStream = CrsAlgorithm.getCipher(header.innerRandomStream, header.innerRandomStreamKey).apply {
+            seekTo(protectedOffset)
+        }
+        pendingGroupIndexes = ArrayList()
+        pendingEntryIndexes = ArrayList()
+        allocatedNodeIds = allocatedIds
+
+        val container = GroupKDBX()
+        ctxGroups.clear()
+        ctxGroups.push(container)
+        ctxGroup = container
+
+        val ctx = readElements(xpp, KdbContext.Group)
+
+        if (ctx != KdbContext.Group) throw IOException("Malformed")
+        if (ctxGroups.size != 1) throw IOException("Malformed")
+    }
+
+    /**
+     * Move the children parsed by [readRootChildren] to the [rootGroup], in the document order
+     */
+    private fun moveRootChildrenTo(rootGroup: GroupKDBX) {
+        val container = ctxGroups.firstElement()
+        val groups = container.getChildGroups()
+        val entries = container.getChildEntries()
+        var groupIndex = 0
+        var entryIndex = 0
+        while (groupIndex < groups.size || entryIndex < entries.size) {
+            if (entryIndex == entries.size || (groupIndex < groups.size
+                            && groups[groupIndex].nodeIndexInParentForNaturalOrder
+                            < entries[entryIndex].nodeIndexInParentForNaturalOrder)) {
+                val group = groups[groupIndex++]
+                rootGroup.addChildGroup(group)
+                group.parent = rootGroup
             } else {
-                readUnknown(xpp)
+                val entry = entries[entryIndex++]
+                rootGroup.addChildEntry(entry)
+                entry.parent = rootGroup
             }
+        }
+    }
 
-            KdbContext.Meta -> if (name.equals(DatabaseKDBXXML.ElemGenerator, ignoreCase = true)) {
-                readString(xpp) // Ignore
-            } else if (name.equals(DatabaseKDBXXML.ElemHeaderHash, ignoreCase = true)) {
-                val encodedHash = readString(xpp)
-                if (encodedHash.isNotEmpty() && hashOfHeader != null) {
-                    val hash = Base64.decode(encodedHash, BASE_64_FLAG)
-                    if (!Arrays.equals(hash, hashOfHeader)) {
-                        throw LoadDatabaseException()
+    /**
+     * New group ID, not used by the database nor generated by another worker
+     */
+    private fun newGroupId(): NodeIdUUID {
+        val allocatedIds = allocatedNodeIds ?: return mDatabase.newGroupId()
+        var newId: NodeIdUUID
+        do {
+            newId = mDatabase.newGroupId()
+        } while (!allocatedIds.add(newId.id))
+        return newId
+    }
+
+    /**
+     * New entry ID, not used by the database nor generated by another worker
+     */
+    private fun newEntryId(): NodeIdUUID {
+        val allocatedIds = allocatedNodeIds ?: return mDatabase.newEntryId()
+        var newId: NodeIdUUID
+        do {
+            newId = mDatabase.newEntryId()
+        } while (!allocatedIds.add(newId.id))
+        return newId
+    }
+
+    private fun addGroupIndex(group: GroupKDBX) {
+        pendingGroupIndexes?.add(group) ?: mDatabase.addGroupIndex(group)
+    }
+
+    private fun addEntryIndex(entry: EntryKDBX) {
+        pendingEntryIndexes?.add(entry) ?: mDatabase.addEntryIndex(entry)
+    }
+
+    @Throws(XmlPullParserException::class, IOException::class, LoadDatabaseException::class)
+    private fun readXmlElement(ctx: KdbContext, xpp: XmlReaderKDBX): KdbContext {
+        when (ctx) {
+            KdbContext.Null -> when (xpp.nameToken) {
+                XmlTagKDBX.DocNode -> {
+                    return switchContext(ctx, KdbContext.KeePassFile, xpp)
+                }
+                else -> readUnknown(xpp)
+            }
+
+            KdbContext.KeePassFile -> when (xpp.nameToken) {
+                XmlTagKDBX.Meta -> {
+                    return switchContext(ctx, KdbContext.Meta, xpp)
+                }
+                XmlTagKDBX.Root -> {
+                    return switchContext(ctx, KdbContext.Root, xpp)
+                }
+                else -> readUnknown(xpp)
+            }
+
+            KdbContext.Meta -> when (xpp.nameToken) {
+                XmlTagKDBX.Generator -> readString(xpp) // Ignore
+                XmlTagKDBX.HeaderHash -> {
+                    val encodedHash = readString(xpp)
+                    if (encodedHash.isNotEmpty() && hashOfHeader != null) {
+                        val hash = Base64.decode(encodedHash, BASE_64_FLAG)
+                        if (!Arrays.equals(hash, hashOfHeader)) {
+                            throw LoadDatabaseException()
+                        }
                     }
                 }
-            } else if (name.equals(DatabaseKDBXXML.ElemSettingsChanged, ignoreCase = true)) {
-                mDatabase.settingsChanged = readDateInstant(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemDbName, ignoreCase = true)) {
-                mDatabase.name = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemDbNameChanged, ignoreCase = true)) {
-                mDatabase.nameChanged = readDateInstant(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemDbDesc, ignoreCase = true)) {
-                mDatabase.description = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemDbDescChanged, ignoreCase = true)) {
-                mDatabase.descriptionChanged = readDateInstant(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemDbDefaultUser, ignoreCase = true)) {
-                mDatabase.defaultUserName = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemDbDefaultUserChanged, ignoreCase = true)) {
-                mDatabase.defaultUserNameChanged = readDateInstant(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemDbColor, ignoreCase = true)) {
-                mDatabase.color = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemDbMntncHistoryDays, ignoreCase = true)) {
-                mDatabase.maintenanceHistoryDays = readUInt(xpp, DEFAULT_HISTORY_DAYS)
-            } else if (name.equals(DatabaseKDBXXML.ElemDbKeyChanged, ignoreCase = true)) {
-                mDatabase.keyLastChanged = readDateInstant(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemDbKeyChangeRec, ignoreCase = true)) {
-                mDatabase.keyChangeRecDays = readLong(xpp, -1)
-            } else if (name.equals(DatabaseKDBXXML.ElemDbKeyChangeForce, ignoreCase = true)) {
-                mDatabase.keyChangeForceDays = readLong(xpp, -1)
-            } else if (name.equals(DatabaseKDBXXML.ElemDbKeyChangeForceOnce, ignoreCase = true)) {
-                mDatabase.isKeyChangeForceOnce = readBool(xpp, false)
-            } else if (name.equals(DatabaseKDBXXML.ElemMemoryProt, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.MemoryProtection, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemCustomIcons, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.CustomIcons, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemRecycleBinEnabled, ignoreCase = true)) {
-                mDatabase.isRecycleBinEnabled = readBool(xpp, true)
-            } else if (name.equals(DatabaseKDBXXML.ElemRecycleBinUuid, ignoreCase = true)) {
-                mDatabase.recycleBinUUID = readUuid(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemRecycleBinChanged, ignoreCase = true)) {
-                mDatabase.recycleBinChanged = readDateInstant(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemEntryTemplatesGroup, ignoreCase = true)) {
-                mDatabase.entryTemplatesGroup = readUuid(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemEntryTemplatesGroupChanged, ignoreCase = true)) {
-                mDatabase.entryTemplatesGroupChanged = readDateInstant(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemHistoryMaxItems, ignoreCase = true)) {
-                mDatabase.historyMaxItems = readInt(xpp, -1)
-            } else if (name.equals(DatabaseKDBXXML.ElemHistoryMaxSize, ignoreCase = true)) {
-                mDatabase.historyMaxSize = readLong(xpp, -1)
-            } else if (name.equals(DatabaseKDBXXML.ElemLastSelectedGroup, ignoreCase = true)) {
-                mDatabase.lastSelectedGroupUUID = readUuid(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemLastTopVisibleGroup, ignoreCase = true)) {
-                mDatabase.lastTopVisibleGroupUUID = readUuid(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemBinaries, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.Binaries, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemCustomData, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.CustomData, xpp)
+                XmlTagKDBX.SettingsChanged -> mDatabase.settingsChanged = readDateInstant(xpp)
+                XmlTagKDBX.DbName -> mDatabase.name = readString(xpp)
+                XmlTagKDBX.DbNameChanged -> mDatabase.nameChanged = readDateInstant(xpp)
+                XmlTagKDBX.DbDesc -> mDatabase.description = readString(xpp)
+                XmlTagKDBX.DbDescChanged -> mDatabase.descriptionChanged = readDateInstant(xpp)
+                XmlTagKDBX.DbDefaultUser -> mDatabase.defaultUserName = readString(xpp)
+                XmlTagKDBX.DbDefaultUserChanged -> mDatabase.defaultUserNameChanged = readDateInstant(xpp)
+                XmlTagKDBX.DbColor -> mDatabase.color = readString(xpp)
+                XmlTagKDBX.DbMntncHistoryDays -> mDatabase.maintenanceHistoryDays = readUInt(xpp, DEFAULT_HISTORY_DAYS)
+                XmlTagKDBX.DbKeyChanged -> mDatabase.keyLastChanged = readDateInstant(xpp)
+                XmlTagKDBX.DbKeyChangeRec -> mDatabase.keyChangeRecDays = readLong(xpp, -1)
+                XmlTagKDBX.DbKeyChangeForce -> mDatabase.keyChangeForceDays = readLong(xpp, -1)
+                XmlTagKDBX.DbKeyChangeForceOnce -> mDatabase.isKeyChangeForceOnce = readBool(xpp, false)
+                XmlTagKDBX.MemoryProt -> {
+                    return switchContext(ctx, KdbContext.MemoryProtection, xpp)
+                }
+                XmlTagKDBX.CustomIcons -> {
+                    return switchContext(ctx, KdbContext.CustomIcons, xpp)
+                }
+                XmlTagKDBX.RecycleBinEnabled -> mDatabase.isRecycleBinEnabled = readBool(xpp, true)
+                XmlTagKDBX.RecycleBinUuid -> mDatabase.recycleBinUUID = readUuid(xpp)
+                XmlTagKDBX.RecycleBinChanged -> mDatabase.recycleBinChanged = readDateInstant(xpp)
+                XmlTagKDBX.EntryTemplatesGroup -> mDatabase.entryTemplatesGroup = readUuid(xpp)
+                XmlTagKDBX.EntryTemplatesGroupChanged -> mDatabase.entryTemplatesGroupChanged = readDateInstant(xpp)
+                XmlTagKDBX.HistoryMaxItems -> mDatabase.historyMaxItems = readInt(xpp, -1)
+                XmlTagKDBX.HistoryMaxSize -> mDatabase.historyMaxSize = readLong(xpp, -1)
+                XmlTagKDBX.LastSelectedGroup -> mDatabase.lastSelectedGroupUUID = readUuid(xpp)
+                XmlTagKDBX.LastTopVisibleGroup -> mDatabase.lastTopVisibleGroupUUID = readUuid(xpp)
+                XmlTagKDBX.Binaries -> {
+                    return switchContext(ctx, KdbContext.Binaries, xpp)
+                }
+                XmlTagKDBX.CustomData -> {
+                    return switchContext(ctx, KdbContext.CustomData, xpp)
+                }
             }
 
-            KdbContext.MemoryProtection -> if (name.equals(DatabaseKDBXXML.ElemProtTitle, ignoreCase = true)) {
-                mDatabase.memoryProtection.protectTitle = readBool(xpp, false)
-            } else if (name.equals(DatabaseKDBXXML.ElemProtUserName, ignoreCase = true)) {
-                mDatabase.memoryProtection.protectUserName = readBool(xpp, false)
-            } else if (name.equals(DatabaseKDBXXML.ElemProtPassword, ignoreCase = true)) {
-                mDatabase.memoryProtection.protectPassword = readBool(xpp, false)
-            } else if (name.equals(DatabaseKDBXXML.ElemProtURL, ignoreCase = true)) {
-                mDatabase.memoryProtection.protectUrl = readBool(xpp, false)
-            } else if (name.equals(DatabaseKDBXXML.ElemProtNotes, ignoreCase = true)) {
-                mDatabase.memoryProtection.protectNotes = readBool(xpp, false)
-            } else if (name.equals(DatabaseKDBXXML.ElemProtAutoHide, ignoreCase = true)) {
-                mDatabase.memoryProtection.autoEnableVisualHiding = readBool(xpp, false)
-            } else {
-                readUnknown(xpp)
+            KdbContext.MemoryProtection -> when (xpp.nameToken) {
+                XmlTagKDBX.ProtTitle -> mDatabase.memoryProtection.protectTitle = readBool(xpp, false)
+                XmlTagKDBX.ProtUserName -> mDatabase.memoryProtection.protectUserName = readBool(xpp, false)
+                XmlTagKDBX.ProtPassword -> mDatabase.memoryProtection.protectPassword = readBool(xpp, false)
+                XmlTagKDBX.ProtURL -> mDatabase.memoryProtection.protectUrl = readBool(xpp, false)
+                XmlTagKDBX.ProtNotes -> mDatabase.memoryProtection.protectNotes = readBool(xpp, false)
+                XmlTagKDBX.ProtAutoHide -> mDatabase.memoryProtection.autoEnableVisualHiding = readBool(xpp, false)
+                else -> readUnknown(xpp)
             }
 
-            KdbContext.CustomIcons -> if (name.equals(DatabaseKDBXXML.ElemCustomIconItem, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.CustomIcon, xpp)
-            } else {
-                readUnknown(xpp)
+            KdbContext.CustomIcons -> when (xpp.nameToken) {
+                XmlTagKDBX.CustomIconItem -> {
+                    return switchContext(ctx, KdbContext.CustomIcon, xpp)
+                }
+                else -> readUnknown(xpp)
             }
 
-            KdbContext.CustomIcon -> if (name.equals(DatabaseKDBXXML.ElemCustomIconItemID, ignoreCase = true)) {
-                customIconID = readUuid(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemCustomIconItemData, ignoreCase = true)) {
-                val strData = readString(xpp)
-                if (strData.isNotEmpty()) {
-                    customIconData = Base64.decode(strData, BASE_64_FLAG)
+            KdbContext.CustomIcon -> when (xpp.nameToken) {
+                XmlTagKDBX.CustomIconItemID -> customIconID = readUuid(xpp)
+                XmlTagKDBX.CustomIconItemData -> {
+                    val strData = readString(xpp)
+                    if (strData.isNotEmpty()) {
+                        customIconData = Base64.decode(strData, BASE_64_FLAG)
+                    }
                 }
-            } else if (name.equals(DatabaseKDBXXML.ElemName, ignoreCase = true)) {
-                customIconName = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemLastModTime, ignoreCase = true)) {
-                customIconLastModificationTime = readDateInstant(xpp)
-            } else {
-                readUnknown(xpp)
+                XmlTagKDBX.Name -> customIconName = readString(xpp)
+                XmlTagKDBX.LastModTime -> customIconLastModificationTime = readDateInstant(xpp)
+                else -> readUnknown(xpp)
             }
 
-            KdbContext.Binaries -> if (name.equals(DatabaseKDBXXML.ElemBinary, ignoreCase = true)) {
-                readBinary(xpp)
-            } else {
-                readUnknown(xpp)
+            KdbContext.Binaries -> when (xpp.nameToken) {
+                XmlTagKDBX.Binary -> readBinary(xpp)
+                else -> readUnknown(xpp)
             }
 
-            KdbContext.CustomData -> if (name.equals(DatabaseKDBXXML.ElemStringDictExItem, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.CustomDataItem, xpp)
-            } else {
-                readUnknown(xpp)
+            KdbContext.CustomData -> when (xpp.nameToken) {
+                XmlTagKDBX.StringDictExItem -> {
+                    return switchContext(ctx, KdbContext.CustomDataItem, xpp)
+                }
+                else -> readUnknown(xpp)
             }
 
-            KdbContext.CustomDataItem -> if (name.equals(DatabaseKDBXXML.ElemKey, ignoreCase = true)) {
-                customDataKey = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemValue, ignoreCase = true)) {
-                customDataValue = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemLastModTime, ignoreCase = true)) {
-                customDataLastModificationTime = readDateInstant(xpp)
-            } else {
-                readUnknown(xpp)
+            KdbContext.CustomDataItem -> when (xpp.nameToken) {
+                XmlTagKDBX.Key -> customDataKey = readString(xpp)
+                XmlTagKDBX.Value -> customDataValue = readString(xpp)
+                XmlTagKDBX.LastModTime -> customDataLastModificationTime = readDateInstant(xpp)
+                else -> readUnknown(xpp)
             }
 
-            KdbContext.Root -> if (name.equals(DatabaseKDBXXML.ElemGroup, ignoreCase = true)) {
-                if (ctxGroups.size != 0)
-                    throw IOException("Group list should be empty.")
+            KdbContext.Root -> when (xpp.nameToken) {
+                XmlTagKDBX.Group -> {
+                    if (ctxGroups.size != 0)
+                        throw IOException("Group list should be empty.")
 
-                mDatabase.rootGroup = mDatabase.createGroup()
-                ctxGroups.push(mDatabase.rootGroup)
-                ctxGroup = ctxGroups.peek()
+                    mDatabase.rootGroup = mDatabase.createGroup()
+                    ctxGroups.push(mDatabase.rootGroup)
+                    ctxGroup = ctxGroups.peek()
 
-                return switchContext(ctx, KdbContext.Group, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemDeletedObjects, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.RootDeletedObjects, xpp)
-            } else {
-                readUnknown(xpp)
+                    return switchContext(ctx, KdbContext.Group, xpp)
+                }
+                XmlTagKDBX.DeletedObjects -> {
+                    return switchContext(ctx, KdbContext.RootDeletedObjects, xpp)
+                }
+                else -> readUnknown(xpp)
             }
 
-            KdbContext.Group -> if (name.equals(DatabaseKDBXXML.ElemUuid, ignoreCase = true)) {
-                ctxGroup?.nodeId = NodeIdUUID(readUuid(xpp))
-                ctxGroup?.let { mDatabase.addGroupIndex(it) }
-            } else if (name.equals(DatabaseKDBXXML.ElemName, ignoreCase = true)) {
-                ctxGroup?.title = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemNotes, ignoreCase = true)) {
-                ctxGroup?.notes = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemIcon, ignoreCase = true)) {
-                ctxGroup?.icon?.standard = mDatabase.getStandardIcon(readUInt(xpp, UnsignedInt(0)).toKotlinInt())
-            } else if (name.equals(DatabaseKDBXXML.ElemCustomIconID, ignoreCase = true)) {
-                ctxGroup?.icon?.custom = mDatabase.getCustomIcon(readUuid(xpp))
-            } else if (name.equals(DatabaseKDBXXML.ElemTags, ignoreCase = true)) {
-                ctxGroup?.tags = readTags(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemPreviousParentGroup, ignoreCase = true)) {
-                ctxGroup?.previousParentGroup = readUuid(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemTimes, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.GroupTimes, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemIsExpanded, ignoreCase = true)) {
-                ctxGroup?.isExpanded = readBool(xpp, true)
-            } else if (name.equals(DatabaseKDBXXML.ElemGroupDefaultAutoTypeSeq, ignoreCase = true)) {
-                ctxGroup?.defaultAutoTypeSequence = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemEnableAutoType, ignoreCase = true)) {
-                ctxGroup?.enableAutoType = readOptionalBool(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemEnableSearching, ignoreCase = true)) {
-                ctxGroup?.enableSearching = readOptionalBool(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemLastTopVisibleEntry, ignoreCase = true)) {
-                ctxGroup?.lastTopVisibleEntry = readUuid(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemCustomData, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.GroupCustomData, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemGroup, ignoreCase = true)) {
-                ctxGroup = mDatabase.createGroup()
-                val groupPeek = ctxGroups.peek()
-                ctxGroup?.let {
-                    groupPeek.addChildGroup(it)
-                    it.parent = groupPeek
-                    ctxGroups.push(it)
+            KdbContext.Group -> when (xpp.nameToken) {
+                XmlTagKDBX.Uuid -> {
+                    ctxGroup?.nodeId = NodeIdUUID(readUuid(xpp))
+                    ctxGroup?.let { addGroupIndex(it) }
+                }
+                XmlTagKDBX.Name -> ctxGroup?.title = readString(xpp)
+                XmlTagKDBX.Notes -> ctxGroup?.notes = readString(xpp)
+                XmlTagKDBX.Icon -> ctxGroup?.icon?.standard = mDatabase.getStandardIcon(readUInt(xpp, UnsignedInt(0)).toKotlinInt())
+                XmlTagKDBX.CustomIconID -> ctxGroup?.icon?.custom = mDatabase.getCustomIcon(readUuid(xpp))
+                XmlTagKDBX.Tags -> ctxGroup?.tags = readTags(xpp)
+                XmlTagKDBX.PreviousParentGroup -> ctxGroup?.previousParentGroup = readUuid(xpp)
+                XmlTagKDBX.Times -> {
+                    return switchContext(ctx, KdbContext.GroupTimes, xpp)
+                }
+                XmlTagKDBX.IsExpanded -> ctxGroup?.isExpanded = readBool(xpp, true)
+                XmlTagKDBX.GroupDefaultAutoTypeSeq -> ctxGroup?.defaultAutoTypeSequence = readString(xpp)
+                XmlTagKDBX.EnableAutoType -> ctxGroup?.enableAutoType = readOptionalBool(xpp)
+                XmlTagKDBX.EnableSearching -> ctxGroup?.enableSearching = readOptionalBool(xpp)
+                XmlTagKDBX.LastTopVisibleEntry -> ctxGroup?.lastTopVisibleEntry = readUuid(xpp)
+                XmlTagKDBX.CustomData -> {
+                    return switchContext(ctx, KdbContext.GroupCustomData, xpp)
                 }
+                XmlTagKDBX.Group -> {
+                    ctxGroup = mDatabase.createGroup()
+                    val groupPeek = ctxGroups.peek()
+                    ctxGroup?.let {
+                        groupPeek.addChildGroup(it)
+                        it.parent = groupPeek
+                        ctxGroups.push(it)
+                    }
 
-                return switchContext(ctx, KdbContext.Group, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemEntry, ignoreCase = true)) {
-                ctxEntry = mDatabase.createEntry()
-                ctxEntry?.let {
-                    ctxGroup?.addChildEntry(it)
-                    it.parent = ctxGroup
+                    return switchContext(ctx, KdbContext.Group, xpp)
                 }
+                XmlTagKDBX.Entry -> {
+                    ctxEntry = mDatabase.createEntry()
+                    ctxEntry?.let {
+                        ctxGroup?.addChildEntry(it)
+                        it.parent = ctxGroup
+                    }
 
-                entryInHistory = false
-                return switchContext(ctx, KdbContext.Entry, xpp)
-            } else {
-                readUnknown(xpp)
+                    entryInHistory = false
+                    return switchContext(ctx, KdbContext.Entry, xpp)
+                }
+                else -> readUnknown(xpp)
             }
-            KdbContext.GroupCustomData -> if (name.equals(DatabaseKDBXXML.ElemStringDictExItem, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.GroupCustomDataItem, xpp)
-            } else {
-                readUnknown(xpp)
+            KdbContext.GroupCustomData -> when (xpp.nameToken) {
+                XmlTagKDBX.StringDictExItem -> {
+                    return switchContext(ctx, KdbContext.GroupCustomDataItem, xpp)
+                }
+                else -> readUnknown(xpp)
             }
-            KdbContext.GroupCustomDataItem -> when {
-                name.equals(DatabaseKDBXXML.ElemKey, ignoreCase = true) -> groupCustomDataKey = readString(xpp)
-                name.equals(DatabaseKDBXXML.ElemValue, ignoreCase = true) -> groupCustomDataValue = readString(xpp)
-                name.equals(DatabaseKDBXXML.ElemLastModTime, ignoreCase = true) -> readDateInstant(xpp) // Ignore
+            KdbContext.GroupCustomDataItem -> when (xpp.nameToken) {
+                XmlTagKDBX.Key -> groupCustomDataKey = readString(xpp)
+                XmlTagKDBX.Value -> groupCustomDataValue = readString(xpp)
+                XmlTagKDBX.LastModTime -> readDateInstant(xpp) // Ignore
                 else -> readUnknown(xpp)
             }
 
 
-            KdbContext.Entry -> if (name.equals(DatabaseKDBXXML.ElemUuid, ignoreCase = true)) {
-                ctxEntry?.nodeId = NodeIdUUID(readUuid(xpp))
-            } else if (name.equals(DatabaseKDBXXML.ElemIcon, ignoreCase = true)) {
-                ctxEntry?.icon?.standard = mDatabase.getStandardIcon(readUInt(xpp, UnsignedInt(0)).toKotlinInt())
-            } else if (name.equals(DatabaseKDBXXML.ElemCustomIconID, ignoreCase = true)) {
-                ctxEntry?.icon?.custom = mDatabase.getCustomIcon(readUuid(xpp))
-            } else if (name.equals(DatabaseKDBXXML.ElemFgColor, ignoreCase = true)) {
-                ctxEntry?.foregroundColor = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemBgColor, ignoreCase = true)) {
-                ctxEntry?.backgroundColor = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemOverrideUrl, ignoreCase = true)) {
-                ctxEntry?.overrideURL = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemQualityCheck, ignoreCase = true)) {
-                ctxEntry?.qualityCheck = readBool(xpp, true)
-            } else if (name.equals(DatabaseKDBXXML.ElemTags, ignoreCase = true)) {
-                ctxEntry?.tags = readTags(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemPreviousParentGroup, ignoreCase = true)) {
-                ctxEntry?.previousParentGroup = readUuid(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemTimes, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.EntryTimes, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemString, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.EntryString, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemBinary, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.EntryBinary, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemAutoType, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.EntryAutoType, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemCustomData, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.EntryCustomData, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemHistory, ignoreCase = true)) {
-                if (!entryInHistory) {
-                    ctxHistoryBase = ctxEntry
-                    return switchContext(ctx, KdbContext.EntryHistory, xpp)
-                } else {
-                    readUnknown(xpp)
+            KdbContext.Entry -> when (xpp.nameToken) {
+                XmlTagKDBX.Uuid -> ctxEntry?.nodeId = NodeIdUUID(readUuid(xpp))
+                XmlTagKDBX.Icon -> ctxEntry?.icon?.standard = mDatabase.getStandardIcon(readUInt(xpp, UnsignedInt(0)).toKotlinInt())
+                XmlTagKDBX.CustomIconID -> ctxEntry?.icon?.custom = mDatabase.getCustomIcon(readUuid(xpp))
+                XmlTagKDBX.FgColor -> ctxEntry?.foregroundColor = readString(xpp)
+                XmlTagKDBX.BgColor -> ctxEntry?.backgroundColor = readString(xpp)
+                XmlTagKDBX.OverrideUrl -> ctxEntry?.overrideURL = readString(xpp)
+                XmlTagKDBX.QualityCheck -> ctxEntry?.qualityCheck = readBool(xpp, true)
+                XmlTagKDBX.Tags -> ctxEntry?.tags = readTags(xpp)
+                XmlTagKDBX.PreviousParentGroup -> ctxEntry?.previousParentGroup = readUuid(xpp)
+                XmlTagKDBX.Times -> {
+                    return switchContext(ctx, KdbContext.EntryTimes, xpp)
                 }
-            } else {
-                readUnknown(xpp)
+                XmlTagKDBX.String -> {
+                    return switchContext(ctx, KdbContext.EntryString, xpp)
+                }
+                XmlTagKDBX.Binary -> {
+                    return switchContext(ctx, KdbContext.EntryBinary, xpp)
+                }
+                XmlTagKDBX.AutoType -> {
+                    return switchContext(ctx, KdbContext.EntryAutoType, xpp)
+                }
+                XmlTagKDBX.CustomData -> {
+                    return switchContext(ctx, KdbContext.EntryCustomData, xpp)
+                }
+                XmlTagKDBX.History -> {
+                    if (!entryInHistory) {
+                        ctxHistoryBase = ctxEntry
+                        return switchContext(ctx, KdbContext.EntryHistory, xpp)
+                    } else {
+                        readUnknown(xpp)
+                    }
+                }
+                else -> readUnknown(xpp)
             }
-            KdbContext.EntryCustomData -> if (name.equals(DatabaseKDBXXML.ElemStringDictExItem, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.EntryCustomDataItem, xpp)
-            } else {
-                readUnknown(xpp)
+            KdbContext.EntryCustomData -> when (xpp.nameToken) {
+                XmlTagKDBX.StringDictExItem -> {
+                    return switchContext(ctx, KdbContext.EntryCustomDataItem, xpp)
+                }
+                else -> readUnknown(xpp)
             }
-            KdbContext.EntryCustomDataItem -> when {
-                name.equals(DatabaseKDBXXML.ElemKey, ignoreCase = true) -> entryCustomDataKey = readString(xpp)
-                name.equals(DatabaseKDBXXML.ElemValue, ignoreCase = true) -> entryCustomDataValue = readString(xpp)
-                name.equals(DatabaseKDBXXML.ElemLastModTime, ignoreCase = true) -> readDateInstant(xpp) // Ignore
+            KdbContext.EntryCustomDataItem -> when (xpp.nameToken) {
+                XmlTagKDBX.Key -> entryCustomDataKey = readString(xpp)
+                XmlTagKDBX.Value -> entryCustomDataValue = readString(xpp)
+                XmlTagKDBX.LastModTime -> readDateInstant(xpp) // Ignore
                 else -> readUnknown(xpp)
             }
 
@@ -636,77 +869,70 @@ class DatabaseInputKDBX(cacheDirectory: File,
                             ctxEntry
                         }
 
-                when {
-                    name.equals(DatabaseKDBXXML.ElemLastModTime, ignoreCase = true) -> tl?.lastModificationTime = readDateInstant(xpp)
-                    name.equals(DatabaseKDBXXML.ElemCreationTime, ignoreCase = true) -> tl?.creationTime = readDateInstant(xpp)
-                    name.equals(DatabaseKDBXXML.ElemLastAccessTime, ignoreCase = true) -> tl?.lastAccessTime = readDateInstant(xpp)
-                    name.equals(DatabaseKDBXXML.ElemExpiryTime, ignoreCase = true) -> tl?.expiryTime = readDateInstant(xpp)
-                    name.equals(DatabaseKDBXXML.ElemExpires, ignoreCase = true) -> tl?.expires = readBool(xpp, false)
-                    name.equals(DatabaseKDBXXML.ElemUsageCount, ignoreCase = true) -> tl?.usageCount = readULong(xpp, UnsignedLong(0))
-                    name.equals(DatabaseKDBXXML.ElemLocationChanged, ignoreCase = true) -> tl?.locationChanged = readDateInstant(xpp)
+                when (xpp.nameToken) {
+                    XmlTagKDBX.LastModTime -> tl?.lastModificationTime = readDateInstant(xpp)
+                    XmlTagKDBX.CreationTime -> tl?.creationTime = readDateInstant(xpp)
+                    XmlTagKDBX.LastAccessTime -> tl?.lastAccessTime = readDateInstant(xpp)
+                    XmlTagKDBX.ExpiryTime -> tl?.expiryTime = readDateInstant(xpp)
+                    XmlTagKDBX.Expires -> tl?.expires = readBool(xpp, false)
+                    XmlTagKDBX.UsageCount -> tl?.usageCount = readULong(xpp, UnsignedLong(0))
+                    XmlTagKDBX.LocationChanged -> tl?.locationChanged = readDateInstant(xpp)
                     else -> readUnknown(xpp)
                 }
             }
 
-            KdbContext.EntryString -> if (name.equals(DatabaseKDBXXML.ElemKey, ignoreCase = true)) {
-                ctxStringName = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemValue, ignoreCase = true)) {
-                ctxStringValue = readProtectedString(xpp)
-            } else {
-                readUnknown(xpp)
+            KdbContext.EntryString -> when (xpp.nameToken) {
+                XmlTagKDBX.Key -> ctxStringName = readString(xpp)
+                XmlTagKDBX.Value -> ctxStringValue = readProtectedString(xpp)
+                else -> readUnknown(xpp)
             }
 
-            KdbContext.EntryBinary -> if (name.equals(DatabaseKDBXXML.ElemKey, ignoreCase = true)) {
-                ctxBinaryName = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemValue, ignoreCase = true)) {
-                ctxBinaryValue = readBinary(xpp)
+            KdbContext.EntryBinary -> when (xpp.nameToken) {
+                XmlTagKDBX.Key -> ctxBinaryName = readString(xpp)
+                XmlTagKDBX.Value -> ctxBinaryValue = readBinary(xpp)
             }
 
-            KdbContext.EntryAutoType -> if (name.equals(DatabaseKDBXXML.ElemAutoTypeEnabled, ignoreCase = true)) {
-                ctxEntry?.autoType?.enabled = readBool(xpp, true)
-            } else if (name.equals(DatabaseKDBXXML.ElemAutoTypeObfuscation, ignoreCase = true)) {
-                ctxEntry?.autoType?.obfuscationOptions = readUInt(xpp, UnsignedInt(0))
-            } else if (name.equals(DatabaseKDBXXML.ElemAutoTypeDefaultSeq, ignoreCase = true)) {
-                ctxEntry?.autoType?.defaultSequence = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemAutoTypeItem, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.EntryAutoTypeItem, xpp)
-            } else {
-                readUnknown(xpp)
+            KdbContext.EntryAutoType -> when (xpp.nameToken) {
+                XmlTagKDBX.AutoTypeEnabled -> ctxEntry?.autoType?.enabled = readBool(xpp, true)
+                XmlTagKDBX.AutoTypeObfuscation -> ctxEntry?.autoType?.obfuscationOptions = readUInt(xpp, UnsignedInt(0))
+                XmlTagKDBX.AutoTypeDefaultSeq -> ctxEntry?.autoType?.defaultSequence = readString(xpp)
+                XmlTagKDBX.AutoTypeItem -> {
+                    return switchContext(ctx, KdbContext.EntryAutoTypeItem, xpp)
+                }
+                else -> readUnknown(xpp)
             }
 
-            KdbContext.EntryAutoTypeItem -> if (name.equals(DatabaseKDBXXML.ElemWindow, ignoreCase = true)) {
-                ctxATName = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemKeystrokeSequence, ignoreCase = true)) {
-                ctxATSeq = readString(xpp)
-            } else {
-                readUnknown(xpp)
+            KdbContext.EntryAutoTypeItem -> when (xpp.nameToken) {
+                XmlTagKDBX.Window -> ctxATName = readString(xpp)
+                XmlTagKDBX.KeystrokeSequence -> ctxATSeq = readString(xpp)
+                else -> readUnknown(xpp)
             }
 
-            KdbContext.EntryHistory -> if (name.equals(DatabaseKDBXXML.ElemEntry, ignoreCase = true)) {
-                ctxEntry = EntryKDBX()
-                ctxEntry?.let { ctxHistoryBase?.addEntryToHistory(it) }
+            KdbContext.EntryHistory -> when (xpp.nameToken) {
+                XmlTagKDBX.Entry -> {
+                    ctxEntry = EntryKDBX()
+                    ctxEntry?.let { ctxHistoryBase?.addEntryToHistory(it) }
 
-                entryInHistory = true
-                return switchContext(ctx, KdbContext.Entry, xpp)
-            } else {
-                readUnknown(xpp)
+                    entryInHistory = true
+                    return switchContext(ctx, KdbContext.Entry, xpp)
+                }
+                else -> readUnknown(xpp)
             }
 
-            KdbContext.RootDeletedObjects -> if (name.equals(DatabaseKDBXXML.ElemDeletedObject, ignoreCase = true)) {
-                ctxDeletedObject = DeletedObject()
-                ctxDeletedObject?.let { mDatabase.addDeletedObject(it) }
+            KdbContext.RootDeletedObjects -> when (xpp.nameToken) {
+                XmlTagKDBX.DeletedObject -> {
+                    ctxDeletedObject = DeletedObject()
+                    ctxDeletedObject?.let { mDatabase.addDeletedObject(it) }
 
-                return switchContext(ctx, KdbContext.DeletedObject, xpp)
-            } else {
-                readUnknown(xpp)
+                    return switchContext(ctx, KdbContext.DeletedObject, xpp)
+                }
+                else -> readUnknown(xpp)
             }
 
-            KdbContext.DeletedObject -> if (name.equals(DatabaseKDBXXML.ElemUuid, ignoreCase = true)) {
-                ctxDeletedObject?.uuid = readUuid(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemDeletionTime, ignoreCase = true)) {
-                ctxDeletedObject?.setDeletionTime(readDateInstant(xpp))
-            } else {
-                readUnknown(xpp)
+            KdbContext.DeletedObject -> when (xpp.nameToken) {
+                XmlTagKDBX.Uuid -> ctxDeletedObject?.uuid = readUuid(xpp)
+                XmlTagKDBX.DeletionTime -> ctxDeletedObject?.setDeletionTime(readDateInstant(xpp))
+                else -> readUnknown(xpp)
             }
         }
 
@@ -714,21 +940,21 @@ class DatabaseInputKDBX(cacheDirectory: File,
     }
 
     @Throws(XmlPullParserException::class)
-    private fun endXmlElement(ctx: KdbContext?, xpp: XmlPullParser): KdbContext {
+    private fun endXmlElement(ctx: KdbContext?, xpp: XmlReaderKDBX): KdbContext {
         // (xpp.getEventType() == XmlPullParser.END_TAG);
 
-        val name = xpp.name
-        if (ctx == KdbContext.KeePassFile && name.equals(DatabaseKDBXXML.ElemDocNode, ignoreCase = true)) {
+        val token = xpp.nameToken
+        if (ctx == KdbContext.KeePassFile && token == XmlTagKDBX.DocNode) {
             return KdbContext.Null
-        } else if (ctx == KdbContext.Meta && name.equals(DatabaseKDBXXML.ElemMeta, ignoreCase = true)) {
+        } else if (ctx == KdbContext.Meta && token == XmlTagKDBX.Meta) {
             return KdbContext.KeePassFile
-        } else if (ctx == KdbContext.Root && name.equals(DatabaseKDBXXML.ElemRoot, ignoreCase = true)) {
+        } else if (ctx == KdbContext.Root && token == XmlTagKDBX.Root) {
             return KdbContext.KeePassFile
-        } else if (ctx == KdbContext.MemoryProtection && name.equals(DatabaseKDBXXML.ElemMemoryProt, ignoreCase = true)) {
+        } else if (ctx == KdbContext.MemoryProtection && token == XmlTagKDBX.MemoryProt) {
             return KdbContext.Meta
-        } else if (ctx == KdbContext.CustomIcons && name.equals(DatabaseKDBXXML.ElemCustomIcons, ignoreCase = true)) {
+        } else if (ctx == KdbContext.CustomIcons && token == XmlTagKDBX.CustomIcons) {
             return KdbContext.Meta
-        } else if (ctx == KdbContext.CustomIcon && name.equals(DatabaseKDBXXML.ElemCustomIconItem, ignoreCase = true)) {
+        } else if (ctx == KdbContext.CustomIcon && token == XmlTagKDBX.CustomIconItem) {
             val iconData = customIconData
             if (customIconID != DatabaseVersioned.UUID_ZERO && iconData != null) {
                 mDatabase.addCustomIcon(customIconID,
@@ -745,11 +971,11 @@ class DatabaseInputKDBX(cacheDirectory: File,
             customIconLastModificationTime = null
             customIconData = null
             return KdbContext.CustomIcons
-        } else if (ctx == KdbContext.Binaries && name.equals(DatabaseKDBXXML.ElemBinaries, ignoreCase = true)) {
+        } else if (ctx == KdbContext.Binaries && token == XmlTagKDBX.Binaries) {
             return KdbContext.Meta
-        } else if (ctx == KdbContext.CustomData && name.equals(DatabaseKDBXXML.ElemCustomData, ignoreCase = true)) {
+        } else if (ctx == KdbContext.CustomData && token == XmlTagKDBX.CustomData) {
             return KdbContext.Meta
-        } else if (ctx == KdbContext.CustomDataItem && name.equals(DatabaseKDBXXML.ElemStringDictExItem, ignoreCase = true)) {
+        } else if (ctx == KdbContext.CustomDataItem && token == XmlTagKDBX.StringDictExItem) {
             customDataKey?.let { dataKey ->
                 customDataValue?.let { dataValue ->
                     mDatabase.customData.put(CustomDataItem(dataKey,
@@ -760,10 +986,10 @@ class DatabaseInputKDBX(cacheDirectory: File,
             customDataValue = null
             customDataLastModificationTime = null
             return KdbContext.CustomData
-        } else if (ctx == KdbContext.Group && name.equals(DatabaseKDBXXML.ElemGroup, ignoreCase = true)) {
+        } else if (ctx == KdbContext.Group && token == XmlTagKDBX.Group) {
             if (ctxGroup != null && ctxGroup?.id == DatabaseVersioned.UUID_ZERO) {
-                ctxGroup?.nodeId = mDatabase.newGroupId()
-                mDatabase.addGroupIndex(ctxGroup!!)
+                ctxGroup?.nodeId = newGroupId()
+                addGroupIndex(ctxGroup!!)
             }
 
             ctxGroups.pop()
@@ -775,11 +1001,11 @@ class DatabaseInputKDBX(cacheDirectory: File,
                 ctxGroup = ctxGroups.peek()
                 return KdbContext.Group
             }
-        } else if (ctx == KdbContext.GroupTimes && name.equals(DatabaseKDBXXML.ElemTimes, ignoreCase = true)) {
+        } else if (ctx == KdbContext.GroupTimes && token == XmlTagKDBX.Times) {
             return KdbContext.Group
-        } else if (ctx == KdbContext.GroupCustomData && name.equals(DatabaseKDBXXML.ElemCustomData, ignoreCase = true)) {
+        } else if (ctx == KdbContext.GroupCustomData && token == XmlTagKDBX.CustomData) {
             return KdbContext.Group
-        } else if (ctx == KdbContext.GroupCustomDataItem && name.equals(DatabaseKDBXXML.ElemStringDictExItem, ignoreCase = true)) {
+        } else if (ctx == KdbContext.GroupCustomDataItem && token == XmlTagKDBX.StringDictExItem) {
             groupCustomDataKey?.let { customDataKey ->
                 groupCustomDataValue?.let { customDataValue ->
                     ctxGroup?.customData?.put(CustomDataItem(customDataKey, customDataValue))
@@ -789,49 +1015,51 @@ class DatabaseInputKDBX(cacheDirectory: File,
             groupCustomDataValue = null
             return KdbContext.GroupCustomData
 
-        } else if (ctx == KdbContext.Entry && name.equals(DatabaseKDBXXML.ElemEntry, ignoreCase = true)) {
+        } else if (ctx == KdbContext.Entry && token == XmlTagKDBX.Entry) {
 
             if (ctxEntry?.id == DatabaseVersioned.UUID_ZERO)
-                ctxEntry?.nodeId = mDatabase.newEntryId()
+                ctxEntry?.nodeId = newEntryId()
 
             if (entryInHistory) {
                 ctxEntry = ctxHistoryBase
                 return KdbContext.EntryHistory
             } else if (ctxEntry != null) {
                 // Add entry to the index only when close the XML element
-                mDatabase.addEntryIndex(ctxEntry!!)
+                addEntryIndex(ctxEntry!!)
             }
 
             return KdbContext.Group
-        } else if (ctx == KdbContext.EntryTimes && name.equals(DatabaseKDBXXML.ElemTimes, ignoreCase = true)) {
+        } else if (ctx == KdbContext.EntryTimes && token == XmlTagKDBX.Times) {
             return KdbContext.Entry
-        } else if (ctx == KdbContext.EntryString && name.equals(DatabaseKDBXXML.ElemString, ignoreCase = true)) {
+        } else if (ctx == KdbContext.EntryString && token == XmlTagKDBX.String) {
             if (ctxStringName != null && ctxStringValue != null)
                 ctxEntry?.putField(ctxStringName!!, ctxStringValue!!)
             ctxStringName = null
             ctxStringValue = null
 
             return KdbContext.Entry
-        } else if (ctx == KdbContext.EntryBinary && name.equals(DatabaseKDBXXML.ElemBinary, ignoreCase = true)) {
+        } else if (ctx == KdbContext.EntryBinary && token == XmlTagKDBX.Binary) {
             if (ctxBinaryName != null && ctxBinaryValue != null) {
-                ctxEntry?.putAttachment(Attachment(ctxBinaryName!!, ctxBinaryValue!!), mDatabase.attachmentPool)
+                synchronized(mDatabase.attachmentPool) {
+                    ctxEntry?.putAttachment(Attachment(ctxBinaryName!!, ctxBinaryValue!!), mDatabase.attachmentPool)
+                }
             }
             ctxBinaryName = null
             ctxBinaryValue = null
 
             return KdbContext.Entry
-        } else if (ctx == KdbContext.EntryAutoType && name.equals(DatabaseKDBXXML.ElemAutoType, ignoreCase = true)) {
+        } else if (ctx == KdbContext.EntryAutoType && token == XmlTagKDBX.AutoType) {
             return KdbContext.Entry
-        } else if (ctx == KdbContext.EntryAutoTypeItem && name.equals(DatabaseKDBXXML.ElemAutoTypeItem, ignoreCase = true)) {
+        } else if (ctx == KdbContext.EntryAutoTypeItem && token == XmlTagKDBX.AutoTypeItem) {
             if (ctxATName != null && ctxATSeq != null)
                 ctxEntry?.autoType?.add(ctxATName!!, ctxATSeq!!)
             ctxATName = null
             ctxATSeq = null
 
             return KdbContext.EntryAutoType
-        } else if (ctx == KdbContext.EntryCustomData && name.equals(DatabaseKDBXXML.ElemCustomData, ignoreCase = true)) {
+        } else if (ctx == KdbContext.EntryCustomData && token == XmlTagKDBX.CustomData) {
             return KdbContext.Entry
-        } else if (ctx == KdbContext.EntryCustomDataItem && name.equals(DatabaseKDBXXML.ElemStringDictExItem, ignoreCase = true)) {
+        } else if (ctx == KdbContext.EntryCustomDataItem && token == XmlTagKDBX.StringDictExItem) {
             entryCustomDataKey?.let { customDataKey ->
                 entryCustomDataValue?.let { customDataValue ->
                     ctxEntry?.customData?.put(CustomDataItem(customDataKey, customDataValue))
@@ -840,12 +1068,12 @@ class DatabaseInputKDBX(cacheDirectory: File,
             entryCustomDataKey = null
             entryCustomDataValue = null
             return KdbContext.EntryCustomData
-        } else if (ctx == KdbContext.EntryHistory && name.equals(DatabaseKDBXXML.ElemHistory, ignoreCase = true)) {
+        } else if (ctx == KdbContext.EntryHistory && token == XmlTagKDBX.History) {
             entryInHistory = false
             return KdbContext.Entry
-        } else if (ctx == KdbContext.RootDeletedObjects && name.equals(DatabaseKDBXXML.ElemDeletedObjects, ignoreCase = true)) {
+        } else if (ctx == KdbContext.RootDeletedObjects && token == XmlTagKDBX.DeletedObjects) {
             return KdbContext.Root
-        } else if (ctx == KdbContext.DeletedObject && name.equals(DatabaseKDBXXML.ElemDeletedObject, ignoreCase = true)) {
+        } else if (ctx == KdbContext.DeletedObject && token == XmlTagKDBX.DeletedObject) {
             ctxDeletedObject = null
             return KdbContext.RootDeletedObjects
         } else {
@@ -853,46 +1081,36 @@ class DatabaseInputKDBX(cacheDirectory: File,
             if (ctx != null) {
                 contextName = ctx.name
             }
-            throw RuntimeException("Invalid end element: Context " + contextName + "End element: " + name)
+            throw RuntimeException("Invalid end element: Context " + contextName + "End element: " + xpp.name)
         }
     }
 
     @Throws(IOException::class, XmlPullParserException::class)
-    private fun readDateInstant(xpp: XmlPullParser): DateInstant {
-        val sDate = readString(xpp)
-        var utcDate: Date? = null
-
-        if (mDatabase.kdbxVersion.isBefore(FILE_VERSION_40)) {
-            try {
-                utcDate = DatabaseKDBXXML.DateFormatter.parse(sDate)
-            } catch (e: ParseException) {
-                // Catch with null test below
-            }
-        } else {
-            var buf = Base64.decode(sDate, BASE_64_FLAG)
-            if (buf.size != 8) {
-                val buf8 = ByteArray(8)
-                System.arraycopy(buf, 0, buf8, 0, min(buf.size, 8))
-                buf = buf8
+    private fun readDateInstant(xpp: XmlReaderKDBX): DateInstant {
+        val utcDate = readValue(xpp) { chars, offset, length ->
+            if (mDatabase.kdbxVersion.isBefore(FILE_VERSION_40)) {
+                XmlValueDecoderKDBX.isoDateToDate(chars, offset, length)
+            } else {
+                val seconds = XmlValueDecoderKDBX.base64ToLong(chars, offset, length)
+                DateKDBXUtil.convertKDBX4Time(seconds)
             }
-
-            val seconds = bytes64ToLong(buf)
-            utcDate = DateKDBXUtil.convertKDBX4Time(seconds)
         }
 
         return DateInstant(utcDate ?: Date(0L))
     }
 
     @Throws(IOException::class, XmlPullParserException::class)
-    private fun readTags(xpp: XmlPullParser): Tags {
+    private fun readTags(xpp: XmlReaderKDBX): Tags {
         return Tags(readString(xpp))
     }
 
     @Throws(XmlPullParserException::class, IOException::class)
-    private fun readUnknown(xpp: XmlPullParser) {
+    private fun readUnknown(xpp: XmlReaderKDBX) {
         if (xpp.isEmptyElementTag) return
 
-        readProtectedBase64String(xpp)
+        val length = readProtectedValue(xpp)
+        if (length > 0)
+            Arrays.fill(protectedBuffer, 0, length, 0)
         while (xpp.next() != XmlPullParser.END_DOCUMENT) {
             if (xpp.eventType == XmlPullParser.END_TAG) break
             if (xpp.eventType == XmlPullParser.START_TAG) continue
@@ -902,120 +1120,96 @@ class DatabaseInputKDBX(cacheDirectory: File,
     }
 
     @Throws(IOException::class, XmlPullParserException::class)
-    private fun readBool(xpp: XmlPullParser, bDefault: Boolean): Boolean {
-        val str = readString(xpp)
-
-        return when {
-            str.equals(DatabaseKDBXXML.ValTrue, ignoreCase = true) -> true
-            str.equals(DatabaseKDBXXML.ValFalse, ignoreCase = true) -> false
-            else -> bDefault
+    private fun readBool(xpp: XmlReaderKDBX, bDefault: Boolean): Boolean {
+        return readValue(xpp) { chars, offset, length ->
+            XmlValueDecoderKDBX.toBoolean(chars, offset, length, bDefault) ?: bDefault
         }
     }
 
     @Throws(IOException::class, XmlPullParserException::class)
-    private fun readOptionalBool(xpp: XmlPullParser, bDefault: Boolean? = null): Boolean? {
-        val str = readString(xpp)
-
-        return when {
-            str.equals(DatabaseKDBXXML.ValTrue, ignoreCase = true) -> true
-            str.equals(DatabaseKDBXXML.ValFalse, ignoreCase = true) -> false
-            str.equals(DatabaseKDBXXML.ValNull, ignoreCase = true) -> null
-            else -> bDefault
+    private fun readOptionalBool(xpp: XmlReaderKDBX, bDefault: Boolean? = null): Boolean? {
+        return readValue(xpp) { chars, offset, length ->
+            if (XmlValueDecoderKDBX.isNull(chars, offset, length))
+                null
+            else
+                XmlValueDecoderKDBX.toBoolean(chars, offset, length, bDefault)
         }
     }
 
     @Throws(IOException::class, XmlPullParserException::class)
-    private fun readUuid(xpp: XmlPullParser): UUID {
-        val encoded = readString(xpp)
-
-        if (encoded.isEmpty()) {
-            return DatabaseVersioned.UUID_ZERO
-        }
-
-        return try {
-            val buf = Base64.decode(encoded, BASE_64_FLAG)
-            bytes16ToUuid(buf)
-        } catch (e: Exception) {
-            Log.e(TAG, "Unable to read base 64 UUID, create a random one", e)
-            UUID.randomUUID()
+    private fun readUuid(xpp: XmlReaderKDBX): UUID {
+        return readValue(xpp) { chars, offset, length ->
+            if (length == 0) {
+                DatabaseVersioned.UUID_ZERO
+            } else {
+                XmlValueDecoderKDBX.base64ToUuid(chars, offset, length) ?: run {
+                    Log.e(TAG, "Unable to read base 64 UUID, create a random one")
+                    UUID.randomUUID()
+                }
+            }
         }
     }
 
     @Throws(IOException::class, XmlPullParserException::class)
-    private fun readInt(xpp: XmlPullParser, default: Int): Int {
-        return try {
-            readString(xpp).toInt()
-        } catch (e: Exception) {
-            default
+    private fun readInt(xpp: XmlReaderKDBX, default: Int): Int {
+        return readValue(xpp) { chars, offset, length ->
+            XmlValueDecoderKDBX.toInt(chars, offset, length, default)
         }
     }
 
     @Throws(IOException::class, XmlPullParserException::class)
-    private fun readUInt(xpp: XmlPullParser, default: UnsignedInt): UnsignedInt {
-        return try {
-            UnsignedInt(readString(xpp).toInt())
-        } catch (e: Exception) {
-            default
+    private fun readUInt(xpp: XmlReaderKDBX, default: UnsignedInt): UnsignedInt {
+        return readValue(xpp) { chars, offset, length ->
+            UnsignedInt(XmlValueDecoderKDBX.toInt(chars, offset, length, default.toKotlinInt()))
         }
     }
 
     @Throws(IOException::class, XmlPullParserException::class)
-    private fun readLong(xpp: XmlPullParser, default: Long): Long {
-        return try {
-            readString(xpp).toLong()
-        } catch (e: Exception) {
-            default
+    private fun readLong(xpp: XmlReaderKDBX, default: Long): Long {
+        return readValue(xpp) { chars, offset, length ->
+            XmlValueDecoderKDBX.toLong(chars, offset, length, default)
         }
     }
 
     @Throws(IOException::class, XmlPullParserException::class)
-    private fun readULong(xpp: XmlPullParser, default: UnsignedLong): UnsignedLong {
-        return try {
-            UnsignedLong(readString(xpp).toLong())
-        } catch (e: Exception) {
-            default
+    private fun readULong(xpp: XmlReaderKDBX, default: UnsignedLong): UnsignedLong {
+        return readValue(xpp) { chars, offset, length ->
+            UnsignedLong(XmlValueDecoderKDBX.toLong(chars, offset, length, default.toKotlinLong()))
         }
     }
 
     @Throws(XmlPullParserException::class, IOException::class)
-    private fun readProtectedString(xpp: XmlPullParser): ProtectedString {
-        val buf = readProtectedBase64String(xpp)
-
-        if (buf != null) {
-            try {
-                return ProtectedString(true, String(buf, Charset.forName("UTF-8")))
-            } catch (e: UnsupportedEncodingException) {
-                e.printStackTrace()
-                throw IOException(e.localizedMessage)
-            }
+    private fun readProtectedString(xpp: XmlReaderKDBX): ProtectedString {
+        val length = readProtectedValue(xpp)
+        if (length >= 0) {
+            return ProtectedString(true, protectedValueToString(length))
         }
 
         return ProtectedString(false, readString(xpp))
     }
 
     @Throws(XmlPullParserException::class, IOException::class)
-    private fun readBinary(xpp: XmlPullParser): BinaryData? {
+    private fun readBinary(xpp: XmlReaderKDBX): BinaryData? {
 
         // Reference Id to a binary already present in binary pool
-        val ref = xpp.getAttributeValue(null, DatabaseKDBXXML.AttrRef)
+        val ref = xpp.getAttributeValue(DatabaseKDBXXML.AttrRef)
         // New id to a binary
-        val key = xpp.getAttributeValue(null, DatabaseKDBXXML.AttrId)
+        val key = xpp.getAttributeValue(DatabaseKDBXXML.AttrId)
 
         return when {
             ref != null -> {
                 xpp.next() // Consume end tag
                 val id = Integer.parseInt(ref)
-                // A ref is not necessarily an index in Database V3.1
-                var binaryRetrieve = mDatabase.attachmentPool[id]
-                // Create empty binary if not retrieved in pool
-                if (binaryRetrieve == null) {
-                    binaryRetrieve = mDatabase.buildNewAttachment(
+                // The attachments are shared by the parsing workers
+                synchronized(mDatabase.attachmentPool) {
+                    // A ref is not necessarily an index in Database V3.1
+                    // Create empty binary if not retrieved in pool
+                    mDatabase.attachmentPool[id] ?: mDatabase.buildNewAttachment(
                             smallSize = false,
                             compression = false,
                             protection = false,
                             binaryPoolId = id)
                 }
-                return binaryRetrieve
             }
             key != null -> {
                 createBinary(key.toIntOrNull(), xpp)
@@ -1027,29 +1221,103 @@ class DatabaseInputKDBX(cacheDirectory: File,
         }
     }
 
+    /**
+     * Add a new attachment in the pool shared by the parsing workers,
+     * the lock is only held to allocate its key, not to write its data
+     */
+    private fun buildNewAttachment(smallSize: Boolean,
+                                   compression: Boolean,
+                                   protection: Boolean,
+                                   binaryPoolId: Int?): BinaryData {
+        synchronized(mDatabase.attachmentPool) {
+            return mDatabase.buildNewAttachment(smallSize, compression, protection, binaryPoolId)
+        }
+    }
+
     @Throws(IOException::class, XmlPullParserException::class)
-    private fun createBinary(binaryId: Int?, xpp: XmlPullParser): BinaryData? {
+    private fun createBinary(binaryId: Int?, xpp: XmlReaderKDBX): BinaryData? {
         var compressed = false
         var protected = true
+        var innerStreamProtected = false
 
         if (xpp.attributeCount > 0) {
-            val compress = xpp.getAttributeValue(null, DatabaseKDBXXML.AttrCompressed)
+            val compress = xpp.getAttributeValue(DatabaseKDBXXML.AttrCompressed)
             if (compress != null) {
                 compressed = compress.equals(DatabaseKDBXXML.ValTrue, ignoreCase = true)
             }
 
-            val protect = xpp.getAttributeValue(null, DatabaseKDBXXML.AttrProtected)
+            val protect = xpp.getAttributeValue(DatabaseKDBXXML.AttrProtected)
             if (protect != null) {
                 protected = protect.equals(DatabaseKDBXXML.ValTrue, ignoreCase = true)
+                innerStreamProtected = protected
+            }
+        }
+
+        // A value protected by the inner stream is deciphered as a whole
+        if (innerStreamProtected) {
+            return createBinary(binaryId, readString(xpp), compressed, protected)
+        }
+
+        // Else the Base64 text is decoded by chunks straight into the binary
+        var binaryAttachment: BinaryData? = null
+        var outputStream: OutputStream? = null
+        try {
+            xpp.nextTextChunks { chars, length, last ->
+                if (binaryAttachment == null) {
+                    // The size is only known if the whole text fits in the first chunk
+                    val binary = buildNewAttachment(
+                            last && isRAMSufficient.invoke(length.toLong()),
+                            compressed, protected, binaryId)
+                    binaryAttachment = binary
+                    outputStream = Base64OutputStream(
+                            binary.getOutputDataStream(mDatabase.binaryCache), BASE_64_FLAG, false)
+                }
+                outputStream?.let { output ->
+                    if (binaryChunkBuffer.size < length)
+                        binaryChunkBuffer = ByteArray(length)
+                    // Only ASCII can be Base64, the other characters are skipped
+                    // as their UTF-8 bytes were by Base64.decode, instead of being truncated
+                    var byteLength = 0
+                    for (i in 0 until length) {
+                        val char = chars[i]
+                        if (char.toInt() < 0x80) {
+                            binaryChunkBuffer[byteLength++] = char.toByte()
+                        }
+                    }
+                    try {
+                        output.write(binaryChunkBuffer, 0, byteLength)
+                    } catch (e: IOException) {
+                        // Keep reading the document, the end of the binary is lost
+                        Log.e(TAG, "Unable to read base 64 attachment", e)
+                        binaryAttachment?.isCorrupted = true
+                        outputStream = null
+                        try {
+                            output.close()
+                        } catch (ignored: IOException) {}
+                    }
+                }
+            }
+        } finally {
+            try {
+                outputStream?.close()
+            } catch (e: IOException) {
+                Log.e(TAG, "Unable to read base 64 attachment", e)
+                binaryAttachment?.isCorrupted = true
             }
         }
+        return binaryAttachment
+    }
 
-        val base64 = readString(xpp)
+    @Throws(IOException::class)
+    private fun createBinary(binaryId: Int?,
+                             base64: String,
+                             compressed: Boolean,
+                             protected: Boolean): BinaryData? {
         if (base64.isEmpty())
             return null
 
         // Build the new binary and compress
-        val binaryAttachment = mDatabase.buildNewAttachment(
+        val binaryAttachment = buildNewAttachment(
                 isRAMSufficient.invoke(base64.length.toLong()), compressed, protected, binaryId)
         try {
             binaryAttachment.getOutputDataStream(mDatabase.binaryCache).use { outputStream ->
@@ -1065,39 +1333,69 @@ class DatabaseInputKDBX(cacheDirectory: File,
         return binaryAttachment
     }
 
+    /**
+     * Decode a typed value from the characters of the reader without building a string,
+     * a protected value is deciphered first as in [readString]
+     */
     @Throws(IOException::class, XmlPullParserException::class)
-    private fun readString(xpp: XmlPullParser): String {
-        val buf = readProtectedBase64String(xpp)
+    private inline fun <T> readValue(xpp: XmlReaderKDBX,
+                                     decode: (chars: CharArray, offset: Int, length: Int) -> T): T {
+        val length = readProtectedValue(xpp)
+        if (length >= 0) {
+            val chars = protectedValueToString(length).toCharArray()
+            return decode(chars, 0, chars.size)
+        }
+        // Read first, the character array may be reallocated by the reading
+        val textLength = xpp.nextTextCharacters()
+        return decode(xpp.textCharacters, 0, textLength)
+    }
 
-        if (buf != null) {
-            try {
-                return String(buf, Charset.forName("UTF-8"))
-            } catch (e: UnsupportedEncodingException) {
-                throw IOException(e)
-            }
+    @Throws(IOException::class, XmlPullParserException::class)
+    private fun readString(xpp: XmlReaderKDBX): String {
+        val length = readProtectedValue(xpp)
+        if (length >= 0) {
+            return protectedValueToString(length)
         }
 
-        return xpp.safeNextText()
+        return xpp.nextText()
     }
 
 
+    /**
+     * Decipher the value of the current tag if it's protected, in a single pass from the
+     * characters of the reader through Base64 and the inner stream into [protectedBuffer].
+     * Return the number of bytes deciphered, or -1 if the value is not protected
+     */
     @Throws(XmlPullParserException::class, IOException::class)
-    private fun readProtectedBase64String(xpp: XmlPullParser): ByteArray? {
+    private fun readProtectedValue(xpp: XmlReaderKDBX): Int {
         if (xpp.attributeCount > 0) {
-            val protect = xpp.getAttributeValue(null, DatabaseKDBXXML.AttrProtected)
+            val protect = xpp.getAttributeValue(DatabaseKDBXXML.AttrProtected)
             if (protect != null && protect.equals(DatabaseKDBXXML.ValTrue, ignoreCase = true)) {
-                Base64.decode(xpp.safeNextText(), BASE_64_FLAG)?.let { data ->
-                    return randomStream?.processBytes(data)
-                }
-                return ByteArray(0)
+                val textLength = xpp.nextTextCharacters()
+                val maxSize = XmlValueDecoderKDBX.base64DecodedMaxSize(textLength)
+                if (protectedBuffer.size < maxSize)
+                    protectedBuffer = ByteArray(max(maxSize, protectedBuffer.size * 2))
+                val length = XmlValueDecoderKDBX.base64ToBytes(xpp.textCharacters, 0, textLength,
+                        protectedBuffer)
+                randomStream?.processBytes(protectedBuffer, 0, length)
+                return length
             }
         }
-        return null
+        return -1
+    }
+
+    /**
+     * Build the string of the [length] deciphered bytes of [protectedBuffer] and clear them
+     */
+    private fun protectedValueToString(length: Int): String {
+        val value = String(protectedBuffer, 0, length, Charsets.UTF_8)
+        Arrays.fill(protectedBuffer, 0, length, 0)
+        return value
     }
 
     @Throws(XmlPullParserException::class, IOException::class)
     private fun switchContext(ctxCurrent: KdbContext, ctxNew: KdbContext,
-                              xpp: XmlPullParser): KdbContext {
+                              xpp: XmlReaderKDBX): KdbContext {
 
         if (xpp.isEmptyElementTag) {
             xpp.next()  // Consume the end tag
@@ -1106,20 +1404,71 @@ class DatabaseInputKDBX(cacheDirectory: File,
         return ctxNew
     }
 
+    /**
+     * Stream the first [prefixLength] bytes of [prefix] then the [stream],
+     * the prefix is released as soon as it's read
+     */
+    private class PrefixedInputStream(private var prefix: ByteArray?,
+                                      private val prefixLength: Int,
+                                      private val stream: InputStream) : InputStream() {
+
+        private var position = 0
+
+        override fun read(): Int {
+            val buffer = prefix ?: return stream.read()
+            val value = buffer[position++].toInt() and 0xFF
+            if (position == prefixLength)
+                prefix = null
+            return value
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            val buffer = prefix ?: return stream.read(b, off, len)
+            if (len == 0)
+                return 0
+            val length = min(len, prefixLength - position)
+            System.arraycopy(buffer, position, b, off, length)
+            position += length
+            if (position == prefixLength)
+                prefix = null
+            return length
+        }
+
+        override fun available(): Int {
+            return if (prefix != null) prefixLength - position else stream.available()
+        }
+
+        override fun close() {
+            prefix = null
+            stream.close()
+        }
+    }
+
     companion object {
 
         private val TAG = DatabaseInputKDBX::class.java.name
 
         private val DEFAULT_HISTORY_DAYS = UnsignedInt(365)
-    }
 
-}
+        private val PARALLEL_PARSING_THREADS = Runtime.getRuntime().availableProcessors().coerceIn(1, 8)
+        // More tasks than threads to balance the subtrees of different complexity
+        private const val TASKS_PER_THREAD = 4
+        private const val MIN_PARALLEL_XML_SIZE = 256 * 1024
+        // Fraction of the heap allowed by default for the document to split
+        private const val PARALLEL_XML_MEMORY_DIVISOR = 8
+        private const val MAX_ARRAY_SIZE = Int.MAX_VALUE - 8
+
+        private val parseExecutor: ExecutorService by lazy {
+            Executors.newFixedThreadPool(PARALLEL_PARSING_THREADS) { runnable ->
+                Thread(runnable, "ParseKDBX").apply {
+                    isDaemon = true
+                }
+            }
+        }
 
-@Throws(IOException::class, XmlPullParserException::class)
-fun XmlPullParser.safeNextText(): String {
-    val result = nextText()
-    if (eventType != XmlPullParser.END_TAG) {
-        nextTag()
+        const val STAGE_DECRYPT = "decrypt"
+        const val STAGE_INFLATE = "inflate"
+        const val STAGE_PARSE = "parse"
     }
-    return result
+
 }
@@ -0,0 +1,603 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.file.input
+
+import com.kunzisoft.keepass.database.file.XmlTagKDBX
+import org.xmlpull.v1.XmlPullParser
+import org.xmlpull.v1.XmlPullParserException
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Pull reader of the KDBX XML document, reading the UTF-8 bytes directly.
+ * It follows the events of a non namespace aware [XmlPullParser] with [next],
+ * but each tag is identified by its [nameToken] instead of a new name string,
+ * and the text and attribute values are decoded in reused buffers.
+ * The DTD, comments and processing instructions are skipped.
+ */
+class XmlReaderKDBX(private val inputStream: InputStream,
+                    bufferSize: Int = DEFAULT_BUFFER_SIZE) {
+
+    // Large enough to look ahead of the longest markup delimiter
+    private val buffer = ByteArray(bufferSize.coerceAtLeast(MIN_BUFFER_SIZE))
+    private var position = 0
+    private var limit = 0
+    private var endOfStream = false
+
+    private var nameBytes = ByteArray(64)
+    private var nameLength = 0
+
+    private var textChars = CharArray(1024)
+    private var textWhitespace = true
+    // Receives the full text buffers instead of growing them
+    private var textChunkListener: ((chars: CharArray, length: Int, last: Boolean) -> Unit)? = null
+
+    // Names and values of the attributes, stored as ranges of the same char buffer
+    private var attributeChars = CharArray(256)
+    private var attributeCharsLength = 0
+    private var attributeRanges = IntArray(4 * 4)
+
+    // Tokens of the open elements
+    private var elementTokens = IntArray(32)
+    private var depth = 0
+    private var pendingEndTag = false
+
+    /**
+     * Type of the current event, one of the [XmlPullParser] event constants
+     */
+    var eventType = XmlPullParser.START_DOCUMENT
+        private set
+
+    /**
+     * Token of the current tag, [XmlTagKDBX.Unknown] if it's not a KDBX element
+     */
+    var nameToken = XmlTagKDBX.Unknown
+        private set
+
+    /**
+     * True if the current start tag is empty, its end tag is the next event
+     */
+    var isEmptyElementTag = false
+        private set
+
+    var attributeCount = 0
+        private set
+
+    /**
+     * Name of the current tag, built only on demand
+     */
+    val name: String
+        get() = if (nameToken != XmlTagKDBX.Unknown)
+            XmlTagKDBX.name(nameToken)
+        else
+            String(nameBytes, 0, nameLength, Charsets.UTF_8)
+
+    /**
+     * Text of the current text event
+     */
+    val text: String
+        get() = String(textChars, 0, textLength)
+
+    /**
+     * Characters of the current text, only the first [textLength] ones are valid
+     * and the array is reused by the next events
+     */
+    val textCharacters: CharArray
+        get() = textChars
+
+    var textLength = 0
+        private set
+
+    /**
+     * Value of the attribute [attributeName] of the current start tag, null if not present
+     */
+    fun getAttributeValue(attributeName: String): String? {
+        for (i in 0 until attributeCount) {
+            val nameStart = attributeRanges[4 * i]
+            val nameEnd = attributeRanges[4 * i + 1]
+            if (nameEnd - nameStart == attributeName.length
+                    && regionMatches(attributeChars, nameStart, attributeName)) {
+                val valueStart = attributeRanges[4 * i + 2]
+                return String(attributeChars, valueStart, attributeRanges[4 * i + 3] - valueStart)
+            }
+        }
+        return null
+    }
+
+    /**
+     * Move to the next start tag, end tag, text or end of document event
+     */
+    @Throws(XmlPullParserException::class, IOException::class)
+    fun next(): Int {
+        attributeCount = 0
+        isEmptyElementTag = false
+        if (eventType == XmlPullParser.START_DOCUMENT && startsWith(BYTE_ORDER_MARK)) {
+            position += BYTE_ORDER_MARK.size
+        }
+        if (pendingEndTag) {
+            pendingEndTag = false
+            depth--
+            eventType = XmlPullParser.END_TAG
+            return eventType
+        }
+        while (true) {
+            if (!ensure(1)) {
+                if (depth != 0)
+                    throw XmlPullParserException("Unexpected end of document")
+                eventType = XmlPullParser.END_DOCUMENT
+                return eventType
+            }
+            if (buffer[position] != LT || startsWith(CDATA_START)) {
+                readText()
+                // Whitespaces around the root element are not reported
+                if (depth == 0 && textWhitespace)
+                    continue
+                eventType = XmlPullParser.TEXT
+                return eventType
+            }
+            when {
+                startsWith(COMMENT_START) -> skipPast(COMMENT_END)
+                startsWith(PI_START) -> skipPast(PI_END)
+                startsWith(DECLARATION_START) -> skipPast(DECLARATION_END)
+                startsWith(END_TAG_START) -> {
+                    readEndTag()
+                    eventType = XmlPullParser.END_TAG
+                    return eventType
+                }
+                else -> {
+                    readStartTag()
+                    eventType = XmlPullParser.START_TAG
+                    return eventType
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the text of the current start tag and move to its end tag,
+     * an empty string is returned for an empty element
+     */
+    @Throws(XmlPullParserException::class, IOException::class)
+    fun nextText(): String {
+        nextTextCharacters()
+        return text
+    }
+
+    /**
+     * Same as [nextText] but keeps the text in [textCharacters] without building a string,
+     * return the [textLength]
+     */
+    @Throws(XmlPullParserException::class, IOException::class)
+    fun nextTextCharacters(): Int {
+        if (eventType != XmlPullParser.START_TAG)
+            throw XmlPullParserException("Start tag expected to read a text")
+        var event = next()
+        if (event == XmlPullParser.TEXT) {
+            event = next()
+        } else {
+            textLength = 0
+        }
+        if (event != XmlPullParser.END_TAG)
+            throw XmlPullParserException("End tag expected after the text of $name")
+        return textLength
+    }
+
+    /**
+     * Same as [nextText] but the text is given to [listener] by chunks of the text buffer,
+     * at least [TEXT_CHUNK_SIZE] characters, so a large text is never held entirely in memory.
+     * The [listener] is not called for an empty element
+     */
+    @Throws(XmlPullParserException::class, IOException::class)
+    fun nextTextChunks(listener: (chars: CharArray, length: Int, last: Boolean) -> Unit) {
+        if (eventType != XmlPullParser.START_TAG)
+            throw XmlPullParserException("Start tag expected to read a text")
+        if (textChars.size < TEXT_CHUNK_SIZE)
+            textChars = CharArray(TEXT_CHUNK_SIZE)
+        textChunkListener = listener
+        var event = try {
+            next()
+        } finally {
+            textChunkListener = null
+        }
+        if (event == XmlPullParser.TEXT) {
+            if (textLength > 0)
+                listener(textChars, textLength, true)
+            event = next()
+        }
+        textLength = 0
+        if (event != XmlPullParser.END_TAG)
+            throw XmlPullParserException("End tag expected after the text of $name")
+    }
+
+    /*
+     * Tags
+     */
+
+    @Throws(XmlPullParserException::class, IOException::class)
+    private fun readStartTag() {
+        position++ // <
+        readName()
+        nameToken = XmlTagKDBX.token(nameBytes, nameLength)
+        attributeCharsLength = 0
+        while (true) {
+            skipWhitespaces()
+            when (read()) {
+                GT.toInt() -> break
+                SLASH.toInt() -> {
+                    if (read() != GT.toInt())
+                        throw XmlPullParserException("Malformed empty tag $name")
+                    isEmptyElementTag = true
+                    pendingEndTag = true
+                    break
+                }
+                -1 -> throw XmlPullParserException("Unexpected end of document in tag $name")
+                else -> {
+                    position--
+                    readAttribute()
+                }
+            }
+        }
+        if (depth == elementTokens.size)
+            elementTokens = elementTokens.copyOf(depth * 2)
+        elementTokens[depth++] = nameToken
+    }
+
+    @Throws(XmlPullParserException::class, IOException::class)
+    private fun readEndTag() {
+        position += END_TAG_START.size
+        readName()
+        nameToken = XmlTagKDBX.token(nameBytes, nameLength)
+        skipWhitespaces()
+        if (read() != GT.toInt())
+            throw XmlPullParserException("Malformed end tag $name")
+        // Unknown elements are only checked by their token
+        if (depth == 0 || elementTokens[depth - 1] != nameToken)
+            throw XmlPullParserException("Unexpected end tag $name")
+        depth--
+    }
+
+    @Throws(XmlPullParserException::class, IOException::class)
+    private fun readName() {
+        nameLength = 0
+        while (ensure(1)) {
+            val byte = buffer[position]
+            if (isWhitespace(byte) || byte == GT || byte == SLASH || byte == EQUALS)
+                break
+            if (nameLength == nameBytes.size)
+                nameBytes = nameBytes.copyOf(nameLength * 2)
+            nameBytes[nameLength++] = byte
+            position++
+        }
+        if (nameLength == 0)
+            throw XmlPullParserException("Tag name expected")
+    }
+
+    @Throws(XmlPullParserException::class, IOException::class)
+    private fun readAttribute() {
+        if (attributeCount * 4 == attributeRanges.size)
+            attributeRanges = attributeRanges.copyOf(attributeRanges.size * 2)
+        val range = attributeCount * 4
+        // Name
+        attributeRanges[range] = attributeCharsLength
+        while (ensure(1)) {
+            val byte = buffer[position]
+            if (isWhitespace(byte) || byte == EQUALS || byte == GT || byte == SLASH)
+                break
+            position++
+            readChar(byte.toInt() and 0xFF, false)
+        }
+        attributeRanges[range + 1] = attributeCharsLength
+        skipWhitespaces()
+        if (read() != EQUALS.toInt())
+            throw XmlPullParserException("Attribute value expected in tag $name")
+        skipWhitespaces()
+        // Value
+        val quote = read()
+        if (quote != QUOTE.toInt() && quote != APOSTROPHE.toInt())
+            throw XmlPullParserException("Quoted attribute value expected in tag $name")
+        attributeRanges[range + 2] = attributeCharsLength
+        while (true) {
+            val char = read()
+            when {
+                char == quote -> break
+                char < 0 -> throw XmlPullParserException("Unexpected end of document in tag $name")
+                char == AMPERSAND.toInt() -> readEntity(false)
+                // Attribute value normalization
+                isWhitespace(char.toByte()) -> appendChar(' ', false)
+                else -> readChar(char, false)
+            }
+        }
+        attributeRanges[range + 3] = attributeCharsLength
+        attributeCount++
+    }
+
+    /*
+     * Text
+     */
+
+    @Throws(XmlPullParserException::class, IOException::class)
+    private fun readText() {
+        textLength = 0
+        textWhitespace = true
+        while (ensure(1)) {
+            // ASCII characters without markup are copied directly
+            var byte = buffer[position]
+            while (byte >= 0 && byte != LT && byte != AMPERSAND) {
+                if (textWhitespace && !isWhitespace(byte))
+                    textWhitespace = false
+                appendChar(byte.toChar(), true)
+                if (++position == limit)
+                    break
+                byte = buffer[position]
+            }
+            if (position == limit)
+                continue
+            when {
+                byte == AMPERSAND -> {
+                    position++
+                    textWhitespace = false
+                    readEntity(true)
+                }
+                byte == LT -> when {
+                    startsWith(CDATA_START) -> readCData()
+                    startsWith(COMMENT_START) -> skipPast(COMMENT_END)
+                    startsWith(PI_START) -> skipPast(PI_END)
+                    else -> return
+                }
+                else -> {
+                    position++
+                    textWhitespace = false
+                    readChar(byte.toInt() and 0xFF, true)
+                }
+            }
+        }
+    }
+
+    @Throws(XmlPullParserException::class, IOException::class)
+    private fun readCData() {
+        position += CDATA_START.size
+        while (!startsWith(CDATA_END)) {
+            val char = read()
+            if (char < 0)
+                throw XmlPullParserException("Unexpected end of document in CDATA")
+            if (textWhitespace && !isWhitespace(char.toByte()))
+                textWhitespace = false
+            readChar(char, true)
+        }
+        position += CDATA_END.size
+    }
+
+    @Throws(XmlPullParserException::class, IOException::class)
+    private fun readEntity(text: Boolean) {
+        var entity = 0
+        var length = 0
+        var numeric = false
+        var hexadecimal = false
+        var named = 0L
+        while (true) {
+            val char = read()
+            if (char == SEMICOLON.toInt())
+                break
+            if (char < 0 || length == MAX_ENTITY_LENGTH)
+                throw XmlPullParserException("Malformed entity")
+            if (length == 0 && char == '#'.toInt()) {
+                numeric = true
+            } else if (numeric && length == 1 && (char == 'x'.toInt() || char == 'X'.toInt())) {
+                hexadecimal = true
+            } else if (numeric) {
+                val digit = Character.digit(char, if (hexadecimal) 16 else 10)
+                if (digit < 0)
+                    throw XmlPullParserException("Malformed character reference")
+                entity = entity * (if (hexadecimal) 16 else 10) + digit
+            } else {
+                named = (named shl 8) or char.toLong()
+            }
+            length++
+        }
+        if (numeric) {
+            if (entity > Character.MAX_CODE_POINT)
+                throw XmlPullParserException("Malformed character reference")
+            appendCodePoint(entity, text)
+            return
+        }
+        val char = when (named) {
+            ENTITY_LT -> '<'
+            ENTITY_GT -> '>'
+            ENTITY_AMP -> '&'
+            ENTITY_QUOT -> '"'
+            ENTITY_APOS -> '\''
+            else -> throw XmlPullParserException("Unresolved entity")
+        }
+        appendChar(char, text)
+    }
+
+    /**
+     * Decode the UTF-8 character starting with the byte [first],
+     * malformed sequences are replaced as by a decoding reader
+     */
+    @Throws(IOException::class)
+    private fun readChar(first: Int, text: Boolean) {
+        val continuationBytes = when {
+            first < 0x80 -> {
+                appendChar(first.toChar(), text)
+                return
+            }
+            first < 0xC2 -> -1
+            first < 0xE0 -> 1
+            first < 0xF0 -> 2
+            first < 0xF5 -> 3
+            else -> -1
+        }
+        if (continuationBytes < 0) {
+            appendChar(REPLACEMENT_CHARACTER, text)
+            return
+        }
+        var codePoint = first and (0x3F shr continuationBytes)
+        for (i in 0 until continuationBytes) {
+            if (!ensure(1) || (buffer[position].toInt() and 0xC0) != 0x80) {
+                appendChar(REPLACEMENT_CHARACTER, text)
+                return
+            }
+            codePoint = (codePoint shl 6) or (buffer[position++].toInt() and 0x3F)
+        }
+        appendCodePoint(codePoint, text)
+    }
+
+    private fun appendCodePoint(codePoint: Int, text: Boolean) {
+        if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            appendChar(codePoint.toChar(), text)
+        } else {
+            appendChar(Character.highSurrogate(codePoint), text)
+            appendChar(Character.lowSurrogate(codePoint), text)
+        }
+    }
+
+    private fun appendChar(char: Char, text: Boolean) {
+        if (text) {
+            if (textLength == textChars.size) {
+                val chunkListener = textChunkListener
+                if (chunkListener != null) {
+                    chunkListener(textChars, textLength, false)
+                    textLength = 0
+                } else {
+                    textChars = textChars.copyOf(textLength * 2)
+                }
+            }
+            textChars[textLength++] = char
+        } else {
+            if (attributeCharsLength == attributeChars.size)
+                attributeChars = attributeChars.copyOf(attributeCharsLength * 2)
+            attributeChars[attributeCharsLength++] = char
+        }
+    }
+
+    /*
+     * Bytes
+     */
+
+    /**
+     * Make at least [count] bytes available from the current position, false at the end of the stream
+     */
+    @Throws(IOException::class)
+    private fun ensure(count: Int): Boolean {
+        if (limit - position >= count)
+            return true
+        if (endOfStream)
+            return false
+        System.arraycopy(buffer, position, buffer, 0, limit - position)
+        limit -= position
+        position = 0
+        while (limit < count) {
+            val read = inputStream.read(buffer, limit, buffer.size - limit)
+            if (read < 0) {
+                endOfStream = true
+                return false
+            }
+            limit += read
+        }
+        return true
+    }
+
+    @Throws(IOException::class)
+    private fun read(): Int {
+        if (!ensure(1))
+            return -1
+        return buffer[position++].toInt() and 0xFF
+    }
+
+    @Throws(IOException::class)
+    private fun startsWith(bytes: ByteArray): Boolean {
+        if (!ensure(bytes.size))
+            return false
+        for (i in bytes.indices) {
+            if (buffer[position + i] != bytes[i])
+                return false
+        }
+        return true
+    }
+
+    @Throws(XmlPullParserException::class, IOException::class)
+    private fun skipPast(end: ByteArray) {
+        while (!startsWith(end)) {
+            if (read() < 0)
+                throw XmlPullParserException("Unexpected end of document")
+        }
+        position += end.size
+    }
+
+    @Throws(IOException::class)
+    private fun skipWhitespaces() {
+        while (ensure(1) && isWhitespace(buffer[position])) {
+            position++
+        }
+    }
+
+    private fun isWhitespace(byte: Byte): Boolean {
+        return byte == SPACE || byte == TAB || byte == LF || byte == CR
+    }
+
+    private fun regionMatches(chars: CharArray, start: Int, string: String): Boolean {
+        for (i in string.indices) {
+            if (chars[start + i] != string[i])
+                return false
+        }
+        return true
+    }
+
+    companion object {
+        const val DEFAULT_BUFFER_SIZE = 16 * 1024
+        const val TEXT_CHUNK_SIZE = 32 * 1024
+        private const val MIN_BUFFER_SIZE = 16
+
+        private const val LT = '<'.toByte()
+        private const val GT = '>'.toByte()
+        private const val SLASH = '/'.toByte()
+        private const val EQUALS = '='.toByte()
+        private const val QUOTE = '"'.toByte()
+        private const val APOSTROPHE = '\''.toByte()
+        private const val AMPERSAND = '&'.toByte()
+        private const val SEMICOLON = ';'.toByte()
+        private const val SPACE = ' '.toByte()
+        private const val TAB = '\t'.toByte()
+        private const val LF = '\n'.toByte()
+        private const val CR = '\r'.toByte()
+
+        private const val REPLACEMENT_CHARACTER = '\uFFFD'
+        private const val MAX_ENTITY_LENGTH = 10
+
+        private val BYTE_ORDER_MARK = byteArrayOf(0xEF.toByte(), 0xBB.toByte(), 0xBF.toByte())
+        private val END_TAG_START = "</".toByteArray(Charsets.US_ASCII)
+        private val COMMENT_START = "<!--".toByteArray(Charsets.US_ASCII)
+        private val COMMENT_END = "-->".toByteArray(Charsets.US_ASCII)
+        private val PI_START = "<?".toByteArray(Charsets.US_ASCII)
+        private val PI_END = "?>".toByteArray(Charsets.US_ASCII)
+        private val CDATA_START = "<![CDATA[".toByteArray(Charsets.US_ASCII)
+        private val CDATA_END = "]]>".toByteArray(Charsets.US_ASCII)
+        private val DECLARATION_START = "<!".toByteArray(Charsets.US_ASCII)
+        private val DECLARATION_END = ">".toByteArray(Charsets.US_ASCII)
+
+        // Named entities packed in a long, one byte by character
+        private const val ENTITY_LT = 0x6C74L
+        private const val ENTITY_GT = 0x6774L
+        private const val ENTITY_AMP = 0x616D70L
+        private const val ENTITY_QUOT = 0x71756F74L
+        private const val ENTITY_APOS = 0x61706F73L
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.file.input
+
+import com.kunzisoft.keepass.database.file.XmlTagKDBX
+
+/**
+ * Fast structural scan of a KDBX XML document in memory, without decoding the text,
+ * to split the children of the root group in independent subtrees.
+ * For each subtree, the number of protected bytes deciphered before it is counted,
+ * so its protected values can be read with an inner stream seeked to this offset.
+ */
+class XmlScannerKDBX(private val bytes: ByteArray,
+                     private val length: Int) {
+
+    /**
+     * Child group or entry of the root group, in the bytes [start] until [end]
+     */
+    class Subtree(val start: Int,
+                  val end: Int,
+                  val protectedOffset: Long)
+
+    private var position = 0
+    private var protectedBytes = 0L
+
+    // Tokens of the open elements
+    private val elementTokens = IntArray(MAX_DEPTH)
+    private var depth = 0
+
+    /**
+     * Subtrees of the root group in the document order, or null if the document
+     * can't be split safely, it must then be read sequentially
+     */
+    fun scan(): List<Subtree>? {
+        val subtrees = ArrayList<Subtree>()
+        var subtreeStart = -1
+        var subtreeProtectedOffset = 0L
+        var rootGroupRead = false
+        var rootChildrenEnded = false
+        var protectedAfterRootChildren = false
+
+        while (position < length) {
+            if (bytes[position] != LT) {
+                position++
+                continue
+            }
+            val tagStart = position
+            when {
+                startsWith(COMMENT_START) -> if (!skipPast(COMMENT_END)) return null
+                startsWith(PI_START) -> if (!skipPast(PI_END)) return null
+                // CDATA and DTD declarations are not expected in a KDBX document
+                bytes.getOrNull(position + 1) == EXCLAMATION -> return null
+                bytes.getOrNull(position + 1) == SLASH -> {
+                    position += 2
+                    val token = readName()
+                    if (!skipPast(GT) || depth == 0 || elementTokens[depth - 1] != token)
+                        return null
+                    depth--
+                    if (subtreeStart >= 0 && depth == ROOT_GROUP_DEPTH) {
+                        subtrees.add(Subtree(subtreeStart, position, subtreeProtectedOffset))
+                        subtreeStart = -1
+                    }
+                }
+                else -> {
+                    position++
+                    val token = readName()
+                    val protected = readAttributes() ?: return null
+                    val emptyElement = bytes[position - 2] == SLASH
+                    if (token == XmlTagKDBX.Group && depth == ROOT_GROUP_DEPTH - 1
+                            && elementTokens[0] == XmlTagKDBX.DocNode
+                            && elementTokens[1] == XmlTagKDBX.Root) {
+                        // Only one root group is expected
+                        if (rootGroupRead)
+                            return null
+                        rootGroupRead = true
+                    } else if (depth == ROOT_GROUP_DEPTH && isInRootGroup()) {
+                        if (token == XmlTagKDBX.Group || token == XmlTagKDBX.Entry) {
+                            // Root group fields after its children are not supported
+                            if (rootChildrenEnded)
+                                return null
+                            subtreeStart = tagStart
+                            subtreeProtectedOffset = protectedBytes
+                            if (emptyElement) {
+                                subtrees.add(Subtree(subtreeStart, position, subtreeProtectedOffset))
+                                subtreeStart = -1
+                            }
+                        } else if (subtrees.isNotEmpty()) {
+                            rootChildrenEnded = true
+                        }
+                    }
+                    if (!emptyElement) {
+                        if (depth == MAX_DEPTH)
+                            return null
+                        elementTokens[depth++] = token
+                    }
+                    if (protected) {
+                        if (subtrees.isNotEmpty() && subtreeStart < 0)
+                            protectedAfterRootChildren = true
+                        if (!emptyElement && !countProtectedBytes())
+                            return null
+                    }
+                }
+            }
+        }
+        if (depth != 0 || subtreeStart >= 0 || protectedAfterRootChildren)
+            return null
+        return subtrees
+    }
+
+    /**
+     * True if the open elements are the document, the root and its group
+     */
+    private fun isInRootGroup(): Boolean {
+        return elementTokens[0] == XmlTagKDBX.DocNode
+                && elementTokens[1] == XmlTagKDBX.Root
+                && elementTokens[ROOT_GROUP_DEPTH - 1] == XmlTagKDBX.Group
+    }
+
+    private fun readName(): Int {
+        val start = position
+        while (position < length && !isNameEnd(bytes[position])) {
+            position++
+        }
+        return XmlTagKDBX.token(bytes, start, position - start)
+    }
+
+    /**
+     * Move after the end of the start tag, return true if it has a "Protected" attribute
+     * with the value "True" in any case, as read by the parser, null if malformed
+     */
+    private fun readAttributes(): Boolean? {
+        var protected = false
+        while (position < length) {
+            val byte = bytes[position]
+            when {
+                byte == GT -> {
+                    position++
+                    return protected
+                }
+                byte == QUOTE || byte == APOSTROPHE -> return null
+                isNameEnd(byte) -> position++
+                else -> {
+                    val nameStart = position
+                    while (position < length && !isNameEnd(bytes[position]) && bytes[position] != EQUALS) {
+                        position++
+                    }
+                    val isProtectedName = regionMatches(nameStart, position, ATTRIBUTE_PROTECTED, false)
+                    while (position < length && bytes[position] != QUOTE
+                            && bytes[position] != APOSTROPHE && bytes[position] != GT) {
+                        position++
+                    }
+                    if (position == length || bytes[position] == GT)
+                        return null
+                    val quote = bytes[position++]
+                    val valueStart = position
+                    while (position < length && bytes[position] != quote) {
+                        position++
+                    }
+                    if (position == length)
+                        return null
+                    if (isProtectedName)
+                        protected = regionMatches(valueStart, position, VALUE_TRUE, true)
+                    position++
+                }
+            }
+        }
+        return null
+    }
+
+    /**
+     * Count the bytes decoded from the Base64 text of a protected value and move to its end tag,
+     * the same way as [XmlValueDecoderKDBX.base64ToBytes], false if the text can't be counted
+     */
+    private fun countProtectedBytes(): Boolean {
+        var sextets = 0L
+        var padding = false
+        while (position < length) {
+            val byte = bytes[position]
+            when {
+                byte == LT -> {
+                    if (startsWith(COMMENT_START)) {
+                        if (!skipPast(COMMENT_END))
+                            return false
+                        continue
+                    }
+                    if (bytes.getOrNull(position + 1) != SLASH)
+                        return false
+                    // End tag checked by the caller
+                    protectedBytes += sextets * 6 / 8
+                    return true
+                }
+                // Entities and CDATA are not expected in Base64
+                byte == AMPERSAND -> return false
+                byte == PADDING -> padding = true
+                !padding && isBase64(byte) -> sextets++
+            }
+            position++
+        }
+        return false
+    }
+
+    private fun isBase64(byte: Byte): Boolean {
+        val char = byte.toInt()
+        return char in 'A'.toInt()..'Z'.toInt()
+                || char in 'a'.toInt()..'z'.toInt()
+                || char in '0'.toInt()..'9'.toInt()
+                || char == '+'.toInt() || char == '/'.toInt()
+    }
+
+    private fun isNameEnd(byte: Byte): Boolean {
+        return byte == GT || byte == SLASH || byte == SPACE || byte == TAB || byte == LF || byte == CR
+    }
+
+    private fun regionMatches(start: Int, end: Int, value: ByteArray, ignoreCase: Boolean): Boolean {
+        if (end - start != value.size)
+            return false
+        for (i in value.indices) {
+            var byte = bytes[start + i].toInt()
+            if (ignoreCase && byte in 'A'.toInt()..'Z'.toInt())
+                byte += 'a' - 'A'
+            if (byte != value[i].toInt())
+                return false
+        }
+        return true
+    }
+
+    private fun startsWith(prefix: ByteArray): Boolean {
+        if (position + prefix.size > length)
+            return false
+        for (i in prefix.indices) {
+            if (bytes[position + i] != prefix[i])
+                return false
+        }
+        return true
+    }
+
+    private fun skipPast(delimiter: ByteArray): Boolean {
+        while (position < length) {
+            if (startsWith(delimiter)) {
+                position += delimiter.size
+                return true
+            }
+            position++
+        }
+        return false
+    }
+
+    private fun skipPast(delimiter: Byte): Boolean {
+        while (position < length) {
+            if (bytes[position++] == delimiter)
+                return true
+        }
+        return false
+    }
+
+    companion object {
+        // KeePassFile, Root and the root Group
+        private const val ROOT_GROUP_DEPTH = 3
+        private const val MAX_DEPTH = 256
+
+        private const val LT = '<'.toByte()
+        private const val GT = '>'.toByte()
+        private const val SLASH = '/'.toByte()
+        private const val EXCLAMATION = '!'.toByte()
+        private const val EQUALS = '='.toByte()
+        private const val PADDING = '='.toByte()
+        private const val QUOTE = '"'.toByte()
+        private const val APOSTROPHE = '\''.toByte()
+        private const val AMPERSAND = '&'.toByte()
+        private const val SPACE = ' '.toByte()
+        private const val TAB = '\t'.toByte()
+        private const val LF = '\n'.toByte()
+        private const val CR = '\r'.toByte()
+
+        private val COMMENT_START = "<!--".toByteArray()
+        private val COMMENT_END = "-->".toByteArray()
+        private val PI_START = "<?".toByteArray()
+        private val PI_END = "?>".toByteArray()
+
+        private val ATTRIBUTE_PROTECTED = "Protected".toByteArray()
+        private val VALUE_TRUE = "true".toByteArray()
+    }
+}
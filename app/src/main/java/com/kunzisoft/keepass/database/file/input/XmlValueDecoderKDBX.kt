@@ -0,0 +1,292 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.file.input
+
+import java.util.*
+
+/**
+ * Decoders of the typed KDBX values, reading a range of the text characters of [XmlReaderKDBX]
+ * without intermediate string or byte array. The values are as strict as the former
+ * String.toLong() and android.util.Base64 decoding: whitespaces are not trimmed,
+ * an invalid number or UUID returns the default or null and malformed Base64 bytes are rejected.
+ */
+object XmlValueDecoderKDBX {
+
+    /**
+     * Little-endian long of the first 8 bytes of a Base64 value, the missing bytes are 0
+     */
+    @Throws(IllegalArgumentException::class)
+    fun base64ToLong(chars: CharArray, offset: Int, length: Int): Long {
+        var value = 0L
+        val count = forEachBase64Byte(chars, offset, length, 8) { index, byte ->
+            value = value or ((byte.toLong() and 0xFF) shl (8 * index))
+        }
+        if (count < 0)
+            throw IllegalArgumentException(BAD_BASE64)
+        return value
+    }
+
+    /**
+     * UUID of a Base64 value of 16 bytes, null if the value is too short or malformed
+     */
+    fun base64ToUuid(chars: CharArray, offset: Int, length: Int): UUID? {
+        // Bytes are in the same order as in bytes16ToUuid
+        var msb = 0L
+        var lsb = 0L
+        val count = forEachBase64Byte(chars, offset, length, 16) { index, byte ->
+            if (index < 8)
+                msb = msb or ((byte.toLong() and 0xFF) shl (8 * index))
+            else
+                lsb = lsb or ((byte.toLong() and 0xFF) shl (8 * (index - 8)))
+        }
+        if (count < 16)
+            return null
+        return UUID(msb, lsb)
+    }
+
+    /**
+     * Decode a Base64 value in [output] from [outputOffset], the output must have room for
+     * [base64DecodedMaxSize] bytes, return the number of bytes decoded
+     */
+    @Throws(IllegalArgumentException::class)
+    fun base64ToBytes(chars: CharArray, offset: Int, length: Int,
+                      output: ByteArray, outputOffset: Int = 0): Int {
+        val count = forEachBase64Byte(chars, offset, length, output.size - outputOffset) { index, byte ->
+            output[outputOffset + index] = byte.toByte()
+        }
+        if (count < 0)
+            throw IllegalArgumentException(BAD_BASE64)
+        return count
+    }
+
+    /**
+     * Maximum number of bytes of a Base64 value of [length] characters
+     */
+    fun base64DecodedMaxSize(length: Int): Int {
+        return length / 4 * 3 + 3
+    }
+
+    /**
+     * Decode the bytes of a Base64 value, the [action] is called for the first [maxBytes].
+     * As with android.util.Base64, the characters out of the alphabet are skipped and
+     * the value is malformed if a quartet has a single character, if the padding is incomplete,
+     * or if a character of the alphabet follows the padding.
+     * Return the number of bytes given to the [action], or -1 if the value is malformed
+     */
+    private inline fun forEachBase64Byte(chars: CharArray, offset: Int, length: Int,
+                                         maxBytes: Int, action: (index: Int, byte: Int) -> Unit): Int {
+        var bytes = 0
+        var bits = 0
+        var bitCount = 0
+        // Characters of the current quartet, and padding characters expected and read
+        var quartetChars = 0
+        var paddingExpected = 0
+        var paddingRead = 0
+        for (i in offset until offset + length) {
+            val char = chars[i].toInt()
+            if (char == '='.toInt()) {
+                if (paddingRead == 0) {
+                    if (quartetChars < 2)
+                        return -1
+                    paddingExpected = 4 - quartetChars
+                }
+                paddingRead++
+                if (paddingRead > paddingExpected)
+                    return -1
+                continue
+            }
+            val sextet = if (char < BASE64_VALUES.size) BASE64_VALUES[char].toInt() else -1
+            if (sextet < 0)
+                continue
+            if (paddingRead > 0)
+                return -1
+            quartetChars = (quartetChars + 1) % 4
+            bits = (bits shl 6) or sextet
+            bitCount += 6
+            if (bitCount >= 8) {
+                bitCount -= 8
+                if (bytes < maxBytes) {
+                    action(bytes, (bits ushr bitCount) and 0xFF)
+                    bytes++
+                }
+            }
+        }
+        if (paddingRead < paddingExpected || (paddingRead == 0 && quartetChars == 1))
+            return -1
+        return bytes
+    }
+
+    /**
+     * Date of an ISO-8601 UTC timestamp "yyyy-MM-ddTHH:mm:ssZ" as written in KDBX 3.1,
+     * fractional seconds are accepted, null if the value is not a timestamp
+     */
+    fun isoDateToDate(chars: CharArray, offset: Int, length: Int): Date? {
+        val start = offset
+        val end = offset + length
+        if (end - start < ISO_DATE_LENGTH
+                || chars[start + 4] != '-' || chars[start + 7] != '-'
+                || (chars[start + 10] != 'T' && chars[start + 10] != 't')
+                || chars[start + 13] != ':' || chars[start + 16] != ':')
+            return null
+        val year = digits(chars, start, 4)
+        val month = digits(chars, start + 5, 2)
+        val day = digits(chars, start + 8, 2)
+        val hours = digits(chars, start + 11, 2)
+        val minutes = digits(chars, start + 14, 2)
+        val seconds = digits(chars, start + 17, 2)
+        if (year < 0 || month !in 1..12 || day !in 1..31
+                || hours !in 0..23 || minutes !in 0..59 || seconds !in 0..60)
+            return null
+        var position = start + ISO_DATE_LENGTH
+        var millis = 0
+        if (position < end && chars[position] == '.') {
+            position++
+            var scale = 100
+            while (position < end && chars[position] in '0'..'9') {
+                millis += (chars[position] - '0') * scale
+                scale /= 10
+                position++
+            }
+        }
+        if (position < end && (chars[position] == 'Z' || chars[position] == 'z'))
+            position++
+        if (position != end)
+            return null
+        val epochSeconds = daysFromEpoch(year, month, day) * 86400L +
+                hours * 3600L + minutes * 60L + seconds
+        return Date(epochSeconds * 1000L + millis)
+    }
+
+    /**
+     * Value of fixed width decimal digits, -1 if a character is not a digit
+     */
+    private fun digits(chars: CharArray, offset: Int, count: Int): Int {
+        var value = 0
+        for (i in offset until offset + count) {
+            val char = chars[i]
+            if (char !in '0'..'9')
+                return -1
+            value = value * 10 + (char - '0')
+        }
+        return value
+    }
+
+    /**
+     * Days since 1970-01-01 of a date of the proleptic Gregorian calendar
+     */
+    private fun daysFromEpoch(year: Int, month: Int, day: Int): Long {
+        val y = if (month <= 2) year - 1 else year
+        val era = (if (y >= 0) y else y - 399) / 400
+        val yearOfEra = y - era * 400
+        val dayOfYear = (153 * (if (month > 2) month - 3 else month + 9) + 2) / 5 + day - 1
+        val dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear
+        return era * 146097L + dayOfEra - 719468L
+    }
+
+    /**
+     * Decimal long, [default] if the value is empty, malformed or out of range
+     */
+    fun toLong(chars: CharArray, offset: Int, length: Int, default: Long): Long {
+        var start = offset
+        val end = offset + length
+        if (start == end)
+            return default
+        val negative = chars[start] == '-'
+        if (negative || chars[start] == '+') {
+            start++
+            if (start == end)
+                return default
+        }
+        // Accumulate negatively to reach Long.MIN_VALUE
+        var value = 0L
+        for (i in start until end) {
+            val char = chars[i]
+            if (char !in '0'..'9')
+                return default
+            val digit = char - '0'
+            if (value < (Long.MIN_VALUE + digit) / 10)
+                return default
+            value = value * 10 - digit
+        }
+        if (!negative) {
+            if (value == Long.MIN_VALUE)
+                return default
+            value = -value
+        }
+        return value
+    }
+
+    /**
+     * Decimal int, [default] if the value is empty, malformed or out of range
+     */
+    fun toInt(chars: CharArray, offset: Int, length: Int, default: Int): Int {
+        val value = toLong(chars, offset, length, Long.MIN_VALUE)
+        if (value < Int.MIN_VALUE || value > Int.MAX_VALUE)
+            return default
+        return value.toInt()
+    }
+
+    /**
+     * Boolean of "True" or "False" in any case, [default] otherwise
+     */
+    fun toBoolean(chars: CharArray, offset: Int, length: Int, default: Boolean?): Boolean? {
+        return when {
+            equalsIgnoreCase(chars, offset, length, TRUE) -> true
+            equalsIgnoreCase(chars, offset, length, FALSE) -> false
+            else -> default
+        }
+    }
+
+    /**
+     * True if the characters are "null" in any case, as the undefined optional booleans
+     */
+    fun isNull(chars: CharArray, offset: Int, length: Int): Boolean {
+        return equalsIgnoreCase(chars, offset, length, NULL)
+    }
+
+    private fun equalsIgnoreCase(chars: CharArray, offset: Int, length: Int, value: String): Boolean {
+        if (length != value.length)
+            return false
+        for (i in 0 until length) {
+            val char = chars[offset + i]
+            // ASCII fold, the values are ASCII lowercase
+            if ((if (char in 'A'..'Z') char + ('a' - 'A') else char) != value[i])
+                return false
+        }
+        return true
+    }
+
+    private const val ISO_DATE_LENGTH = 19
+
+    private const val BAD_BASE64 = "bad base-64"
+
+    private const val TRUE = "true"
+    private const val FALSE = "false"
+    private const val NULL = "null"
+
+    private const val BASE64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+
+    // Value of each ASCII character in the Base64 alphabet, -1 if not in the alphabet
+    private val BASE64_VALUES = ByteArray(128) { -1 }.apply {
+        for (i in BASE64_ALPHABET.indices) {
+            this[BASE64_ALPHABET[i].toInt()] = i.toByte()
+        }
+    }
+}
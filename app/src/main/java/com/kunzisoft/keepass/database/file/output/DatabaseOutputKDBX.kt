@@ -19,19 +19,18 @@
  */
 package com.kunzisoft.keepass.database.file.output
 
-import android.util.Base64
 import android.util.Log
-import android.util.Xml
 import com.kunzisoft.encrypt.StreamCipher
 import com.kunzisoft.keepass.database.action.node.NodeHandler
 import com.kunzisoft.keepass.database.crypto.CipherEngine
 import com.kunzisoft.keepass.database.crypto.CrsAlgorithm
 import com.kunzisoft.keepass.database.crypto.EncryptionAlgorithm
+import com.kunzisoft.keepass.database.crypto.HmacBlock
 import com.kunzisoft.keepass.database.crypto.kdf.KdfFactory
 import com.kunzisoft.keepass.database.element.*
+import com.kunzisoft.keepass.database.element.binary.AttachmentPool
 import com.kunzisoft.keepass.database.element.database.CompressionAlgorithm
 import com.kunzisoft.keepass.database.element.database.DatabaseKDBX
-import com.kunzisoft.keepass.database.element.database.DatabaseKDBX.Companion.BASE_64_FLAG
 import com.kunzisoft.keepass.database.element.database.DatabaseVersioned
 import com.kunzisoft.keepass.database.element.entry.AutoType
 import com.kunzisoft.keepass.database.element.entry.EntryKDBX
@@ -45,20 +44,25 @@ import com.kunzisoft.keepass.database.file.DatabaseHeaderKDBX.Companion.FILE_VER
 import com.kunzisoft.keepass.database.file.DatabaseHeaderKDBX.Companion.FILE_VERSION_41
 import com.kunzisoft.keepass.database.file.DatabaseKDBXXML
 import com.kunzisoft.keepass.database.file.DateKDBXUtil
+import com.kunzisoft.keepass.database.file.XmlTagKDBX
+import com.kunzisoft.keepass.stream.GZipLevelOutputStream
 import com.kunzisoft.keepass.stream.HashedBlockOutputStream
 import com.kunzisoft.keepass.stream.HmacBlockOutputStream
 import com.kunzisoft.keepass.utils.*
 import org.joda.time.DateTime
-import org.xmlpull.v1.XmlSerializer
+import java.io.ByteArrayOutputStream
 import java.io.IOException
 import java.io.OutputStream
 import java.security.NoSuchAlgorithmException
 import java.security.SecureRandom
+import java.text.SimpleDateFormat
 import java.util.*
-import java.util.zip.GZIPOutputStream
+import java.util.ArrayDeque
+import java.util.concurrent.*
 import javax.crypto.Cipher
 import javax.crypto.CipherOutputStream
 import kotlin.experimental.or
+import kotlin.math.min
 
 
 class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
@@ -66,11 +70,24 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
     : DatabaseOutput<DatabaseHeaderKDBX>(outputStream) {
 
     private var randomStream: StreamCipher? = null
-    private lateinit var xml: XmlSerializer
+    // Number of bytes already consumed in the inner stream
+    private var randomStreamPosition = 0L
+    private var dateFormatter: SimpleDateFormat = DatabaseKDBXXML.DateFormatter
+    private lateinit var xml: XmlWriterKDBX
     private var header: DatabaseHeaderKDBX? = null
     private var hashOfHeader: ByteArray? = null
     private var headerHmac: ByteArray? = null
     private var engine: CipherEngine? = null
+    // Ordered binaries and ref indexes, shared with the parallel workers
+    private var binaryReferences: AttachmentPool.BinaryReferences? = null
+
+    var parallelSerialization = SERIALIZATION_THREADS > 1
+
+    /**
+     * True if the children of the root group of the last document were written in parallel
+     */
+    var parallelSerialized = false
+        private set
 
     @Throws(DatabaseOutputException::class)
     override fun output() {
@@ -83,6 +100,7 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
             }
 
             header = outputHeader(mOutputStream)
+            binaryReferences = mDatabaseKDBX.attachmentPool.buildBinaryReferences()
 
             val osPlain: OutputStream = if (header!!.version.isBefore(FILE_VERSION_40)) {
                 val cos = attachStreamEncryptor(header!!, mOutputStream)
@@ -93,13 +111,14 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
                 mOutputStream.write(hashOfHeader!!)
                 mOutputStream.write(headerHmac!!)
 
-                attachStreamEncryptor(header!!, HmacBlockOutputStream(mOutputStream, mDatabaseKDBX.hmacKey!!))
+                attachStreamEncryptor(header!!, HmacBlockOutputStream(mOutputStream, mDatabaseKDBX.hmacKey!!, HmacBlock.PARALLEL_BLOCKS))
             }
 
             val xmlOutputStream: OutputStream
             try {
                 xmlOutputStream = when(mDatabaseKDBX.compressionAlgorithm) {
-                    CompressionAlgorithm.GZip -> GZIPOutputStream(osPlain)
+                    CompressionAlgorithm.GZip -> GZipLevelOutputStream(osPlain,
+                            mDatabaseKDBX.compressionLevel.deflateLevel)
                     else -> osPlain
                 }
 
@@ -136,7 +155,7 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
         dataOutputStream.write(header.innerRandomStreamKey)
 
         val binaryCache = database.binaryCache
-        database.attachmentPool.doForEachOrderedBinaryWithoutDuplication { _, binary ->
+        binaryReferences?.doForEachOrderedBinary { _, binary ->
             // Force decompression to add binary in header
             binary.decompress(binaryCache)
             // Write type binary
@@ -164,108 +183,262 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun outputDatabase(outputStream: OutputStream) {
 
-        xml = Xml.newSerializer()
+        xml = XmlWriterKDBX(outputStream)
+        xml.startDocument()
 
-        xml.setOutput(outputStream, "UTF-8")
-        xml.startDocument("UTF-8", true)
-
-        xml.startTag(null, DatabaseKDBXXML.ElemDocNode)
+        xml.startTag(XmlTagKDBX.DocNode)
 
         writeMeta()
 
         mDatabaseKDBX.rootGroup?.let { root ->
-            xml.startTag(null, DatabaseKDBXXML.ElemRoot)
+            xml.startTag(XmlTagKDBX.Root)
             startGroup(root)
-            val groupStack = Stack<GroupKDBX>()
-            groupStack.push(root)
+            parallelSerialized = parallelSerialization
+                    && writeRootChildrenParallel(root, outputStream)
+            if (!parallelSerialized) {
+                writeGroupChildren(root)
+            }
+        }
 
-            if (!root.doForEachChild(
-                            object : NodeHandler<EntryKDBX>() {
-                                override fun operate(node: EntryKDBX): Boolean {
-                                    try {
-                                        writeEntry(node, false)
-                                    } catch (ex: IOException) {
-                                        throw RuntimeException(ex)
-                                    }
+        endGroup()
 
-                                    return true
+        writeDeletedObjects(mDatabaseKDBX.deletedObjects)
+
+        xml.endTag(XmlTagKDBX.Root)
+
+        xml.endTag(XmlTagKDBX.DocNode)
+        xml.endDocument()
+    }
+
+    @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
+    private fun writeGroupChildren(group: GroupKDBX) {
+        val groupStack = Stack<GroupKDBX>()
+        groupStack.push(group)
+
+        if (!group.doForEachChild(
+                        object : NodeHandler<EntryKDBX>() {
+                            override fun operate(node: EntryKDBX): Boolean {
+                                try {
+                                    writeEntry(node, false)
+                                } catch (ex: IOException) {
+                                    throw RuntimeException(ex)
                                 }
-                            },
-                            object : NodeHandler<GroupKDBX>() {
-                                override fun operate(node: GroupKDBX): Boolean {
-                                    while (true) {
-                                        try {
-                                            if (node.parent === groupStack.peek()) {
-                                                groupStack.push(node)
-                                                startGroup(node)
-                                                break
-                                            } else {
-                                                groupStack.pop()
-                                                if (groupStack.size <= 0) return false
-                                                endGroup()
-                                            }
-                                        } catch (e: IOException) {
-                                            throw RuntimeException(e)
-                                        }
 
+                                return true
+                            }
+                        },
+                        object : NodeHandler<GroupKDBX>() {
+                            override fun operate(node: GroupKDBX): Boolean {
+                                while (true) {
+                                    try {
+                                        if (node.parent === groupStack.peek()) {
+                                            groupStack.push(node)
+                                            startGroup(node)
+                                            break
+                                        } else {
+                                            groupStack.pop()
+                                            if (groupStack.size <= 0) return false
+                                            endGroup()
+                                        }
+                                    } catch (e: IOException) {
+                                        throw RuntimeException(e)
                                     }
-                                    return true
+
                                 }
-                            })
-            )
-                throw RuntimeException("Writing groups failed")
+                                return true
+                            }
+                        })
+        )
+            throw RuntimeException("Writing groups failed")
 
-            while (groupStack.size > 1) {
-                xml.endTag(null, DatabaseKDBXXML.ElemGroup)
-                groupStack.pop()
-            }
+        while (groupStack.size > 1) {
+            xml.endTag(XmlTagKDBX.Group)
+            groupStack.pop()
         }
+    }
 
-        endGroup()
+    /**
+     * Serialize the children of the root group by workers, each run of subtrees in its own buffer
+     * with an inner stream seeked to its first protected byte, then append the buffers in the
+     * document order. Return false if the children must be written sequentially
+     */
+    @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
+    private fun writeRootChildrenParallel(root: GroupKDBX, outputStream: OutputStream): Boolean {
+        val stream = randomStream
+        if (stream == null || !stream.isSeekable)
+            return false
+
+        // Sizing pass, keystream bytes consumed by each child in the writing order
+        val subtrees = ArrayList<Subtree>()
+        for (entry in root.getChildEntries()) {
+            subtrees.add(Subtree(entry, protectedSize(entry), entry.history.size + 1))
+        }
+        for (group in root.getChildGroups()) {
+            var size = 0L
+            var weight = 1
+            group.doForEachChild(
+                    object : NodeHandler<EntryKDBX>() {
+                        override fun operate(node: EntryKDBX): Boolean {
+                            size += protectedSize(node)
+                            weight += node.history.size + 1
+                            return true
+                        }
+                    },
+                    object : NodeHandler<GroupKDBX>() {
+                        override fun operate(node: GroupKDBX): Boolean {
+                            weight++
+                            return true
+                        }
+                    })
+            subtrees.add(Subtree(group, size, weight))
+        }
+        val totalWeight = subtrees.sumBy { it.weight }
+        if (subtrees.size < 2 || totalWeight < MIN_PARALLEL_NODES)
+            return false
+
+        // Contiguous runs of subtrees of about the same number of nodes for each task
+        val header = header!!
+        val taskCount = min(subtrees.size, SERIALIZATION_THREADS * TASKS_PER_THREAD)
+        val taskWeight = totalWeight / taskCount + 1
+        val runs = ArrayList<Pair<List<NodeKDBXInterface>, Long>>()
+        var position = randomStreamPosition
+        var first = 0
+        while (first < subtrees.size) {
+            var last = first
+            var weight = subtrees[first].weight
+            while (last + 1 < subtrees.size
+                    && weight + subtrees[last + 1].weight <= taskWeight) {
+                last++
+                weight += subtrees[last].weight
+            }
+            runs.add(Pair(subtrees.subList(first, last + 1).map { it.node }, position))
+            for (index in first..last) {
+                position += subtrees[index].protectedSize
+            }
+            first = last + 1
+        }
 
-        writeDeletedObjects(mDatabaseKDBX.deletedObjects)
+        // Buffers are appended behind the writer, its pending bytes are written first
+        xml.flush()
+        // Few tasks in flight, each buffer is written in order and released as soon as it's ready
+        val tasks = ArrayDeque<Future<ByteArrayOutputStream>>()
+        var nextRun = 0
+        try {
+            while (nextRun < runs.size || tasks.isNotEmpty()) {
+                while (nextRun < runs.size && tasks.size < MAX_TASKS_IN_FLIGHT) {
+                    val (nodes, protectedOffset) = runs[nextRun++]
+                    tasks.addLast(serializationExecutor.submit(Callable {
+                        ByteArrayOutputStream().also { buffer ->
+                            DatabaseOutputKDBX(mDatabaseKDBX, buffer).also {
+                                it.binaryReferences = binaryReferences
+                            }.writeRootChildren(header, nodes, protectedOffset)
+                        }
+                    }))
+                }
+                tasks.first.get().writeTo(outputStream)
+                tasks.removeFirst()
+            }
+        } catch (e: ExecutionException) {
+            tasks.forEach { it.cancel(true) }
+            when (val cause = e.cause) {
+                is IOException -> throw cause
+                is IllegalArgumentException -> throw cause
+                is IllegalStateException -> throw cause
+                is Error -> throw cause
+                else -> throw IOException(cause)
+            }
+        } catch (e: InterruptedException) {
+            tasks.forEach { it.cancel(true) }
+            throw IOException(e)
+        } catch (e: IOException) {
+            tasks.forEach { it.cancel(true) }
+            throw e
+        }
+        stream.seekTo(position)
+        randomStreamPosition = position
+        return true
+    }
 
-        xml.endTag(null, DatabaseKDBXXML.ElemRoot)
+    /**
+     * Write in a worker the [nodes] children of the root group, with an inner stream
+     * started at [protectedOffset], as an XML fragment in the output stream
+     */
+    @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
+    private fun writeRootChildren(header: DatabaseHeaderKDBX,
+                                  nodes: List<NodeKDBXInterface>,
+                                  protectedOffset: Long) {
+        this.header = header
+        // The shared formatter is not thread safe
+        dateFormatter = DatabaseKDBXXML.DateFormatter.clone() as SimpleDateFormat
+        randomStream = CrsAlgorithm.getCipher(header.innerRandomStream, header.innerRandomStreamKey).apply {
+            seekTo(protectedOffset)
+        }
+        randomStreamPosition = protectedOffset
+
+        xml = XmlWriterKDBX(mOutputStream)
+        for (node in nodes) {
+            when (node) {
+                is EntryKDBX -> writeEntry(node, false)
+                is GroupKDBX -> {
+                    startGroup(node)
+                    writeGroupChildren(node)
+                    endGroup()
+                }
+            }
+        }
+        xml.flush()
+    }
 
-        xml.endTag(null, DatabaseKDBXXML.ElemDocNode)
-        xml.endDocument()
+    /**
+     * Number of inner stream bytes consumed to write the fields of [entry] and of its history
+     */
+    private fun protectedSize(entry: EntryKDBX): Long {
+        var size = 0L
+        for (field in entry.getFields()) {
+            if (isProtected(field))
+                size += field.protectedValue.toString().toByteArray().size
+        }
+        for (historyEntry in entry.history) {
+            size += protectedSize(historyEntry)
+        }
+        return size
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeMeta() {
-        xml.startTag(null, DatabaseKDBXXML.ElemMeta)
+        xml.startTag(XmlTagKDBX.Meta)
 
-        writeString(DatabaseKDBXXML.ElemGenerator, mDatabaseKDBX.localizedAppName)
+        writeString(XmlTagKDBX.Generator, mDatabaseKDBX.localizedAppName)
 
         if (hashOfHeader != null) {
-            writeString(DatabaseKDBXXML.ElemHeaderHash, String(Base64.encode(hashOfHeader!!, BASE_64_FLAG)))
+            writeBase64(XmlTagKDBX.HeaderHash, hashOfHeader!!)
         }
 
-        writeString(DatabaseKDBXXML.ElemDbName, mDatabaseKDBX.name, true)
-        writeDateInstant(DatabaseKDBXXML.ElemDbNameChanged, mDatabaseKDBX.nameChanged)
-        writeString(DatabaseKDBXXML.ElemDbDesc, mDatabaseKDBX.description, true)
-        writeDateInstant(DatabaseKDBXXML.ElemDbDescChanged, mDatabaseKDBX.descriptionChanged)
-        writeString(DatabaseKDBXXML.ElemDbDefaultUser, mDatabaseKDBX.defaultUserName, true)
-        writeDateInstant(DatabaseKDBXXML.ElemDbDefaultUserChanged, mDatabaseKDBX.defaultUserNameChanged)
-        writeLong(DatabaseKDBXXML.ElemDbMntncHistoryDays, mDatabaseKDBX.maintenanceHistoryDays.toKotlinLong())
-        writeString(DatabaseKDBXXML.ElemDbColor, mDatabaseKDBX.color)
-        writeDateInstant(DatabaseKDBXXML.ElemDbKeyChanged, mDatabaseKDBX.keyLastChanged)
-        writeLong(DatabaseKDBXXML.ElemDbKeyChangeRec, mDatabaseKDBX.keyChangeRecDays)
-        writeLong(DatabaseKDBXXML.ElemDbKeyChangeForce, mDatabaseKDBX.keyChangeForceDays)
+        writeString(XmlTagKDBX.DbName, mDatabaseKDBX.name, true)
+        writeDateInstant(XmlTagKDBX.DbNameChanged, mDatabaseKDBX.nameChanged)
+        writeString(XmlTagKDBX.DbDesc, mDatabaseKDBX.description, true)
+        writeDateInstant(XmlTagKDBX.DbDescChanged, mDatabaseKDBX.descriptionChanged)
+        writeString(XmlTagKDBX.DbDefaultUser, mDatabaseKDBX.defaultUserName, true)
+        writeDateInstant(XmlTagKDBX.DbDefaultUserChanged, mDatabaseKDBX.defaultUserNameChanged)
+        writeLong(XmlTagKDBX.DbMntncHistoryDays, mDatabaseKDBX.maintenanceHistoryDays.toKotlinLong())
+        writeString(XmlTagKDBX.DbColor, mDatabaseKDBX.color)
+        writeDateInstant(XmlTagKDBX.DbKeyChanged, mDatabaseKDBX.keyLastChanged)
+        writeLong(XmlTagKDBX.DbKeyChangeRec, mDatabaseKDBX.keyChangeRecDays)
+        writeLong(XmlTagKDBX.DbKeyChangeForce, mDatabaseKDBX.keyChangeForceDays)
 
         writeMemoryProtection(mDatabaseKDBX.memoryProtection)
 
         writeCustomIconList()
 
-        writeBoolean(DatabaseKDBXXML.ElemRecycleBinEnabled, mDatabaseKDBX.isRecycleBinEnabled)
-        writeUuid(DatabaseKDBXXML.ElemRecycleBinUuid, mDatabaseKDBX.recycleBinUUID)
-        writeDateInstant(DatabaseKDBXXML.ElemRecycleBinChanged, mDatabaseKDBX.recycleBinChanged)
-        writeUuid(DatabaseKDBXXML.ElemEntryTemplatesGroup, mDatabaseKDBX.entryTemplatesGroup)
-        writeDateInstant(DatabaseKDBXXML.ElemEntryTemplatesGroupChanged, mDatabaseKDBX.entryTemplatesGroupChanged)
-        writeLong(DatabaseKDBXXML.ElemHistoryMaxItems, mDatabaseKDBX.historyMaxItems.toLong())
-        writeLong(DatabaseKDBXXML.ElemHistoryMaxSize, mDatabaseKDBX.historyMaxSize)
-        writeUuid(DatabaseKDBXXML.ElemLastSelectedGroup, mDatabaseKDBX.lastSelectedGroupUUID)
-        writeUuid(DatabaseKDBXXML.ElemLastTopVisibleGroup, mDatabaseKDBX.lastTopVisibleGroupUUID)
+        writeBoolean(XmlTagKDBX.RecycleBinEnabled, mDatabaseKDBX.isRecycleBinEnabled)
+        writeUuid(XmlTagKDBX.RecycleBinUuid, mDatabaseKDBX.recycleBinUUID)
+        writeDateInstant(XmlTagKDBX.RecycleBinChanged, mDatabaseKDBX.recycleBinChanged)
+        writeUuid(XmlTagKDBX.EntryTemplatesGroup, mDatabaseKDBX.entryTemplatesGroup)
+        writeDateInstant(XmlTagKDBX.EntryTemplatesGroupChanged, mDatabaseKDBX.entryTemplatesGroupChanged)
+        writeLong(XmlTagKDBX.HistoryMaxItems, mDatabaseKDBX.historyMaxItems.toLong())
+        writeLong(XmlTagKDBX.HistoryMaxSize, mDatabaseKDBX.historyMaxSize)
+        writeUuid(XmlTagKDBX.LastSelectedGroup, mDatabaseKDBX.lastSelectedGroupUUID)
+        writeUuid(XmlTagKDBX.LastTopVisibleGroup, mDatabaseKDBX.lastTopVisibleGroupUUID)
 
         // Seem to work properly if always in meta
         if (header!!.version.isBefore(FILE_VERSION_40))
@@ -273,7 +446,7 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
 
         writeCustomData(mDatabaseKDBX.customData)
 
-        xml.endTag(null, DatabaseKDBXXML.ElemMeta)
+        xml.endTag(XmlTagKDBX.Meta)
     }
 
     @Throws(DatabaseOutputException::class)
@@ -304,8 +477,7 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
         }
 
         try {
-            val kdf = mDatabaseKDBX.getEngineKDBX4(mDatabaseKDBX.kdfParameters)
-            kdf.randomize(mDatabaseKDBX.kdfParameters!!)
+            mDatabaseKDBX.randomizeKdfParameters()
         } catch (unknownKDF: UnknownKDF) {
             Log.e(TAG, "Unable to retrieve header", unknownKDF)
         }
@@ -352,50 +524,50 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun startGroup(group: GroupKDBX) {
-        xml.startTag(null, DatabaseKDBXXML.ElemGroup)
-        writeUuid(DatabaseKDBXXML.ElemUuid, group.id)
-        writeString(DatabaseKDBXXML.ElemName, group.title)
-        writeString(DatabaseKDBXXML.ElemNotes, group.notes)
-        writeLong(DatabaseKDBXXML.ElemIcon, group.icon.standard.id.toLong())
+        xml.startTag(XmlTagKDBX.Group)
+        writeUuid(XmlTagKDBX.Uuid, group.id)
+        writeString(XmlTagKDBX.Name, group.title)
+        writeString(XmlTagKDBX.Notes, group.notes)
+        writeLong(XmlTagKDBX.Icon, group.icon.standard.id.toLong())
 
         if (!group.icon.custom.isUnknown) {
-            writeUuid(DatabaseKDBXXML.ElemCustomIconID, group.icon.custom.uuid)
+            writeUuid(XmlTagKDBX.CustomIconID, group.icon.custom.uuid)
         }
 
         writeTags(group.tags)
         writePreviousParentGroup(group.previousParentGroup)
         writeTimes(group)
-        writeBoolean(DatabaseKDBXXML.ElemIsExpanded, group.isExpanded)
-        writeString(DatabaseKDBXXML.ElemGroupDefaultAutoTypeSeq, group.defaultAutoTypeSequence)
-        writeBoolean(DatabaseKDBXXML.ElemEnableAutoType, group.enableAutoType)
-        writeBoolean(DatabaseKDBXXML.ElemEnableSearching, group.enableSearching)
-        writeUuid(DatabaseKDBXXML.ElemLastTopVisibleEntry, group.lastTopVisibleEntry)
+        writeBoolean(XmlTagKDBX.IsExpanded, group.isExpanded)
+        writeString(XmlTagKDBX.GroupDefaultAutoTypeSeq, group.defaultAutoTypeSequence)
+        writeBoolean(XmlTagKDBX.EnableAutoType, group.enableAutoType)
+        writeBoolean(XmlTagKDBX.EnableSearching, group.enableSearching)
+        writeUuid(XmlTagKDBX.LastTopVisibleEntry, group.lastTopVisibleEntry)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun endGroup() {
-        xml.endTag(null, DatabaseKDBXXML.ElemGroup)
+        xml.endTag(XmlTagKDBX.Group)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeEntry(entry: EntryKDBX, isHistory: Boolean) {
 
-        xml.startTag(null, DatabaseKDBXXML.ElemEntry)
+        xml.startTag(XmlTagKDBX.Entry)
 
-        writeUuid(DatabaseKDBXXML.ElemUuid, entry.id)
-        writeLong(DatabaseKDBXXML.ElemIcon, entry.icon.standard.id.toLong())
+        writeUuid(XmlTagKDBX.Uuid, entry.id)
+        writeLong(XmlTagKDBX.Icon, entry.icon.standard.id.toLong())
 
         if (!entry.icon.custom.isUnknown) {
-            writeUuid(DatabaseKDBXXML.ElemCustomIconID, entry.icon.custom.uuid)
+            writeUuid(XmlTagKDBX.CustomIconID, entry.icon.custom.uuid)
         }
 
-        writeString(DatabaseKDBXXML.ElemFgColor, entry.foregroundColor)
-        writeString(DatabaseKDBXXML.ElemBgColor, entry.backgroundColor)
-        writeString(DatabaseKDBXXML.ElemOverrideUrl, entry.overrideURL)
+        writeString(XmlTagKDBX.FgColor, entry.foregroundColor)
+        writeString(XmlTagKDBX.BgColor, entry.backgroundColor)
+        writeString(XmlTagKDBX.OverrideUrl, entry.overrideURL)
 
         // Write quality check only if false
         if (!entry.qualityCheck) {
-            writeBoolean(DatabaseKDBXXML.ElemQualityCheck, entry.qualityCheck)
+            writeBoolean(XmlTagKDBX.QualityCheck, entry.qualityCheck)
         }
         writeTags(entry.tags)
         writePreviousParentGroup(entry.previousParentGroup)
@@ -409,55 +581,56 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
             writeEntryHistory(entry.history)
         }
 
-        xml.endTag(null, DatabaseKDBXXML.ElemEntry)
+        xml.endTag(XmlTagKDBX.Entry)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
-    private fun writeString(name: String, value: String, filterXmlChars: Boolean = false) {
-        var xmlString = value
-
-        xml.startTag(null, name)
-
-        if (filterXmlChars) {
-            xmlString = safeXmlString(xmlString)
-        }
+    private fun writeString(tag: Int, value: String, filterXmlChars: Boolean = false) {
+        xml.startTag(tag)
+        xml.text(value, filterXmlChars)
+        xml.endTag(tag)
+    }
 
-        xml.text(xmlString)
-        xml.endTag(null, name)
+    @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
+    private fun writeBase64(tag: Int, value: ByteArray) {
+        xml.startTag(tag)
+        xml.textBase64(value)
+        xml.endTag(tag)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
-    private fun writeDateInstant(name: String, value: DateInstant) {
+    private fun writeDateInstant(tag: Int, value: DateInstant) {
         val date = value.date
         if (header!!.version.isBefore(FILE_VERSION_40)) {
-            writeString(name, DatabaseKDBXXML.DateFormatter.format(date))
+            writeString(tag, dateFormatter.format(date))
         } else {
-            val buf = longTo8Bytes(DateKDBXUtil.convertDateToKDBX4Time(date))
-            val b64 = String(Base64.encode(buf, BASE_64_FLAG))
-            writeString(name, b64)
+            xml.startTag(tag)
+            xml.textBase64(DateKDBXUtil.convertDateToKDBX4Time(date))
+            xml.endTag(tag)
         }
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
-    private fun writeLong(name: String, value: Long) {
-        writeString(name, value.toString())
+    private fun writeLong(tag: Int, value: Long) {
+        writeString(tag, value.toString())
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
-    private fun writeBoolean(name: String, value: Boolean?) {
+    private fun writeBoolean(tag: Int, value: Boolean?) {
         val text: String = when {
             value == null -> DatabaseKDBXXML.ValNull
             value -> DatabaseKDBXXML.ValTrue
             else -> DatabaseKDBXXML.ValFalse
         }
 
-        writeString(name, text)
+        writeString(tag, text)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
-    private fun writeUuid(name: String, uuid: UUID) {
-        val data = uuidTo16Bytes(uuid)
-        writeString(name, String(Base64.encode(data, BASE_64_FLAG)))
+    private fun writeUuid(tag: Int, uuid: UUID) {
+        xml.startTag(tag)
+        xml.textBase64(uuid)
+        xml.endTag(tag)
     }
 
     /*
@@ -468,7 +641,7 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
     private fun writeEntryBinary(binary : BinaryAttachment) {
         if (binary.length() > 0) {
             if (binary.isProtected) {
-                xml.attribute(null, DatabaseKDBXXML.AttrProtected, DatabaseKDBXXML.ValTrue)
+                xml.attribute(DatabaseKDBXXML.AttrProtected, DatabaseKDBXXML.ValTrue)
                 binary.getInputDataStream().use { inputStream ->
                     inputStream.readBytes { buffer ->
                         val encoded = ByteArray(buffer.size)
@@ -492,58 +665,58 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
     // With kdbx4, don't use this method because binaries are in header file
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeMetaBinaries() {
-        xml.startTag(null, DatabaseKDBXXML.ElemBinaries)
+        xml.startTag(XmlTagKDBX.Binaries)
         // Use indexes because necessarily (binary header ref is the order)
         val binaryCache = mDatabaseKDBX.binaryCache
-        mDatabaseKDBX.attachmentPool.doForEachOrderedBinaryWithoutDuplication { index, binary ->
-            xml.startTag(null, DatabaseKDBXXML.ElemBinary)
-            xml.attribute(null, DatabaseKDBXXML.AttrId, index.toString())
+        binaryReferences?.doForEachOrderedBinary { index, binary ->
+            xml.startTag(XmlTagKDBX.Binary)
+            xml.attribute(DatabaseKDBXXML.AttrId, index.toString())
             if (binary.getSize() > 0) {
                 if (binary.isCompressed) {
-                    xml.attribute(null, DatabaseKDBXXML.AttrCompressed, DatabaseKDBXXML.ValTrue)
+                    xml.attribute(DatabaseKDBXXML.AttrCompressed, DatabaseKDBXXML.ValTrue)
                 }
                 try {
-                    // Write the XML
+                    // Write the XML, padded only at the end of the binary
                     binary.getInputDataStream(binaryCache).use { inputStream ->
-                        inputStream.readAllBytes { buffer ->
-                            xml.text(String(Base64.encode(buffer, BASE_64_FLAG)))
+                        xml.textBase64Stream().use { base64OutputStream ->
+                            inputStream.copyTo(base64OutputStream)
                         }
                     }
                 } catch (e: Exception) {
                     Log.e(TAG, "Unable to write binary", e)
                 }
             }
-            xml.endTag(null, DatabaseKDBXXML.ElemBinary)
+            xml.endTag(XmlTagKDBX.Binary)
         }
-        xml.endTag(null, DatabaseKDBXXML.ElemBinaries)
+        xml.endTag(XmlTagKDBX.Binaries)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeAutoType(autoType: AutoType) {
-        xml.startTag(null, DatabaseKDBXXML.ElemAutoType)
+        xml.startTag(XmlTagKDBX.AutoType)
 
-        writeBoolean(DatabaseKDBXXML.ElemAutoTypeEnabled, autoType.enabled)
-        writeLong(DatabaseKDBXXML.ElemAutoTypeObfuscation, autoType.obfuscationOptions.toKotlinLong())
+        writeBoolean(XmlTagKDBX.AutoTypeEnabled, autoType.enabled)
+        writeLong(XmlTagKDBX.AutoTypeObfuscation, autoType.obfuscationOptions.toKotlinLong())
 
         if (autoType.defaultSequence.isNotEmpty()) {
-            writeString(DatabaseKDBXXML.ElemAutoTypeDefaultSeq, autoType.defaultSequence, true)
+            writeString(XmlTagKDBX.AutoTypeDefaultSeq, autoType.defaultSequence, true)
         }
 
         autoType.doForEachAutoTypeItem { key, value ->
-            xml.startTag(null, DatabaseKDBXXML.ElemAutoTypeItem)
+            xml.startTag(XmlTagKDBX.AutoTypeItem)
 
-            xml.startTag(null, DatabaseKDBXXML.ElemWindow)
-            xml.text(safeXmlString(key))
-            xml.endTag(null, DatabaseKDBXXML.ElemWindow)
+            xml.startTag(XmlTagKDBX.Window)
+            xml.text(key, true)
+            xml.endTag(XmlTagKDBX.Window)
 
-            xml.startTag(null, DatabaseKDBXXML.ElemKeystrokeSequence)
-            xml.text(safeXmlString(value))
-            xml.endTag(null, DatabaseKDBXXML.ElemKeystrokeSequence)
+            xml.startTag(XmlTagKDBX.KeystrokeSequence)
+            xml.text(value, true)
+            xml.endTag(XmlTagKDBX.KeystrokeSequence)
 
-            xml.endTag(null, DatabaseKDBXXML.ElemAutoTypeItem)
+            xml.endTag(XmlTagKDBX.AutoTypeItem)
         }
 
-        xml.endTag(null, DatabaseKDBXXML.ElemAutoType)
+        xml.endTag(XmlTagKDBX.AutoType)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
@@ -558,124 +731,129 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
         val label = field.name
         val value = field.protectedValue
 
-        xml.startTag(null, DatabaseKDBXXML.ElemString)
-        xml.startTag(null, DatabaseKDBXXML.ElemKey)
-        xml.text(safeXmlString(label))
-        xml.endTag(null, DatabaseKDBXXML.ElemKey)
+        xml.startTag(XmlTagKDBX.String)
+        xml.startTag(XmlTagKDBX.Key)
+        xml.text(label, true)
+        xml.endTag(XmlTagKDBX.Key)
 
-        xml.startTag(null, DatabaseKDBXXML.ElemValue)
-        var protect = value.isProtected
+        xml.startTag(XmlTagKDBX.Value)
 
-        when (label) {
-            MemoryProtectionConfig.ProtectDefinition.TITLE_FIELD -> protect = mDatabaseKDBX.memoryProtection.protectTitle
-            MemoryProtectionConfig.ProtectDefinition.USERNAME_FIELD -> protect = mDatabaseKDBX.memoryProtection.protectUserName
-            MemoryProtectionConfig.ProtectDefinition.PASSWORD_FIELD -> protect = mDatabaseKDBX.memoryProtection.protectPassword
-            MemoryProtectionConfig.ProtectDefinition.URL_FIELD -> protect = mDatabaseKDBX.memoryProtection.protectUrl
-            MemoryProtectionConfig.ProtectDefinition.NOTES_FIELD -> protect = mDatabaseKDBX.memoryProtection.protectNotes
-        }
-
-        if (protect) {
-            xml.attribute(null, DatabaseKDBXXML.AttrProtected, DatabaseKDBXXML.ValTrue)
+        if (isProtected(field)) {
+            xml.attribute(DatabaseKDBXXML.AttrProtected, DatabaseKDBXXML.ValTrue)
             val data = value.toString().toByteArray()
-            val encoded = randomStream?.processBytes(data) ?: ByteArray(0)
-            xml.text(String(Base64.encode(encoded, BASE_64_FLAG)))
+            val encoded = randomStream?.let { stream ->
+                randomStreamPosition += data.size
+                stream.processBytes(data)
+            } ?: ByteArray(0)
+            xml.textBase64(encoded)
         } else {
             xml.text(value.toString())
         }
 
-        xml.endTag(null, DatabaseKDBXXML.ElemValue)
-        xml.endTag(null, DatabaseKDBXXML.ElemString)
+        xml.endTag(XmlTagKDBX.Value)
+        xml.endTag(XmlTagKDBX.String)
+    }
+
+    private fun isProtected(field: Field): Boolean {
+        return when (field.name) {
+            MemoryProtectionConfig.ProtectDefinition.TITLE_FIELD -> mDatabaseKDBX.memoryProtection.protectTitle
+            MemoryProtectionConfig.ProtectDefinition.USERNAME_FIELD -> mDatabaseKDBX.memoryProtection.protectUserName
+            MemoryProtectionConfig.ProtectDefinition.PASSWORD_FIELD -> mDatabaseKDBX.memoryProtection.protectPassword
+            MemoryProtectionConfig.ProtectDefinition.URL_FIELD -> mDatabaseKDBX.memoryProtection.protectUrl
+            MemoryProtectionConfig.ProtectDefinition.NOTES_FIELD -> mDatabaseKDBX.memoryProtection.protectNotes
+            else -> field.protectedValue.isProtected
+        }
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeDeletedObject(value: DeletedObject) {
-        xml.startTag(null, DatabaseKDBXXML.ElemDeletedObject)
+        xml.startTag(XmlTagKDBX.DeletedObject)
 
-        writeUuid(DatabaseKDBXXML.ElemUuid, value.uuid)
-        writeDateInstant(DatabaseKDBXXML.ElemDeletionTime, value.getDeletionTime())
+        writeUuid(XmlTagKDBX.Uuid, value.uuid)
+        writeDateInstant(XmlTagKDBX.DeletionTime, value.getDeletionTime())
 
-        xml.endTag(null, DatabaseKDBXXML.ElemDeletedObject)
+        xml.endTag(XmlTagKDBX.DeletedObject)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeEntryBinaries(binaries: LinkedHashMap<String, Int>) {
         for ((label, poolId) in binaries) {
             // Retrieve the right index with the poolId, don't use ref because of header in DatabaseV4
-            mDatabaseKDBX.attachmentPool.getBinaryIndexFromKey(poolId)?.toString()?.let { indexString ->
-                xml.startTag(null, DatabaseKDBXXML.ElemBinary)
-                xml.startTag(null, DatabaseKDBXXML.ElemKey)
-                xml.text(safeXmlString(label))
-                xml.endTag(null, DatabaseKDBXXML.ElemKey)
+            binaryReferences?.getBinaryIndexFromKey(poolId)?.toString()?.let { indexString ->
+                xml.startTag(XmlTagKDBX.Binary)
+                xml.startTag(XmlTagKDBX.Key)
+                xml.text(label, true)
+                xml.endTag(XmlTagKDBX.Key)
 
-                xml.startTag(null, DatabaseKDBXXML.ElemValue)
+                xml.startTag(XmlTagKDBX.Value)
                 // Use only pool data in Meta to save binaries
-                xml.attribute(null, DatabaseKDBXXML.AttrRef, indexString)
-                xml.endTag(null, DatabaseKDBXXML.ElemValue)
+                xml.attribute(DatabaseKDBXXML.AttrRef, indexString)
+                xml.endTag(XmlTagKDBX.Value)
 
-                xml.endTag(null, DatabaseKDBXXML.ElemBinary)
+                xml.endTag(XmlTagKDBX.Binary)
             }
         }
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeDeletedObjects(value: List<DeletedObject>) {
-        xml.startTag(null, DatabaseKDBXXML.ElemDeletedObjects)
+        xml.startTag(XmlTagKDBX.DeletedObjects)
 
         for (pdo in value) {
             writeDeletedObject(pdo)
         }
 
-        xml.endTag(null, DatabaseKDBXXML.ElemDeletedObjects)
+        xml.endTag(XmlTagKDBX.DeletedObjects)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeMemoryProtection(value: MemoryProtectionConfig) {
-        xml.startTag(null, DatabaseKDBXXML.ElemMemoryProt)
+        xml.startTag(XmlTagKDBX.MemoryProt)
 
-        writeBoolean(DatabaseKDBXXML.ElemProtTitle, value.protectTitle)
-        writeBoolean(DatabaseKDBXXML.ElemProtUserName, value.protectUserName)
-        writeBoolean(DatabaseKDBXXML.ElemProtPassword, value.protectPassword)
-        writeBoolean(DatabaseKDBXXML.ElemProtURL, value.protectUrl)
-        writeBoolean(DatabaseKDBXXML.ElemProtNotes, value.protectNotes)
+        writeBoolean(XmlTagKDBX.ProtTitle, value.protectTitle)
+        writeBoolean(XmlTagKDBX.ProtUserName, value.protectUserName)
+        writeBoolean(XmlTagKDBX.ProtPassword, value.protectPassword)
+        writeBoolean(XmlTagKDBX.ProtURL, value.protectUrl)
+        writeBoolean(XmlTagKDBX.ProtNotes, value.protectNotes)
 
-        xml.endTag(null, DatabaseKDBXXML.ElemMemoryProt)
+        xml.endTag(XmlTagKDBX.MemoryProt)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeCustomData(customData: CustomData) {
         if (customData.isNotEmpty()) {
-            xml.startTag(null, DatabaseKDBXXML.ElemCustomData)
+            xml.startTag(XmlTagKDBX.CustomData)
 
             customData.doForEachItems { customDataItem ->
                 writeCustomDataItem(customDataItem)
             }
 
-            xml.endTag(null, DatabaseKDBXXML.ElemCustomData)
+            xml.endTag(XmlTagKDBX.CustomData)
         }
     }
 
     private fun writeCustomDataItem(customDataItem: CustomDataItem) {
-        xml.startTag(null, DatabaseKDBXXML.ElemStringDictExItem)
+        xml.startTag(XmlTagKDBX.StringDictExItem)
 
-        xml.startTag(null, DatabaseKDBXXML.ElemKey)
-        xml.text(safeXmlString(customDataItem.key))
-        xml.endTag(null, DatabaseKDBXXML.ElemKey)
+        xml.startTag(XmlTagKDBX.Key)
+        xml.text(customDataItem.key, true)
+        xml.endTag(XmlTagKDBX.Key)
 
-        xml.startTag(null, DatabaseKDBXXML.ElemValue)
-        xml.text(safeXmlString(customDataItem.value))
-        xml.endTag(null, DatabaseKDBXXML.ElemValue)
+        xml.startTag(XmlTagKDBX.Value)
+        xml.text(customDataItem.value, true)
+        xml.endTag(XmlTagKDBX.Value)
 
         customDataItem.lastModificationTime?.let { lastModificationTime ->
-            writeDateInstant(DatabaseKDBXXML.ElemLastModTime, lastModificationTime)
+            writeDateInstant(XmlTagKDBX.LastModTime, lastModificationTime)
         }
 
-        xml.endTag(null, DatabaseKDBXXML.ElemStringDictExItem)
+        xml.endTag(XmlTagKDBX.StringDictExItem)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeTags(tags: Tags) {
         if (!tags.isEmpty()) {
-            writeString(DatabaseKDBXXML.ElemTags, tags.toString())
+            writeString(XmlTagKDBX.Tags, tags.toString())
         }
     }
 
@@ -683,36 +861,36 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
     private fun writePreviousParentGroup(previousParentGroup: UUID) {
         if (!header!!.version.isBefore(FILE_VERSION_41)
                 && previousParentGroup != DatabaseVersioned.UUID_ZERO) {
-            writeUuid(DatabaseKDBXXML.ElemPreviousParentGroup, previousParentGroup)
+            writeUuid(XmlTagKDBX.PreviousParentGroup, previousParentGroup)
         }
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeTimes(node: NodeKDBXInterface) {
-        xml.startTag(null, DatabaseKDBXXML.ElemTimes)
+        xml.startTag(XmlTagKDBX.Times)
 
-        writeDateInstant(DatabaseKDBXXML.ElemLastModTime, node.lastModificationTime)
-        writeDateInstant(DatabaseKDBXXML.ElemCreationTime, node.creationTime)
-        writeDateInstant(DatabaseKDBXXML.ElemLastAccessTime, node.lastAccessTime)
-        writeDateInstant(DatabaseKDBXXML.ElemExpiryTime, node.expiryTime)
-        writeBoolean(DatabaseKDBXXML.ElemExpires, node.expires)
-        writeLong(DatabaseKDBXXML.ElemUsageCount, node.usageCount.toKotlinLong())
-        writeDateInstant(DatabaseKDBXXML.ElemLocationChanged, node.locationChanged)
+        writeDateInstant(XmlTagKDBX.LastModTime, node.lastModificationTime)
+        writeDateInstant(XmlTagKDBX.CreationTime, node.creationTime)
+        writeDateInstant(XmlTagKDBX.LastAccessTime, node.lastAccessTime)
+        writeDateInstant(XmlTagKDBX.ExpiryTime, node.expiryTime)
+        writeBoolean(XmlTagKDBX.Expires, node.expires)
+        writeLong(XmlTagKDBX.UsageCount, node.usageCount.toKotlinLong())
+        writeDateInstant(XmlTagKDBX.LocationChanged, node.locationChanged)
 
-        xml.endTag(null, DatabaseKDBXXML.ElemTimes)
+        xml.endTag(XmlTagKDBX.Times)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeEntryHistory(value: List<EntryKDBX>) {
-        val element = DatabaseKDBXXML.ElemHistory
+        val element = XmlTagKDBX.History
 
-        xml.startTag(null, element)
+        xml.startTag(element)
 
         for (entry in value) {
             writeEntry(entry, true)
         }
 
-        xml.endTag(null, element)
+        xml.endTag(element)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
@@ -723,13 +901,13 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
             if (binary.dataExists()) {
                 // Write the parent tag
                 if (firstElement) {
-                    xml.startTag(null, DatabaseKDBXXML.ElemCustomIcons)
+                    xml.startTag(XmlTagKDBX.CustomIcons)
                     firstElement = false
                 }
 
-                xml.startTag(null, DatabaseKDBXXML.ElemCustomIconItem)
+                xml.startTag(XmlTagKDBX.CustomIconItem)
 
-                writeUuid(DatabaseKDBXXML.ElemCustomIconItemID, iconCustom.uuid)
+                writeUuid(XmlTagKDBX.CustomIconItemID, iconCustom.uuid)
                 var customImageData = ByteArray(0)
                 try {
                     binary.getInputDataStream(binaryCache).use { inputStream ->
@@ -738,48 +916,45 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
                 } catch (e: Exception) {
                     Log.e(TAG, "Unable to write custom icon", e)
                 } finally {
-                    writeString(DatabaseKDBXXML.ElemCustomIconItemData,
-                            String(Base64.encode(customImageData, BASE_64_FLAG)))
+                    writeBase64(XmlTagKDBX.CustomIconItemData, customImageData)
                 }
                 if (iconCustom.name.isNotEmpty()) {
-                    writeString(DatabaseKDBXXML.ElemName, iconCustom.name)
+                    writeString(XmlTagKDBX.Name, iconCustom.name)
                 }
                 iconCustom.lastModificationTime?.let { lastModificationTime ->
-                    writeDateInstant(DatabaseKDBXXML.ElemLastModTime, lastModificationTime)
+                    writeDateInstant(XmlTagKDBX.LastModTime, lastModificationTime)
                 }
 
-                xml.endTag(null, DatabaseKDBXXML.ElemCustomIconItem)
+                xml.endTag(XmlTagKDBX.CustomIconItem)
             }
         }
         // Close the parent tag
         if (!firstElement) {
-            xml.endTag(null, DatabaseKDBXXML.ElemCustomIcons)
-        }
-    }
-
-    private fun safeXmlString(text: String): String {
-        if (text.isEmpty()) {
-            return text
-        }
-        val stringBuilder = StringBuilder()
-        var character: Char
-        for (element in text) {
-            character = element
-            val hexChar = character.toInt()
-            if (
-                    hexChar in 0x20..0xD7FF ||
-                    hexChar == 0x9 ||
-                    hexChar == 0xA ||
-                    hexChar == 0xD ||
-                    hexChar in 0xE000..0xFFFD
-            ) {
-                stringBuilder.append(character)
-            }
+            xml.endTag(XmlTagKDBX.CustomIcons)
         }
-        return stringBuilder.toString()
     }
 
+    private class Subtree(val node: NodeKDBXInterface,
+                          val protectedSize: Long,
+                          val weight: Int)
+
     companion object {
         private val TAG = DatabaseOutputKDBX::class.java.name
+
+        private val SERIALIZATION_THREADS = Runtime.getRuntime().availableProcessors().coerceIn(1, 8)
+        // More tasks than threads to balance the subtrees of different complexity
+        private const val TASKS_PER_THREAD = 4
+        // Buffers kept at the same time, written as soon as the first one is ready
+        private val MAX_TASKS_IN_FLIGHT = SERIALIZATION_THREADS * 2
+        // Number of groups and entries under which the serialization stays sequential
+        private const val MIN_PARALLEL_NODES = 1024
+
+        private val serializationExecutor: ExecutorService by lazy {
+            Executors.newFixedThreadPool(SERIALIZATION_THREADS) { runnable ->
+                Thread(runnable, "SerializeKDBX").apply {
+                    isDaemon = true
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,392 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.file.output
+
+import com.kunzisoft.keepass.database.file.XmlTagKDBX
+import java.io.IOException
+import java.io.OutputStream
+import java.util.*
+
+/**
+ * Streaming writer of the KDBX XML document, encoding the UTF-8 bytes directly in a buffer.
+ * It produces the same document as a non namespace aware XmlSerializer, but each tag
+ * is written from its [XmlTagKDBX] token as pre-encoded bytes, only the characters which
+ * need it are escaped, and the Base64 values are encoded without intermediate arrays.
+ */
+class XmlWriterKDBX(private val outputStream: OutputStream,
+                    bufferSize: Int = DEFAULT_BUFFER_SIZE) {
+
+    // Large enough to contain any escaped character or Base64 quantum
+    private val buffer = ByteArray(bufferSize.coerceAtLeast(MIN_BUFFER_SIZE))
+    private var position = 0
+
+    // Tokens of the open elements
+    private var elementTokens = IntArray(32)
+    private var depth = 0
+    // The start tag is not closed yet, attributes can be added
+    private var pendingStartTag = false
+
+    // Bytes of a UUID or a long to encode in Base64
+    private val valueBytes = ByteArray(16)
+
+    @Throws(IOException::class)
+    fun startDocument() {
+        writeBytes(XML_DECLARATION)
+    }
+
+    /**
+     * Close the open elements and flush the document
+     */
+    @Throws(IOException::class)
+    fun endDocument() {
+        while (depth > 0) {
+            endTag(elementTokens[depth - 1])
+        }
+        flush()
+    }
+
+    @Throws(IOException::class)
+    fun startTag(token: Int) {
+        closeStartTag()
+        if (depth == elementTokens.size) {
+            elementTokens = elementTokens.copyOf(depth * 2)
+        }
+        elementTokens[depth++] = token
+        writeBytes(START_TAGS[token])
+        pendingStartTag = true
+    }
+
+    @Throws(IllegalStateException::class, IOException::class)
+    fun endTag(token: Int) {
+        if (depth == 0 || elementTokens[depth - 1] != token)
+            throw IllegalStateException("</${XmlTagKDBX.name(token)}> does not close the current element")
+        depth--
+        if (pendingStartTag) {
+            pendingStartTag = false
+            writeBytes(EMPTY_TAG_END)
+        } else {
+            writeBytes(END_TAGS[token])
+        }
+    }
+
+    /**
+     * Add the attribute [name] to the current start tag, [name] must be an ASCII name
+     */
+    @Throws(IllegalStateException::class, IllegalArgumentException::class, IOException::class)
+    fun attribute(name: String, value: String) {
+        if (!pendingStartTag)
+            throw IllegalStateException("Attribute $name outside of a start tag")
+        ensureCapacity(name.length + 3)
+        buffer[position++] = SPACE
+        for (char in name) {
+            buffer[position++] = char.toByte()
+        }
+        buffer[position++] = EQUALS
+        buffer[position++] = QUOTE
+        writeEscaped(value, true, false)
+        ensureCapacity(1)
+        buffer[position++] = QUOTE
+    }
+
+    /**
+     * Write the escaped [text] as content of the current element, if [filterXmlChars],
+     * the characters not allowed in XML are removed, else they throw an exception
+     */
+    @Throws(IllegalArgumentException::class, IOException::class)
+    fun text(text: String, filterXmlChars: Boolean = false) {
+        closeStartTag()
+        writeEscaped(text, false, filterXmlChars)
+    }
+
+    /**
+     * Write the [length] bytes of [data] from [offset] as Base64 content, without line wrap
+     */
+    @Throws(IOException::class)
+    fun textBase64(data: ByteArray, offset: Int = 0, length: Int = data.size) {
+        closeStartTag()
+        encodeBase64(data, offset, length)
+    }
+
+    /**
+     * Stream to write Base64 content by chunks of any size, the bytes of an incomplete
+     * quantum are kept for the next chunk, so the padding is only written at [OutputStream.close]
+     */
+    @Throws(IOException::class)
+    fun textBase64Stream(): OutputStream {
+        closeStartTag()
+        return Base64TextOutputStream()
+    }
+
+    @Throws(IOException::class)
+    private fun encodeBase64(data: ByteArray, offset: Int, length: Int) {
+        val end = offset + length
+        var index = offset
+        while (end - index >= 3) {
+            ensureCapacity(4)
+            val bits = (data[index].toInt() and 0xFF shl 16) or
+                    (data[index + 1].toInt() and 0xFF shl 8) or
+                    (data[index + 2].toInt() and 0xFF)
+            buffer[position++] = BASE_64_ALPHABET[bits ushr 18]
+            buffer[position++] = BASE_64_ALPHABET[bits ushr 12 and 0x3F]
+            buffer[position++] = BASE_64_ALPHABET[bits ushr 6 and 0x3F]
+            buffer[position++] = BASE_64_ALPHABET[bits and 0x3F]
+            index += 3
+        }
+        if (index < end) {
+            ensureCapacity(4)
+            val twoBytes = end - index == 2
+            val bits = (data[index].toInt() and 0xFF shl 16) or
+                    (if (twoBytes) data[index + 1].toInt() and 0xFF shl 8 else 0)
+            buffer[position++] = BASE_64_ALPHABET[bits ushr 18]
+            buffer[position++] = BASE_64_ALPHABET[bits ushr 12 and 0x3F]
+            buffer[position++] = if (twoBytes) BASE_64_ALPHABET[bits ushr 6 and 0x3F] else PADDING
+            buffer[position++] = PADDING
+        }
+    }
+
+    /**
+     * Write the 16 bytes of [uuid] as Base64 content
+     */
+    @Throws(IOException::class)
+    fun textBase64(uuid: UUID) {
+        putLittleEndian(uuid.mostSignificantBits, 0)
+        putLittleEndian(uuid.leastSignificantBits, 8)
+        textBase64(valueBytes, 0, 16)
+    }
+
+    /**
+     * Write the 8 little endian bytes of [value] as Base64 content
+     */
+    @Throws(IOException::class)
+    fun textBase64(value: Long) {
+        putLittleEndian(value, 0)
+        textBase64(valueBytes, 0, 8)
+    }
+
+    /**
+     * Write the buffered bytes to the output stream, the current start tag is closed
+     */
+    @Throws(IOException::class)
+    fun flush() {
+        closeStartTag()
+        flushBuffer()
+        outputStream.flush()
+    }
+
+    private fun putLittleEndian(value: Long, offset: Int) {
+        for (i in 0 until 8) {
+            valueBytes[offset + i] = (value ushr (8 * i)).toByte()
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun closeStartTag() {
+        if (pendingStartTag) {
+            pendingStartTag = false
+            ensureCapacity(1)
+            buffer[position++] = TAG_END
+        }
+    }
+
+    @Throws(IllegalArgumentException::class, IOException::class)
+    private fun writeEscaped(text: String, inAttribute: Boolean, filterXmlChars: Boolean) {
+        val length = text.length
+        var index = 0
+        while (index < length) {
+            ensureCapacity(MAX_CHARACTER_SIZE)
+            val char = text[index++]
+            val code = char.toInt()
+            when {
+                code < 0x80 -> when (char) {
+                    '&' -> writeAscii(ESCAPED_AMPERSAND)
+                    '<' -> writeAscii(ESCAPED_LESS_THAN)
+                    '>' -> writeAscii(ESCAPED_GREATER_THAN)
+                    '"' -> if (inAttribute) writeAscii(ESCAPED_QUOTE) else buffer[position++] = QUOTE
+                    '\t', '\n', '\r' -> if (inAttribute) {
+                        writeAscii(if (char == '\t') ESCAPED_TAB else if (char == '\n') ESCAPED_LF else ESCAPED_CR)
+                    } else {
+                        buffer[position++] = code.toByte()
+                    }
+                    else -> if (code >= 0x20) {
+                        buffer[position++] = code.toByte()
+                    } else if (!filterXmlChars) {
+                        throw invalidCharacter(code)
+                    }
+                }
+                code < 0x800 -> {
+                    buffer[position++] = (0xC0 or (code shr 6)).toByte()
+                    buffer[position++] = (0x80 or (code and 0x3F)).toByte()
+                }
+                Character.isSurrogate(char) -> {
+                    // Removed like any character out of the basic plane when filtered
+                    if (filterXmlChars)
+                        continue
+                    if (!Character.isHighSurrogate(char)
+                            || index == length
+                            || !Character.isLowSurrogate(text[index]))
+                        throw invalidCharacter(code)
+                    // Character reference, as written by the serializer
+                    writeCharacterReference(Character.toCodePoint(char, text[index++]))
+                }
+                code >= 0xFFFE -> if (!filterXmlChars) {
+                    throw invalidCharacter(code)
+                }
+                else -> {
+                    buffer[position++] = (0xE0 or (code shr 12)).toByte()
+                    buffer[position++] = (0x80 or (code shr 6 and 0x3F)).toByte()
+                    buffer[position++] = (0x80 or (code and 0x3F)).toByte()
+                }
+            }
+        }
+    }
+
+    private fun writeCharacterReference(codePoint: Int) {
+        buffer[position++] = AMPERSAND
+        buffer[position++] = NUMBER_SIGN
+        var divisor = 1
+        while (codePoint / divisor >= 10) {
+            divisor *= 10
+        }
+        while (divisor > 0) {
+            buffer[position++] = ('0'.toInt() + codePoint / divisor % 10).toByte()
+            divisor /= 10
+        }
+        buffer[position++] = SEMICOLON
+    }
+
+    private fun writeAscii(bytes: ByteArray) {
+        System.arraycopy(bytes, 0, buffer, position, bytes.size)
+        position += bytes.size
+    }
+
+    private fun invalidCharacter(code: Int): IllegalArgumentException {
+        return IllegalArgumentException("Illegal character (U+" + Integer.toHexString(code) + ")")
+    }
+
+    @Throws(IOException::class)
+    private fun writeBytes(bytes: ByteArray) {
+        if (bytes.size > buffer.size - position) {
+            flushBuffer()
+            if (bytes.size > buffer.size) {
+                outputStream.write(bytes)
+                return
+            }
+        }
+        writeAscii(bytes)
+    }
+
+    @Throws(IOException::class)
+    private fun ensureCapacity(size: Int) {
+        if (size > buffer.size - position) {
+            flushBuffer()
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun flushBuffer() {
+        if (position > 0) {
+            outputStream.write(buffer, 0, position)
+            position = 0
+        }
+    }
+
+    private inner class Base64TextOutputStream : OutputStream() {
+
+        // Bytes of the incomplete quantum
+        private val quantum = ByteArray(3)
+        private var quantumLength = 0
+        private var closed = false
+
+        @Throws(IOException::class)
+        override fun write(b: Int) {
+            if (closed)
+                throw IOException("Base64 stream closed")
+            quantum[quantumLength++] = b.toByte()
+            if (quantumLength == 3) {
+                encodeBase64(quantum, 0, 3)
+                quantumLength = 0
+            }
+        }
+
+        @Throws(IOException::class)
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            if (closed)
+                throw IOException("Base64 stream closed")
+            var index = off
+            val end = off + len
+            while (quantumLength > 0 && index < end) {
+                write(b[index++].toInt())
+            }
+            val fullLength = (end - index) / 3 * 3
+            encodeBase64(b, index, fullLength)
+            index += fullLength
+            while (index < end) {
+                quantum[quantumLength++] = b[index++]
+            }
+        }
+
+        @Throws(IOException::class)
+        override fun close() {
+            if (!closed) {
+                closed = true
+                encodeBase64(quantum, 0, quantumLength)
+                quantumLength = 0
+            }
+        }
+    }
+
+    companion object {
+        const val DEFAULT_BUFFER_SIZE = 8 * 1024
+        private const val MIN_BUFFER_SIZE = 64
+        // Longest escape sequence of a character, the reference of the last code point
+        private const val MAX_CHARACTER_SIZE = 10
+
+        private const val SPACE = ' '.toByte()
+        private const val EQUALS = '='.toByte()
+        private const val QUOTE = '"'.toByte()
+        private const val TAG_END = '>'.toByte()
+        private const val AMPERSAND = '&'.toByte()
+        private const val NUMBER_SIGN = '#'.toByte()
+        private const val SEMICOLON = ';'.toByte()
+        private const val PADDING = '='.toByte()
+
+        private val XML_DECLARATION = "<?xml version='1.0' encoding='UTF-8' standalone='yes' ?>"
+                .toByteArray(Charsets.US_ASCII)
+        private val EMPTY_TAG_END = " />".toByteArray(Charsets.US_ASCII)
+        private val ESCAPED_AMPERSAND = "&amp;".toByteArray(Charsets.US_ASCII)
+        private val ESCAPED_LESS_THAN = "&lt;".toByteArray(Charsets.US_ASCII)
+        private val ESCAPED_GREATER_THAN = "&gt;".toByteArray(Charsets.US_ASCII)
+        private val ESCAPED_QUOTE = "&quot;".toByteArray(Charsets.US_ASCII)
+        private val ESCAPED_TAB = "&#9;".toByteArray(Charsets.US_ASCII)
+        private val ESCAPED_LF = "&#10;".toByteArray(Charsets.US_ASCII)
+        private val ESCAPED_CR = "&#13;".toByteArray(Charsets.US_ASCII)
+
+        private val BASE_64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+                .toByteArray(Charsets.US_ASCII)
+
+        // Pre-encoded tags, indexed by token
+        private val START_TAGS = Array(XmlTagKDBX.StringDictExItem + 1) { token ->
+            ("<" + XmlTagKDBX.name(token)).toByteArray(Charsets.US_ASCII)
+        }
+        private val END_TAGS = Array(XmlTagKDBX.StringDictExItem + 1) { token ->
+            ("</" + XmlTagKDBX.name(token) + ">").toByteArray(Charsets.US_ASCII)
+        }
+    }
+}
@@ -395,6 +395,11 @@ class AttachmentFileNotificationService: LockNotificationService() {
                                                     downloadState == AttachmentState.CANCELED
                                                 }
                                         )
+                                        // Don't store a second copy of a content already in the database
+                                        if (downloadState != AttachmentState.CANCELED) {
+                                            attachment.binaryData = database
+                                                    .reuseAttachmentWithSameContent(attachment.binaryData)
+                                        }
                                     }
                                     StreamDirection.DOWNLOAD -> {
                                         BinaryDatabaseManager.downloadFromDatabase(
@@ -24,6 +24,8 @@ import android.content.Intent
 import android.net.Uri
 import android.os.*
 import android.util.Log
+import android.widget.Toast
+import androidx.core.app.NotificationCompat
 import com.kunzisoft.keepass.R
 import com.kunzisoft.keepass.activities.GroupActivity
 import com.kunzisoft.keepass.app.database.CipherDatabaseEntity
@@ -40,8 +42,10 @@ import com.kunzisoft.keepass.database.element.node.NodeId
 import com.kunzisoft.keepass.database.element.node.Type
 import com.kunzisoft.keepass.model.MainCredential
 import com.kunzisoft.keepass.model.SnapFileDatabaseInfo
+import com.kunzisoft.keepass.settings.PreferencesUtil
 import com.kunzisoft.keepass.tasks.ActionRunnable
 import com.kunzisoft.keepass.tasks.ProgressTaskUpdater
+import com.kunzisoft.keepass.tasks.ProgressTaskUpdater.Companion.PROGRESS_INDETERMINATE
 import com.kunzisoft.keepass.timeout.TimeoutHelper
 import com.kunzisoft.keepass.utils.*
 import com.kunzisoft.keepass.viewmodels.FileDatabaseInfo
@@ -62,6 +66,11 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
     private var mActionTaskBinder = ActionTaskBinder()
     private var mActionTaskListeners = LinkedList<ActionTaskListener>()
     private var mActionRunning = false
+    private var mSaveScheduler: DatabaseSaveScheduler? = null
+    @Volatile
+    private var mTaskCancelled = false
+    private var mProgress = PROGRESS_INDETERMINATE
+    private var mNotificationBuilder: NotificationCompat.Builder? = null
     private var mTaskRemovedRequested = false
     private var mCreationState = false
 
@@ -108,6 +117,13 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
         fun removeActionTaskListener(actionTaskListener: ActionTaskListener) {
             mActionTaskListeners.remove(actionTaskListener)
         }
+
+        /**
+         * Request the cancellation of the running task, only the cancellable steps are stopped
+         */
+        fun cancelTask() {
+            mTaskCancelled = true
+        }
     }
 
     interface DatabaseListener {
@@ -122,6 +138,7 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
     interface ActionTaskListener {
         fun onStartAction(database: Database, titleId: Int?, messageId: Int?, warningId: Int?)
         fun onUpdateAction(database: Database, titleId: Int?, messageId: Int?, warningId: Int?)
+        fun onUpdateProgress(database: Database, progress: Int)
         fun onStopAction(database: Database, actionTask: String, result: ActionRunnable.Result)
     }
 
@@ -192,11 +209,41 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
             if (mActionRunning) {
                 mActionTaskListeners.forEach { actionTaskListener ->
                     actionTaskListener.onStartAction(database, mTitleId, mMessageId, mWarningId)
+                    actionTaskListener.onUpdateProgress(database, mProgress)
                 }
             }
         }
     }
 
+    override fun onCreate() {
+        super.onCreate()
+        mSaveScheduler = DatabaseSaveScheduler {
+            mainScope.launch {
+                launchDelayedSave()
+            }
+        }
+    }
+
+    /**
+     * Save the modifications merged by the scheduler like a standard save action
+     */
+    private fun launchDelayedSave() {
+        if (mActionRunning) {
+            // Wait the end of the running action
+            mSaveScheduler?.markDirty()
+        } else {
+            try {
+                startService(Intent(applicationContext,
+                        DatabaseTaskNotificationService::class.java).apply {
+                    action = ACTION_DATABASE_SAVE
+                    putExtra(SAVE_DATABASE_KEY, true)
+                })
+            } catch (e: IllegalStateException) {
+                mSaveScheduler?.markDirty()
+            }
+        }
+    }
+
     override fun onBind(intent: Intent): IBinder? {
         super.onBind(intent)
         return mActionTaskBinder
@@ -205,6 +252,12 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
     override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
         super.onStartCommand(intent, flags, startId)
 
+        // Only flag the running task, the notification is kept
+        if (intent?.action == ACTION_DATABASE_CANCEL_TASK) {
+            mTaskCancelled = true
+            return START_NOT_STICKY
+        }
+
         val database = Database.getInstance()
         if (mDatabase != database) {
             mDatabase = database
@@ -213,6 +266,12 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
             }
         }
 
+        // Only mark the database as dirty, the save is performed after the save delay
+        val delayedSave = intent != null && isDelayedSave(intent, database)
+        if (delayedSave) {
+            intent?.putExtra(SAVE_DATABASE_KEY, false)
+        }
+
         // Create the notification
         buildMessage(intent, database.isReadOnly)
 
@@ -242,6 +301,7 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
             ACTION_DATABASE_UPDATE_DESCRIPTION_TASK,
             ACTION_DATABASE_UPDATE_DEFAULT_USERNAME_TASK,
             ACTION_DATABASE_UPDATE_COLOR_TASK,
+            ACTION_DATABASE_UPDATE_COMPRESSION_LEVEL_TASK,
             ACTION_DATABASE_UPDATE_RECYCLE_BIN_TASK,
             ACTION_DATABASE_UPDATE_TEMPLATES_GROUP_TASK,
             ACTION_DATABASE_UPDATE_MAX_HISTORY_ITEMS_TASK,
@@ -257,12 +317,19 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
 
         // Build and launch the action
         if (actionRunnable != null) {
+            // The modifications not yet saved are written by the requested save
+            if (!database.isReadOnly
+                    && intent?.getBooleanExtra(SAVE_DATABASE_KEY, false) == true) {
+                mSaveScheduler?.cancel()
+            }
             mainScope.launch {
                 executeAction(this@DatabaseTaskNotificationService,
                         {
                             TimeoutHelper.temporarilyDisableTimeout()
 
                             mActionRunning = true
+                            mTaskCancelled = false
+                            mProgress = PROGRESS_INDETERMINATE
 
                             sendBroadcast(Intent(DATABASE_START_TASK_ACTION).apply {
                                 putExtra(DATABASE_TASK_TITLE_KEY, mTitleId)
@@ -292,19 +359,24 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
                                 val save = !database.isReadOnly
                                         && (intentAction == ACTION_DATABASE_SAVE
                                         || intent?.getBooleanExtra(SAVE_DATABASE_KEY, false) == true)
+                                // The modifications are kept until a successful save
+                                if (save && result.isSuccess
+                                        && mSaveScheduler?.isDirty != true) {
+                                    database.hasDelayedModifications = false
+                                }
+                                if (delayedSave && result.isSuccess) {
+                                    database.hasDelayedModifications = true
+                                    mSaveScheduler?.markDirty()
+                                }
                                 // Save the database info after performing save action
                                 if (save) {
-                                    database.fileUri?.let {
-                                        val newSnapFileDatabaseInfo = SnapFileDatabaseInfo.fromFileDatabaseInfo(
-                                                FileDatabaseInfo(applicationContext, it))
-                                        mLastLocalSaveTime = System.currentTimeMillis()
-                                        mSnapFileDatabaseInfo = newSnapFileDatabaseInfo
-                                    }
+                                    saveDatabaseFileInfo(database)
                                 }
                                 removeIntentData(intent)
                                 TimeoutHelper.releaseTemporarilyDisableTimeout()
                                 // Stop service after save if user remove task
-                                if (save && mTaskRemovedRequested) {
+                                if ((save || database.hasDelayedModifications)
+                                        && mTaskRemovedRequested) {
                                     actionOnLock()
                                 } else if (TimeoutHelper.checkTimeAndLockIfTimeout(this@DatabaseTaskNotificationService)) {
                                     if (!database.loaded) {
@@ -341,6 +413,16 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
         }
     }
 
+    private fun isDelayedSave(intent: Intent, database: Database): Boolean {
+        if (intent.action !in DELAYED_SAVE_ACTIONS
+                || database.isReadOnly
+                || !intent.getBooleanExtra(SAVE_DATABASE_KEY, false))
+            return false
+        val saveDelay = PreferencesUtil.getSaveDelay(this)
+        mSaveScheduler?.quietPeriod = saveDelay
+        return saveDelay > 0 && mSaveScheduler != null
+    }
+
     private fun buildMessage(intent: Intent?, readOnly: Boolean) {
         // Assign elements for updates
         val intentAction = intent?.action
@@ -398,6 +480,23 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
             setContentIntent(null)
         }
 
+        // Loading can be cancelled during the key derivation
+        if (intentAction == ACTION_DATABASE_LOAD_TASK
+                || intentAction == ACTION_DATABASE_RELOAD_TASK) {
+            val pendingCancelIntent = PendingIntent.getService(
+                this,
+                0,
+                Intent(this, DatabaseTaskNotificationService::class.java).apply {
+                    action = ACTION_DATABASE_CANCEL_TASK
+                },
+                PendingIntent.FLAG_UPDATE_CURRENT
+            )
+            notificationBuilder.addAction(
+                R.drawable.ic_close_white_24dp, getString(android.R.string.cancel),
+                pendingCancelIntent
+            )
+        }
+
         if (intentAction == null) {
             mDatabase?.let { database ->
                 // Database is normally open
@@ -429,6 +528,7 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
         }
 
         // Create the notification
+        mNotificationBuilder = notificationBuilder
         startForeground(notificationId, notificationBuilder.build())
     }
 
@@ -490,8 +590,39 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
         }
     }
 
+    override fun updateProgress(percent: Int) {
+        mProgress = percent
+        mNotificationBuilder?.let { notificationBuilder ->
+            if (percent == PROGRESS_INDETERMINATE)
+                notificationBuilder.setProgress(0, 0, false)
+            else
+                notificationBuilder.setProgress(100, percent, false)
+            notificationManager?.notify(notificationId, notificationBuilder.build())
+        }
+        mDatabase?.let { database ->
+            mActionTaskListeners.forEach { actionTaskListener ->
+                actionTaskListener.onUpdateProgress(database, percent)
+            }
+        }
+    }
+
+    override fun isCancelled(): Boolean {
+        return mTaskCancelled
+    }
+
+    private fun saveDatabaseFileInfo(database: Database) {
+        database.fileUri?.let {
+            val newSnapFileDatabaseInfo = SnapFileDatabaseInfo.fromFileDatabaseInfo(
+                    FileDatabaseInfo(applicationContext, it))
+            mLastLocalSaveTime = System.currentTimeMillis()
+            mSnapFileDatabaseInfo = newSnapFileDatabaseInfo
+        }
+    }
+
     override fun actionOnLock() {
         if (!TimeoutHelper.temporarilyDisableLock) {
+            // The modifications not yet saved are written before clearing data
+            mSaveScheduler?.cancel()
             closeDatabase(mDatabase)
             // Remove the lock timer (no more needed if it exists)
             TimeoutHelper.cancelLockTimer(this)
@@ -501,12 +632,26 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
     }
 
     override fun onTaskRemoved(rootIntent: Intent?) {
+        // The delayed modifications are written when the database is closed by the lock
         if (TimeoutHelper.temporarilyDisableLock) {
             mTaskRemovedRequested = true
         }
         super.onTaskRemoved(rootIntent)
     }
 
+    override fun onDestroy() {
+        // Last chance to write the modifications waiting for the save delay
+        mSaveScheduler?.cancel()
+        mSaveScheduler = null
+        if (mDatabase?.saveDelayedModifications(contentResolver) == false) {
+            Log.e(TAG, "Unable to save the delayed modifications")
+            Toast.makeText(applicationContext,
+                    R.string.error_save_delayed_modifications,
+                    Toast.LENGTH_LONG).show()
+        }
+        super.onDestroy()
+    }
+
     private fun buildDatabaseCreateActionTask(intent: Intent, database: Database): ActionRunnable? {
 
         if (intent.hasExtra(DATABASE_URI_KEY)
@@ -905,6 +1050,7 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
         const val ACTION_DATABASE_UPDATE_DEFAULT_USERNAME_TASK = "ACTION_DATABASE_UPDATE_DEFAULT_USERNAME_TASK"
         const val ACTION_DATABASE_UPDATE_COLOR_TASK = "ACTION_DATABASE_UPDATE_COLOR_TASK"
         const val ACTION_DATABASE_UPDATE_COMPRESSION_TASK = "ACTION_DATABASE_UPDATE_COMPRESSION_TASK"
+        const val ACTION_DATABASE_UPDATE_COMPRESSION_LEVEL_TASK = "ACTION_DATABASE_UPDATE_COMPRESSION_LEVEL_TASK"
         const val ACTION_DATABASE_REMOVE_UNLINKED_DATA_TASK = "ACTION_DATABASE_REMOVE_UNLINKED_DATA_TASK"
         const val ACTION_DATABASE_UPDATE_RECYCLE_BIN_TASK = "ACTION_DATABASE_UPDATE_RECYCLE_BIN_TASK"
         const val ACTION_DATABASE_UPDATE_TEMPLATES_GROUP_TASK = "ACTION_DATABASE_UPDATE_TEMPLATES_GROUP_TASK"
@@ -916,6 +1062,7 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
         const val ACTION_DATABASE_UPDATE_PARALLELISM_TASK = "ACTION_DATABASE_UPDATE_PARALLELISM_TASK"
         const val ACTION_DATABASE_UPDATE_ITERATIONS_TASK = "ACTION_DATABASE_UPDATE_ITERATIONS_TASK"
         const val ACTION_DATABASE_SAVE = "ACTION_DATABASE_SAVE"
+        const val ACTION_DATABASE_CANCEL_TASK = "ACTION_DATABASE_CANCEL_TASK"
 
         const val DATABASE_TASK_TITLE_KEY = "DATABASE_TASK_TITLE_KEY"
         const val DATABASE_TASK_MESSAGE_KEY = "DATABASE_TASK_MESSAGE_KEY"
@@ -940,6 +1087,23 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
         const val OLD_ELEMENT_KEY = "OLD_ELEMENT_KEY" // Warning type of this thing change every time
         const val NEW_ELEMENT_KEY = "NEW_ELEMENT_KEY" // Warning type of this thing change every time
 
+        // Actions whose save can be merged with the following ones
+        private val DELAYED_SAVE_ACTIONS = arrayOf(
+                ACTION_DATABASE_CREATE_GROUP_TASK,
+                ACTION_DATABASE_UPDATE_GROUP_TASK,
+                ACTION_DATABASE_CREATE_ENTRY_TASK,
+                ACTION_DATABASE_UPDATE_ENTRY_TASK,
+                ACTION_DATABASE_COPY_NODES_TASK,
+                ACTION_DATABASE_MOVE_NODES_TASK,
+                ACTION_DATABASE_DELETE_NODES_TASK,
+                ACTION_DATABASE_RESTORE_ENTRY_HISTORY,
+                ACTION_DATABASE_DELETE_ENTRY_HISTORY,
+                ACTION_DATABASE_UPDATE_NAME_TASK,
+                ACTION_DATABASE_UPDATE_DESCRIPTION_TASK,
+                ACTION_DATABASE_UPDATE_DEFAULT_USERNAME_TASK,
+                ACTION_DATABASE_UPDATE_COLOR_TASK,
+                ACTION_DATABASE_UPDATE_COMPRESSION_LEVEL_TASK)
+
         private var mSnapFileDatabaseInfo: SnapFileDatabaseInfo? = null
         private var mLastLocalSaveTime: Long = 0
 
@@ -486,6 +486,7 @@ class NestedAppSettingsFragment : NestedSettingsFragment() {
         // Main Preferences
         when (preference?.key) {
             getString(R.string.app_timeout_key),
+            getString(R.string.save_delay_key),
             getString(R.string.clipboard_timeout_key),
             getString(R.string.temp_advanced_unlock_timeout_key) -> {
                 dialogFragment = DurationDialogFragmentCompat.newInstance(preference.key)
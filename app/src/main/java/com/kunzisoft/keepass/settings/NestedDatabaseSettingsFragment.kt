@@ -19,12 +19,18 @@
  */
 package com.kunzisoft.keepass.settings
 
+import android.app.ActivityManager
+import android.content.Context
 import android.graphics.Color
 import android.os.Bundle
+import android.text.format.Formatter
 import android.util.Log
 import android.view.*
+import android.widget.Toast
+import androidx.appcompat.app.AlertDialog
 import androidx.fragment.app.DialogFragment
 import androidx.fragment.app.activityViewModels
+import androidx.lifecycle.lifecycleScope
 import androidx.preference.Preference
 import androidx.preference.PreferenceCategory
 import androidx.preference.SwitchPreference
@@ -38,6 +44,7 @@ import com.kunzisoft.keepass.database.crypto.kdf.KdfEngine
 import com.kunzisoft.keepass.database.element.Database
 import com.kunzisoft.keepass.database.element.Group
 import com.kunzisoft.keepass.database.element.database.CompressionAlgorithm
+import com.kunzisoft.keepass.database.element.database.CompressionLevel
 import com.kunzisoft.keepass.database.element.template.TemplateEngine
 import com.kunzisoft.keepass.services.DatabaseTaskNotificationService
 import com.kunzisoft.keepass.settings.preference.*
@@ -45,6 +52,9 @@ import com.kunzisoft.keepass.settings.preferencedialogfragment.*
 import com.kunzisoft.keepass.tasks.ActionRunnable
 import com.kunzisoft.keepass.utils.MenuUtil
 import com.kunzisoft.keepass.viewmodels.DatabaseViewModel
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 
 class NestedDatabaseSettingsFragment : NestedSettingsFragment(), DatabaseRetrieval {
 
@@ -60,6 +70,7 @@ class NestedDatabaseSettingsFragment : NestedSettingsFragment(), DatabaseRetriev
     private var dbDefaultUsername: InputTextPreference? = null
     private var dbCustomColorPref: DialogColorPreference? = null
     private var dbDataCompressionPref: Preference? = null
+    private var dbDataCompressionLevelPref: Preference? = null
     private var recycleBinGroupPref: DialogListExplanationPreference? = null
     private var templatesGroupPref: DialogListExplanationPreference? = null
     private var dbMaxHistoryItemsPref: InputNumberPreference? = null
@@ -197,9 +208,14 @@ class NestedDatabaseSettingsFragment : NestedSettingsFragment(), DatabaseRetriev
 
         // Database compression
         dbDataCompressionPref = findPreference(getString(R.string.database_data_compression_key))
+        dbDataCompressionLevelPref = findPreference(getString(R.string.database_data_compression_level_key))
         if (database.allowDataCompression) {
-            dbDataCompressionPref?.summary = (database.compressionAlgorithm
-                ?: CompressionAlgorithm.None).getName(resources)
+            val compressionAlgorithm = database.compressionAlgorithm ?: CompressionAlgorithm.None
+            dbDataCompressionPref?.summary = compressionAlgorithm.getName(resources)
+            // The level is only used by the GZip compression
+            dbDataCompressionLevelPref?.summary = (database.compressionLevel
+                ?: CompressionLevel.Default).getName(resources)
+            dbDataCompressionLevelPref?.isEnabled = compressionAlgorithm == CompressionAlgorithm.GZip
         } else {
             dbCompressionPrefCategory?.isVisible = false
         }
@@ -331,6 +347,130 @@ class NestedDatabaseSettingsFragment : NestedSettingsFragment(), DatabaseRetriev
         mParallelismPref = findPreference<InputKdfNumberPreference>(getString(R.string.parallelism_key))?.apply {
             summary = database.parallelism.toString()
         }
+
+        // Benchmark of the key derivation
+        findPreference<Preference>(getString(R.string.kdf_benchmark_key))?.apply {
+            isEnabled = if (!mDatabaseReadOnly) {
+                onPreferenceClickListener = Preference.OnPreferenceClickListener {
+                    showKdfBenchmarkDialog()
+                    false
+                }
+                true
+            } else {
+                false
+            }
+        }
+    }
+
+    private fun showKdfBenchmarkDialog() {
+        AlertDialog.Builder(requireContext())
+                .setTitle(R.string.kdf_benchmark_target_title)
+                .setItems(R.array.kdf_benchmark_targets) { _, which ->
+                    runKdfBenchmark(KDF_BENCHMARK_TARGETS_MILLIS[which])
+                }
+                .setNegativeButton(R.string.entry_cancel, null)
+                .show()
+    }
+
+    private fun runKdfBenchmark(targetMillis: Long) {
+        val database = mDatabase ?: return
+        val kdfEngine = database.kdfEngine ?: return
+        val maxMemoryUsage = kdfBenchmarkMaxMemoryUsage(requireContext())
+        Toast.makeText(context, R.string.kdf_benchmark_running, Toast.LENGTH_SHORT).show()
+        lifecycleScope.launch(Dispatchers.Main) {
+            val tunedParameters = withContext(Dispatchers.Default) {
+                try {
+                    kdfEngine.benchmark(targetMillis, maxMemoryUsage)
+                } catch (e: Exception) {
+                    Log.e(TAG, "Unable to benchmark the key derivation", e)
+                    null
+                }
+            }
+            if (tunedParameters == null) {
+                Toast.makeText(context, R.string.kdf_benchmark_error, Toast.LENGTH_LONG).show()
+            } else if (database == mDatabase && kdfEngine == database.kdfEngine) {
+                showKdfTunedParametersDialog(database, tunedParameters)
+            }
+        }
+    }
+
+    /**
+     * Ask to apply the [tunedParameters], the user must explicitly accept values weaker than the current ones
+     */
+    private fun showKdfTunedParametersDialog(database: Database, tunedParameters: KdfEngine.TunedParameters) {
+        val context = requireContext()
+        val currentParameters = KdfEngine.TunedParameters(database.numberKeyEncryptionRounds,
+                database.memoryUsage,
+                database.parallelism)
+        val message = StringBuilder()
+        if (tunedParameters.memoryUsage != KdfEngine.UNKNOWN_VALUE) {
+            message.appendLine(getString(R.string.kdf_benchmark_result_memory_usage,
+                    Formatter.formatFileSize(context, currentParameters.memoryUsage),
+                    Formatter.formatFileSize(context, tunedParameters.memoryUsage)))
+        }
+        if (tunedParameters.parallelism != KdfEngine.UNKNOWN_VALUE) {
+            message.appendLine(getString(R.string.kdf_benchmark_result_parallelism,
+                    currentParameters.parallelism,
+                    tunedParameters.parallelism))
+        }
+        message.appendLine(getString(R.string.kdf_benchmark_result_iterations,
+                currentParameters.keyRounds,
+                tunedParameters.keyRounds))
+        val weaker = tunedParameters.keyRounds < currentParameters.keyRounds
+                || (tunedParameters.memoryUsage != KdfEngine.UNKNOWN_VALUE
+                && tunedParameters.memoryUsage < currentParameters.memoryUsage)
+        val builder = AlertDialog.Builder(context)
+                .setTitle(R.string.kdf_benchmark_result_title)
+                .setNegativeButton(R.string.entry_cancel, null)
+                .setPositiveButton(R.string.kdf_benchmark_apply) { _, _ ->
+                    if (database == mDatabase) {
+                        saveKdfTunedParameters(database, tunedParameters)
+                    }
+                }
+        if (weaker) {
+            message.appendLine().append(getString(R.string.kdf_benchmark_result_weaker))
+            builder.setNeutralButton(R.string.kdf_benchmark_apply_without_lowering) { _, _ ->
+                if (database == mDatabase) {
+                    saveKdfTunedParameters(database, KdfEngine.TunedParameters(
+                            maxOf(tunedParameters.keyRounds, currentParameters.keyRounds),
+                            if (tunedParameters.memoryUsage == KdfEngine.UNKNOWN_VALUE)
+                                KdfEngine.UNKNOWN_VALUE
+                            else
+                                maxOf(tunedParameters.memoryUsage, currentParameters.memoryUsage),
+                            tunedParameters.parallelism))
+                }
+            }
+        }
+        builder.setMessage(message.trim()).show()
+    }
+
+    private fun saveKdfTunedParameters(database: Database, tunedParameters: KdfEngine.TunedParameters) {
+        // Only the last update saves the database
+        if (tunedParameters.memoryUsage != KdfEngine.UNKNOWN_VALUE) {
+            val oldMemoryUsage = database.memoryUsage
+            database.memoryUsage = tunedParameters.memoryUsage
+            mDatabaseViewModel.saveMemoryUsage(oldMemoryUsage, tunedParameters.memoryUsage, false)
+        }
+        if (tunedParameters.parallelism != KdfEngine.UNKNOWN_VALUE) {
+            val oldParallelism = database.parallelism
+            database.parallelism = tunedParameters.parallelism
+            mDatabaseViewModel.saveParallelism(oldParallelism, tunedParameters.parallelism, false)
+        }
+        val oldRounds = database.numberKeyEncryptionRounds
+        database.numberKeyEncryptionRounds = tunedParameters.keyRounds
+        mDatabaseViewModel.saveIterations(oldRounds, tunedParameters.keyRounds, mDatabaseAutoSaveEnabled)
+    }
+
+    /**
+     * Memory usage allowed to the benchmark, a fraction of the available memory
+     * to still open the database on a device loaded with other applications
+     */
+    private fun kdfBenchmarkMaxMemoryUsage(context: Context): Long {
+        val memoryInfo = ActivityManager.MemoryInfo()
+        (context.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager?)
+                ?.getMemoryInfo(memoryInfo)
+        return (memoryInfo.availMem / KDF_BENCHMARK_MEMORY_DIVISOR)
+                .coerceAtMost(KDF_BENCHMARK_MAX_MEMORY_USAGE)
     }
 
     private fun onCreateDatabaseMasterKeyPreference(database: Database) {
@@ -442,6 +582,19 @@ class NestedDatabaseSettingsFragment : NestedSettingsFragment(), DatabaseRetriev
                                     oldCompression
                                 }
                         dbDataCompressionPref?.summary = algorithmToShow.getName(resources)
+                        dbDataCompressionLevelPref?.isEnabled = algorithmToShow == CompressionAlgorithm.GZip
+                    }
+                    DatabaseTaskNotificationService.ACTION_DATABASE_UPDATE_COMPRESSION_LEVEL_TASK -> {
+                        val oldCompressionLevel = data.getSerializable(DatabaseTaskNotificationService.OLD_ELEMENT_KEY) as CompressionLevel
+                        val newCompressionLevel = data.getSerializable(DatabaseTaskNotificationService.NEW_ELEMENT_KEY) as CompressionLevel
+                        val levelToShow =
+                                if (result.isSuccess) {
+                                    newCompressionLevel
+                                } else {
+                                    mDatabase?.compressionLevel = oldCompressionLevel
+                                    oldCompressionLevel
+                                }
+                        dbDataCompressionLevelPref?.summary = levelToShow.getName(resources)
                     }
                     DatabaseTaskNotificationService.ACTION_DATABASE_UPDATE_RECYCLE_BIN_TASK -> {
                         val oldRecycleBin = data.getParcelable<Group?>(DatabaseTaskNotificationService.OLD_ELEMENT_KEY)
@@ -591,6 +744,9 @@ class NestedDatabaseSettingsFragment : NestedSettingsFragment(), DatabaseRetriev
             getString(R.string.database_data_compression_key) -> {
                 dialogFragment = DatabaseDataCompressionPreferenceDialogFragmentCompat.newInstance(preference.key)
             }
+            getString(R.string.database_data_compression_level_key) -> {
+                dialogFragment = DatabaseDataCompressionLevelPreferenceDialogFragmentCompat.newInstance(preference.key)
+            }
             getString(R.string.database_data_remove_unlinked_attachments_key) -> {
                 dialogFragment = DatabaseRemoveUnlinkedDataPreferenceDialogFragmentCompat.newInstance(preference.key)
             }
@@ -681,6 +837,12 @@ class NestedDatabaseSettingsFragment : NestedSettingsFragment(), DatabaseRetriev
     }
 
     companion object {
+        private val TAG = NestedDatabaseSettingsFragment::class.java.name
         private const val TAG_PREF_FRAGMENT = "TAG_PREF_FRAGMENT"
+
+        // Same order as the R.array.kdf_benchmark_targets labels
+        private val KDF_BENCHMARK_TARGETS_MILLIS = longArrayOf(500L, 1000L, 2000L, 5000L)
+        private const val KDF_BENCHMARK_MEMORY_DIVISOR = 8L
+        private const val KDF_BENCHMARK_MAX_MEMORY_USAGE = 64L * 1024L * 1024L
     }
 }
\ No newline at end of file
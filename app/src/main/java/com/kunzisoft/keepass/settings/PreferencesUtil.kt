@@ -30,6 +30,7 @@ import com.kunzisoft.keepass.BuildConfig
 import com.kunzisoft.keepass.R
 import com.kunzisoft.keepass.activities.stylish.Stylish
 import com.kunzisoft.keepass.biometric.AdvancedUnlockManager
+import com.kunzisoft.keepass.database.action.DatabaseSaveScheduler
 import com.kunzisoft.keepass.database.element.SortNodeEnum
 import com.kunzisoft.keepass.education.Education
 import com.kunzisoft.keepass.timeout.TimeoutHelper
@@ -247,6 +248,20 @@ object PreferencesUtil {
                 ?: TimeoutHelper.DEFAULT_TIMEOUT
     }
 
+    /**
+     * Quiet period in milliseconds before writing the modifications of the database,
+     * 0 to save after each modification
+     */
+    fun getSaveDelay(context: Context): Long {
+        return try {
+            val prefs = PreferenceManager.getDefaultSharedPreferences(context)
+            (prefs.getString(context.getString(R.string.save_delay_key),
+                    context.getString(R.string.save_delay_default)) ?: "2000").toLong()
+        } catch (e: NumberFormatException) {
+            DatabaseSaveScheduler.DEFAULT_QUIET_PERIOD
+        }
+    }
+
     fun getAdvancedUnlockTimeout(context: Context): Long {
         val prefs = PreferenceManager.getDefaultSharedPreferences(context)
         return prefs.getString(context.getString(R.string.temp_advanced_unlock_timeout_key),
@@ -595,6 +610,7 @@ object PreferencesUtil {
                 context.getString(R.string.delete_entered_password_key) -> editor.putBoolean(name, value.toBoolean())
                 context.getString(R.string.enable_read_only_key) -> editor.putBoolean(name, value.toBoolean())
                 context.getString(R.string.enable_auto_save_database_key) -> editor.putBoolean(name, value.toBoolean())
+                context.getString(R.string.save_delay_key) -> editor.putString(name, value.toLong().toString())
                 context.getString(R.string.omit_backup_search_key) -> editor.putBoolean(name, value.toBoolean())
                 context.getString(R.string.auto_focus_search_key) -> editor.putBoolean(name, value.toBoolean())
                 context.getString(R.string.subdomain_search_key) -> editor.putBoolean(name, value.toBoolean())
@@ -28,6 +28,7 @@ import com.kunzisoft.keepass.database.crypto.kdf.KdfEngine
 import com.kunzisoft.keepass.database.element.Database
 import com.kunzisoft.keepass.database.element.Group
 import com.kunzisoft.keepass.database.element.database.CompressionAlgorithm
+import com.kunzisoft.keepass.database.element.database.CompressionLevel
 import com.kunzisoft.keepass.settings.PreferencesUtil
 import com.kunzisoft.keepass.tasks.ActionRunnable
 import com.kunzisoft.keepass.viewmodels.DatabaseViewModel
@@ -86,6 +87,11 @@ abstract class DatabaseSavePreferenceDialogFragmentCompat
         mDatabaseViewModel.saveCompression(oldCompression, newCompression, mDatabaseAutoSaveEnable)
     }
 
+    protected fun saveCompressionLevel(oldCompressionLevel: CompressionLevel,
+                                       newCompressionLevel: CompressionLevel) {
+        mDatabaseViewModel.saveCompressionLevel(oldCompressionLevel, newCompressionLevel, mDatabaseAutoSaveEnable)
+    }
+
     protected fun saveDefaultUsername(oldUsername: String,
                                       newUsername: String) {
         mDatabaseViewModel.saveDefaultUsername(oldUsername, newUsername, mDatabaseAutoSaveEnable)
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.stream
+
+import com.kunzisoft.keepass.database.crypto.AeadChunk
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.RandomAccessFile
+import java.security.GeneralSecurityException
+import java.security.Key
+import javax.crypto.Cipher
+
+/**
+ * Decrypt and verify a file in [AeadChunk] format,
+ * [seek] only decrypts the chunk containing the new position
+ */
+class AeadChunkInputStream(file: File,
+                           private val key: Key,
+                           position: Long = 0) : InputStream() {
+
+    private val randomAccessFile = RandomAccessFile(file, "r")
+    private val cipher: Cipher = Cipher.getInstance(AeadChunk.CIPHER)
+    private val noncePrefix = ByteArray(AeadChunk.NONCE_PREFIX_SIZE)
+    private val encryptedBuffer = ByteArray(AeadChunk.ENCRYPTED_CHUNK_SIZE)
+    private val buffer = ByteArray(AeadChunk.CHUNK_SIZE)
+    private var bufferLength = 0
+    private var bufferPos = 0
+    // Index of the chunk in the buffer, -1 if not loaded
+    private var bufferChunkIndex = -1L
+    private var chunkIndex = 0L
+    private val chunkCount: Long
+
+    /**
+     * Length of the data stored in the file
+     */
+    val length: Long
+
+    init {
+        try {
+            val fileLength = randomAccessFile.length()
+            chunkCount = AeadChunk.chunkCount(fileLength)
+            if (chunkCount == 0L)
+                throw IOException("Incomplete encrypted file")
+            length = AeadChunk.dataLength(fileLength)
+            randomAccessFile.readFully(noncePrefix)
+            seek(position)
+        } catch (e: IOException) {
+            randomAccessFile.close()
+            throw e
+        }
+    }
+
+    /**
+     * Current position in the stored data
+     */
+    val position: Long
+        get() = chunkIndex * AeadChunk.CHUNK_SIZE + bufferPos
+
+    /**
+     * Move to [position] in the stored data, the end of the data if [position] is after
+     */
+    @Throws(IOException::class)
+    fun seek(position: Long) {
+        val newPosition = position.coerceIn(0, length)
+        chunkIndex = minOf(newPosition / AeadChunk.CHUNK_SIZE, chunkCount - 1)
+        bufferPos = (newPosition - chunkIndex * AeadChunk.CHUNK_SIZE).toInt()
+        if (bufferChunkIndex != chunkIndex)
+            bufferLength = 0
+    }
+
+    /**
+     * Decrypt the current chunk if not already in the buffer,
+     * return false if no more data can be read
+     */
+    @Throws(IOException::class)
+    private fun readChunk(): Boolean {
+        if (bufferChunkIndex == chunkIndex && bufferLength > 0) {
+            if (bufferPos < bufferLength)
+                return true
+            // Current chunk fully read
+            if (chunkIndex + 1 >= chunkCount)
+                return false
+            chunkIndex++
+            bufferPos = 0
+        }
+        if (chunkIndex >= chunkCount)
+            return false
+        val lastChunk = chunkIndex == chunkCount - 1
+        val encryptedLength = if (lastChunk)
+            (randomAccessFile.length() - AeadChunk.NONCE_PREFIX_SIZE
+                    - chunkIndex * AeadChunk.ENCRYPTED_CHUNK_SIZE).toInt()
+        else
+            AeadChunk.ENCRYPTED_CHUNK_SIZE
+        randomAccessFile.seek(AeadChunk.NONCE_PREFIX_SIZE + chunkIndex * AeadChunk.ENCRYPTED_CHUNK_SIZE)
+        randomAccessFile.readFully(encryptedBuffer, 0, encryptedLength)
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key,
+                    AeadChunk.parameterSpec(AeadChunk.chunkNonce(noncePrefix, chunkIndex, lastChunk)))
+            bufferLength = cipher.doFinal(encryptedBuffer, 0, encryptedLength, buffer, 0)
+        } catch (e: GeneralSecurityException) {
+            bufferChunkIndex = -1
+            bufferLength = 0
+            throw IOException("Corrupted chunk $chunkIndex", e)
+        }
+        bufferChunkIndex = chunkIndex
+        return bufferPos < bufferLength
+    }
+
+    @Throws(IOException::class)
+    override fun read(): Int {
+        if (!readChunk())
+            return -1
+        return buffer[bufferPos++].toInt() and 0xFF
+    }
+
+    @Throws(IOException::class)
+    override fun read(outBuffer: ByteArray, byteOffset: Int, byteCount: Int): Int {
+        if (byteCount == 0)
+            return 0
+        var offset = byteOffset
+        var remaining = byteCount
+        while (remaining > 0 && readChunk()) {
+            val length = minOf(remaining, bufferLength - bufferPos)
+            System.arraycopy(buffer, bufferPos, outBuffer, offset, length)
+            bufferPos += length
+            offset += length
+            remaining -= length
+        }
+        val read = byteCount - remaining
+        return if (read == 0) -1 else read
+    }
+
+    @Throws(IOException::class)
+    override fun skip(byteCount: Long): Long {
+        if (byteCount <= 0)
+            return 0
+        val previousPosition = position
+        seek(previousPosition + byteCount)
+        return position - previousPosition
+    }
+
+    override fun available(): Int {
+        return if (bufferChunkIndex == chunkIndex) bufferLength - bufferPos else 0
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        randomAccessFile.close()
+    }
+}
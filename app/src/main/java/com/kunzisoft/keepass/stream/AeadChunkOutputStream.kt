@@ -0,0 +1,102 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.stream
+
+import com.kunzisoft.keepass.database.crypto.AeadChunk
+import java.io.IOException
+import java.io.OutputStream
+import java.security.GeneralSecurityException
+import java.security.Key
+import java.security.SecureRandom
+import javax.crypto.Cipher
+
+/**
+ * Encrypt the data in [AeadChunk] format,
+ * a chunk is written when it is full and more data arrives, the last one when the stream is closed
+ */
+class AeadChunkOutputStream(private val baseStream: OutputStream,
+                            private val key: Key) : OutputStream() {
+
+    private val cipher: Cipher = Cipher.getInstance(AeadChunk.CIPHER)
+    private val noncePrefix = ByteArray(AeadChunk.NONCE_PREFIX_SIZE)
+    private val buffer = ByteArray(AeadChunk.CHUNK_SIZE)
+    private val encryptedBuffer = ByteArray(AeadChunk.ENCRYPTED_CHUNK_SIZE)
+    private var bufferPos = 0
+    private var chunkIndex = 0L
+    private var closed = false
+
+    init {
+        // New prefix at each write, a nonce is never reused with the same key
+        SecureRandom().nextBytes(noncePrefix)
+        baseStream.write(noncePrefix)
+    }
+
+    @Throws(IOException::class)
+    override fun write(oneByte: Int) {
+        if (bufferPos == buffer.size)
+            writeChunk(false)
+        buffer[bufferPos++] = oneByte.toByte()
+    }
+
+    @Throws(IOException::class)
+    override fun write(outBuffer: ByteArray, byteOffset: Int, byteCount: Int) {
+        var offset = byteOffset
+        var remaining = byteCount
+        while (remaining > 0) {
+            if (bufferPos == buffer.size)
+                writeChunk(false)
+            val length = minOf(remaining, buffer.size - bufferPos)
+            System.arraycopy(outBuffer, offset, buffer, bufferPos, length)
+            bufferPos += length
+            offset += length
+            remaining -= length
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun writeChunk(lastChunk: Boolean) {
+        if (chunkIndex > AeadChunk.MAX_CHUNK_INDEX)
+            throw IOException("Too many chunks to build distinct nonces")
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key,
+                    AeadChunk.parameterSpec(AeadChunk.chunkNonce(noncePrefix, chunkIndex, lastChunk)))
+            val length = cipher.doFinal(buffer, 0, bufferPos, encryptedBuffer, 0)
+            baseStream.write(encryptedBuffer, 0, length)
+        } catch (e: GeneralSecurityException) {
+            throw IOException("Unable to encrypt the chunk $chunkIndex", e)
+        }
+        bufferPos = 0
+        chunkIndex++
+    }
+
+    @Throws(IOException::class)
+    override fun flush() {
+        baseStream.flush()
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        if (!closed) {
+            closed = true
+            writeChunk(true)
+            baseStream.close()
+        }
+    }
+}
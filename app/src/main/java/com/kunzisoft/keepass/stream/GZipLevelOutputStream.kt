@@ -0,0 +1,45 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.stream
+
+import java.io.IOException
+import java.io.OutputStream
+import java.util.zip.Deflater
+import java.util.zip.GZIPOutputStream
+
+/**
+ * GZip stream compressed with the deflate [level] and a large output buffer,
+ * to reduce the number of calls to the native deflater for the big documents
+ */
+class GZipLevelOutputStream @Throws(IOException::class) constructor(
+        outputStream: OutputStream,
+        level: Int = Deflater.DEFAULT_COMPRESSION,
+        bufferSize: Int = DEFAULT_BUFFER_SIZE)
+    : GZIPOutputStream(outputStream, bufferSize) {
+
+    init {
+        // The GZip header doesn't depend on the level, the stream is still a standard GZip
+        def.setLevel(level)
+    }
+
+    companion object {
+        const val DEFAULT_BUFFER_SIZE = 64 * 1024
+    }
+}
@@ -27,14 +27,32 @@ import com.kunzisoft.keepass.database.crypto.HmacBlock
 import java.io.IOException
 import java.io.InputStream
 import java.util.*
+import java.util.ArrayDeque
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
 import javax.crypto.Mac
 
-class HmacBlockInputStream(private val baseStream: InputStream, private val verify: Boolean, private val key: ByteArray) : InputStream() {
+/**
+ * Read and verify a KDBX 4 HMAC block stream,
+ * with [parallelBlocks] greater than 1, the next blocks are read ahead
+ * and their HMAC verified by the workers of [HmacBlock.blockExecutor] before being returned in order.
+ */
+class HmacBlockInputStream(private val baseStream: InputStream,
+                           private val verify: Boolean,
+                           private val key: ByteArray,
+                           private val parallelBlocks: Int = 1) : InputStream() {
+
+    private class PendingBlock(val data: ByteArray,
+                               val endOfStream: Boolean,
+                               val hmacVerification: Future<Boolean>)
 
     private var buffer: ByteArray = ByteArray(0)
     private var bufferPos = 0
     private var blockIndex = UnsignedLong(0L)
     private var endOfStream = false
+    private var endOfBaseStream = false
+    private val pendingBlocks = ArrayDeque<PendingBlock>()
 
     @Throws(IOException::class)
     override fun read(): Int {
@@ -86,6 +104,10 @@ class HmacBlockInputStream(private val baseStream: InputStream, private val veri
     private fun readSafeBlock(): Boolean {
         if (endOfStream) return false
 
+        if (verify && parallelBlocks > 1) {
+            return readParallelSafeBlock()
+        }
+
         val storedHmac = baseStream.readBytesLength(32)
         if (storedHmac.size != 32) {
             throw IOException("File corrupted")
@@ -131,12 +153,63 @@ class HmacBlockInputStream(private val baseStream: InputStream, private val veri
         return true
     }
 
+    @Throws(IOException::class)
+    private fun readParallelSafeBlock(): Boolean {
+        // Read ahead the next blocks and start their verification
+        while (!endOfBaseStream && pendingBlocks.size < parallelBlocks) {
+            val storedHmac = baseStream.readBytesLength(32)
+            if (storedHmac.size != 32) {
+                throw IOException("File corrupted")
+            }
+            val pbBlockSize = baseStream.readBytesLength(4)
+            if (pbBlockSize.size != 4) {
+                throw IOException("File corrupted")
+            }
+            val blockSize = bytes4ToUInt(pbBlockSize).toKotlinInt()
+            val data = baseStream.readBytesLength(blockSize)
+            if (data.size != blockSize) {
+                throw IOException("File corrupted")
+            }
+            val pbBlockIndex = uLongTo8Bytes(blockIndex)
+            blockIndex.plusOne()
+
+            val verification = HmacBlock.blockExecutor.submit(Callable {
+                HmacBlock.getBlockHmac(key, pbBlockIndex, pbBlockSize, data, data.size)
+                        .contentEquals(storedHmac)
+            })
+            endOfBaseStream = blockSize == 0
+            pendingBlocks.add(PendingBlock(data, endOfBaseStream, verification))
+        }
+
+        val pendingBlock = pendingBlocks.poll() ?: return false
+        val validHmac = try {
+            pendingBlock.hmacVerification.get()
+        } catch (e: ExecutionException) {
+            throw IOException("Unable to verify Hmac", e.cause)
+        } catch (e: InterruptedException) {
+            throw IOException("Unable to verify Hmac", e)
+        }
+        if (!validHmac) {
+            throw IOException("Invalid Hmac")
+        }
+
+        bufferPos = 0
+        buffer = pendingBlock.data
+        if (pendingBlock.endOfStream) {
+            endOfStream = true
+            return false
+        }
+        return true
+    }
+
     override fun markSupported(): Boolean {
         return false
     }
 
     @Throws(IOException::class)
     override fun close() {
+        pendingBlocks.forEach { it.hmacVerification.cancel(false) }
+        pendingBlocks.clear()
         baseStream.close()
     }
 
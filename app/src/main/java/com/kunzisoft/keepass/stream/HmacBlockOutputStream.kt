@@ -26,15 +26,32 @@ import com.kunzisoft.keepass.utils.uLongTo8Bytes
 import com.kunzisoft.keepass.database.crypto.HmacBlock
 import java.io.IOException
 import java.io.OutputStream
+import java.util.ArrayDeque
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
 import javax.crypto.Mac
 
+/**
+ * Write a KDBX 4 HMAC block stream,
+ * with [parallelBlocks] greater than 1, the HMAC of the filled blocks are computed
+ * by the workers of [HmacBlock.blockExecutor] and the blocks written in order.
+ */
 class HmacBlockOutputStream(private val baseStream: OutputStream,
-                            private val key: ByteArray)
+                            private val key: ByteArray,
+                            private val parallelBlocks: Int = 1)
     : OutputStream() {
 
-    private val buffer = ByteArray(DEFAULT_BUFFER_SIZE)
+    private class PendingBlock(val data: ByteArray,
+                               val size: Int,
+                               val blockSizeBuf: ByteArray,
+                               val blockHmac: Future<ByteArray>)
+
+    private var buffer = ByteArray(DEFAULT_BUFFER_SIZE)
     private var bufferPos = 0
     private var blockIndex = UnsignedLong(0L)
+    private val pendingBlocks = ArrayDeque<PendingBlock>()
+    private val freeBuffers = ArrayDeque<ByteArray>()
 
     @Throws(IOException::class)
     override fun close() {
@@ -44,6 +61,9 @@ class HmacBlockOutputStream(private val baseStream: OutputStream,
             writeSafeBlock()
             writeSafeBlock()
         }
+        while (pendingBlocks.isNotEmpty()) {
+            writePendingBlock()
+        }
 
         baseStream.flush()
         baseStream.close()
@@ -85,6 +105,11 @@ class HmacBlockOutputStream(private val baseStream: OutputStream,
 
     @Throws(IOException::class)
     private fun writeSafeBlock() {
+        if (parallelBlocks > 1) {
+            submitSafeBlock()
+            return
+        }
+
         val bufBlockIndex = uLongTo8Bytes(blockIndex)
         val blockSizeBuf = uIntTo4Bytes(UnsignedInt(bufferPos))
 
@@ -108,4 +133,44 @@ class HmacBlockOutputStream(private val baseStream: OutputStream,
         blockIndex.plusOne()
         bufferPos = 0
     }
+
+    @Throws(IOException::class)
+    private fun submitSafeBlock() {
+        if (pendingBlocks.size >= parallelBlocks) {
+            writePendingBlock()
+        }
+
+        val bufBlockIndex = uLongTo8Bytes(blockIndex)
+        val blockSizeBuf = uIntTo4Bytes(UnsignedInt(bufferPos))
+        val data = buffer
+        val size = bufferPos
+        val blockHmac = HmacBlock.blockExecutor.submit(Callable {
+            HmacBlock.getBlockHmac(key, bufBlockIndex, blockSizeBuf, data, size)
+        })
+        pendingBlocks.add(PendingBlock(data, size, blockSizeBuf, blockHmac))
+
+        // The submitted buffer is owned by the pending block until written
+        buffer = freeBuffers.poll() ?: ByteArray(DEFAULT_BUFFER_SIZE)
+        blockIndex.plusOne()
+        bufferPos = 0
+    }
+
+    @Throws(IOException::class)
+    private fun writePendingBlock() {
+        val pendingBlock = pendingBlocks.poll() ?: return
+        val blockHmac = try {
+            pendingBlock.blockHmac.get()
+        } catch (e: ExecutionException) {
+            throw IOException("Unable to compute Hmac", e.cause)
+        } catch (e: InterruptedException) {
+            throw IOException("Unable to compute Hmac", e)
+        }
+        baseStream.write(blockHmac)
+        baseStream.write(pendingBlock.blockSizeBuf)
+
+        if (pendingBlock.size > 0) {
+            baseStream.write(pendingBlock.data, 0, pendingBlock.size)
+        }
+        freeBuffers.add(pendingBlock.data)
+    }
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.stream
+
+import java.io.IOException
+import java.io.InputStream
+import java.util.concurrent.ArrayBlockingQueue
+
+/**
+ * Stage of a loading pipeline, the [sourceStream] is read in a dedicated thread
+ * and the data is handed to the reader through a bounded queue of pooled buffers.
+ * Each stage thus runs its transformation (decryption, inflation...) in parallel
+ * of the stage that consumes it. When the [sourceStream] reads from an [upstream] stage,
+ * the time waiting for the upstream data is not counted in the [processingNanoTime].
+ */
+class PipelineInputStream(private val sourceStream: InputStream,
+                          val stageName: String,
+                          private val upstream: PipelineInputStream? = null,
+                          bufferSize: Int = DEFAULT_STAGE_BUFFER_SIZE,
+                          bufferCount: Int = DEFAULT_STAGE_BUFFER_COUNT) : InputStream() {
+
+    private class Chunk(val data: ByteArray) {
+        var length = 0
+    }
+
+    private val freeChunks = ArrayBlockingQueue<Chunk>(bufferCount)
+    // One more slot for the end marker
+    private val filledChunks = ArrayBlockingQueue<Chunk>(bufferCount + 1)
+
+    private var currentChunk: Chunk? = null
+    private var currentPosition = 0
+    private var endOfStream = false
+
+    @Volatile
+    private var stageError: Throwable? = null
+    @Volatile
+    private var closed = false
+
+    /**
+     * Number of bytes produced by this stage
+     */
+    @Volatile
+    var bytesProcessed = 0L
+        private set
+
+    /**
+     * Time spent by this stage to read its source, without the time waiting for a free buffer
+     * nor for the data of the [upstream] stage
+     */
+    @Volatile
+    var processingNanoTime = 0L
+        private set
+
+    /**
+     * Time spent by the reader of this stage waiting for filled buffers
+     */
+    @Volatile
+    var waitingNanoTime = 0L
+        private set
+
+    private val stageThread = Thread({ produce() }, "Pipeline-$stageName")
+
+    init {
+        for (i in 0 until bufferCount) {
+            freeChunks.add(Chunk(ByteArray(bufferSize)))
+        }
+        stageThread.isDaemon = true
+        stageThread.start()
+    }
+
+    private fun produce() {
+        try {
+            var sourceEnded = false
+            while (!sourceEnded && !closed) {
+                val chunk = freeChunks.take()
+                val startTime = System.nanoTime()
+                val upstreamStartWaitingTime = upstream?.waitingNanoTime ?: 0L
+                chunk.length = 0
+                while (chunk.length < chunk.data.size) {
+                    val read = sourceStream.read(chunk.data, chunk.length, chunk.data.size - chunk.length)
+                    if (read < 0) {
+                        sourceEnded = true
+                        break
+                    }
+                    chunk.length += read
+                }
+                val upstreamWaitingTime = (upstream?.waitingNanoTime ?: 0L) - upstreamStartWaitingTime
+                processingNanoTime += System.nanoTime() - startTime - upstreamWaitingTime
+                bytesProcessed += chunk.length
+                if (chunk.length > 0)
+                    filledChunks.put(chunk)
+                else
+                    freeChunks.put(chunk)
+            }
+        } catch (e: InterruptedException) {
+            // Stage closed by the reader
+        } catch (e: Throwable) {
+            stageError = e
+        } finally {
+            filledChunks.offer(END_OF_STAGE)
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun nextChunk(): Boolean {
+        currentChunk?.let {
+            freeChunks.offer(it)
+        }
+        currentChunk = null
+        currentPosition = 0
+        if (endOfStream)
+            return false
+        val startWaitingTime = System.nanoTime()
+        val chunk = try {
+            filledChunks.take()
+        } catch (e: InterruptedException) {
+            throw IOException("Pipeline stage $stageName interrupted", e)
+        } finally {
+            waitingNanoTime += System.nanoTime() - startWaitingTime
+        }
+        if (chunk === END_OF_STAGE) {
+            endOfStream = true
+            stageError?.let { error ->
+                when (error) {
+                    is IOException -> throw error
+                    is Error -> throw error
+                    else -> throw IOException("Pipeline stage $stageName failed", error)
+                }
+            }
+            return false
+        }
+        currentChunk = chunk
+        return true
+    }
+
+    @Throws(IOException::class)
+    override fun read(): Int {
+        var chunk = currentChunk
+        if (chunk == null || currentPosition == chunk.length) {
+            if (!nextChunk())
+                return -1
+            chunk = currentChunk!!
+        }
+        return chunk.data[currentPosition++].toInt() and 0xFF
+    }
+
+    @Throws(IOException::class)
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0)
+            return 0
+        var chunk = currentChunk
+        if (chunk == null || currentPosition == chunk.length) {
+            if (!nextChunk())
+                return -1
+            chunk = currentChunk!!
+        }
+        val copy = (chunk.length - currentPosition).coerceAtMost(len)
+        System.arraycopy(chunk.data, currentPosition, b, off, copy)
+        currentPosition += copy
+        return copy
+    }
+
+    @Throws(IOException::class)
+    override fun available(): Int {
+        return currentChunk?.let { it.length - currentPosition } ?: 0
+    }
+
+    override fun markSupported(): Boolean {
+        return false
+    }
+
+    /**
+     * Stop the stage thread and close the source stream
+     */
+    @Throws(IOException::class)
+    override fun close() {
+        if (closed)
+            return
+        closed = true
+        stageThread.interrupt()
+        try {
+            stageThread.join()
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        }
+        freeChunks.clear()
+        filledChunks.clear()
+        currentChunk = null
+        sourceStream.close()
+    }
+
+    companion object {
+        const val DEFAULT_STAGE_BUFFER_SIZE = 64 * 1024
+        const val DEFAULT_STAGE_BUFFER_COUNT = 4
+
+        private val END_OF_STAGE = Chunk(ByteArray(0))
+    }
+}
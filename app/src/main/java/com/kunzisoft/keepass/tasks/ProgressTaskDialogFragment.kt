@@ -24,12 +24,14 @@ import android.app.Dialog
 import android.os.Bundle
 import android.util.Log
 import android.view.View
+import android.widget.Button
 import android.widget.ProgressBar
 import android.widget.TextView
 import androidx.annotation.StringRes
 import androidx.appcompat.app.AlertDialog
 import androidx.fragment.app.DialogFragment
 import com.kunzisoft.keepass.R
+import com.kunzisoft.keepass.tasks.ProgressTaskUpdater.Companion.PROGRESS_INDETERMINATE
 import java.lang.Exception
 
 open class ProgressTaskDialogFragment : DialogFragment(), ProgressTaskUpdater {
@@ -40,11 +42,18 @@ open class ProgressTaskDialogFragment : DialogFragment(), ProgressTaskUpdater {
     private var message = UNDEFINED
     @StringRes
     private var warning = UNDEFINED
+    private var progress = PROGRESS_INDETERMINATE
+
+    /**
+     * Called when the user cancels the task, the button is only shown during a measured step
+     */
+    var onCancelTask: (() -> Unit)? = null
 
     private var titleView: TextView? = null
     private var messageView: TextView? = null
     private var warningView: TextView? = null
     private var progressView: ProgressBar? = null
+    private var cancelView: Button? = null
 
     override fun onCreateDialog(savedInstanceState: Bundle?): Dialog {
 
@@ -64,10 +73,16 @@ open class ProgressTaskDialogFragment : DialogFragment(), ProgressTaskUpdater {
                 messageView = root.findViewById(R.id.progress_dialog_message)
                 warningView = root.findViewById(R.id.progress_dialog_warning)
                 progressView = root.findViewById(R.id.progress_dialog_bar)
+                cancelView = root.findViewById(R.id.progress_dialog_cancel)
+                cancelView?.setOnClickListener { button ->
+                    button.isEnabled = false
+                    onCancelTask?.invoke()
+                }
 
                 updateTitle(title)
                 updateMessage(message)
                 updateWarning(warning)
+                updateProgress(progress)
 
                 isCancelable = false
 
@@ -109,6 +124,29 @@ open class ProgressTaskDialogFragment : DialogFragment(), ProgressTaskUpdater {
         updateView(warningView, warning)
     }
 
+    override fun updateProgress(percent: Int) {
+        this.progress = percent
+        activity?.runOnUiThread {
+            progressView?.apply {
+                if (percent == PROGRESS_INDETERMINATE) {
+                    if (!isIndeterminate) {
+                        // Indeterminate mode can't be set on a visible indicator
+                        visibility = View.INVISIBLE
+                        isIndeterminate = true
+                        visibility = View.VISIBLE
+                    }
+                } else {
+                    isIndeterminate = false
+                    this.progress = percent
+                }
+            }
+            cancelView?.visibility = if (percent == PROGRESS_INDETERMINATE || onCancelTask == null)
+                View.GONE
+            else
+                View.VISIBLE
+        }
+    }
+
     companion object {
         private val TAG = ProgressTaskDialogFragment::class.java.simpleName
         const val PROGRESS_TASK_DIALOG_TAG = "progressDialogFragment"
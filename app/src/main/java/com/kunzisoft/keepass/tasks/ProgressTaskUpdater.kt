@@ -23,4 +23,25 @@ import androidx.annotation.StringRes
 
 interface ProgressTaskUpdater {
     fun updateMessage(@StringRes resId: Int)
+
+    /**
+     * Called at the end of a loading stage with the [bytes] processed in [durationMillis]
+     */
+    fun updateStageThroughput(stageName: String, bytes: Long, durationMillis: Long) {}
+
+    /**
+     * Called with the [percent] done of the current step, or [PROGRESS_INDETERMINATE]
+     */
+    fun updateProgress(percent: Int) {}
+
+    /**
+     * Checked by the cancellable steps, true to abort the task as soon as possible
+     */
+    fun isCancelled(): Boolean {
+        return false
+    }
+
+    companion object {
+        const val PROGRESS_INDETERMINATE = -1
+    }
 }
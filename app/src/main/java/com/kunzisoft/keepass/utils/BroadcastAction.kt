@@ -29,6 +29,7 @@ import android.content.Intent
 import android.content.IntentFilter
 import android.os.Build
 import android.util.Log
+import android.widget.Toast
 import com.kunzisoft.keepass.R
 import com.kunzisoft.keepass.database.element.Database
 import com.kunzisoft.keepass.magikeyboard.MagikeyboardService
@@ -137,6 +138,10 @@ fun Context.closeDatabase(database: Database?) {
     (getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager?)?.apply {
         cancelAll()
     }
+    // Write the modifications waiting for the save delay, the database is closed even if it fails
+    if (database?.saveDelayedModifications(contentResolver) == false) {
+        Toast.makeText(this, R.string.error_save_delayed_modifications, Toast.LENGTH_LONG).show()
+    }
     // Clear data
     database?.clearAndClose(this)
 
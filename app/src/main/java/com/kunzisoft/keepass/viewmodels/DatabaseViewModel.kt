@@ -8,6 +8,7 @@ import com.kunzisoft.keepass.database.crypto.kdf.KdfEngine
 import com.kunzisoft.keepass.database.element.Database
 import com.kunzisoft.keepass.database.element.Group
 import com.kunzisoft.keepass.database.element.database.CompressionAlgorithm
+import com.kunzisoft.keepass.database.element.database.CompressionLevel
 import com.kunzisoft.keepass.tasks.ActionRunnable
 
 class DatabaseViewModel: ViewModel() {
@@ -39,6 +40,9 @@ class DatabaseViewModel: ViewModel() {
     val saveCompression : LiveData<SuperCompression> get() = _saveCompression
     private val _saveCompression = SingleLiveEvent<SuperCompression>()
 
+    val saveCompressionLevel : LiveData<SuperCompressionLevel> get() = _saveCompressionLevel
+    private val _saveCompressionLevel = SingleLiveEvent<SuperCompressionLevel>()
+
     val removeUnlinkData : LiveData<Boolean> get() = _removeUnlinkData
     private val _removeUnlinkData = SingleLiveEvent<Boolean>()
 
@@ -118,6 +122,12 @@ class DatabaseViewModel: ViewModel() {
         _saveCompression.value = SuperCompression(oldValue, newValue, save)
     }
 
+    fun saveCompressionLevel(oldValue: CompressionLevel,
+                             newValue: CompressionLevel,
+                             save: Boolean) {
+        _saveCompressionLevel.value = SuperCompressionLevel(oldValue, newValue, save)
+    }
+
     fun removeUnlinkedData(save: Boolean) {
         _removeUnlinkData.value = save
     }
@@ -192,6 +202,9 @@ class DatabaseViewModel: ViewModel() {
     data class SuperCompression(val oldValue: CompressionAlgorithm,
                                 val newValue: CompressionAlgorithm,
                                 val save: Boolean)
+    data class SuperCompressionLevel(val oldValue: CompressionLevel,
+                                     val newValue: CompressionLevel,
+                                     val save: Boolean)
     data class SuperEncryption(val oldValue: EncryptionAlgorithm,
                                val newValue: EncryptionAlgorithm,
                                val save: Boolean)
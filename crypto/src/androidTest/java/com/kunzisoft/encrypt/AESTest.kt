@@ -24,6 +24,7 @@ import org.junit.Assert.assertArrayEquals
 import org.junit.Test
 import java.io.ByteArrayInputStream
 import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
 import java.util.*
 import javax.crypto.Cipher
 import javax.crypto.CipherInputStream
@@ -96,6 +97,128 @@ class AESTest {
         assertArrayEquals("Check AES encryption/decryption", androidOut, nativeOut)
     }
 
+    @Test
+    fun testAESParallelDecryption() {
+        // Generate random input, large enough to be decrypted by several native threads
+        val input = ByteArray(mRand.nextInt(1024) + 1048576)
+        mRand.nextBytes(input)
+        // Generate key
+        val keyArray = ByteArray(32)
+        mRand.nextBytes(keyArray)
+        // Generate IV
+        val ivArray = ByteArray(16)
+        mRand.nextBytes(ivArray)
+
+        val encrypted = CipherFactory.getAES(Cipher.ENCRYPT_MODE, keyArray, ivArray).doFinal(input)
+
+        // One update for the whole input uses the parallel path
+        val parallelDecrypt = CipherFactory.getAES(Cipher.DECRYPT_MODE, keyArray, ivArray, true).doFinal(encrypted)
+
+        // Small updates stay under the threshold and use the single-threaded path
+        val singleThreadCipher = CipherFactory.getAES(Cipher.DECRYPT_MODE, keyArray, ivArray, true)
+        val singleThreadOutputStream = ByteArrayOutputStream()
+        var offset = 0
+        while (offset < encrypted.size) {
+            val length = minOf(1024, encrypted.size - offset)
+            singleThreadCipher.update(encrypted, offset, length)?.let {
+                singleThreadOutputStream.write(it)
+            }
+            offset += length
+        }
+        singleThreadOutputStream.write(singleThreadCipher.doFinal())
+        val singleThreadDecrypt = singleThreadOutputStream.toByteArray()
+
+        assertArrayEquals("Check parallel and single-threaded decryption", singleThreadDecrypt, parallelDecrypt)
+        assertArrayEquals("Check parallel decryption", input, parallelDecrypt)
+    }
+
+    @Test
+    fun testAESDirectByteBuffer() {
+        // Generate random input
+        val input = ByteArray(mRand.nextInt(4096) + 18)
+        mRand.nextBytes(input)
+        // Generate key
+        val keyArray = ByteArray(32)
+        mRand.nextBytes(keyArray)
+        // Generate IV
+        val ivArray = ByteArray(16)
+        mRand.nextBytes(ivArray)
+
+        val arrayEncrypt = CipherFactory.getAES(Cipher.ENCRYPT_MODE, keyArray, ivArray, true).doFinal(input)
+        val bufferEncrypt = doFinalInDirectBuffers(
+                CipherFactory.getAES(Cipher.ENCRYPT_MODE, keyArray, ivArray, true),
+                input, 7, 3, false)
+        assertArrayEquals("Check AES encryption of direct buffers", arrayEncrypt, bufferEncrypt)
+
+        val arrayDecrypt = CipherFactory.getAES(Cipher.DECRYPT_MODE, keyArray, ivArray, true).doFinal(arrayEncrypt)
+        val bufferDecrypt = doFinalInDirectBuffers(
+                CipherFactory.getAES(Cipher.DECRYPT_MODE, keyArray, ivArray, true),
+                arrayEncrypt, 0, 0, false)
+        assertArrayEquals("Check AES decryption of direct buffers", arrayDecrypt, bufferDecrypt)
+        assertArrayEquals("Check AES encryption/decryption of direct buffers", input, bufferDecrypt)
+    }
+
+    @Test
+    fun testAESOverlappingDirectByteBuffer() {
+        // Generate random input
+        val input = ByteArray(mRand.nextInt(4096) + 18)
+        mRand.nextBytes(input)
+        // Generate key
+        val keyArray = ByteArray(32)
+        mRand.nextBytes(keyArray)
+        // Generate IV
+        val ivArray = ByteArray(16)
+        mRand.nextBytes(ivArray)
+
+        val arrayEncrypt = CipherFactory.getAES(Cipher.ENCRYPT_MODE, keyArray, ivArray, true).doFinal(input)
+        val arrayDecrypt = CipherFactory.getAES(Cipher.DECRYPT_MODE, keyArray, ivArray, true).doFinal(arrayEncrypt)
+
+        // In place, output before the input and output after the input in the same buffer
+        listOf(Pair(16, 16), Pair(16, 0), Pair(0, 16), Pair(5, 21)).forEach { (inputPosition, outputPosition) ->
+            val bufferEncrypt = doFinalInDirectBuffers(
+                    CipherFactory.getAES(Cipher.ENCRYPT_MODE, keyArray, ivArray, true),
+                    input, inputPosition, outputPosition, true)
+            assertArrayEquals("Check AES encryption of overlapping buffers " +
+                    "$inputPosition -> $outputPosition", arrayEncrypt, bufferEncrypt)
+
+            val bufferDecrypt = doFinalInDirectBuffers(
+                    CipherFactory.getAES(Cipher.DECRYPT_MODE, keyArray, ivArray, true),
+                    arrayEncrypt, inputPosition, outputPosition, true)
+            assertArrayEquals("Check AES decryption of overlapping buffers " +
+                    "$inputPosition -> $outputPosition", arrayDecrypt, bufferDecrypt)
+        }
+    }
+
+    /**
+     * Update the [cipher] with the [input] placed at [inputPosition] of a direct buffer,
+     * to [outputPosition] of another direct buffer or of the same one if [sameBuffer]
+     */
+    private fun doFinalInDirectBuffers(cipher: Cipher,
+                                       input: ByteArray,
+                                       inputPosition: Int,
+                                       outputPosition: Int,
+                                       sameBuffer: Boolean): ByteArray {
+        val capacity = maxOf(inputPosition, outputPosition) + cipher.getOutputSize(input.size)
+        val inputBuffer = ByteBuffer.allocateDirect(capacity)
+        inputBuffer.position(inputPosition)
+        inputBuffer.put(input)
+        inputBuffer.limit(inputPosition + input.size)
+        inputBuffer.position(inputPosition)
+        val outputBuffer = if (sameBuffer)
+            inputBuffer.duplicate().apply { clear() }
+        else
+            ByteBuffer.allocateDirect(capacity)
+        outputBuffer.position(outputPosition)
+
+        cipher.update(inputBuffer, outputBuffer)
+        cipher.doFinal(ByteBuffer.allocateDirect(0), outputBuffer)
+
+        val result = ByteArray(outputBuffer.position() - outputPosition)
+        outputBuffer.position(outputPosition)
+        outputBuffer.get(result)
+        return result
+    }
+
     @Test
     fun testAESKDF() {
         val seed = ByteArray(32)
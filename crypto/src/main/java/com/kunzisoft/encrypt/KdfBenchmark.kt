@@ -0,0 +1,107 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.encrypt
+
+import com.kunzisoft.encrypt.aes.AESTransformer
+import com.kunzisoft.encrypt.argon2.Argon2Transformer
+import com.kunzisoft.encrypt.argon2.Argon2Type
+import java.io.IOException
+import java.security.SecureRandom
+
+/**
+ * Time the key transformations on the current device to find the parameters
+ * deriving a key in a target duration, the measures are short and use random keys
+ */
+object KdfBenchmark {
+
+    /**
+     * Argon2 parameters found by [argon2Parameters], [memory] is in KiB
+     */
+    class Argon2Parameters(val iterations: Long,
+                           val memory: Long,
+                           val parallelism: Long)
+
+    /**
+     * Number of AES-KDF rounds transforming a key in about [targetMillis] on this device
+     */
+    @Throws(IOException::class)
+    fun aesRounds(targetMillis: Long): Long {
+        val seed = randomBytes()
+        val key = randomBytes()
+        // Double the rounds until the measure is long enough to be significant
+        var rounds = AES_CALIBRATION_ROUNDS
+        var duration: Long
+        while (true) {
+            val start = System.nanoTime()
+            AESTransformer.transformKey(seed, key, rounds)
+            duration = System.nanoTime() - start
+            if (duration >= MIN_MEASURE_NANOS || rounds >= MAX_CALIBRATION_ROUNDS)
+                break
+            rounds *= 2
+        }
+        val roundsPerNano = rounds.toDouble() / duration.coerceAtLeast(1L)
+        return (roundsPerNano * targetMillis * NANOS_PER_MILLI).toLong().coerceAtLeast(1L)
+    }
+
+    /**
+     * Argon2 parameters transforming a key in about [targetMillis] on this device,
+     * a lane is used by core and the memory in KiB is halved from [maxMemory]
+     * until a single iteration fits in the target, the iterations fill the remaining time
+     */
+    @Throws(IOException::class)
+    fun argon2Parameters(type: Argon2Type,
+                         version: Int,
+                         targetMillis: Long,
+                         maxMemory: Long,
+                         maxParallelism: Long = MAX_PARALLELISM): Argon2Parameters {
+        val password = randomBytes()
+        val salt = randomBytes()
+        val parallelism = Runtime.getRuntime().availableProcessors().toLong()
+                .coerceIn(1L, maxParallelism.coerceAtLeast(1L))
+        // Argon2 needs at least 8 blocks of 1 KiB by lane
+        val minMemory = MIN_MEMORY_BY_LANE * parallelism
+        var memory = maxMemory.coerceAtLeast(minMemory)
+        var iterationNanos: Long
+        while (true) {
+            val start = System.nanoTime()
+            Argon2Transformer.transformKey(type, password, salt, parallelism, memory, 1L, version)
+            iterationNanos = System.nanoTime() - start
+            if (iterationNanos <= targetMillis * NANOS_PER_MILLI || memory / 2 < minMemory)
+                break
+            memory /= 2
+        }
+        val iterations = (targetMillis * NANOS_PER_MILLI / iterationNanos.coerceAtLeast(1L))
+                .coerceAtLeast(1L)
+        return Argon2Parameters(iterations, memory, parallelism)
+    }
+
+    private fun randomBytes(): ByteArray {
+        return ByteArray(32).apply {
+            SecureRandom().nextBytes(this)
+        }
+    }
+
+    private const val NANOS_PER_MILLI = 1_000_000L
+    private const val MIN_MEASURE_NANOS = 100L * NANOS_PER_MILLI
+    private const val AES_CALIBRATION_ROUNDS = 8192L
+    private const val MAX_CALIBRATION_ROUNDS = 1L shl 40
+    private const val MIN_MEMORY_BY_LANE = 8L
+    private const val MAX_PARALLELISM = 8L
+}
@@ -2,6 +2,7 @@ package com.kunzisoft.encrypt
 
 import org.bouncycastle.crypto.CipherParameters
 import org.bouncycastle.crypto.DataLengthException
+import org.bouncycastle.crypto.SkippingStreamCipher
 
 /**
  * Stream cipher to process data
@@ -35,4 +36,37 @@ class StreamCipher(private val streamCipher: org.bouncycastle.crypto.StreamCiphe
         streamCipher.processBytes(data, 0, size, out, 0)
         return out
     }
-}
\ No newline at end of file
+
+    /**
+     * process in place [length] bytes of [data] from [offset], without output buffer.
+     *
+     * @param data the input and output byte array.
+     * @param offset the offset of the bytes to process.
+     * @param length the number of bytes to process.
+     * @exception DataLengthException if the range is out of the buffer.
+     */
+    @Throws(DataLengthException::class)
+    fun processBytes(data: ByteArray, offset: Int, length: Int) {
+        streamCipher.processBytes(data, offset, length, data, offset)
+    }
+
+    /**
+     * true if the keystream can be moved to any position with [seekTo].
+     */
+    val isSeekable: Boolean
+        get() = streamCipher is SkippingStreamCipher
+
+    /**
+     * move the keystream to [position] bytes from its start, as if the bytes
+     * before had been processed.
+     *
+     * @param position the number of bytes from the start of the keystream.
+     * @exception IllegalArgumentException if the cipher is not seekable.
+     */
+    @Throws(IllegalArgumentException::class)
+    fun seekTo(position: Long) {
+        if (streamCipher !is SkippingStreamCipher)
+            throw IllegalArgumentException("Stream cipher can't be seeked")
+        streamCipher.seekTo(position)
+    }
+}
@@ -22,6 +22,8 @@ package com.kunzisoft.encrypt.aes
 import android.annotation.SuppressLint
 import android.util.Log
 import com.kunzisoft.encrypt.HashManager
+import com.kunzisoft.encrypt.KeyTransformationCancelledException
+import com.kunzisoft.encrypt.KeyTransformationListener
 import com.kunzisoft.encrypt.NativeLib
 import java.io.IOException
 import java.security.InvalidKeyException
@@ -31,21 +33,95 @@ import javax.crypto.spec.SecretKeySpec
 
 object AESTransformer {
 
-    fun transformKey(seed: ByteArray?, key: ByteArray?, rounds: Long?): ByteArray? {
+    /**
+     * Transform the [key] [rounds] times, the [listener] is notified of the rounds done
+     * and can cancel the transformation, a [KeyTransformationCancelledException] is then thrown
+     */
+    @Throws(IOException::class)
+    fun transformKey(seed: ByteArray?,
+                     key: ByteArray?,
+                     rounds: Long?,
+                     listener: KeyTransformationListener? = null): ByteArray? {
         // Prefer the native final key implementation
         return try {
             NativeLib.init()
-            NativeAESKeyTransformer.nTransformKey(seed, key, rounds!!)
+            NativeAESKeyTransformer.nTransformKey(seed, key, rounds!!, listener)
+                    ?: throw KeyTransformationCancelledException()
+        } catch (exception: KeyTransformationCancelledException) {
+            throw exception
         } catch (exception: Exception) {
             Log.e(AESTransformer::class.java.simpleName, "Unable to perform native AES key transformation", exception)
             // Fall back on the android crypto implementation
-            transformKeyInJVM(seed, key, rounds)
+            transformKeyInJVM(seed, key, rounds, listener)
+        }
+    }
+
+    /**
+     * Transform the [key] [rounds] times with the JVM cipher, when [parallel] the two halves
+     * of the key are encrypted in two threads as in the native implementation
+     */
+    @Throws(IOException::class)
+    fun transformKeyInJVM(seed: ByteArray?,
+                          key: ByteArray?,
+                          rounds: Long?,
+                          listener: KeyTransformationListener? = null,
+                          parallel: Boolean = Runtime.getRuntime().availableProcessors() > 1): ByteArray {
+        if (key == null) {
+            throw IOException("Invalid key")
+        }
+        if (rounds == null) {
+            throw IOException("Invalid rounds")
         }
+
+        val keyLength = key.size
+        val halfLength = (keyLength / AES_BLOCK_SIZE / 2) * AES_BLOCK_SIZE
+        if (!parallel || halfLength == 0 || keyLength % AES_BLOCK_SIZE != 0) {
+            val newKey = key.copyOf()
+            val completed = encryptRounds(getECBCipher(seed), newKey, rounds) { done ->
+                listener?.onProgress(done, rounds) != false
+            }
+            if (!completed) {
+                throw KeyTransformationCancelledException()
+            }
+            return HashManager.hashSha256(newKey)
+        }
+
+        // Each half of the key is encrypted independently, the second one in another thread
+        val firstHalf = key.copyOfRange(0, halfLength)
+        val secondHalf = KeyHalfTransformation(getECBCipher(seed),
+                key.copyOfRange(halfLength, keyLength),
+                rounds)
+        val firstHalfCipher = getECBCipher(seed)
+        val secondHalfThread = Thread(secondHalf, "AES-KDF")
+        secondHalfThread.start()
+        var firstHalfCompleted = false
+        try {
+            // Only the calling thread notifies the listener
+            firstHalfCompleted = encryptRounds(firstHalfCipher, firstHalf, rounds) { done ->
+                secondHalf.error == null && listener?.onProgress(done, rounds) != false
+            }
+        } finally {
+            if (!firstHalfCompleted)
+                secondHalf.stopped = true
+            joinUninterruptibly(secondHalfThread)
+        }
+        secondHalf.error?.let { error ->
+            throw IOException("Unable to transform the key", error)
+        }
+        if (!firstHalfCompleted || !secondHalf.completed) {
+            throw KeyTransformationCancelledException()
+        }
+
+        // Hash the key
+        val newKey = ByteArray(keyLength)
+        System.arraycopy(firstHalf, 0, newKey, 0, halfLength)
+        System.arraycopy(secondHalf.data, 0, newKey, halfLength, keyLength - halfLength)
+        return HashManager.hashSha256(newKey)
     }
 
     @SuppressLint("GetInstance")
     @Throws(IOException::class)
-    fun transformKeyInJVM(seed: ByteArray?, key: ByteArray?, rounds: Long?): ByteArray {
+    private fun getECBCipher(seed: ByteArray?): Cipher {
         val cipher: Cipher = try {
             Cipher.getInstance("AES/ECB/NoPadding")
         } catch (e: Exception) {
@@ -56,28 +132,74 @@ object AESTransformer {
         } catch (e: InvalidKeyException) {
             throw IOException("Unable to init the cipher", e)
         }
-        if (key == null) {
-            throw IOException("Invalid key")
+        return cipher
+    }
+
+    /**
+     * Encrypt [data] in place [rounds] times, the rounds alternate between two buffers
+     * so that no copy nor allocation is done by round. The [checkpoint] is called
+     * every [JVM_PROGRESS_ROUNDS] rounds, false stops the encryption and is returned.
+     */
+    @Throws(IOException::class)
+    private fun encryptRounds(cipher: Cipher,
+                              data: ByteArray,
+                              rounds: Long,
+                              checkpoint: (Long) -> Boolean): Boolean {
+        var source = data
+        var destination = ByteArray(data.size)
+        try {
+            for (i in 0 until rounds) {
+                cipher.update(source, 0, source.size, destination, 0)
+                val encrypted = destination
+                destination = source
+                source = encrypted
+                if ((i + 1) % JVM_PROGRESS_ROUNDS == 0L && !checkpoint(i + 1)) {
+                    return false
+                }
+            }
+        } catch (e: ShortBufferException) {
+            throw IOException("Short buffer", e)
         }
-        if (rounds == null) {
-            throw IOException("Invalid rounds")
+        if (source !== data) {
+            System.arraycopy(source, 0, data, 0, data.size)
         }
+        return true
+    }
 
-        // Encrypt key rounds times
-        val keyLength = key.size
-        val newKey = ByteArray(keyLength)
-        System.arraycopy(key, 0, newKey, 0, keyLength)
-        val destKey = ByteArray(keyLength)
-        for (i in 0 until rounds) {
+    private fun joinUninterruptibly(thread: Thread) {
+        var interrupted = false
+        while (thread.isAlive) {
             try {
-                cipher.update(newKey, 0, newKey.size, destKey, 0)
-                System.arraycopy(destKey, 0, newKey, 0, newKey.size)
-            } catch (e: ShortBufferException) {
-                throw IOException("Short buffer", e)
+                thread.join()
+            } catch (e: InterruptedException) {
+                interrupted = true
             }
         }
+        if (interrupted)
+            Thread.currentThread().interrupt()
+    }
 
-        // Hash the key
-        return HashManager.hashSha256(newKey)
+    private class KeyHalfTransformation(private val cipher: Cipher,
+                                        val data: ByteArray,
+                                        private val rounds: Long) : Runnable {
+        @Volatile
+        var stopped = false
+        @Volatile
+        var completed = false
+        @Volatile
+        var error: Throwable? = null
+
+        override fun run() {
+            try {
+                completed = encryptRounds(cipher, data, rounds) { !stopped }
+            } catch (e: Throwable) {
+                error = e
+            }
+        }
     }
-}
\ No newline at end of file
+
+    private const val AES_BLOCK_SIZE = 16
+
+    // Rounds between two notifications of the listener in the JVM implementation
+    private const val JVM_PROGRESS_ROUNDS = 16384L
+}
@@ -26,6 +26,7 @@ import com.kunzisoft.encrypt.NativeLib;
 import java.lang.ref.PhantomReference;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
 import java.security.AlgorithmParameters;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -301,4 +302,39 @@ public class NativeAESCipherSpi extends CipherSpi {
 
     private native int nUpdate(long ctxPtr, byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset, int outputSize);
 
+    @Override
+    protected int engineUpdate(ByteBuffer input, ByteBuffer output) throws ShortBufferException {
+        // Direct buffers are read and written in place by the native code
+        if ( input.isDirect() && output.isDirect() && !output.isReadOnly() ) {
+            int inputLen = input.remaining();
+            if ( inputLen == 0 ) {
+                return 0;
+            }
+            int result = nUpdateBuffer(mCtxPtr, input, input.position(), inputLen,
+                    output, output.position(), output.remaining());
+            input.position(input.limit());
+            output.position(output.position() + result);
+            return result;
+        }
+        // Avoid the intermediate copies of the default implementation for array buffers
+        if ( input.hasArray() && output.hasArray() && !output.isReadOnly() ) {
+            int inputLen = input.remaining();
+            if ( inputLen == 0 ) {
+                return 0;
+            }
+            if ( output.remaining() < engineGetOutputSize(inputLen) - AES_BLOCK_SIZE ) {
+                throw new ShortBufferException("Insufficient buffer.");
+            }
+            int result = engineUpdate(input.array(), input.arrayOffset() + input.position(), inputLen,
+                    output.array(), output.arrayOffset() + output.position());
+            input.position(input.limit());
+            output.position(output.position() + result);
+            return result;
+        }
+        return super.engineUpdate(input, output);
+    }
+
+    private native int nUpdateBuffer(long ctxPtr, ByteBuffer input, int inputOffset, int inputLen, ByteBuffer output, int outputOffset, int outputSize)
+            throws ShortBufferException;
+
 }
\ No newline at end of file
@@ -19,7 +19,13 @@
  */
 package com.kunzisoft.encrypt.aes;
 
+import com.kunzisoft.encrypt.KeyTransformationListener;
+
 public class NativeAESKeyTransformer {
 
-    public static native byte[] nTransformKey(byte[] seed, byte[] key, long rounds);
+    /**
+     * @return the transformed key, or null if the listener cancelled the transformation
+     */
+    public static native byte[] nTransformKey(byte[] seed, byte[] key, long rounds,
+                                              KeyTransformationListener listener);
 }
@@ -1,16 +1,36 @@
 package com.kunzisoft.encrypt.argon2
 
+import com.kunzisoft.encrypt.KeyTransformationCancelledException
+import com.kunzisoft.encrypt.KeyTransformationListener
 import com.kunzisoft.encrypt.NativeLib
+import java.io.IOException
 
 object Argon2Transformer {
 
+    /**
+     * Number of threads filling the [parallelism] lanes when none is specified,
+     * more threads than cores only add scheduling overhead
+     */
+    fun defaultThreads(parallelism: Long): Int {
+        val cores = Runtime.getRuntime().availableProcessors().toLong()
+        return parallelism.coerceAtMost(cores).coerceAtLeast(1L).toInt()
+    }
+
+    /**
+     * Derive the key, [threads] is independent of the [parallelism] lane count
+     * and does not change the result, the native threads are reused between calls.
+     * The [listener] is notified after each slice of each pass and can cancel the derivation.
+     */
+    @Throws(IOException::class)
     fun transformKey(type: Argon2Type,
                      password: ByteArray,
                      salt: ByteArray,
                      parallelism: Long,
                      memory: Long,
                      iterations: Long,
-                     version: Int): ByteArray {
+                     version: Int,
+                     threads: Int = defaultThreads(parallelism),
+                     listener: KeyTransformationListener? = null): ByteArray {
 
         NativeLib.init()
         val argon2Type = when(type) {
@@ -28,6 +48,8 @@ object Argon2Transformer {
                 iterations.toInt(),
                 ByteArray(0),
                 ByteArray(0),
-                version)
+                version,
+                threads,
+                listener) ?: throw KeyTransformationCancelledException()
     }
 }
\ No newline at end of file
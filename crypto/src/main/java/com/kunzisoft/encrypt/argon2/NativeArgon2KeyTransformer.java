@@ -19,6 +19,8 @@
  */
 package com.kunzisoft.encrypt.argon2;
 
+import com.kunzisoft.encrypt.KeyTransformationListener;
+
 import java.io.IOException;
 
 public class NativeArgon2KeyTransformer {
@@ -35,7 +37,11 @@ public class NativeArgon2KeyTransformer {
         }
     }
 
+    /**
+     * @return the transformed key, or null if the listener cancelled the transformation
+     */
     public static native byte[] nTransformKey(int type, byte[] password, byte[] salt, int parallelism,
                                               int memory, int iterations, byte[] secretKey,
-                                              byte[] associatedData, int version) throws IOException;
+                                              byte[] associatedData, int version, int threads,
+                                              KeyTransformationListener listener) throws IOException;
 }
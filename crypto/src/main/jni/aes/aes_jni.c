@@ -21,6 +21,8 @@
 #include <inttypes.h>
 #include <string.h>
 #include <pthread.h>
+#include <unistd.h>
+#include <time.h>
 #include <jni.h>
 
 /* Tune as desired */
@@ -55,6 +57,8 @@ typedef struct _aes_state {
   uint32_t cache_len;
   uint8_t iv[16], cache[CACHE_SIZE];
   uint8_t ctx[sizeof(aes_encrypt_ctx)]; // 244
+  void *scratch; // reused between updates, see state_scratch()
+  uint32_t scratch_size;
 } aes_state;
 
 #define ENC_CTX(state) (((aes_encrypt_ctx *)((state)->ctx)))
@@ -62,6 +66,142 @@ typedef struct _aes_state {
 #define ALIGN_EXTRA 15
 #define ALIGN16(x) (void *)(((uintptr_t)(x)+ALIGN_EXTRA) & ~ 0x0F)
 
+/*
+  CBC decryption of a plaintext block only needs the current and the previous
+  ciphertext blocks, so large decrypt updates are split in segments decrypted
+  by a small pool of worker threads. Below the threshold, or if the pool is
+  busy with another cipher, the single-threaded path is used.
+*/
+#define PARALLEL_DECRYPT_THRESHOLD 8192
+#define PARALLEL_MIN_SEGMENT 4096
+#define MAX_DECRYPT_SEGMENTS 4
+
+typedef struct _decrypt_segment {
+  const uint8_t *in;
+  uint8_t *out;
+  uint32_t len;
+  uint8_t iv[AES_BLOCK_SIZE];
+  const aes_decrypt_ctx *ctx;
+  int ret;
+} decrypt_segment;
+
+typedef struct _decrypt_pool {
+  pthread_mutex_t lock;
+  pthread_mutex_t dispatch_lock; // only one cipher at a time uses the pool
+  pthread_cond_t work_cond, done_cond;
+  uint32_t workers;
+  decrypt_segment *segments;
+  uint32_t segment_count, next_segment, pending;
+} decrypt_pool;
+
+static decrypt_pool pool = {
+  PTHREAD_MUTEX_INITIALIZER,
+  PTHREAD_MUTEX_INITIALIZER,
+  PTHREAD_COND_INITIALIZER,
+  PTHREAD_COND_INITIALIZER,
+  0, NULL, 0, 0, 0
+};
+static pthread_once_t pool_once = PTHREAD_ONCE_INIT;
+
+static void *decrypt_worker(void *arg) {
+  decrypt_segment *segment;
+
+  pthread_mutex_lock(&pool.lock);
+  for(;;) {
+    while( pool.next_segment >= pool.segment_count )
+      pthread_cond_wait(&pool.work_cond, &pool.lock);
+    segment = &pool.segments[pool.next_segment++];
+    pthread_mutex_unlock(&pool.lock);
+
+    segment->ret = aes_cbc_decrypt(segment->in, segment->out, segment->len, segment->iv, segment->ctx);
+
+    pthread_mutex_lock(&pool.lock);
+    if( --pool.pending == 0 )
+      pthread_cond_signal(&pool.done_cond);
+  }
+  return NULL;
+}
+
+static void start_decrypt_pool(void) {
+  pthread_t thread;
+  pthread_attr_t attr;
+  long cores = sysconf(_SC_NPROCESSORS_ONLN);
+  uint32_t i, wanted;
+
+  if( cores < 2 )
+    return;
+  // the calling thread decrypts the first segment
+  wanted = (cores > MAX_DECRYPT_SEGMENTS ? MAX_DECRYPT_SEGMENTS : (uint32_t)cores) - 1;
+
+  pthread_attr_init(&attr);
+  pthread_attr_setdetachstate(&attr, PTHREAD_CREATE_DETACHED);
+  for( i = 0; i < wanted; i++ ) {
+    if( pthread_create(&thread, &attr, decrypt_worker, NULL) != 0 )
+      break;
+    pool.workers++;
+  }
+  pthread_attr_destroy(&attr);
+}
+
+static int cbc_decrypt(const uint8_t *in, uint8_t *out, uint32_t len, uint8_t *iv, const aes_decrypt_ctx *ctx) {
+  decrypt_segment segments[MAX_DECRYPT_SEGMENTS];
+  uint32_t count, blocks, offset, segment_len, i;
+  int ret;
+
+  if( len < PARALLEL_DECRYPT_THRESHOLD )
+    return aes_cbc_decrypt(in, out, len, iv, ctx);
+
+  pthread_once(&pool_once, start_decrypt_pool);
+  count = len / PARALLEL_MIN_SEGMENT;
+  if( count > pool.workers + 1 )
+    count = pool.workers + 1;
+  if( count < 2 || pthread_mutex_trylock(&pool.dispatch_lock) != 0 )
+    return aes_cbc_decrypt(in, out, len, iv, ctx);
+
+  // segments are aligned on the AES block size, the last one takes the remainder
+  blocks = (len / AES_BLOCK_SIZE) / count;
+  offset = 0;
+  for( i = 0; i < count; i++ ) {
+    segment_len = (i == count - 1) ? len - offset : blocks * AES_BLOCK_SIZE;
+    segments[i].in = in + offset;
+    segments[i].out = out + offset;
+    segments[i].len = segment_len;
+    segments[i].ctx = ctx;
+    segments[i].ret = EXIT_FAILURE;
+    // the IV of a segment is the last ciphertext block of the previous one,
+    // copied before any output is written in case the buffers are the same
+    memcpy(segments[i].iv, (i == 0) ? iv : in + offset - AES_BLOCK_SIZE, AES_BLOCK_SIZE);
+    offset += segment_len;
+  }
+  // the next update chains on the last ciphertext block
+  memcpy(iv, in + len - AES_BLOCK_SIZE, AES_BLOCK_SIZE);
+
+  pthread_mutex_lock(&pool.lock);
+  pool.segments = segments;
+  pool.next_segment = 1;
+  pool.segment_count = count;
+  pool.pending = count - 1;
+  pthread_cond_broadcast(&pool.work_cond);
+  pthread_mutex_unlock(&pool.lock);
+
+  segments[0].ret = aes_cbc_decrypt(segments[0].in, segments[0].out, segments[0].len, segments[0].iv, ctx);
+
+  pthread_mutex_lock(&pool.lock);
+  while( pool.pending > 0 )
+    pthread_cond_wait(&pool.done_cond, &pool.lock);
+  pool.segments = NULL;
+  pool.segment_count = pool.next_segment = 0;
+  pthread_mutex_unlock(&pool.lock);
+  pthread_mutex_unlock(&pool.dispatch_lock);
+
+  ret = EXIT_SUCCESS;
+  for( i = 0; i < count; i++ ) {
+    if( segments[i].ret != EXIT_SUCCESS )
+      ret = segments[i].ret;
+  }
+  return ret;
+}
+
 JNIEXPORT jint JNICALL JNI_OnLoad( JavaVM *vm, void *reserved ) {
   JNIEnv *env;
   jclass cls;
@@ -151,6 +291,10 @@ JNIEXPORT jlong JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nInit(
 }
 
 JNIEXPORT void JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nCleanup(JNIEnv *env, jclass this, jlong state) {
+  aes_state *c_state = (aes_state *)state;
+  if( c_state->scratch != NULL )
+    memset(c_state->scratch, 0, c_state->scratch_size + ALIGN_EXTRA);
+  free(c_state->scratch);
   free((void *)state);
 }
 
@@ -163,12 +307,105 @@ JNIEXPORT void JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nCleanu
   not a full block.
 */
 
+/*
+  Return the aligned scratch area of the state, grown if needed and kept
+  for the next updates. NULL if the memory cannot be allocated.
+*/
+static uint8_t *state_scratch(aes_state *c_state, uint32_t size) {
+  void *scratch;
+  if( c_state->scratch_size < size ) {
+    scratch = realloc(c_state->scratch, size + ALIGN_EXTRA);
+    if( scratch == NULL )
+      return NULL;
+    c_state->scratch = scratch;
+    c_state->scratch_size = size;
+  }
+  return ALIGN16(c_state->scratch);
+}
+
+/*
+  En/decrypt the cache followed by the input without copying the input:
+  the blocks straddling the cache and the input are assembled on the stack,
+  the following ones are processed directly from the input to the output.
+  The bytes after outLen become the new cache.
+*/
+static int update_blocks(aes_state *c_state, const uint8_t *input, uint32_t inputLen,
+                         uint8_t *output, uint32_t outLen) {
+  uint8_t head[CACHE_SIZE + AES_BLOCK_SIZE] __attribute__ ((aligned (16)));
+  uint8_t new_cache[CACHE_SIZE];
+  uint32_t cryptLen, headLen, headFromInput, newCacheLen, fromCache;
+  int aes_ret = EXIT_SUCCESS;
+
+  cryptLen = inputLen + c_state->cache_len;
+  newCacheLen = cryptLen - outLen;
+
+  // keep the bytes of the next cache before any output is written
+  fromCache = 0;
+  if( outLen < c_state->cache_len ) {
+    fromCache = c_state->cache_len - outLen;
+    memcpy(new_cache, c_state->cache + outLen, fromCache);
+  }
+  memcpy(new_cache + fromCache, input + (inputLen - (newCacheLen - fromCache)), newCacheLen - fromCache);
+
+  headLen = (c_state->cache_len + (AES_BLOCK_SIZE - 1)) & ~(AES_BLOCK_SIZE - 1);
+  if( headLen > outLen )
+    headLen = outLen;
+  if( headLen ) {
+    headFromInput = headLen > c_state->cache_len ? headLen - c_state->cache_len : 0;
+    memcpy(head, c_state->cache, headLen - headFromInput);
+    memcpy(head + (headLen - headFromInput), input, headFromInput);
+    if( c_state->direction == ENCRYPTION )
+      aes_ret = aes_cbc_encrypt(head, output, headLen, c_state->iv, ENC_CTX(c_state));
+    else
+      aes_ret = aes_cbc_decrypt(head, output, headLen, c_state->iv, DEC_CTX(c_state));
+  } else {
+    headFromInput = 0;
+  }
+
+  if( aes_ret == EXIT_SUCCESS && outLen > headLen ) {
+    if( c_state->direction == ENCRYPTION )
+      aes_ret = aes_cbc_encrypt(input + headFromInput, output + headLen, outLen - headLen, c_state->iv, ENC_CTX(c_state));
+    else
+      aes_ret = cbc_decrypt(input + headFromInput, output + headLen, outLen - headLen, c_state->iv, DEC_CTX(c_state));
+  }
+
+  memcpy(c_state->cache, new_cache, newCacheLen);
+  c_state->cache_len = newCacheLen;
+  return aes_ret;
+}
+
+/*
+  Check the state and compute the output length of an update,
+  cache the input and return 0 if there is not enough data for a block.
+  Return -1 with a pending exception on error.
+*/
+static jint update_length(JNIEnv *env, aes_state *c_state, jint inputLen, jint outputSize, jclass short_output) {
+  uint32_t cryptLen, bytes2cache, outLen;
+
+  if( c_state->direction == FINALIZED ) {
+    (*env)->ThrowNew(env, bad_arg, "Trying to update a finalized state");
+    return -1;
+  }
+  cryptLen = inputLen + c_state->cache_len;
+  if( cryptLen < CACHE_SIZE )
+    return 0;
+  // now we're guaranteed that cryptLen >= CACHE_SIZE (32)
+  bytes2cache = (cryptLen & 15) + AES_BLOCK_SIZE; // mask bottom 4 bits plus 1 block
+  outLen = (cryptLen - bytes2cache); // output length is now aligned to a 16-byte boundary
+  if( outLen > (uint32_t)outputSize ) {
+    (*env)->ThrowNew(env, short_output, "Output buffer does not have enough space");
+    return -1;
+  }
+  return outLen;
+}
+
 JNIEXPORT jint JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nUpdate(JNIEnv *env, jobject this,
 	jlong state, jbyteArray input, jint inputOffset, jint inputLen, jbyteArray output, jint outputOffset, jint outputSize) {
   int aes_ret;
-  uint32_t outLen, bytes2cache, cryptLen;
-  void *in, *out;
-  uint8_t *c_input, *c_output;
+  jint outLen;
+  uint32_t alignedInputLen;
+  uint8_t *c_input, *c_output, *scratch = NULL, *scratch_output;
+  jboolean parallel;
   aes_state *c_state;
 
   #if defined(KPD_DEBUG)
@@ -180,72 +417,79 @@ JNIEXPORT jint JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nUpdate
     (*env)->ThrowNew(env, bad_arg, "nUpdate: called with 1 or more invalid arguments");
     return -1;
   }
-  c_state = (aes_state *)state;
-  if( c_state->direction == FINALIZED ) {
-    (*env)->ThrowNew(env, bad_arg, "Trying to update a finalized state");
+  if( inputOffset < 0 || inputLen < 0 || inputOffset > (*env)->GetArrayLength(env, input) - inputLen ) {
+    (*env)->ThrowNew(env, bad_arg, "nUpdate: input out of the array bounds");
     return -1;
   }
+  c_state = (aes_state *)state;
 
-  // step 1.5: calculate cryptLen and outLen
-  cryptLen = inputLen + c_state->cache_len;
-  if( cryptLen < CACHE_SIZE ) {
+  // step 1.5: calculate outLen
+  outLen = update_length(env, c_state, inputLen, outputSize, bad_arg);
+  if( outLen < 0 )
+    return -1;
+  if( outLen == 0 ) {
     (*env)->GetByteArrayRegion(env, input, inputOffset, inputLen, (jbyte *)(c_state->cache + c_state->cache_len));
-    c_state->cache_len = cryptLen;
+    c_state->cache_len += inputLen;
     return 0;
   }
-  // now we're guaranteed that cryptLen >= CACHE_SIZE (32)
-  bytes2cache = (cryptLen & 15) + AES_BLOCK_SIZE; // mask bottom 4 bits plus 1 block
-  outLen = (cryptLen - bytes2cache); // output length is now aligned to a 16-byte boundary
-  if( outLen > (uint32_t)outputSize ) {
+
+  if( outputOffset > (*env)->GetArrayLength(env, output) - outLen ) {
     (*env)->ThrowNew(env, bad_arg, "Output buffer does not have enough space");
     return -1;
   }
 
-  // step 2: allocate memory to hold input and output data
-  in = malloc(cryptLen+ALIGN_EXTRA);
-  if( in == NULL ) {
-    (*env)->ThrowNew(env, no_mem, "Unable to allocate heap space for encryption input");
-    return -1;
+  // step 2: the same array can be used as input and output, work on a copy of the input in this case
+  // a large decryption waits for the pool threads, it must not hold a critical region that blocks the GC,
+  // so it works on a copy of the input and of the output
+  parallel = c_state->direction == DECRYPTION && (uint32_t)outLen >= PARALLEL_DECRYPT_THRESHOLD;
+  if( parallel || (*env)->IsSameObject(env, input, output) ) {
+    alignedInputLen = ((uint32_t)inputLen + ALIGN_EXTRA) & ~ 0x0F;
+    scratch = state_scratch(c_state, parallel ? alignedInputLen + outLen : (uint32_t)inputLen);
+    if( scratch == NULL ) {
+      (*env)->ThrowNew(env, no_mem, "Unable to allocate heap space for encryption input");
+      return -1;
+    }
+    (*env)->GetByteArrayRegion(env, input, inputOffset, inputLen, (jbyte *)scratch);
+  }
+
+  if( parallel ) {
+    scratch_output = scratch + alignedInputLen;
+    aes_ret = update_blocks(c_state, scratch, inputLen, scratch_output, outLen);
+    if( aes_ret == EXIT_SUCCESS )
+      (*env)->SetByteArrayRegion(env, output, outputOffset, outLen, (jbyte *)scratch_output);
+    // do not keep the plaintext until the next update
+    memset(scratch_output, 0, outLen);
+    if( aes_ret != EXIT_SUCCESS ) {
+      (*env)->ThrowNew(env, bad_arg, "Failed to decrypt input data");
+      return -1;
+    }
+    return outLen;
   }
-  c_input = ALIGN16(in);
 
-  out = malloc(outLen+ALIGN_EXTRA);
-  if( out == NULL ) {
-    free(in);
-    (*env)->ThrowNew(env, no_mem, "Unable to allocate heap space for encryption output");
+  // step 3: en/decrypt directly in the pinned Java arrays, only single-threaded updates hold a critical region
+  c_output = (*env)->GetPrimitiveArrayCritical(env, output, NULL);
+  if( c_output == NULL ) {
+    (*env)->ThrowNew(env, no_mem, "Unable to access the encryption output");
     return -1;
   }
-  c_output = ALIGN16(out);
-
-  // step 3: copy data from Java and en/decrypt it
-  if( c_state->cache_len ) {
-    memcpy(c_input, c_state->cache, c_state->cache_len);
-    (*env)->GetByteArrayRegion(env, input, inputOffset, inputLen, (jbyte *)(c_input + c_state->cache_len));
+  if( scratch == NULL ) {
+    c_input = (*env)->GetPrimitiveArrayCritical(env, input, NULL);
+    if( c_input == NULL ) {
+      (*env)->ReleasePrimitiveArrayCritical(env, output, c_output, JNI_ABORT);
+      (*env)->ThrowNew(env, no_mem, "Unable to access the encryption input");
+      return -1;
+    }
+    aes_ret = update_blocks(c_state, c_input + inputOffset, inputLen, c_output + outputOffset, outLen);
+    (*env)->ReleasePrimitiveArrayCritical(env, input, c_input, JNI_ABORT);
   } else {
-    (*env)->GetByteArrayRegion(env, input, inputOffset, inputLen, (jbyte *)c_input);
+    aes_ret = update_blocks(c_state, scratch, inputLen, c_output + outputOffset, outLen);
   }
-  if( c_state->direction == ENCRYPTION )
-    aes_ret = aes_cbc_encrypt(c_input, c_output, outLen, c_state->iv, ENC_CTX(c_state));
-  else
-    aes_ret = aes_cbc_decrypt(c_input, c_output, outLen, c_state->iv, DEC_CTX(c_state));
+  (*env)->ReleasePrimitiveArrayCritical(env, output, c_output, 0);
+
   if( aes_ret != EXIT_SUCCESS ) {
-    free(in);
-    free(out);
     (*env)->ThrowNew(env, bad_arg, "Failed to encrypt input data"); // FIXME: get a better exception class for this...
     return -1;
   }
-  (*env)->SetByteArrayRegion(env, output, outputOffset, outLen, (jbyte *)c_output);
-
-  // step 4: cleanup and return
-  if( bytes2cache ) {
-    c_state->cache_len = bytes2cache; // set new cache length
-    memcpy(c_state->cache, (c_input + outLen), bytes2cache); // cache overflow bytes for next call
-  } else {
-    c_state->cache_len = 0;
-  }
-
-  free(in);
-  free(out);
 
   #if defined(KPD_DEBUG)
   __android_log_print(ANDROID_LOG_INFO, "aes_jni.c/nUpdate", "exit: outLen=%d", outLen);
@@ -254,6 +498,64 @@ JNIEXPORT jint JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nUpdate
   return outLen;
 }
 
+JNIEXPORT jint JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nUpdateBuffer(JNIEnv *env, jobject this,
+	jlong state, jobject input, jint inputOffset, jint inputLen, jobject output, jint outputOffset, jint outputSize) {
+  jint outLen;
+  uint8_t *c_input, *c_output;
+  aes_state *c_state;
+
+  if( !inputLen || outputOffset < 0 || !input || !output ) {
+    (*env)->ThrowNew(env, bad_arg, "nUpdateBuffer: called with 1 or more invalid arguments");
+    return -1;
+  }
+  c_input = (*env)->GetDirectBufferAddress(env, input);
+  c_output = (*env)->GetDirectBufferAddress(env, output);
+  if( c_input == NULL || c_output == NULL ) {
+    (*env)->ThrowNew(env, bad_arg, "nUpdateBuffer: buffers must be direct");
+    return -1;
+  }
+  // the native code reads and writes through raw pointers, the regions must stay in the buffers
+  if( inputOffset < 0 || inputLen < 0
+      || (jlong)inputOffset + inputLen > (*env)->GetDirectBufferCapacity(env, input) ) {
+    (*env)->ThrowNew(env, bad_arg, "nUpdateBuffer: input out of the buffer bounds");
+    return -1;
+  }
+  if( outputSize < 0
+      || (jlong)outputOffset + outputSize > (*env)->GetDirectBufferCapacity(env, output) ) {
+    (*env)->ThrowNew(env, bad_arg, "nUpdateBuffer: output out of the buffer bounds");
+    return -1;
+  }
+  c_input += inputOffset;
+  c_output += outputOffset;
+  c_state = (aes_state *)state;
+
+  outLen = update_length(env, c_state, inputLen, outputSize, short_buf);
+  if( outLen < 0 )
+    return -1;
+  if( outLen == 0 ) {
+    memcpy(c_state->cache + c_state->cache_len, c_input, inputLen);
+    c_state->cache_len += inputLen;
+    return 0;
+  }
+
+  // overlapping regions of a same buffer, work on a copy of the input
+  if( c_input < c_output + outLen && c_output < c_input + inputLen ) {
+    uint8_t *scratch = state_scratch(c_state, inputLen);
+    if( scratch == NULL ) {
+      (*env)->ThrowNew(env, no_mem, "Unable to allocate heap space for encryption input");
+      return -1;
+    }
+    memcpy(scratch, c_input, inputLen);
+    c_input = scratch;
+  }
+
+  if( update_blocks(c_state, c_input, inputLen, c_output, outLen) != EXIT_SUCCESS ) {
+    (*env)->ThrowNew(env, bad_arg, "Failed to encrypt input data"); // FIXME: get a better exception class for this...
+    return -1;
+  }
+  return outLen;
+}
+
 /*
   outputSize must be at least 32 for encryption since the buffer may contain >= 1 full block
   outputSize must be at least 16 for decryption
@@ -374,10 +676,20 @@ JNIEXPORT jint JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nGetCac
 
 #define MASTER_KEY_SIZE 32
 
+// rounds run between two progress updates of a thread
+#define KEY_ROUNDS_STEP 65536
+// delay between two calls of the progress listener
+#define KEY_PROGRESS_INTERVAL_NS 100000000L
+
 typedef struct _master_key {
   uint64_t rounds;
   uint32_t done[2];
   pthread_mutex_t lock1, lock2; // these lock the two halves of the key material
+  pthread_mutex_t progress_lock; // protects the fields below
+  pthread_cond_t progress_cond;
+  uint64_t progress[2];
+  uint32_t finished;
+  uint32_t cancelled;
   uint8_t c_seed[MASTER_KEY_SIZE] __attribute__ ((aligned (16)));
   uint8_t key1[MASTER_KEY_SIZE] __attribute__ ((aligned (16)));
   uint8_t key2[MASTER_KEY_SIZE] __attribute__ ((aligned (16)));
@@ -388,7 +700,8 @@ uint32_t generate_key_material(void *arg) {
   #if defined(KPD_PROFILE)
   struct timespec start, end;
   #endif
-  uint32_t i, flip = 0;
+  uint32_t i, step, half, cancelled = 0, flip = 0;
+  uint64_t done;
   uint8_t *key1, *key2;
   master_key *mk = (master_key *)arg;
   aes_encrypt_ctx e_ctx[1] __attribute__ ((aligned (16)));
@@ -408,15 +721,24 @@ uint32_t generate_key_material(void *arg) {
   clock_gettime(CLOCK_THREAD_CPUTIME_ID, &start);
   #endif
 
+  half = (key1 == mk->key1) ? 0 : 1;
   aes_encrypt_key256(mk->c_seed, e_ctx);
-  for (i = 0; i < mk->rounds; i++) {
-    if ( flip ) {
-      aes_encrypt(key2, key1, e_ctx);
-      flip = 0;
-    } else {
-      aes_encrypt(key1, key2, e_ctx);
-      flip = 1;
+  // rounds are run by steps to publish the progress and check the cancellation
+  for (done = 0; done < mk->rounds && !cancelled; done += step) {
+    step = (mk->rounds - done > KEY_ROUNDS_STEP) ? KEY_ROUNDS_STEP : (uint32_t)(mk->rounds - done);
+    for (i = 0; i < step; i++) {
+      if ( flip ) {
+        aes_encrypt(key2, key1, e_ctx);
+        flip = 0;
+      } else {
+        aes_encrypt(key1, key2, e_ctx);
+        flip = 1;
+      }
     }
+    pthread_mutex_lock(&mk->progress_lock);
+    mk->progress[half] = done + step;
+    cancelled = mk->cancelled;
+    pthread_mutex_unlock(&mk->progress_lock);
   }
 
   #if defined(KPD_PROFILE)
@@ -435,12 +757,64 @@ uint32_t generate_key_material(void *arg) {
     pthread_mutex_unlock(&mk->lock2);
   }
 
+  pthread_mutex_lock(&mk->progress_lock);
+  mk->finished++;
+  pthread_cond_signal(&mk->progress_cond);
+  pthread_mutex_unlock(&mk->progress_lock);
+
   return flip;
 }
 
-JNIEXPORT jbyteArray JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESKeyTransformer_nTransformKey(JNIEnv *env, jobject this, jbyteArray seed, jbyteArray key, jlong rounds) {
+/*
+ * Wait for the key material threads, reporting the progress to the listener
+ * until they finish. Returns 0 if the listener cancelled the transformation
+ * or threw an exception.
+ */
+static int wait_key_material(JNIEnv *env, master_key *mk, jobject listener) {
+  jclass cls;
+  jmethodID on_progress;
+  jboolean carry_on;
+  uint64_t done;
+  struct timespec deadline;
+  int cancelled = 0;
+
+  cls = (*env)->GetObjectClass(env, listener);
+  on_progress = (*env)->GetMethodID(env, cls, "onProgress", "(JJ)Z");
+  (*env)->DeleteLocalRef(env, cls);
+
+  pthread_mutex_lock(&mk->progress_lock);
+  if( on_progress == NULL ) {
+    mk->cancelled = cancelled = 1;
+  }
+  while( mk->finished < 2 ) {
+    clock_gettime(CLOCK_REALTIME, &deadline);
+    deadline.tv_nsec += KEY_PROGRESS_INTERVAL_NS;
+    if( deadline.tv_nsec >= 1000000000L ) {
+      deadline.tv_sec++;
+      deadline.tv_nsec -= 1000000000L;
+    }
+    pthread_cond_timedwait(&mk->progress_cond, &mk->progress_lock, &deadline);
+    if( cancelled || mk->finished >= 2 )
+      continue;
+    done = (mk->progress[0] + mk->progress[1]) / 2;
+    pthread_mutex_unlock(&mk->progress_lock);
+
+    carry_on = (*env)->CallBooleanMethod(env, listener, on_progress, (jlong)done, (jlong)mk->rounds);
+    if( (*env)->ExceptionCheck(env) || !carry_on )
+      cancelled = 1;
+
+    pthread_mutex_lock(&mk->progress_lock);
+    mk->cancelled = cancelled;
+  }
+  pthread_mutex_unlock(&mk->progress_lock);
+
+  return !cancelled;
+}
+
+JNIEXPORT jbyteArray JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESKeyTransformer_nTransformKey(JNIEnv *env, jobject this, jbyteArray seed, jbyteArray key, jlong rounds, jobject listener) {
   master_key mk;
   uint32_t flip;
+  int completed = 1;
   pthread_t t1, t2;
   int iret;
   void *vret1, *vret2;
@@ -462,6 +836,13 @@ JNIEXPORT jbyteArray JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESKeyTransfor
   }
   mk.rounds = (uint64_t)rounds;
   mk.done[0] = mk.done[1] = 0;
+  mk.progress[0] = mk.progress[1] = 0;
+  mk.finished = 0;
+  mk.cancelled = 0;
+  if( pthread_mutex_init(&mk.progress_lock, NULL) != 0 || pthread_cond_init(&mk.progress_cond, NULL) != 0 ) {
+    (*env)->ThrowNew(env, bad_arg, "TransformMasterKey: failed to initialize the progress lock");
+    return NULL;
+  }
   if( pthread_mutex_init(&mk.lock1, NULL) != 0 ) {
     (*env)->ThrowNew(env, bad_arg, "TransformMasterKey: failed to initialize the mutex for thread 1"); // FIXME: get a better exception class for this...
     return NULL;
@@ -484,6 +865,8 @@ JNIEXPORT jbyteArray JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESKeyTransfor
     (*env)->ThrowNew(env, bad_arg, "TransformMasterKey: failed to launch thread 2"); // FIXME: get a better exception class for this...
     return NULL;
   }
+  if( listener != NULL )
+    completed = wait_key_material(env, &mk, listener);
   iret = pthread_join( t1, &vret1 );
   if( iret != 0 ) {
     (*env)->ThrowNew(env, bad_arg, "TransformMasterKey: failed to join thread 1"); // FIXME: get a better exception class for this...
@@ -494,6 +877,13 @@ JNIEXPORT jbyteArray JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESKeyTransfor
     (*env)->ThrowNew(env, bad_arg, "TransformMasterKey: failed to join thread 2"); // FIXME: get a better exception class for this...
     return NULL;
   }
+  pthread_cond_destroy(&mk.progress_cond);
+  pthread_mutex_destroy(&mk.progress_lock);
+  if( !completed ) {
+    // cancelled by the listener, or its exception is pending
+    memset(&mk, 0, sizeof(mk));
+    return NULL;
+  }
   if( vret1 == (void *)(-1) || vret2 == (void *)(-1) || vret1 != vret2 ) {
     (*env)->ThrowNew(env, bad_arg, "TransformMasterKey: invalid flip value(s) from completed thread(s)"); // FIXME: get a better exception class for this...
     return NULL;
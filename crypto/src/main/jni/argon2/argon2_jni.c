@@ -127,14 +127,44 @@ void throwExceptionF(JNIEnv *env, jclass exception, const char *format, ...) {
 
 #define ARGON2_HASHLEN 32
 
+typedef struct {
+    JNIEnv *env;
+    jobject listener;
+    jmethodID on_progress;
+} progress_listener;
+
+/* Forwards the slices done to the Java listener, called in the JNI thread */
+static int notifyProgress(uint32_t slices_done, uint32_t slices_total, void *data) {
+    progress_listener *progress = (progress_listener *) data;
+    JNIEnv *env = progress->env;
+
+    jboolean carry_on = (*env)->CallBooleanMethod(env, progress->listener, progress->on_progress,
+                                                  (jlong) slices_done, (jlong) slices_total);
+    return (*env)->ExceptionCheck(env) || !carry_on;
+}
+
 JNIEXPORT jbyteArray
 JNICALL Java_com_kunzisoft_encrypt_argon2_NativeArgon2KeyTransformer_nTransformKey(JNIEnv *env,
    jobject this, jint type, jbyteArray password, jbyteArray salt, jint parallelism, jint memory,
-   jint iterations, jbyteArray secretKey, jbyteArray associatedData, jint version) {
+   jint iterations, jbyteArray secretKey, jbyteArray associatedData, jint version, jint threads,
+   jobject listener) {
 
     argon2_context context;
+    progress_listener progress;
     uint8_t *out;
 
+    progress.env = env;
+    progress.listener = listener;
+    progress.on_progress = NULL;
+    if (listener != NULL) {
+        jclass listenerClass = (*env)->GetObjectClass(env, listener);
+        progress.on_progress = (*env)->GetMethodID(env, listenerClass, "onProgress", "(JJ)Z");
+        (*env)->DeleteLocalRef(env, listenerClass);
+        if (progress.on_progress == NULL) {
+            return NULL;
+        }
+    }
+
     out = (uint8_t *) malloc(ARGON2_HASHLEN);
     if (out == NULL) {
         throwExceptionF(env, no_mem, "Not enough memory for output hash array");
@@ -163,16 +193,22 @@ JNICALL Java_com_kunzisoft_encrypt_argon2_NativeArgon2KeyTransformer_nTransformK
     context.t_cost = (uint32_t) iterations;
     context.m_cost = (uint32_t) memory;
     context.lanes = (uint32_t) parallelism;
-    context.threads = (uint32_t) parallelism;
+    /* Threads only change the wall-clock time, never the derived key */
+    context.threads = (threads > 0 && threads < parallelism) ? (uint32_t) threads : (uint32_t) parallelism;
     context.allocate_cbk = NULL;
     context.free_cbk = NULL;
+    context.progress_cbk = progress.on_progress != NULL ? notifyProgress : NULL;
+    context.progress_data = &progress;
     context.flags = ARGON2_DEFAULT_FLAGS;
     context.version = (uint32_t) version;
 
     int argonResult = argon2_ctx(&context, (argon2_type) type);
 
     jbyteArray result;
-    if (argonResult != ARGON2_OK) {
+    if (argonResult == ARGON2_CANCELLED) {
+        /* Cancelled by the listener, or its exception is pending */
+        result = NULL;
+    } else if (argonResult != ARGON2_OK) {
         throwExceptionF(env, io, "Hash failed with code=%d", argonResult);
         result = NULL;
     } else {
@@ -151,13 +151,20 @@ typedef enum Argon2_ErrorCodes {
 
     ARGON2_DECODING_LENGTH_FAIL = -34,
 
-    ARGON2_VERIFY_MISMATCH = -35
+    ARGON2_VERIFY_MISMATCH = -35,
+
+    ARGON2_CANCELLED = -36
 } argon2_error_codes;
 
 /* Memory allocator types --- for external allocation */
 typedef int (*allocate_fptr)(uint8_t **memory, size_t bytes_to_allocate);
 typedef void (*deallocate_fptr)(uint8_t *memory, size_t bytes_to_allocate);
 
+/* Progress listener, called after each slice with the number of slices done,
+ * returns non-zero to cancel the computation with ARGON2_CANCELLED */
+typedef int (*progress_fptr)(uint32_t slices_done, uint32_t slices_total,
+                             void *progress_data);
+
 /* Argon2 external data structures */
 
 /*
@@ -211,6 +218,9 @@ typedef struct Argon2_Context {
     allocate_fptr allocate_cbk; /* pointer to memory allocator */
     deallocate_fptr free_cbk;   /* pointer to memory deallocator */
 
+    progress_fptr progress_cbk; /* pointer to progress listener or NULL */
+    void *progress_data;        /* data given to the progress listener */
+
     uint32_t flags; /* array of bool options */
 } argon2_context;
 
@@ -258,6 +258,65 @@ static void *fill_segment_thr(void *thread_data)
     return 0;
 }
 
+/* Reports the end of a slice to the progress listener of the context */
+static int report_progress(const argon2_instance_t *instance, uint32_t pass,
+                           uint32_t slice) {
+    const argon2_context *context = instance->context_ptr;
+
+    if (context == NULL || context->progress_cbk == NULL) {
+        return ARGON2_OK;
+    }
+    if (context->progress_cbk(pass * ARGON2_SYNC_POINTS + slice + 1,
+                              instance->passes * ARGON2_SYNC_POINTS,
+                              context->progress_data)) {
+        return ARGON2_CANCELLED;
+    }
+    return ARGON2_OK;
+}
+
+/* Fills the segment of a lane in the slice described by the pool arguments */
+static void fill_segment_task(void *thread_data, uint32_t lane) {
+    argon2_thread_data *slice_data = thread_data;
+    argon2_position_t position;
+
+    memcpy(&position, &slice_data->pos, sizeof(argon2_position_t));
+    position.lane = lane;
+    fill_segment(slice_data->instance_ptr, position);
+}
+
+/* Fills the memory with the shared thread pool, the workers are kept between
+ * the slices and the computations instead of being created for each segment
+ */
+static int fill_memory_blocks_pool(argon2_instance_t *instance) {
+    uint32_t r, s;
+    argon2_thread_data slice_data;
+
+    if (argon2_thread_pool_acquire(instance->threads)) {
+        return ARGON2_THREAD_FAIL;
+    }
+    slice_data.instance_ptr = instance;
+    for (r = 0; r < instance->passes; ++r) {
+        for (s = 0; s < ARGON2_SYNC_POINTS; ++s) {
+            slice_data.pos.pass = r;
+            slice_data.pos.lane = 0;
+            slice_data.pos.slice = (uint8_t)s;
+            slice_data.pos.index = 0;
+            argon2_thread_pool_run(instance->lanes, fill_segment_task,
+                                   &slice_data);
+            if (report_progress(instance, r, s) != ARGON2_OK) {
+                argon2_thread_pool_release();
+                return ARGON2_CANCELLED;
+            }
+        }
+
+#ifdef GENKAT
+        internal_kat(instance, r); /* Print all memory blocks */
+#endif
+    }
+    argon2_thread_pool_release();
+    return ARGON2_OK;
+}
+
 int fill_memory_blocks(argon2_instance_t *instance) {
     uint32_t r, s;
     argon2_thread_handle_t *thread = NULL;
@@ -269,6 +328,13 @@ int fill_memory_blocks(argon2_instance_t *instance) {
         goto fail;
     }
 
+    /* 0. Reusing the pool, unless it is busy with another computation */
+    rc = fill_memory_blocks_pool(instance);
+    if (rc != ARGON2_THREAD_FAIL) {
+        return rc;
+    }
+    rc = ARGON2_OK;
+
     /* 1. Allocating space for threads */
     thread = calloc(instance->lanes, sizeof(argon2_thread_handle_t));
     if (thread == NULL) {
@@ -325,6 +391,12 @@ int fill_memory_blocks(argon2_instance_t *instance) {
                     goto fail;
                 }
             }
+
+            /* 4. Reporting the progress */
+            rc = report_progress(instance, r, s);
+            if (rc != ARGON2_OK) {
+                goto fail;
+            }
         }
 
 #ifdef GENKAT
@@ -0,0 +1,84 @@
+/*
+ * Argon2 reference source code package - reference C implementations
+ *
+ * Copyright 2015
+ * Daniel Dinu, Dmitry Khovratovich, Jean-Philippe Aumasson, and Samuel Neves
+ *
+ * You may use this work under the terms of a Creative Commons CC0 1.0 
+ * License/Waiver or the Apache Public License 2.0, at your option. The terms of
+ * these licenses can be found at:
+ *
+ * - CC0 1.0 Universal : http://creativecommons.org/publicdomain/zero/1.0
+ * - Apache 2.0        : http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * You should have received a copy of both of these licenses along with this
+ * software. If not, they may be obtained at the above URLs.
+ */
+
+#include <pthread.h>
+
+#include "core.h"
+#include "ref.h"
+#include "opt.h"
+
+#if defined(ARGON2_X86)
+#include <cpuid.h>
+#elif defined(ARGON2_NEON) && defined(__arm__)
+#include <cpu-features.h>
+#endif
+
+/*
+ * Runtime selection of the segment filling implementation, the native library
+ * is shared by all devices of an ABI so the vector extensions are checked once
+ * on the running CPU instead of at compile time
+ */
+
+typedef void (*fill_segment_fn)(const argon2_instance_t *instance,
+                                argon2_position_t position);
+
+static fill_segment_fn fill_segment_impl = fill_segment_ref;
+static pthread_once_t fill_segment_once = PTHREAD_ONCE_INIT;
+
+#if defined(ARGON2_X86)
+static int cpu_has_avx2(void) {
+    unsigned int eax, ebx, ecx, edx;
+    unsigned int xcr0_lo, xcr0_hi;
+
+    if (!__get_cpuid(1, &eax, &ebx, &ecx, &edx)) {
+        return 0;
+    }
+    /* AVX and OSXSAVE, the OS must save the YMM registers */
+    if ((ecx & (1u << 27)) == 0 || (ecx & (1u << 28)) == 0) {
+        return 0;
+    }
+    __asm__ __volatile__("xgetbv" : "=a"(xcr0_lo), "=d"(xcr0_hi) : "c"(0));
+    if ((xcr0_lo & 0x6) != 0x6) {
+        return 0;
+    }
+    if (__get_cpuid_max(0, NULL) < 7) {
+        return 0;
+    }
+    __cpuid_count(7, 0, eax, ebx, ecx, edx);
+    return (ebx & (1u << 5)) != 0;
+}
+#endif
+
+static void select_fill_segment(void) {
+#if defined(ARGON2_X86)
+    /* SSE2 is part of the x86 Android ABIs */
+    fill_segment_impl = cpu_has_avx2() ? fill_segment_avx2 : fill_segment_sse2;
+#elif defined(ARGON2_NEON) && defined(__aarch64__)
+    fill_segment_impl = fill_segment_neon;
+#elif defined(ARGON2_NEON) && defined(__arm__)
+    if (android_getCpuFamily() == ANDROID_CPU_FAMILY_ARM &&
+        (android_getCpuFeatures() & ANDROID_CPU_ARM_FEATURE_NEON) != 0) {
+        fill_segment_impl = fill_segment_neon;
+    }
+#endif
+}
+
+void fill_segment(const argon2_instance_t *instance,
+                  argon2_position_t position) {
+    pthread_once(&fill_segment_once, select_fill_segment);
+    fill_segment_impl(instance, position);
+}
@@ -19,17 +19,18 @@
 #define ARGON2_OPT_H
 
 #include "core.h"
-#include <emmintrin.h>
 
 /*
- * Function fills a new memory block and optionally XORs the old block over the new one.
- * Memory must be initialized.
- * @param state Pointer to the just produced block. Content will be updated(!)
- * @param ref_block Pointer to the reference block
- * @param next_block Pointer to the block to be XORed over. May coincide with @ref_block
- * @param with_xor Whether to XOR into the new block (1) or just overwrite (0)
- * @pre all block pointers must be valid
+ * Vectorised segment filling, each one only built for the ABIs supporting it
+ * and selected at runtime by fill_segment() according to the CPU features
  */
-void fill_block(__m128i *s, const block *ref_block, block *next_block, int with_xor);
+void fill_segment_sse2(const argon2_instance_t *instance,
+                       argon2_position_t position);
+
+void fill_segment_avx2(const argon2_instance_t *instance,
+                       argon2_position_t position);
+
+void fill_segment_neon(const argon2_instance_t *instance,
+                       argon2_position_t position);
 
 #endif /* ARGON2_OPT_H */
@@ -51,3 +51,134 @@ void argon2_thread_exit(void) {
     pthread_exit(NULL);
 #endif
 }
+
+#if defined(_WIN32)
+
+int argon2_thread_pool_acquire(uint32_t threads) {
+    (void)threads;
+    return -1;
+}
+
+void argon2_thread_pool_run(uint32_t tasks, argon2_pool_task_t func,
+                            void *args) {
+    uint32_t i;
+    for (i = 0; i < tasks; ++i) {
+        func(args, i);
+    }
+}
+
+void argon2_thread_pool_release(void) {}
+
+#else
+
+/* Workers in addition to the calling thread */
+#define ARGON2_POOL_MAX_WORKERS 31
+
+static struct {
+    pthread_mutex_t owner; /* held from acquire to release */
+    pthread_mutex_t lock;
+    pthread_cond_t work_cond;
+    pthread_cond_t done_cond;
+    uint32_t workers;        /* started workers */
+    uint32_t active_workers; /* workers taking part in the reservation */
+    unsigned long generation;
+    argon2_pool_task_t func;
+    void *args;
+    uint32_t next_task;
+    uint32_t tasks;
+    uint32_t pending;
+} pool = {PTHREAD_MUTEX_INITIALIZER, PTHREAD_MUTEX_INITIALIZER,
+          PTHREAD_COND_INITIALIZER, PTHREAD_COND_INITIALIZER};
+
+/* Runs the tasks left in the current batch, pool.lock must be held */
+static void pool_run_tasks(void) {
+    while (pool.next_task < pool.tasks) {
+        uint32_t index = pool.next_task++;
+        pthread_mutex_unlock(&pool.lock);
+        pool.func(pool.args, index);
+        pthread_mutex_lock(&pool.lock);
+        if (--pool.pending == 0) {
+            pthread_cond_broadcast(&pool.done_cond);
+        }
+    }
+}
+
+static void *pool_worker(void *args) {
+    uint32_t worker = (uint32_t)(uintptr_t)args;
+    unsigned long seen = 0;
+
+    pthread_mutex_lock(&pool.lock);
+    seen = pool.generation;
+    for (;;) {
+        while (pool.generation == seen) {
+            pthread_cond_wait(&pool.work_cond, &pool.lock);
+        }
+        seen = pool.generation;
+        if (worker < pool.active_workers) {
+            pool_run_tasks();
+        }
+    }
+    return NULL;
+}
+
+int argon2_thread_pool_acquire(uint32_t threads) {
+    uint32_t needed;
+
+    if (pthread_mutex_trylock(&pool.owner) != 0) {
+        return -1;
+    }
+    needed = threads > 0 ? threads - 1 : 0;
+    if (needed > ARGON2_POOL_MAX_WORKERS) {
+        needed = ARGON2_POOL_MAX_WORKERS;
+    }
+
+    pthread_mutex_lock(&pool.lock);
+    while (pool.workers < needed) {
+        pthread_t thread;
+        pthread_attr_t attr;
+        int rc;
+
+        pthread_attr_init(&attr);
+        pthread_attr_setdetachstate(&attr, PTHREAD_CREATE_DETACHED);
+        rc = pthread_create(&thread, &attr, pool_worker,
+                            (void *)(uintptr_t)pool.workers);
+        pthread_attr_destroy(&attr);
+        if (rc != 0) {
+            break;
+        }
+        pool.workers++;
+    }
+    if (pool.workers < needed) {
+        pthread_mutex_unlock(&pool.lock);
+        pthread_mutex_unlock(&pool.owner);
+        return -1;
+    }
+    pool.active_workers = needed;
+    pthread_mutex_unlock(&pool.lock);
+    return 0;
+}
+
+void argon2_thread_pool_run(uint32_t tasks, argon2_pool_task_t func,
+                            void *args) {
+    pthread_mutex_lock(&pool.lock);
+    pool.func = func;
+    pool.args = args;
+    pool.next_task = 0;
+    pool.tasks = tasks;
+    pool.pending = tasks;
+    if (pool.active_workers > 0) {
+        pool.generation++;
+        pthread_cond_broadcast(&pool.work_cond);
+    }
+    pool_run_tasks();
+    while (pool.pending > 0) {
+        pthread_cond_wait(&pool.done_cond, &pool.lock);
+    }
+    pthread_mutex_unlock(&pool.lock);
+}
+
+void argon2_thread_pool_release(void) {
+    pthread_mutex_unlock(&pool.owner);
+}
+
+#endif /* _WIN32 */
@@ -27,6 +27,8 @@
    argon2_thread_func_t,
         and the type of the thread handle---argon2_thread_handle_t.
 */
+#include <stdint.h>
+
 #if defined(_WIN32)
 #include <process.h>
 typedef unsigned(__stdcall *argon2_thread_func_t)(void *);
@@ -60,4 +62,27 @@ int argon2_thread_join(argon2_thread_handle_t handle);
 */
 void argon2_thread_exit(void);
 
+/* Function run by the thread pool for each task index
+ */
+typedef void (*argon2_pool_task_t)(void *args, uint32_t index);
+
+/* Reserves the process wide thread pool for a computation with at most
+ * @threads concurrent threads, the calling thread being one of them. Workers
+ * are started on first use and kept across computations.
+ * @param threads Maximum number of threads running the tasks
+ * @return 0 if the pool is reserved, -1 if it is busy or can't be started,
+ * the caller has then to spawn its own threads
+ */
+int argon2_thread_pool_acquire(uint32_t threads);
+
+/* Runs @func for every index in [0, @tasks) on the reserved pool and returns
+ * when all of them are done
+ */
+void argon2_thread_pool_run(uint32_t tasks, argon2_pool_task_t func,
+                            void *args);
+
+/* Releases the pool reserved by argon2_thread_pool_acquire
+ */
+void argon2_thread_pool_release(void);
+
 #endif
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.encrypt
+
+import com.kunzisoft.encrypt.aes.AESTransformer
+import org.junit.Assert.assertArrayEquals
+import org.junit.Ignore
+import org.junit.Test
+import java.util.*
+
+/**
+ * Micro-benchmark of the JVM AES-KDF, run on the host where the native library is not loaded.
+ * Ignored in the default suite, the correctness is checked by [AESTransformerTest]
+ */
+@Ignore("Benchmark, run manually")
+class AESTransformerBenchmark {
+
+    private val mRand = Random()
+
+    @Test
+    fun benchmarkJVMKeyTransformation() {
+        val seed = ByteArray(32)
+        mRand.nextBytes(seed)
+        val key = ByteArray(32)
+        mRand.nextBytes(key)
+
+        // Warm up the JIT with both paths
+        for (i in 0 until WARM_UP_ITERATIONS) {
+            AESTransformer.transformKeyInJVM(seed, key, WARM_UP_ROUNDS, parallel = false)
+            AESTransformer.transformKeyInJVM(seed, key, WARM_UP_ROUNDS, parallel = true)
+        }
+
+        var singleThreadKey = ByteArray(0)
+        val singleThreadNanos = bestOf {
+            singleThreadKey = AESTransformer.transformKeyInJVM(seed, key, ROUNDS, parallel = false)
+        }
+        var parallelKey = ByteArray(0)
+        val parallelNanos = bestOf {
+            parallelKey = AESTransformer.transformKeyInJVM(seed, key, ROUNDS, parallel = true)
+        }
+
+        assertArrayEquals("Check single-threaded and parallel keys", singleThreadKey, parallelKey)
+
+        println("AES-KDF JVM $ROUNDS rounds on ${Runtime.getRuntime().availableProcessors()} cores: " +
+                "single thread ${singleThreadNanos / 1000000} ms, " +
+                "two threads ${parallelNanos / 1000000} ms, " +
+                "speedup ${"%.2f".format(singleThreadNanos.toDouble() / parallelNanos)}")
+    }
+
+    private fun bestOf(action: () -> Unit): Long {
+        var best = Long.MAX_VALUE
+        for (i in 0 until MEASURE_ITERATIONS) {
+            val start = System.nanoTime()
+            action.invoke()
+            best = minOf(best, System.nanoTime() - start)
+        }
+        return best
+    }
+
+    companion object {
+        private const val WARM_UP_ITERATIONS = 5
+        private const val WARM_UP_ROUNDS = 100000L
+        private const val MEASURE_ITERATIONS = 5
+        private const val ROUNDS = 2000000L
+    }
+}
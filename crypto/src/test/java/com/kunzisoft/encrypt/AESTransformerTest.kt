@@ -0,0 +1,80 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.encrypt
+
+import com.kunzisoft.encrypt.aes.AESTransformer
+import org.junit.Assert.assertArrayEquals
+import org.junit.Test
+import java.util.*
+
+class AESTransformerTest {
+
+    private val mRand = Random()
+
+    @Test
+    fun testSingleThreadKnownAnswer() {
+        for (vector in VECTORS) {
+            assertArrayEquals("Check single-threaded key of ${vector.rounds} rounds",
+                    vector.expected,
+                    AESTransformer.transformKeyInJVM(SEED, KEY, vector.rounds, parallel = false))
+        }
+    }
+
+    @Test
+    fun testParallelKnownAnswer() {
+        for (vector in VECTORS) {
+            assertArrayEquals("Check parallel key of ${vector.rounds} rounds",
+                    vector.expected,
+                    AESTransformer.transformKeyInJVM(SEED, KEY, vector.rounds, parallel = true))
+        }
+    }
+
+    @Test
+    fun testParallelMatchesSingleThread() {
+        val seed = ByteArray(32)
+        mRand.nextBytes(seed)
+        val key = ByteArray(32)
+        mRand.nextBytes(key)
+        val rounds = 1000L + mRand.nextInt(10000)
+
+        assertArrayEquals("Check single-threaded and parallel keys",
+                AESTransformer.transformKeyInJVM(seed, key, rounds, parallel = false),
+                AESTransformer.transformKeyInJVM(seed, key, rounds, parallel = true))
+    }
+
+    private class Vector(val rounds: Long, expectedHex: String) {
+        val expected = hexToBytes(expectedHex)
+    }
+
+    companion object {
+        // Seed 00..1f and key 20..3f, expected values computed with OpenSSL AES-256-ECB and SHA-256
+        private val SEED = ByteArray(32) { it.toByte() }
+        private val KEY = ByteArray(32) { (0x20 + it).toByte() }
+        private val VECTORS = listOf(
+                Vector(1L, "aec37a882b6113e1c172dd62bcba0cff15b5ff71bec097f5f06bba19154384d8"),
+                Vector(6000L, "da86f7be13d8149c58bb5ebaf591bd8825c4b904d913d5daa2e25e3bdb2ab2a8"))
+
+        private fun hexToBytes(hex: String): ByteArray {
+            return ByteArray(hex.length / 2) { i ->
+                hex.substring(i * 2, i * 2 + 2).toInt(16).toByte()
+            }
+        }
+    }
+}